@@ -0,0 +1,70 @@
+package com.sulikdan.ERDMS.bootstrap;
+
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+/**
+ * Class DocBlobMigration moves files of documents saved before the BlobStore was introduced (inline
+ * field documentAsBytes) into the BlobStore. Documents are migrated in small batches, so only a few
+ * files are held in memory at once. Already migrated documents are not touched again.
+ */
+@Slf4j
+@Component
+public class DocBlobMigration implements ApplicationListener<ContextRefreshedEvent> {
+
+  private static final String LEGACY_BYTES_FIELD = "documentAsBytes";
+  private static final int BATCH_SIZE = 20;
+
+  private final MongoTemplate mongoTemplate;
+  private final BlobStore blobStore;
+
+  public DocBlobMigration(MongoTemplate mongoTemplate, BlobStore blobStore) {
+    this.mongoTemplate = mongoTemplate;
+    this.blobStore = blobStore;
+  }
+
+  @Override
+  public void onApplicationEvent(ContextRefreshedEvent event) {
+    final String collection = mongoTemplate.getCollectionName(Doc.class);
+
+    Query query = Query.query(Criteria.where(LEGACY_BYTES_FIELD).exists(true)).limit(BATCH_SIZE);
+    query.fields().include(LEGACY_BYTES_FIELD).include("nameOfFile");
+
+    int migrated = 0;
+    List<Document> batch;
+    while (!(batch = mongoTemplate.find(query, Document.class, collection)).isEmpty()) {
+      for (Document legacyDoc : batch) {
+        Update update = new Update().unset(LEGACY_BYTES_FIELD);
+
+        Binary legacyBytes = legacyDoc.get(LEGACY_BYTES_FIELD, Binary.class);
+        if (legacyBytes != null) {
+          String blobId =
+              blobStore.storeBlob(
+                  new ByteArrayInputStream(legacyBytes.getData()),
+                  legacyDoc.getString("nameOfFile"),
+                  null);
+          update.set("documentBlobId", blobId);
+        }
+
+        mongoTemplate.updateFirst(
+            Query.query(Criteria.where("_id").is(legacyDoc.get("_id"))), update, collection);
+      }
+      migrated += batch.size();
+    }
+
+    if (migrated > 0) log.info("Migrated " + migrated + " document files into the BlobStore.");
+  }
+}
@@ -0,0 +1,66 @@
+package com.sulikdan.ERDMS.bootstrap;
+
+import com.mongodb.DBRef;
+import com.sulikdan.ERDMS.entities.Doc;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Class DocOwnerIdMigration fills ownerId of documents saved before it was introduced. The id is
+ * taken straight from the stored owner reference, so no user is loaded. Documents are updated in
+ * batches with a single unordered bulk write per batch.
+ */
+@Slf4j
+@Component
+public class DocOwnerIdMigration implements ApplicationListener<ContextRefreshedEvent> {
+
+  private static final int BATCH_SIZE = 500;
+
+  private final MongoTemplate mongoTemplate;
+
+  public DocOwnerIdMigration(MongoTemplate mongoTemplate) {
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  @Override
+  public void onApplicationEvent(ContextRefreshedEvent event) {
+    final String collection = mongoTemplate.getCollectionName(Doc.class);
+
+    Query query =
+        Query.query(Criteria.where("ownerId").exists(false).and("owner").exists(true))
+            .limit(BATCH_SIZE);
+    query.fields().include("owner");
+
+    int migrated = 0;
+    List<Document> batch;
+    while (!(batch = mongoTemplate.find(query, Document.class, collection)).isEmpty()) {
+      BulkOperations bulkOps =
+          mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+
+      for (Document legacyDoc : batch) {
+        Object ownerRef = legacyDoc.get("owner");
+        Object ownerId = ownerRef instanceof DBRef ? ((DBRef) ownerRef).getId() : null;
+
+        // null is stored as well, so broken references are not picked up again
+        bulkOps.updateOne(
+            Query.query(Criteria.where("_id").is(legacyDoc.get("_id"))),
+            Update.update("ownerId", ownerId != null ? ownerId.toString() : null));
+      }
+
+      bulkOps.execute();
+      migrated += batch.size();
+    }
+
+    if (migrated > 0) log.info("Filled ownerId of " + migrated + " documents.");
+  }
+}
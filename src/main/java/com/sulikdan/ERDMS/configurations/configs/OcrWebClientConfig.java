@@ -0,0 +1,58 @@
+package com.sulikdan.ERDMS.configurations.configs;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class OcrWebClientConfig creates single WebClient shared by all calls to OCR, so connections are
+ * pooled and kept alive between the calls.
+ */
+@Configuration
+public class OcrWebClientConfig {
+
+  @Bean
+  public WebClient ocrWebClient(OcrProperties ocrProperties) {
+    OcrProperties.Client clientProperties = ocrProperties.getClient();
+
+    ConnectionProvider connectionProvider =
+        ConnectionProvider.builder("ocr-client")
+            .maxConnections(clientProperties.getMaxConnections())
+            .pendingAcquireMaxCount(clientProperties.getPendingAcquireMaxCount())
+            .pendingAcquireTimeout(
+                Duration.ofMillis(clientProperties.getPendingAcquireTimeoutMillis()))
+            .maxIdleTime(Duration.ofMillis(clientProperties.getMaxIdleTimeMillis()))
+            .build();
+
+    HttpClient httpClient =
+        HttpClient.create(connectionProvider)
+            .tcpConfiguration(
+                tcpClient ->
+                    tcpClient
+                        .option(
+                            ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                            clientProperties.getConnectTimeoutMillis())
+                        .doOnConnected(
+                            connection ->
+                                connection.addHandlerLast(
+                                    new ReadTimeoutHandler(
+                                        clientProperties.getReadTimeoutMillis(),
+                                        TimeUnit.MILLISECONDS))));
+
+    return WebClient.builder()
+        .clientConnector(new ReactorClientHttpConnector(httpClient))
+        .codecs(
+            configurer ->
+                configurer.defaultCodecs().maxInMemorySize(clientProperties.getMaxResponseBytes()))
+        .build();
+  }
+}
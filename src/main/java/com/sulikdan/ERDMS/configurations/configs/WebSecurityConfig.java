@@ -65,6 +65,9 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
           .authorizeRequests()
             .antMatchers("/users/**", "/v3/**")
               .permitAll()
+            // OCR callbacks are authenticated by their signature
+            .antMatchers(HttpMethod.POST, "/ocr/callbacks/**")
+              .permitAll()
             .antMatchers(HttpMethod.OPTIONS, "/**")
               .permitAll()
 
@@ -5,6 +5,9 @@ import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Daniel Šulik on 24-Oct-20
  * <p>
@@ -19,4 +22,270 @@ public class OcrProperties {
     private String port;
     private String address;
 
+    /** Base urls of OCR nodes, e.g. http://127.0.0.1:8086. When empty, address and port are used. */
+    private List<String> backends = new ArrayList<>();
+
+    private Routing routing = new Routing();
+
+    private Jobs jobs = new Jobs();
+
+    private Executor executor = new Executor();
+
+    private Client client = new Client();
+
+    private Polling polling = new Polling();
+
+    private Callback callback = new Callback();
+
+    private Batch batch = new Batch();
+
+    private Breaker breaker = new Breaker();
+
+    private TextLayer textLayer = new TextLayer();
+
+    private FanOut fanOut = new FanOut();
+
+    private ResultCache resultCache = new ResultCache();
+
+    /**
+     * Properties of persistent OCR job queue.
+     */
+    @Getter
+    @Setter
+    public static class Jobs {
+
+        /** Id of this worker node, generated when empty. */
+        private String nodeId;
+
+        /** How long is claimed job held by a node without heartbeat. */
+        private long leaseMillis = 120000;
+
+        /** How often are leases of claimed jobs renewed. */
+        private long heartbeatMillis = 30000;
+
+        /** Delay of the next attempt, when document is still being processed by OCR. */
+        private long pollDelayMillis = 60000;
+
+        /** Failed attempts after which the document is marked as FAILED and job is dead-lettered. */
+        private int maxAttempts = 3;
+
+        /** Delay after the first failed attempt, it's doubled with every next one. */
+        private long retryBaseDelayMillis = 30000;
+
+        private long retryMaxDelayMillis = 3600000;
+
+        /** Dead-lettered jobs re-driven per second, re-driven jobs are spread by this rate. */
+        private double redriveRatePerSecond = 2;
+
+        /** Max dead-lettered jobs re-driven by one request. */
+        private int redriveBatchSize = 500;
+
+        /** Max number of jobs claimed by a node in one sweep. */
+        private int claimBatchSize = 20;
+
+        /** How often are unscanned documents and abandoned jobs checked by recovery pass. */
+        private long recoverySweepMillis = 600000;
+    }
+
+    /**
+     * Properties of executor running OCR workers.
+     */
+    @Getter
+    @Setter
+    public static class Executor {
+
+        /** Number of OCR jobs processed in parallel against one OCR backend. */
+        private int concurrencyPerBackend = 4;
+
+        /** Number of jobs waiting in memory for a free worker. */
+        private int queueCapacity = 100;
+
+        /** Delay after which is job left in DB(because executor was full) tried again. */
+        private long spillRetryMillis = 5000;
+    }
+
+    /**
+     * Properties of shared HTTP client used to call OCR.
+     */
+    @Getter
+    @Setter
+    public static class Client {
+
+        /** Max open connections to OCR. */
+        private int maxConnections = 100;
+
+        /** Max requests waiting for a free connection. */
+        private int pendingAcquireMaxCount = 1000;
+
+        private long pendingAcquireTimeoutMillis = 45000;
+
+        /** Idle connections are closed after this time. */
+        private long maxIdleTimeMillis = 30000;
+
+        private int connectTimeoutMillis = 5000;
+
+        private long readTimeoutMillis = 60000;
+
+        /** Max size of OCR response held in memory, results of big documents can be large. */
+        private int maxResponseBytes = 16 * 1024 * 1024;
+    }
+
+    /**
+     * Properties of adaptive status polling of documents being processed by OCR.
+     */
+    @Getter
+    @Setter
+    public static class Polling {
+
+        private long minDelayMillis = 2000;
+
+        private long maxDelayMillis = 300000;
+
+        /** Initial estimate of OCR time per page, it's adjusted by durations of finished jobs. */
+        private long millisPerPage = 4000;
+
+        /** Initial estimate of OCR time per page in high quality. */
+        private long highQualityMillisPerPage = 10000;
+
+        /** Multiplier of delay after each poll, that found document still processing. */
+        private double backoffMultiplier = 2.0;
+
+        /** Delay is randomly changed by up to this ratio, so polls of jobs are spread. */
+        private double jitter = 0.2;
+
+        /** Weight of the last finished job in the learned time per page. */
+        private double learningRate = 0.2;
+
+        /** Used to estimate page count of PDFs, before they are scanned. */
+        private long bytesPerPage = 200000;
+    }
+
+    /**
+     * Properties of completion callbacks sent by OCR, polling is used only as fallback when enabled.
+     */
+    @Getter
+    @Setter
+    public static class Callback {
+
+        /** Shared secret used to sign callbacks(HMAC-SHA256), callbacks are disabled when empty. */
+        private String secret;
+
+        /** URL of this application as seen by OCR, e.g. http://127.0.0.1:8085/api */
+        private String baseUrl;
+
+        /** Callbacks with timestamp older or newer than this are rejected. */
+        private long maxClockSkewMillis = 300000;
+
+        public boolean isEnabled() {
+            return secret != null && !secret.isEmpty() && baseUrl != null && !baseUrl.isEmpty();
+        }
+    }
+
+    /**
+     * Properties of batching documents with same DocConfig into one OCR request.
+     */
+    @Getter
+    @Setter
+    public static class Batch {
+
+        /** Max documents in one request, 1 disables batching. */
+        private int maxCount = 20;
+
+        /** Max total size of documents in one request. */
+        private long maxBytes = 10 * 1024 * 1024;
+
+        /** How long is a batch waiting for more documents, before it's sent. */
+        private long lingerMillis = 200;
+    }
+
+    /**
+     * Properties of routing documents across more OCR nodes.
+     */
+    @Getter
+    @Setter
+    public static class Routing {
+
+        /** Consecutive failures after which is the node ejected. */
+        private int failureThreshold = 3;
+
+        /** How long is ejected node not used for new documents. */
+        private long ejectMillis = 30000;
+
+        /** Accepted document is not counted as work of the node after this time. */
+        private long jobTtlMillis = 3600000;
+    }
+
+    /**
+     * Properties of circuit breaker and bulkheads around OCR calls.
+     */
+    @Getter
+    @Setter
+    public static class Breaker {
+
+        /** Consecutive failed calls after which is the breaker opened. */
+        private int failureThreshold = 5;
+
+        /** How long are calls rejected, before the breaker is half-open. */
+        private long openMillis = 30000;
+
+        /** Calls let through to probe OCR, when the breaker is half-open. */
+        private int halfOpenProbes = 1;
+
+        /** Shortest delay of paused jobs. */
+        private long minRetryDelayMillis = 5000;
+
+        /** Max concurrent calls of each operation. */
+        private int postConcurrency = 20;
+
+        private int statusConcurrency = 50;
+
+        private int resultConcurrency = 10;
+
+        private int deleteConcurrency = 20;
+    }
+
+    /**
+     * Properties of detecting text layer of PDFs, pages with text are not sent to OCR.
+     */
+    @Getter
+    @Setter
+    public static class TextLayer {
+
+        private boolean enabled = true;
+
+        /** Pages with less non-whitespace characters are considered image-only. */
+        private int minCharsPerPage = 20;
+    }
+
+    /**
+     * Properties of splitting multi-page documents into pages scanned in parallel.
+     */
+    @Getter
+    @Setter
+    public static class FanOut {
+
+        private boolean enabled = true;
+
+        /** Documents with less pages to scan are sent as a whole. */
+        private int minPages = 2;
+
+        /** Failed attempts of a single page, after which is the whole document failed. */
+        private int maxPageAttempts = 3;
+    }
+
+    /**
+     * Properties of cache of OCR results, same files with same config are not scanned again.
+     */
+    @Getter
+    @Setter
+    public static class ResultCache {
+
+        private boolean enabled = true;
+
+        /** Most recently used results kept in memory in front of the DB. */
+        private int memoryEntries = 1000;
+
+        /** Results are removed from the DB after this time. */
+        private long ttlMillis = 30L * 24 * 3600 * 1000;
+    }
 }
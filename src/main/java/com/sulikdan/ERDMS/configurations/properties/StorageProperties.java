@@ -0,0 +1,107 @@
+package com.sulikdan.ERDMS.configurations.properties;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class StorageProperties is used to get properties of storing files of documents.
+ */
+@Getter
+@Setter
+@Configuration
+@ConfigurationProperties(prefix = "storage")
+public class StorageProperties {
+
+    private Dedup dedup = new Dedup();
+
+    private Previews previews = new Previews();
+
+    private Ingest ingest = new Ingest();
+
+    private Uploads uploads = new Uploads();
+
+    /**
+     * Properties of content-addressed storing of files, same files are stored only once.
+     */
+    @Getter
+    @Setter
+    public static class Dedup {
+
+        private boolean enabled = true;
+
+        /** Unreferenced files are kept at least this long, files being read aren't removed. */
+        private long gcGraceMillis = 3600000;
+
+        /** How often are unreferenced files removed. */
+        private long gcIntervalMillis = 600000;
+    }
+
+    /**
+     * Properties of preview images of documents.
+     */
+    @Getter
+    @Setter
+    public static class Previews {
+
+        /** Sizes(longer side in px) in which previews are created. */
+        private List<Integer> sizes = new ArrayList<>(Arrays.asList(64, 150, 400));
+
+        /** Number of previews created in parallel, creating is CPU and memory heavy. */
+        private int threads = 2;
+
+        /** Number of docs waiting for previews, docs over it are left without preview. */
+        private int queueCapacity = 500;
+    }
+
+    /**
+     * Properties of uploads accepted asynchronously, docs of stored files are created in background.
+     */
+    @Getter
+    @Setter
+    public static class Ingest {
+
+        /** Number of uploads, which docs are created in parallel. */
+        private int threads = 2;
+
+        /** Number of uploads waiting in memory, others are taken by recovery later. */
+        private int queueCapacity = 100;
+
+        /** Upload not completed for this long is taken again, e.g. after restart of the node. */
+        private long recoverAfterMillis = 300000;
+
+        /** How often are not completed uploads looked for. */
+        private long recoverySweepMillis = 60000;
+
+        /** How long is result of the upload kept for client. */
+        private long ttlMillis = 86400000;
+    }
+
+    /**
+     * Properties of resumable uploads, sent in chunks.
+     */
+    @Getter
+    @Setter
+    public static class Uploads {
+
+        /** Max size of a single chunk in bytes. */
+        private long maxChunkSize = 32 * 1024 * 1024;
+
+        /** Max number of chunks of a file. */
+        private int maxChunks = 1000;
+
+        /** Session without any chunk received for this long is removed with its chunks. */
+        private long sessionTtlMillis = 86400000;
+
+        /** Finalizing not done within this time(e.g. crash of the app) can be started again. */
+        private long finalizeTimeoutMillis = 1800000;
+
+        /** How often are expired sessions looked for. */
+        private long cleanupIntervalMillis = 600000;
+    }
+}
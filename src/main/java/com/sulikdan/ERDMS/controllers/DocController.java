@@ -8,31 +8,54 @@ import com.google.common.base.Preconditions;
 import com.sulikdan.ERDMS.configurations.configs.JwtTokenUtil;
 import com.sulikdan.ERDMS.dto.DocDto;
 import com.sulikdan.ERDMS.dto.DocDtoConverter;
+import com.sulikdan.ERDMS.dto.IngestBatchDto;
+import com.sulikdan.ERDMS.dto.UploadSessionDto;
 import com.sulikdan.ERDMS.entities.Doc;
 import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.UploadChunk;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
 import com.sulikdan.ERDMS.entities.users.User;
 import com.sulikdan.ERDMS.exceptions.UnsupportedLanguageException;
 import com.sulikdan.ERDMS.services.DocService;
+import com.sulikdan.ERDMS.services.ingest.IngestResult;
 import com.sulikdan.ERDMS.services.users.UserService;
 import io.swagger.v3.oas.annotations.Operation;
 import lombok.extern.slf4j.Slf4j;
 import org.modelmapper.ModelMapper;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.config.EnableHypermediaSupport;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
 
@@ -60,6 +83,15 @@ public class DocController {
   private final ModelMapper modelMappper;
   private final ObjectMapper mapper;
 
+  /** Previews are immutable, changed preview gets new URL. */
+  private static final long PREVIEW_MAX_AGE_DAYS = 365;
+
+  /** Names of uploaded files, which docs couldn't be created, URL encoded and comma separated. */
+  public static final String FAILED_FILES_HEADER = "X-Failed-Files";
+
+  /** SHA-256 of uploaded chunk as hex string, chunk is rejected when it doesn't match. */
+  public static final String CHUNK_SHA256_HEADER = "X-Chunk-Sha256";
+
   public DocController(
       DocService docService,
       DocDtoConverter docDtoConverter,
@@ -76,14 +108,18 @@ public class DocController {
   }
 
   /**
-   * Uploads selected file or files with configuration to scan.
+   * Uploads selected file or files with configuration to scan. In async mode, request returns 202
+   * Accepted as soon as files are stored, docs are created in the background and the upload can be
+   * followed at returned status URL. Otherwise files, which docs couldn't be created, are listed in
+   * FAILED_FILES_HEADER.
    *
    * @param files
    * @param lang language of file/s
    * @param multiPageFile if document is multipaged file
    * @param highQuality if scanning has to be scanned with higher quality
    * @param scanImmediately if document has to scanned immediatly
-   * @return Documents created from the file/s.
+   * @param async if docs have to be created in the background
+   * @return Documents created from the file/s, or status of the upload in async mode.
    * @throws JsonProcessingException
    * @throws IOException
    */
@@ -95,7 +131,8 @@ public class DocController {
       @RequestParam(value = "lang", defaultValue = "eng") String lang,
       @RequestParam(value = "multiPageFile", defaultValue = "false") Boolean multiPageFile,
       @RequestParam(value = "highQuality", defaultValue = "false") Boolean highQuality,
-      @RequestParam(value = "scanImmediately", defaultValue = "false") Boolean scanImmediately)
+      @RequestParam(value = "scanImmediately", defaultValue = "false") Boolean scanImmediately,
+      @RequestParam(value = "async", defaultValue = "false") Boolean async)
       throws JsonProcessingException, IOException {
     log.info("Getting file.");
 
@@ -109,11 +146,40 @@ public class DocController {
 
     log.info("Doc settigns: " + docConfig.toString());
 
-    List<Doc> uploadedDocList = docService.processNewDocs(files, docConfig, user);
+    if (async) {
+      IngestBatchDto batchDto =
+          convertIngestBatchToDto(docService.acceptNewDocs(files, docConfig, user));
+      return ResponseEntity.status(HttpStatus.ACCEPTED)
+          .location(batchDto.getRequiredLink(IanaLinkRelations.SELF).toUri())
+          .body(mapper.writeValueAsString(batchDto));
+    }
+
+    IngestResult ingestResult = docService.processNewDocs(files, docConfig, user);
+
+    List<DocDto> foundDocDtos = convertDocToDocDtoWithLinks(ingestResult.getDocs(), user);
+
+    ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.OK);
+    if (!ingestResult.getFailedFiles().isEmpty())
+      response.header(FAILED_FILES_HEADER, joinFileNames(ingestResult.getFailedFiles()));
+    return response.body(mapper.writeValueAsString(foundDocDtos));
+  }
+
+  /**
+   * Returns status of upload accepted in async mode.
+   *
+   * @param batchId id of the upload
+   * @return status of files of the upload
+   * @throws JsonProcessingException
+   */
+  @Operation(summary = "Returns status of upload accepted in async mode.")
+  @GetMapping(value = "/uploads/{batchId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<String> getUpload(@PathVariable String batchId)
+      throws JsonProcessingException {
 
-    List<DocDto> foundDocDtos = convertDocToDocDtoWithLinks(uploadedDocList, user);
+    User user = loadConnectedUser();
 
-    return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(foundDocDtos));
+    IngestBatchDto batchDto = convertIngestBatchToDto(docService.findIngestBatch(batchId, user));
+    return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(batchDto));
   }
 
   /**
@@ -137,6 +203,7 @@ public class DocController {
       DocDto toReturnDocDto = docDtoConverter.convertToDto(toReturn);
       Link selfLink = linkTo(DocController.class).slash(toReturnDocDto.getId()).withSelfRel();
       toReturnDocDto.add(selfLink);
+      addPreviewUrls(toReturnDocDto, toReturn.getPreviews());
 
       return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(toReturnDocDto));
 
@@ -182,27 +249,30 @@ public class DocController {
     }
 
     User user = loadConnectedUser();
-    Page<Doc> pagedDocs;
 
-    pagedDocs =
-        docService.findDocsUsingSearchParams(
+    // only summaries are loaded for listing, pages of text are not needed here
+    Page<DocSummary> pagedDocs =
+        docService.findDocSummariesUsingSearchParams(
             convertedParams, convertedParams.getPageIndex(), convertedParams.getPageSize(), user);
 
-    Page<DocDto> pagedDocDtos = convertDocToDocDtoWithLinks(pagedDocs, user);
+    Page<DocDto> pagedDocDtos = convertDocSummaryToDocDtoWithLinks(pagedDocs, user);
 
     return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(pagedDocDtos));
   }
 
   /**
-   * Returns file contained in document.
+   * Returns file contained in document. Range requests are answered with 206 Partial Content, so
+   * viewers can seek in big files. Stored file doesn't change, so it's validated by ETag(SHA-256)
+   * and Last-Modified and 304 is returned when client has it already.
    *
    * @param documentId
+   * @param webRequest used to check conditional headers(If-None-Match, If-Modified-Since)
    * @return found file or null
    * @throws JsonProcessingException
    */
   @Operation(summary = "Returns file contained in document.")
   @GetMapping(value = "/{documentId}/file", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-  public ResponseEntity<byte[]> getDocFile(@PathVariable String documentId)
+  public ResponseEntity<Resource> getDocFile(@PathVariable String documentId, WebRequest webRequest)
       throws JsonProcessingException {
 
     User user = loadConnectedUser();
@@ -210,16 +280,68 @@ public class DocController {
     Doc foundDoc = docService.findDocById(documentId, user);
 
     if (foundDoc != null) {
-      return ResponseEntity.status(HttpStatus.OK)
-          .header(
-              "Content-Disposition", "attachment; filename=\"" + foundDoc.getNameOfFile() + "\"")
-          .body(foundDoc.getDocumentAsBytes());
-      //      return foundDoc.getDocumentAsBytes();
+      String eTag = fileETag(foundDoc);
+      long lastModified =
+          foundDoc.getCreateDateTime() != null
+              ? foundDoc.getCreateDateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+              : -1;
+      // 304 Not Modified is already set, file isn't loaded at all
+      if (webRequest.checkNotModified(eTag, lastModified)) return null;
+
+      // file is streamed from the BlobStore while writing response, it's never loaded whole. When
+      // Range is requested, only requested regions are written with 206 Partial Content
+      ResponseEntity.BodyBuilder response =
+          ResponseEntity.status(HttpStatus.OK)
+              .header(
+                  "Content-Disposition", "attachment; filename=\"" + foundDoc.getNameOfFile() + "\"")
+              .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+              .cacheControl(CacheControl.noCache().cachePrivate())
+              .eTag(eTag);
+      if (lastModified >= 0) response.lastModified(lastModified);
+      return response.body(docService.loadDocFile(foundDoc));
     } else {
       return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
     }
   }
 
+  /**
+   * Returns preview image of the document. Stored previews never change, URLs in listing are
+   * versioned by the preview, so it's cached by clients for long time and validated by ETag.
+   *
+   * @param documentId
+   * @param size requested longer side in px, the smallest bigger preview is returned
+   * @param webRequest used to check conditional header If-None-Match
+   * @return found preview or 404, when document has no preview
+   */
+  @Operation(summary = "Returns preview image of document.")
+  @GetMapping(value = "/{documentId}/preview")
+  public ResponseEntity<Resource> getDocPreview(
+      @PathVariable String documentId,
+      @RequestParam(value = "size", defaultValue = "150") Integer size,
+      WebRequest webRequest) {
+
+    User user = loadConnectedUser();
+
+    Doc foundDoc = docService.findDocById(documentId, user);
+    if (foundDoc == null) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+
+    DocPreview preview = docService.findDocPreview(foundDoc, size);
+    String eTag = "\"" + preview.getBlobId() + "\"";
+    if (webRequest.checkNotModified(eTag)) return null;
+
+    return ResponseEntity.status(HttpStatus.OK)
+        .contentType(MediaType.parseMediaType(preview.getContentType()))
+        .cacheControl(CacheControl.maxAge(PREVIEW_MAX_AGE_DAYS, TimeUnit.DAYS).cachePrivate())
+        .eTag(eTag)
+        .body(docService.loadDocPreview(preview));
+  }
+
+  /** Strong ETag of the stored file, files stored before hashing are identified by blob. */
+  private static String fileETag(Doc doc) {
+    String version = doc.getDocumentSha256() != null ? doc.getDocumentSha256() : doc.getDocumentBlobId();
+    return "\"" + version + "\"";
+  }
+
   /**
    * Patches document.
    *
@@ -256,6 +378,134 @@ public class DocController {
     return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString("OK"));
   }
 
+  /**
+   * Starts resumable upload of a large file. File is then sent in numbered chunks, which can be
+   * sent again when their upload failed, and the upload is finalized once all chunks are received.
+   *
+   * @param fileName original name of the file
+   * @param contentType content type of the file
+   * @param lang language of file
+   * @param multiPageFile if document is multipaged file
+   * @param highQuality if scanning has to be scanned with higher quality
+   * @param scanImmediately if document has to scanned immediatly
+   * @return created upload session with its URL
+   * @throws JsonProcessingException
+   */
+  @Operation(summary = "Starts resumable upload of a large file sent in chunks.")
+  @PostMapping(value = "/upload-sessions", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<String> createUploadSession(
+      @RequestParam(value = "fileName") String fileName,
+      @RequestParam(value = "contentType", required = false) String contentType,
+      @RequestParam(value = "lang", defaultValue = "eng") String lang,
+      @RequestParam(value = "multiPageFile", defaultValue = "false") Boolean multiPageFile,
+      @RequestParam(value = "highQuality", defaultValue = "false") Boolean highQuality,
+      @RequestParam(value = "scanImmediately", defaultValue = "false") Boolean scanImmediately)
+      throws JsonProcessingException {
+
+    User user = loadConnectedUser();
+
+    DocConfig docConfig =
+        new DocConfig(highQuality, multiPageFile, convertLanguageName(lang), scanImmediately);
+
+    UploadSessionDto sessionDto =
+        convertUploadSessionToDto(
+            docService.createUploadSession(fileName, contentType, docConfig, user));
+    return ResponseEntity.status(HttpStatus.CREATED)
+        .location(sessionDto.getRequiredLink(IanaLinkRelations.SELF).toUri())
+        .body(mapper.writeValueAsString(sessionDto));
+  }
+
+  /**
+   * Receives a chunk of resumable upload. Body of the request is the chunk itself, it's streamed
+   * into the storage.
+   *
+   * @param sessionId id of the upload session
+   * @param index number of the chunk, from 0
+   * @param sha256 SHA-256 of the chunk as hex string
+   * @param content body of the request
+   * @return status of the upload with received chunks
+   * @throws IOException
+   */
+  @Operation(summary = "Receives a chunk of resumable upload.")
+  @PutMapping(
+      value = "/upload-sessions/{sessionId}/chunks/{index}",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<String> putUploadChunk(
+      @PathVariable String sessionId,
+      @PathVariable int index,
+      @RequestHeader(CHUNK_SHA256_HEADER) String sha256,
+      InputStream content)
+      throws IOException {
+
+    User user = loadConnectedUser();
+
+    UploadSessionDto sessionDto =
+        convertUploadSessionToDto(
+            docService.storeUploadChunk(sessionId, index, content, sha256, user));
+    return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(sessionDto));
+  }
+
+  /**
+   * Returns status of resumable upload, so client knows which chunks to send after failure.
+   *
+   * @param sessionId id of the upload session
+   * @return status of the upload with received chunks
+   * @throws JsonProcessingException
+   */
+  @Operation(summary = "Returns status of resumable upload.")
+  @GetMapping(value = "/upload-sessions/{sessionId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<String> getUploadSession(@PathVariable String sessionId)
+      throws JsonProcessingException {
+
+    User user = loadConnectedUser();
+
+    UploadSessionDto sessionDto =
+        convertUploadSessionToDto(docService.findUploadSession(sessionId, user));
+    return ResponseEntity.status(HttpStatus.OK).body(mapper.writeValueAsString(sessionDto));
+  }
+
+  /**
+   * Finalizes resumable upload, chunks are assembled into the file and document is created from
+   * it.
+   *
+   * @param sessionId id of the upload session
+   * @param sha256 SHA-256 of the whole file as hex string, optional
+   * @return created document
+   * @throws IOException
+   */
+  @Operation(summary = "Finalizes resumable upload and creates document from it.")
+  @PostMapping(
+      value = "/upload-sessions/{sessionId}/finalize",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<String> finalizeUploadSession(
+      @PathVariable String sessionId,
+      @RequestParam(value = "sha256", required = false) String sha256)
+      throws IOException {
+
+    User user = loadConnectedUser();
+
+    Doc doc = docService.finalizeUploadSession(sessionId, sha256, user);
+
+    List<DocDto> docDtos = new ArrayList<>();
+    docToDocDtoInList(docDtos, doc, user);
+    return ResponseEntity.status(HttpStatus.CREATED)
+        .location(docDtos.get(0).getRequiredLink(IanaLinkRelations.SELF).toUri())
+        .body(mapper.writeValueAsString(docDtos.get(0)));
+  }
+
+  /**
+   * Cancels resumable upload, received chunks are deleted.
+   *
+   * @param sessionId id of the upload session
+   */
+  @Operation(summary = "Cancels resumable upload.")
+  @DeleteMapping(value = "/upload-sessions/{sessionId}")
+  @ResponseStatus(HttpStatus.OK)
+  public void abortUploadSession(@PathVariable String sessionId) {
+    User user = loadConnectedUser();
+    docService.abortUploadSession(sessionId, user);
+  }
+
   /**
    * Deletes document.
    *
@@ -272,20 +522,26 @@ public class DocController {
   }
 
   /**
-   * Converts pagedList of docs to docDto
+   * Converts pagedList of doc summaries to docDto
    *
-   * @param pagedDocList pagedDocsList to be converted
+   * @param pagedDocSummaries paged summaries to be converted
    * @return already converted docs
    */
-  private Page<DocDto> convertDocToDocDtoWithLinks(Page<Doc> pagedDocList, User user) {
+  private Page<DocDto> convertDocSummaryToDocDtoWithLinks(
+      Page<DocSummary> pagedDocSummaries, User user) {
 
     List<DocDto> docDtos = new ArrayList<>();
 
-    for (Doc doc : pagedDocList.getContent()) {
-      docToDocDtoInList(docDtos, doc, user);
+    for (DocSummary docSummary : pagedDocSummaries.getContent()) {
+      DocDto docDto = docDtoConverter.convertToDto(docSummary);
+      addDocLinks(docDto);
+      addPreviewUrls(docDto, docSummary.getPreviews());
+      docDto.setIsOwner(docSummary.isOwnedBy(user));
+      docDtos.add(docDto);
     }
 
-    return new PageImpl<>(docDtos, pagedDocList.getPageable(), pagedDocList.getTotalElements());
+    return new PageImpl<>(
+        docDtos, pagedDocSummaries.getPageable(), pagedDocSummaries.getTotalElements());
   }
 
   /**
@@ -313,11 +569,9 @@ public class DocController {
    */
   private void docToDocDtoInList(List<DocDto> docDtos, Doc doc, User user) {
     DocDto docDto = docDtoConverter.convertToDto(doc);
-    Link selfLink = linkTo(DocController.class).slash(docDto.getId()).withSelfRel();
-    Link fileLink = linkTo(DocController.class).slash(docDto.getId()).slash("file").withRel("file");
-    docDto.add(selfLink);
-    docDto.add(fileLink);
-    if (user != null && doc.getOwner() != null && doc.getOwner().getId().equals(user.getId())) {
+    addDocLinks(docDto);
+    addPreviewUrls(docDto, doc.getPreviews());
+    if (user != null && user.getId().equals(doc.getOwnerId())) {
       docDto.setIsOwner(true);
     } else {
       docDto.setIsOwner(false);
@@ -325,6 +579,92 @@ public class DocController {
     docDtos.add(docDto);
   }
 
+  /**
+   * Adds self and file links to docDto.
+   *
+   * @param docDto to which links are added
+   */
+  private void addDocLinks(DocDto docDto) {
+    Link selfLink = linkTo(DocController.class).slash(docDto.getId()).withSelfRel();
+    Link fileLink = linkTo(DocController.class).slash(docDto.getId()).slash("file").withRel("file");
+    docDto.add(selfLink);
+    docDto.add(fileLink);
+  }
+
+  /**
+   * Joins names of files for a header, names are URL encoded as they may contain any characters.
+   *
+   * @param files to be listed
+   * @return comma separated names
+   */
+  private static String joinFileNames(List<IngestFile> files) {
+    return files.stream()
+        .map(file -> UriUtils.encode(String.valueOf(file.getNameOfFile()), StandardCharsets.UTF_8))
+        .collect(Collectors.joining(","));
+  }
+
+  /**
+   * Converts resumable upload to its status with link to itself.
+   *
+   * @param session to be converted
+   * @return status of the upload
+   */
+  private UploadSessionDto convertUploadSessionToDto(UploadSession session) {
+    UploadSessionDto sessionDto = new UploadSessionDto();
+    sessionDto.setId(session.getId());
+    sessionDto.setNameOfFile(session.getNameOfFile());
+    List<UploadChunk> chunks = new ArrayList<>(session.getChunks().values());
+    chunks.sort(Comparator.comparingInt(UploadChunk::getIndex));
+    sessionDto.setChunks(chunks);
+    sessionDto.setCreatedAt(session.getCreatedAt());
+    sessionDto.setUpdatedAt(session.getUpdatedAt());
+    sessionDto.add(
+        linkTo(DocController.class).slash("upload-sessions").slash(session.getId()).withSelfRel());
+    return sessionDto;
+  }
+
+  /**
+   * Converts batch of async upload to its status with link to itself.
+   *
+   * @param batch to be converted
+   * @return status of the upload
+   */
+  private IngestBatchDto convertIngestBatchToDto(IngestBatch batch) {
+    IngestBatchDto batchDto = new IngestBatchDto();
+    batchDto.setId(batch.getId());
+    batchDto.setFiles(batch.getFiles());
+    batchDto.setCreatedAt(batch.getCreatedAt());
+    batchDto.setCompletedAt(batch.getCompletedAt());
+    batchDto.setCompleted(batch.getCompletedAt() != null);
+    batchDto.add(linkTo(DocController.class).slash("uploads").slash(batch.getId()).withSelfRel());
+    return batchDto;
+  }
+
+  /**
+   * Adds URLs of previews to docDto. URL contains version of the preview, so it changes together
+   * with the preview and can be cached.
+   *
+   * @param docDto to which URLs are added
+   * @param previews of the doc, may be null
+   */
+  private void addPreviewUrls(DocDto docDto, List<DocPreview> previews) {
+    if (previews == null || previews.isEmpty()) return;
+
+    Map<Integer, String> previewUrls = new TreeMap<>();
+    for (DocPreview preview : previews) {
+      previewUrls.put(
+          preview.getSize(),
+          linkTo(DocController.class)
+              .slash(docDto.getId())
+              .slash("preview")
+              .toUriComponentsBuilder()
+              .queryParam("size", preview.getSize())
+              .queryParam("v", preview.getBlobId())
+              .toUriString());
+    }
+    docDto.setPreviewUrls(previewUrls);
+  }
+
   /**
    * Loads currently connected user.
    *
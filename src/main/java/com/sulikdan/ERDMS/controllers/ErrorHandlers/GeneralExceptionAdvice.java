@@ -5,6 +5,7 @@ package com.sulikdan.ERDMS.controllers.ErrorHandlers;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
 import com.sulikdan.ERDMS.exceptions.InvalidAccessRightException;
+import com.sulikdan.ERDMS.exceptions.InvalidUploadChunkException;
 import com.sulikdan.ERDMS.exceptions.NotValidNewUserException;
 import com.sulikdan.ERDMS.exceptions.UnsupportedLanguageException;
 import org.springframework.http.HttpStatus;
@@ -66,6 +67,11 @@ public class GeneralExceptionAdvice extends ResponseEntityExceptionHandler {
     return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(e.getMessage());
   }
 
+  @ExceptionHandler(InvalidUploadChunkException.class)
+  public ResponseEntity<String> handleInvalidUploadChunkException(Exception e){
+    return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+  }
+
   @ExceptionHandler(DocNotFoundException.class)
   public ResponseEntity<String> handleDocNotFoundException(Exception e){
     return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
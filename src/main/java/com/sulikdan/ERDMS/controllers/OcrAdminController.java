@@ -0,0 +1,44 @@
+package com.sulikdan.ERDMS.controllers;
+
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.services.ocr.OcrDeadLetterService;
+import io.swagger.v3.oas.annotations.Operation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class OcrAdminController is used by admins to manage OCR jobs, that failed too many times.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/admin/ocr")
+@PreAuthorize("hasAuthority('Admin')")
+public class OcrAdminController {
+
+  private final OcrDeadLetterService ocrDeadLetterService;
+
+  public OcrAdminController(OcrDeadLetterService ocrDeadLetterService) {
+    this.ocrDeadLetterService = ocrDeadLetterService;
+  }
+
+  @Operation(summary = "Lists dead-lettered OCR jobs, the oldest first.")
+  @GetMapping(value = "/dead-letters")
+  public ResponseEntity<List<OcrJob>> getDeadLetters(
+      @RequestParam(value = "limit", defaultValue = "100") Integer limit) {
+    return ResponseEntity.ok(ocrDeadLetterService.findDeadLetters(limit));
+  }
+
+  @Operation(summary = "Re-drives dead-lettered OCR jobs, they are spread by configured rate.")
+  @PostMapping(value = "/dead-letters/redrive")
+  public ResponseEntity<Map<String, Integer>> redriveDeadLetters(
+      @RequestParam(value = "limit", defaultValue = "100") Integer limit) {
+    int redriven = ocrDeadLetterService.redriveDeadLetters(limit);
+    return ResponseEntity.accepted().body(Collections.singletonMap("redriven", redriven));
+  }
+}
@@ -0,0 +1,35 @@
+package com.sulikdan.ERDMS.controllers;
+
+import com.sulikdan.ERDMS.services.ocr.OcrCallbackService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Class OcrCallbackController receives completion callbacks from OCR. Callbacks are not sent by
+ * users, so they are authenticated by HMAC signature instead of JWT token.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/ocr/callbacks")
+public class OcrCallbackController {
+
+  public static final String TIMESTAMP_HEADER = "X-Ocr-Timestamp";
+  public static final String SIGNATURE_HEADER = "X-Ocr-Signature";
+
+  private final OcrCallbackService ocrCallbackService;
+
+  public OcrCallbackController(OcrCallbackService ocrCallbackService) {
+    this.ocrCallbackService = ocrCallbackService;
+  }
+
+  @PostMapping(value = "/{jobId}")
+  public ResponseEntity<Void> receiveCallback(
+      @PathVariable String jobId,
+      @RequestHeader(value = TIMESTAMP_HEADER, required = false) String timestamp,
+      @RequestHeader(value = SIGNATURE_HEADER, required = false) String signature,
+      @RequestBody String body) {
+    boolean scheduled = ocrCallbackService.handleCallback(jobId, timestamp, signature, body);
+    return scheduled ? ResponseEntity.accepted().build() : ResponseEntity.ok().build();
+  }
+}
@@ -1,7 +1,6 @@
 package com.sulikdan.ERDMS.dto;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
@@ -12,6 +11,7 @@ import org.springframework.hateoas.RepresentationModel;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Daniel Šulik on 19-Sep-20
@@ -35,10 +35,8 @@ public class DocDto extends RepresentationModel<DocDto> {
     @JsonProperty("origName")
     private String nameOfFile;
 
-    @JsonIgnore
-    private byte[] documentAsBytes;
-
-    private String documentPreview;
+    /** URLs of previews by their size, previews aren't sent inline. */
+    private Map<Integer, String> previewUrls;
 
     private DocType docType;
 
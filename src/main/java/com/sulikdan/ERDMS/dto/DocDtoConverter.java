@@ -2,12 +2,12 @@ package com.sulikdan.ERDMS.dto;
 
 import com.sulikdan.ERDMS.entities.AsyncApiInfo;
 import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.Tag;
 import org.modelmapper.ModelMapper;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 
 /**
@@ -28,8 +28,6 @@ public class DocDtoConverter {
     DocDto docDto = modelMapper.map(toConvert, DocDto.class);
     if( toConvert.getAsyncApiInfo() != null )
       docDto.setDocState(toConvert.getAsyncApiInfo().getAsyncApiState());
-    if( toConvert.getDocumentPreview() != null )
-      docDto.setDocumentPreview(Base64.getEncoder().encodeToString(toConvert.getDocumentPreview()));
 
     if(  toConvert.getTags() != null ){
       List<Tag> tags = new ArrayList<>();
@@ -42,6 +40,33 @@ public class DocDtoConverter {
     return docDto;
   }
 
+  /**
+   * Converts summary used in listing. Mapped explicitly, summary contains only some fields of Doc.
+   *
+   * @param toConvert summary of a doc
+   * @return docDto without pages
+   */
+  public DocDto convertToDto(DocSummary toConvert) {
+    DocDto docDto = new DocDto();
+    docDto.setId(toConvert.getId());
+    docDto.setNameOfFile(toConvert.getNameOfFile());
+    docDto.setDocType(toConvert.getDocType());
+    docDto.setDocConfig(toConvert.getDocConfig());
+    docDto.setCreateDateTime(toConvert.getCreateDateTime());
+    docDto.setUpdateDateTime(toConvert.getUpdateDateTime());
+    docDto.setIsShared(toConvert.getIsShared());
+    if( toConvert.getAsyncApiInfo() != null )
+      docDto.setDocState(toConvert.getAsyncApiInfo().getAsyncApiState());
+
+    if(  toConvert.getTags() != null ){
+      List<Tag> tags = new ArrayList<>();
+      toConvert.getTags().forEach(tag -> tags.add(new Tag(tag.getTagType())));
+      docDto.setTags(tags);
+    }
+
+    return docDto;
+  }
+
   public Doc convertToEntity(DocDto toConvert) {
     Doc doc = modelMapper.map(toConvert, Doc.class);
     AsyncApiInfo apiInfo = new AsyncApiInfo();
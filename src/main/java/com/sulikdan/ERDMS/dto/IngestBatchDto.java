@@ -0,0 +1,33 @@
+package com.sulikdan.ERDMS.dto;
+
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.hateoas.RepresentationModel;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Class IngestBatchDto is status of upload accepted asynchronously. Files have ids of their docs,
+ * docs can be accessed once their state is CREATED.
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+public class IngestBatchDto extends RepresentationModel<IngestBatchDto> {
+
+  private String id;
+
+  private List<IngestFile> files;
+
+  private Date createdAt;
+
+  private Date completedAt;
+
+  /** If docs of all files were created, or failed. */
+  private boolean completed;
+}
@@ -0,0 +1,33 @@
+package com.sulikdan.ERDMS.dto;
+
+import com.sulikdan.ERDMS.entities.ingest.UploadChunk;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.hateoas.RepresentationModel;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Class UploadSessionDto is status of resumable upload. Chunks are the ones already received, so
+ * client sends only the rest after the connection was lost.
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+public class UploadSessionDto extends RepresentationModel<UploadSessionDto> {
+
+  private String id;
+
+  private String nameOfFile;
+
+  /** Received chunks ordered by their number. */
+  private List<UploadChunk> chunks;
+
+  private Date createdAt;
+
+  private Date updatedAt;
+}
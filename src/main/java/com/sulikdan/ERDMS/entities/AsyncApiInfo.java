@@ -1,12 +1,15 @@
 package com.sulikdan.ERDMS.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.sulikdan.ERDMS.entities.ocr.OcrPagePart;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.data.mongodb.core.index.TextIndexed;
 
 import java.util.Date;
+import java.util.List;
 
 /**
  * Class AsyncApiInfo is used for storing date about current doc status on OCR.
@@ -34,6 +37,22 @@ public class AsyncApiInfo {
   @JsonProperty("resultLink")
   private String ocrApiDocResult;
 
+  /** Base url of the OCR node, which accepted the document. Links above are valid only there. */
+  @JsonIgnore
+  private String ocrBackend;
+
+  /** PDF of image-only pages sent to OCR instead of the original file, pages with text are not sent. */
+  @JsonIgnore
+  private String ocrBlobId;
+
+  /** Positions(0-based) of pages sent to OCR in the original document, null if not classified yet. */
+  @JsonIgnore
+  private List<Integer> ocrPageNumbers;
+
+  /** Pages sent to OCR one by one, null when the document is sent as a whole. */
+  @JsonIgnore
+  private List<OcrPagePart> pageParts;
+
   public AsyncApiInfo() {
     this.asyncApiState   = AsyncApiState.WAITING_TO_SEND;
     this.ocrApiDocStatus = "";
@@ -57,6 +76,16 @@ public class AsyncApiInfo {
         + ", ocrApiDocResult='"
         + ocrApiDocResult
         + '\''
+        + ", ocrBackend='"
+        + ocrBackend
+        + '\''
+        + ", ocrBlobId='"
+        + ocrBlobId
+        + '\''
+        + ", ocrPageNumbers="
+        + ocrPageNumbers
+        + ", pageParts="
+        + (pageParts != null ? pageParts.size() : null)
         + '}';
   }
 }
@@ -8,11 +8,12 @@ import com.fasterxml.jackson.datatype.jsr310.deser.LocalDateTimeDeserializer;
 import com.querydsl.core.annotations.QueryEntity;
 import com.sulikdan.ERDMS.entities.users.User;
 import lombok.*;
-import org.apache.commons.lang3.ArrayUtils;
 import org.bson.types.ObjectId;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.index.TextIndexed;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -50,11 +51,20 @@ public class Doc {
   @JsonProperty("origName")
   private String nameOfFile;
 
+  /** Reference to the original file kept in the BlobStore, the binary itself is not stored here. */
   @JsonIgnore
-  private byte[] documentAsBytes;
+  private String documentBlobId;
 
-  @JsonProperty("documentPreview")
-  private byte[] documentPreview;
+  /** SHA-256 of the original file as hex string, computed while the file was stored. */
+  @JsonIgnore
+  private String documentSha256;
+
+  @JsonIgnore
+  private Long documentSize;
+
+  /** Previews of the file in configured sizes, binaries are kept in the BlobStore. */
+  @JsonIgnore
+  private List<DocPreview> previews;
 
   private DocType docType;
 
@@ -80,7 +90,14 @@ public class Doc {
   @Builder.Default
   private Boolean isShared = false;
 
-  @DBRef
+  /** Id of the owner, used for all ownership checks and queries without loading the User. */
+  @Indexed
+  private String ownerId;
+
+  /** Optional reference to the owner, it's resolved only when accessed. */
+  @ToString.Exclude
+  @EqualsAndHashCode.Exclude
+  @DBRef(lazy = true)
   private User owner;
 
 
@@ -94,11 +111,11 @@ public class Doc {
     this.docConfig = docConfig;
   }
 
-  public Doc(String nameOfFile, Byte[] documentFile, DocConfig docConfig) {
+  public Doc(String nameOfFile, String documentBlobId, DocConfig docConfig) {
     this.id          = new ObjectId().toString();
     this.docPageList = new ArrayList<>();
     this.nameOfFile  = nameOfFile;
-    this.documentAsBytes = ArrayUtils.toPrimitive(documentFile);
+    this.documentBlobId = documentBlobId;
 
     this.docConfig = docConfig;
 
@@ -106,22 +123,22 @@ public class Doc {
   }
 
   public Doc(
-          String nameOfFile, byte[] documentAsBytes, DocType docType, AsyncApiInfo asyncApiInfo, DocConfig docConfig) {
+          String nameOfFile, String documentBlobId, DocType docType, AsyncApiInfo asyncApiInfo, DocConfig docConfig) {
     this.id          = new ObjectId().toString();
     this.docPageList = new ArrayList<>();
     this.nameOfFile  = nameOfFile;
-    this.documentAsBytes = documentAsBytes;
+    this.documentBlobId = documentBlobId;
     this.docType         = docType;
     this.asyncApiInfo    = asyncApiInfo;
     this.docConfig = docConfig;
   }
 
   public Doc(
-          String id, List<DocPage> docPageList, String nameOfFile, byte[] documentAsBytes, DocType docType, AsyncApiInfo asyncApiInfo, DocConfig docConfig) {
+          String id, List<DocPage> docPageList, String nameOfFile, String documentBlobId, DocType docType, AsyncApiInfo asyncApiInfo, DocConfig docConfig) {
     this.id          = id;
     this.docPageList = docPageList;
     this.nameOfFile  = nameOfFile;
-    this.documentAsBytes = documentAsBytes;
+    this.documentBlobId = documentBlobId;
     this.docType         = docType;
     this.asyncApiInfo    = asyncApiInfo;
     this.docConfig = docConfig;
@@ -129,15 +146,18 @@ public class Doc {
   }
 
   public Doc(
-          String id, List<DocPage> docPageList, String nameOfFile, byte[] documentAsBytes,byte[] documentPreview,
+          String id, List<DocPage> docPageList, String nameOfFile,
+          String documentBlobId, String documentSha256, Long documentSize, List<DocPreview> previews,
           DocType docType, LocalDateTime createDateTime, LocalDateTime updateDateTime,
           AsyncApiInfo asyncApiInfo, DocConfig docConfig,
-          List<Tag> tags, Boolean isShared, User user) {
+          List<Tag> tags, Boolean isShared, String ownerId, User user) {
     this.id          = id != null ? id : new ObjectId().toString();
     this.docPageList = docPageList;
     this.nameOfFile  = nameOfFile;
-    this.documentAsBytes = documentAsBytes;
-    this.documentPreview = documentPreview;
+    this.documentBlobId = documentBlobId;
+    this.documentSha256 = documentSha256;
+    this.documentSize = documentSize;
+    this.previews = previews;
     this.docType         = docType != null ? docType : getFileDocumentType(nameOfFile);
     this.asyncApiInfo    = asyncApiInfo != null ? asyncApiInfo : new AsyncApiInfo();
     this.docConfig = docConfig;
@@ -145,9 +165,23 @@ public class Doc {
     this.updateDateTime = updateDateTime; //updateDateTime != null ? updateDateTime : LocalDateTime.now();
     this.tags = tags;
     this.isShared = isShared;
+    this.ownerId = ownerId != null ? ownerId : (user != null ? user.getId() : null);
     this.owner = user;
   }
 
+  /**
+   * Sets owner together with ownerId. Lazy reference loaded from DB is not resolved, ownerId has to
+   * be set separately in that case.
+   *
+   * @param owner of the document
+   */
+  public void setOwner(User owner) {
+    this.owner = owner;
+    if (owner != null && !(owner instanceof LazyLoadingProxy)) {
+      this.ownerId = owner.getId();
+    }
+  }
+
 
 
   // TODO this should be called elsewhere...
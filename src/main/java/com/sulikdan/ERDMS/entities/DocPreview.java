@@ -0,0 +1,28 @@
+package com.sulikdan.ERDMS.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Class DocPreview is reference to one size of the preview image of a doc. Binary of the preview
+ * is kept in the BlobStore and never changes, so its blobId identifies the content as well.
+ */
+@Getter
+@Setter
+@ToString
+@EqualsAndHashCode
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocPreview {
+
+  /** Longer side of the preview in px. */
+  private int size;
+
+  private String blobId;
+
+  private String contentType;
+}
@@ -0,0 +1,80 @@
+package com.sulikdan.ERDMS.entities;
+
+import com.sulikdan.ERDMS.entities.users.User;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Class DocSummary is lightweight read model of Doc used for listing documents. It's read from the
+ * documents collection using field projection, so pages of OCR text are never transferred.
+ *
+ * @see Doc
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+public class DocSummary {
+
+  /** Fields of Doc loaded into the summary, all other fields are left out by the projection. */
+  public static final String[] PROJECTED_FIELDS = {
+    "nameOfFile",
+    "docType",
+    "asyncApiInfo.asyncApiState",
+    "docConfig",
+    "tags",
+    "createDateTime",
+    "updateDateTime",
+    "isShared",
+    "ownerId",
+    "previews"
+  };
+
+  @Id private String id;
+
+  private String nameOfFile;
+
+  private DocType docType;
+
+  /** Contains only the state, links to OCR are not projected. */
+  private AsyncApiInfo asyncApiInfo;
+
+  private DocConfig docConfig;
+
+  private List<Tag> tags;
+
+  private LocalDateTime createDateTime;
+
+  private LocalDateTime updateDateTime;
+
+  private Boolean isShared;
+
+  private String ownerId;
+
+  /** Only references of previews, binaries are served separately. */
+  private List<DocPreview> previews;
+
+  /**
+   * Restricts query to fields of the summary.
+   *
+   * @param query to be restricted
+   * @return the same query
+   */
+  public static Query withProjection(Query query) {
+    for (String field : PROJECTED_FIELDS) {
+      query.fields().include(field);
+    }
+    return query;
+  }
+
+  public boolean isOwnedBy(User user) {
+    return user != null && ownerId != null && ownerId.equals(user.getId());
+  }
+}
@@ -0,0 +1,37 @@
+package com.sulikdan.ERDMS.entities.blobs;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Class BlobRef is the single stored copy of a file content. It's found by SHA-256 of the content
+ * and counts docs referencing it, the blob is removed by garbage collector when no doc uses it.
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+@Document(collection = "blob_refs")
+public class BlobRef {
+
+  /** SHA-256 of the content as lower-case hex string. */
+  @Id private String id;
+
+  private String blobId;
+
+  private long size;
+
+  /** Number of docs referencing the blob. */
+  private long refCount;
+
+  private Date createdAt;
+
+  /** When was the last reference released, null while the blob is referenced. */
+  private Date releasedAt;
+}
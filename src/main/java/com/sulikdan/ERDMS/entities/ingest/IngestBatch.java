@@ -0,0 +1,47 @@
+package com.sulikdan.ERDMS.entities.ingest;
+
+import com.sulikdan.ERDMS.entities.DocConfig;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Class IngestBatch is files of one upload, which are already stored in the BlobStore and wait for
+ * their docs to be created in the background. Batch is kept after it's completed, so client can
+ * check the result, and it's removed by TTL index later.
+ */
+@Getter
+@Setter
+@Builder
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "ingest_batches")
+@CompoundIndex(name = "completedAt_claimedAt", def = "{'completedAt': 1, 'claimedAt': 1}")
+public class IngestBatch {
+
+  @Id private String id;
+
+  private String ownerId;
+
+  private DocConfig docConfig;
+
+  private List<IngestFile> files;
+
+  private Date createdAt;
+
+  /** When was the batch taken for processing, batches claimed long ago are taken again. */
+  private Date claimedAt;
+
+  /** When were all docs of the batch created, null while processing. */
+  private Date completedAt;
+}
@@ -0,0 +1,37 @@
+package com.sulikdan.ERDMS.entities.ingest;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Class IngestFile is a single uploaded file of IngestBatch. Id of the doc is assigned when the
+ * file is staged, so client can follow the doc before it's created.
+ */
+@Getter
+@Setter
+@Builder
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class IngestFile {
+
+  private String docId;
+
+  private String nameOfFile;
+
+  private IngestFileState state;
+
+  /** Why the file failed, null otherwise. */
+  private String error;
+
+  @JsonIgnore private String blobId;
+
+  @JsonIgnore private String sha256;
+
+  @JsonIgnore private long size;
+}
@@ -0,0 +1,12 @@
+package com.sulikdan.ERDMS.entities.ingest;
+
+/**
+ * Enum IngestFileState is state of a single uploaded file of IngestBatch.
+ */
+public enum IngestFileState {
+  /** File is stored in the BlobStore, doc isn't created yet. */
+  STAGED,
+  /** Doc of the file is created and queued for OCR. */
+  CREATED,
+  FAILED
+}
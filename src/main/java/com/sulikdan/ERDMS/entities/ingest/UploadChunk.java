@@ -0,0 +1,32 @@
+package com.sulikdan.ERDMS.entities.ingest;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Class UploadChunk is a single received chunk of UploadSession, stored in the BlobStore as its
+ * own blob until the session is finalized.
+ */
+@Getter
+@Setter
+@Builder
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadChunk {
+
+  /** Number of the chunk, chunks are numbered from 0. */
+  private int index;
+
+  private long size;
+
+  /** SHA-256 of the chunk as lower-case hex string. */
+  private String sha256;
+
+  @JsonIgnore private String blobId;
+}
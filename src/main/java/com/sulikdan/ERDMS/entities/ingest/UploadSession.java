@@ -0,0 +1,52 @@
+package com.sulikdan.ERDMS.entities.ingest;
+
+import com.sulikdan.ERDMS.entities.DocConfig;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class UploadSession is a file uploaded in chunks. Chunks can be sent in any order and sent again,
+ * when their upload failed. Once all chunks are received, session is finalized - chunks are
+ * assembled into a single file and doc of the file is created.
+ */
+@Getter
+@Setter
+@Builder
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "upload_sessions")
+public class UploadSession {
+
+  @Id private String id;
+
+  private String ownerId;
+
+  private String nameOfFile;
+
+  private String contentType;
+
+  private DocConfig docConfig;
+
+  /** Received chunks by their number, as keys of Mongo documents are strings. */
+  @Builder.Default private Map<String, UploadChunk> chunks = new HashMap<>();
+
+  private Date createdAt;
+
+  /** When was the last chunk received, sessions inactive for too long are removed. */
+  @Indexed private Date updatedAt;
+
+  /** When was finalizing started, no chunks are accepted then. Null while uploading. */
+  private Date finalizedAt;
+}
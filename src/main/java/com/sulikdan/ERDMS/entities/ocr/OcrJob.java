@@ -0,0 +1,59 @@
+package com.sulikdan.ERDMS.entities.ocr;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Class OcrJob is persistent OCR job of a single document. Id of the job is id of the document, so
+ * there is at most one job per document. Job is claimed by a worker node for the time of a lease,
+ * the lease is renewed by heartbeat while the node is working on the job.
+ */
+@Getter
+@Setter
+@Builder
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "ocr_jobs")
+@CompoundIndex(name = "state_nextAttemptAt", def = "{'state': 1, 'nextAttemptAt': 1}")
+public class OcrJob {
+
+  /** Id of the document to be scanned. */
+  @Id private String id;
+
+  private OcrJobState state;
+
+  /** Job isn't claimed sooner than this time. */
+  private Date nextAttemptAt;
+
+  /** Node holding the lease, null when not claimed. */
+  private String leaseOwner;
+
+  private Date leaseExpiresAt;
+
+  /** Number of failed attempts. */
+  private int attempts;
+
+  /** Error of the last failed attempt. */
+  private String lastError;
+
+  /** When was the job moved to dead letters. */
+  private Date deadLetteredAt;
+
+  /** When was the document sent to OCR, null if it's not being processed by OCR. */
+  private Date submittedAt;
+
+  /** Number of status checks, that found the document still processing. */
+  private int pollCount;
+
+  private Date createdAt;
+}
@@ -0,0 +1,22 @@
+package com.sulikdan.ERDMS.entities.ocr;
+
+/**
+ * Class OcrJobState is used for saving current state of an OCR job:
+ *
+ * <p>
+ *
+ * <ul>
+ *   <li>QUEUED - waits till its nextAttemptAt to be claimed by a worker.
+ *   <li>RUNNING - claimed by a worker node, which holds lease on it. When the lease expires, job
+ *       can be claimed again by any node.
+ *   <li>DEAD_LETTER - failed too many times, it's not claimed till it's re-driven by admin or the
+ *       document is sent to scan again.
+ * </ul>
+ *
+ * Finished jobs are removed from the queue.
+ */
+public enum OcrJobState {
+  QUEUED,
+  RUNNING,
+  DEAD_LETTER
+}
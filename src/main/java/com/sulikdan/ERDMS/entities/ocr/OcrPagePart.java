@@ -0,0 +1,63 @@
+package com.sulikdan.ERDMS.entities.ocr;
+
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Class OcrPagePart is a single page of a multi-page document, that is sent to OCR on its own.
+ * Pages are scanned in parallel, each of them has its own OCR info and attempts, so failed page is
+ * retried without the rest of the document.
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+public class OcrPagePart {
+
+  private static final String PART_ID_SEPARATOR = "_p";
+
+  /** Position(0-based) of the page in the original document. */
+  private int pageNumber;
+
+  /** Single-page file sent to OCR. */
+  private String blobId;
+
+  private AsyncApiInfo asyncApiInfo = new AsyncApiInfo();
+
+  /** Scanned text, null till the page is downloaded. */
+  @ToString.Exclude
+  private String content;
+
+  /** Number of failed attempts of this page. */
+  private int attempts;
+
+  private String lastError;
+
+  public OcrPagePart(int pageNumber, String blobId) {
+    this.pageNumber = pageNumber;
+    this.blobId = blobId;
+  }
+
+  /** Id of the part used by OCR(e.g. in callbacks). */
+  public static String partId(String docId, int pageNumber) {
+    return docId + PART_ID_SEPARATOR + pageNumber;
+  }
+
+  /**
+   * Id of the document, the part belongs to.
+   *
+   * @param id id of a part or of a document
+   * @return id of the document, same id when it's not id of a part
+   */
+  public static String docIdOf(String id) {
+    int separator = id.lastIndexOf(PART_ID_SEPARATOR);
+    return separator > 0 ? id.substring(0, separator) : id;
+  }
+
+  public static boolean isPartId(String id) {
+    return id.lastIndexOf(PART_ID_SEPARATOR) > 0;
+  }
+}
@@ -0,0 +1,32 @@
+package com.sulikdan.ERDMS.entities.ocr;
+
+import com.sulikdan.ERDMS.entities.DocPage;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Class OcrResultCacheEntry is scanned text of a file stored by content of the file and OCR config,
+ * so the same file uploaded again doesn't have to be scanned.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "ocr_result_cache")
+public class OcrResultCacheEntry {
+
+  /** SHA-256 of the file together with OCR config, see OcrResultCache. */
+  @Id private String id;
+
+  private List<DocPage> pages;
+
+  /** Entry is removed by TTL index after configured time. */
+  private Date createdAt;
+}
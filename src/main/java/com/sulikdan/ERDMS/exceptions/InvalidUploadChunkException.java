@@ -0,0 +1,22 @@
+package com.sulikdan.ERDMS.exceptions;
+
+/**
+ * Class InvalidUploadChunkException is used when a chunk of upload session is rejected(checksum
+ * doesn't match, chunk is too large) or the session can't be finalized with received chunks.
+ */
+public class InvalidUploadChunkException extends RuntimeException {
+
+    private static final long serialVersionUID = 3170912583350146204L;
+
+    public InvalidUploadChunkException() {
+        super();
+    }
+
+    public InvalidUploadChunkException(String message) {
+        super(message);
+    }
+
+    public InvalidUploadChunkException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
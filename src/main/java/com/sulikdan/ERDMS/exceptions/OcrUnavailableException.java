@@ -0,0 +1,22 @@
+package com.sulikdan.ERDMS.exceptions;
+
+/**
+ * Class OcrUnavailableException is used when a call to OCR is not made, because OCR circuit breaker
+ * is open or too many calls of the same kind are running. It's not a failure of the document.
+ */
+public class OcrUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = -4176405322386610412L;
+
+    public OcrUnavailableException() {
+        super();
+    }
+
+    public OcrUnavailableException(String message) {
+        super(message);
+    }
+
+    public OcrUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
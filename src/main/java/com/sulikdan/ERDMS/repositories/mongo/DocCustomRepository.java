@@ -1,11 +1,17 @@
 package com.sulikdan.ERDMS.repositories.mongo;
 
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
 import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
 import com.sulikdan.ERDMS.entities.users.User;
 import org.springframework.data.domain.Page;
 import org.springframework.data.mongodb.repository.Query;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -34,4 +40,60 @@ public interface DocCustomRepository {
    */
   Page<Doc> findDocsByFullText(SearchDocParams searchDocParams, User user);
 
+  /**
+   * Searches by the same params as findDocsByMultipleArgs, but loads only summaries of documents
+   * using field projection. Tags are filtered and updated dates compare update time of documents,
+   * unlike in findDocsByMultipleArgs.
+   *
+   * @param searchDocParams object containing multiple params that will be used in search. It is
+   *     required that provided params are not null!
+   * @param user the one created request
+   * @return Page of document summaries that are valid for provided arguments.
+   */
+  Page<DocSummary> findDocSummariesByMultipleArgs(SearchDocParams searchDocParams, User user);
+
+  /**
+   * Same search as findDocsByFullText, but loads only summaries of documents using field
+   * projection.
+   *
+   * @param searchDocParams using searchDocParams but expects non-null and not-empty fulltext,
+   *     pageIndex and pageSize
+   * @param user the one created request
+   * @return Page of document summaries that are valid for provided arguments.
+   */
+  Page<DocSummary> findDocSummariesByFullText(SearchDocParams searchDocParams, User user);
+
+  /**
+   * Finds ids of documents in provided OCR states, without loading the documents.
+   *
+   * @param states of documents to search for
+   * @return ids of found documents
+   */
+  List<String> findDocIdsByAsyncApiStates(Collection<AsyncApiState> states);
+
+  /**
+   * Updates only OCR progress of the document(asyncApiInfo, updateDateTime and optionally
+   * docPageList). Update is applied only when stored state is still the expected one, so concurrent
+   * workers can't overwrite each other.
+   *
+   * @param docId id of the document to update
+   * @param expectedState state the document had, when the OCR step started
+   * @param asyncApiInfo new OCR info of the document
+   * @param docPageList scanned pages, null when pages didn't change
+   * @return true if document was updated, false if it was changed meanwhile or doesn't exist
+   */
+  boolean updateOcrProgress(
+      String docId,
+      AsyncApiState expectedState,
+      AsyncApiInfo asyncApiInfo,
+      List<DocPage> docPageList);
+
+  /**
+   * Sets previews of the document, other fields are not touched.
+   *
+   * @param docId id of the document to update
+   * @param previews created previews
+   * @return true if document was updated, false if it doesn't exist anymore
+   */
+  boolean updatePreviews(String docId, List<DocPreview> previews);
 }
@@ -6,16 +6,25 @@ import com.sulikdan.ERDMS.entities.users.User;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.*;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.index.TextIndexDefinition;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.TextCriteria;
 import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Created by Daniel Šulik on 11-Sep-20
@@ -32,6 +41,17 @@ public class DocCustomRepositoryImpl implements DocCustomRepository {
 
   private final MongoTemplate mongoTemplate;
 
+  /** Maps sort columns accepted from client to fields of documents. */
+  private static final Map<String, String> SORT_COLUMN_FIELDS = new HashMap<>();
+
+  static {
+    SORT_COLUMN_FIELDS.put("id", "id");
+    SORT_COLUMN_FIELDS.put("state", "asyncApiInfo.asyncApiState");
+    SORT_COLUMN_FIELDS.put("language", "docConfig.lang");
+    SORT_COLUMN_FIELDS.put("createddatetime", "createDateTime");
+    SORT_COLUMN_FIELDS.put("updateddatetime", "updateDateTime");
+  }
+
   public DocCustomRepositoryImpl(
           DocMongoRepository mongoRepository, MongoTemplate mongoTemplate) {
     this.mongoRepository = mongoRepository;
@@ -40,6 +60,7 @@ public class DocCustomRepositoryImpl implements DocCustomRepository {
     TextIndexDefinition textIndex =
             new TextIndexDefinition.TextIndexDefinitionBuilder().onAllFields().build();
     mongoTemplate.indexOps(Doc.class).ensureIndex(textIndex);
+    mongoTemplate.indexOps(Doc.class).ensureIndex(new Index().on("ownerId", Sort.Direction.ASC));
   }
 
   @Override
@@ -97,7 +118,7 @@ public class DocCustomRepositoryImpl implements DocCustomRepository {
     BooleanBuilder builderOwner = new BooleanBuilder();
 
     builderOwner.or(qDocument.isShared.eq(true));
-    builderOwner.or(qDocument.owner.id.eq(user.getId()));
+    builderOwner.or(qDocument.ownerId.eq(user.getId()));
     builder.and(builderOwner);
 
     if (searchDocParams.getCreatedFrom() != null) {
@@ -158,9 +179,170 @@ public class DocCustomRepositoryImpl implements DocCustomRepository {
 
     query.addCriteria(
             orCriteria.orOperator(
-                    Criteria.where("owner").is(user), (Criteria.where("isShared").is(Boolean.TRUE))));
+                    Criteria.where("ownerId").is(user.getId()), (Criteria.where("isShared").is(Boolean.TRUE))));
     List<Doc> list = mongoTemplate.find(query, Doc.class);
     long count = mongoTemplate.count(query, Doc.class);
     return new PageImpl<Doc>(list, pageRequest, count);
   }
+
+  @Override
+  public Page<DocSummary> findDocSummariesByMultipleArgs(
+      SearchDocParams searchDocParams, User user) {
+    Query query = new Query(buildSearchCriteria(searchDocParams, user));
+
+    Sort sort = Sort.unsorted();
+    for (String column : searchDocParams.getColumnSortList()) {
+      sort = sort.and(Sort.by(SORT_COLUMN_FIELDS.getOrDefault(column, column)));
+    }
+    if (sort.isSorted()) {
+      sort = searchDocParams.getSortAscending() ? sort.ascending() : sort.descending();
+    }
+
+    return findDocSummaries(
+        query,
+        PageRequest.of(searchDocParams.getPageIndex(), searchDocParams.getPageSize(), sort));
+  }
+
+  @Override
+  public Page<DocSummary> findDocSummariesByFullText(SearchDocParams searchDocParams, User user) {
+    Query query =
+        TextQuery.query(
+            TextCriteria.forDefaultLanguage().matchingAny(searchDocParams.getFullText()));
+    query.addCriteria(ownerOrSharedCriteria(user));
+
+    return findDocSummaries(
+        query, PageRequest.of(searchDocParams.getPageIndex(), searchDocParams.getPageSize()));
+  }
+
+  /**
+   * Counts all matching documents and loads requested page of their summaries.
+   *
+   * @param query filter without paging
+   * @param pageable requested page
+   * @return page of summaries
+   */
+  private Page<DocSummary> findDocSummaries(Query query, Pageable pageable) {
+    long count = mongoTemplate.count(query, Doc.class);
+
+    DocSummary.withProjection(query.with(pageable));
+    List<DocSummary> summaries =
+        mongoTemplate.find(query, DocSummary.class, mongoTemplate.getCollectionName(Doc.class));
+
+    return new PageImpl<>(summaries, pageable, count);
+  }
+
+  /**
+   * Builds filter of search params as Criteria, which can be combined with field projection. It
+   * differs from QueryDSL predicate in findDocsByMultipleArgs, which is still used for full docs:
+   * tags are filtered by their type and updatedFrom/updatedTo are compared with updateDateTime
+   * instead of createDateTime. Sort columns are mapped to fields by SORT_COLUMN_FIELDS in
+   * findDocSummariesByMultipleArgs, not used as they are.
+   */
+  private Criteria buildSearchCriteria(SearchDocParams searchDocParams, User user) {
+    List<Criteria> criteriaList = new ArrayList<>();
+
+    // Text
+    if (!searchDocParams.getSearchedText().isEmpty()) {
+      criteriaList.add(
+          new Criteria()
+              .orOperator(
+                  searchDocParams.getSearchedText().stream()
+                      .map(text -> Criteria.where("docPageList.content").regex(Pattern.quote(text), "i"))
+                      .toArray(Criteria[]::new)));
+    }
+
+    // States
+    if (!searchDocParams.getStates().isEmpty()) {
+      criteriaList.add(Criteria.where("asyncApiInfo.asyncApiState").in(searchDocParams.getStates()));
+    }
+
+    // Languages
+    if (!searchDocParams.getLanguages().isEmpty()) {
+      criteriaList.add(
+          new Criteria()
+              .orOperator(
+                  searchDocParams.getLanguages().stream()
+                      .map(
+                          language ->
+                              Criteria.where("docConfig.lang")
+                                  .regex("^" + Pattern.quote(language) + "$", "i"))
+                      .toArray(Criteria[]::new)));
+    }
+
+    // Tags
+    if (!searchDocParams.getTags().isEmpty()) {
+      criteriaList.add(
+          Criteria.where("tags.tagType")
+              .in(
+                  searchDocParams.getTags().stream()
+                      .map(Tag::getTagType)
+                      .collect(Collectors.toList())));
+    }
+
+    // Is shared - i.e. if user want to see all shared docs
+    if (searchDocParams.getIsShared() != null) {
+      criteriaList.add(Criteria.where("isShared").is(searchDocParams.getIsShared()));
+    }
+
+    // Ownership or sharing-ship - all doc he owns or all docs that are shared to him
+    criteriaList.add(ownerOrSharedCriteria(user));
+
+    if (searchDocParams.getCreatedFrom() != null || searchDocParams.getCreatedTo() != null) {
+      Criteria created = Criteria.where("createDateTime");
+      if (searchDocParams.getCreatedFrom() != null) created.gte(searchDocParams.getCreatedFrom());
+      if (searchDocParams.getCreatedTo() != null) created.lte(searchDocParams.getCreatedTo());
+      criteriaList.add(created);
+    }
+
+    if (searchDocParams.getUpdatedFrom() != null || searchDocParams.getUpdatedTo() != null) {
+      Criteria updated = Criteria.where("updateDateTime");
+      if (searchDocParams.getUpdatedFrom() != null) updated.gte(searchDocParams.getUpdatedFrom());
+      if (searchDocParams.getUpdatedTo() != null) updated.lte(searchDocParams.getUpdatedTo());
+      criteriaList.add(updated);
+    }
+
+    return new Criteria().andOperator(criteriaList.toArray(new Criteria[0]));
+  }
+
+  @Override
+  public List<String> findDocIdsByAsyncApiStates(Collection<AsyncApiState> states) {
+    Query query = Query.query(Criteria.where("asyncApiInfo.asyncApiState").in(states));
+    query.fields().include("_id");
+
+    return mongoTemplate
+        .find(query, org.bson.Document.class, mongoTemplate.getCollectionName(Doc.class))
+        .stream()
+        .map(document -> document.get("_id").toString())
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public boolean updateOcrProgress(
+      String docId,
+      AsyncApiState expectedState,
+      AsyncApiInfo asyncApiInfo,
+      List<DocPage> docPageList) {
+    Query query =
+        Query.query(
+            Criteria.where("_id").is(docId).and("asyncApiInfo.asyncApiState").is(expectedState));
+
+    Update update =
+        new Update().set("asyncApiInfo", asyncApiInfo).set("updateDateTime", LocalDateTime.now());
+    if (docPageList != null) update.set("docPageList", docPageList);
+
+    return mongoTemplate.updateFirst(query, update, Doc.class).getMatchedCount() > 0;
+  }
+
+  @Override
+  public boolean updatePreviews(String docId, List<DocPreview> previews) {
+    Query query = Query.query(Criteria.where("_id").is(docId));
+    Update update = new Update().set("previews", previews);
+
+    return mongoTemplate.updateFirst(query, update, Doc.class).getMatchedCount() > 0;
+  }
+
+  private Criteria ownerOrSharedCriteria(User user) {
+    return new Criteria()
+        .orOperator(Criteria.where("ownerId").is(user.getId()), Criteria.where("isShared").is(true));
+  }
 }
@@ -2,13 +2,20 @@ package com.sulikdan.ERDMS.services;
 
 import com.sulikdan.ERDMS.entities.AsyncApiState;
 import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPreview;
 import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
 import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.services.ingest.IngestResult;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 /**
@@ -36,6 +43,31 @@ public interface DocService {
    */
   List<Doc> findAllDocs();
 
+  /**
+   * Loads original file of the document from the BlobStore. File is streamed on read.
+   *
+   * @param doc document, which file is requested
+   * @return the file as resource or DocNotFoundException
+   */
+  Resource loadDocFile(Doc doc);
+
+  /**
+   * Finds the smallest preview of the document, which is at least of requested size.
+   *
+   * @param doc document, which preview is requested
+   * @param size longer side of the preview in px
+   * @return found preview or DocNotFoundException, when the doc has no preview
+   */
+  DocPreview findDocPreview(Doc doc, int size);
+
+  /**
+   * Loads binary of the preview from the BlobStore.
+   *
+   * @param preview found by findDocPreview
+   * @return the preview image as resource
+   */
+  Resource loadDocPreview(DocPreview preview);
+
   /**
    * Calls many other methods to create new Record in DB and also sends it to be processed by OCR
    * sooner or later.
@@ -54,6 +86,17 @@ public interface DocService {
    */
   Doc saveDoc(Doc doc);
 
+  /**
+   * Saves OCR progress of the document without rewriting the whole document. Nothing is saved, if
+   * the document state was changed meanwhile by someone else.
+   *
+   * @param doc document with new OCR info(and pages)
+   * @param expectedState state the document had, before the OCR step
+   * @param pagesChanged whether docPageList should be saved as well
+   * @return true if the progress was saved
+   */
+  boolean saveOcrProgress(Doc doc, AsyncApiState expectedState, boolean pagesChanged);
+
   /**
    * Updates document using repo layer.
    *
@@ -63,14 +106,88 @@ public interface DocService {
   void updateDoc(Doc doc, User user);
 
   /**
-   * TODO
-   * @param files
-   * @param docConfig
-   * @param user
-   * @return
-   * @throws IOException
+   * Stores uploaded files and creates their docs right away, docs are queued for OCR.
+   *
+   * @param files uploaded files
+   * @param docConfig config of all docs
+   * @param user owner of the docs
+   * @return created docs and files, which failed
+   */
+  IngestResult processNewDocs(MultipartFile[] files, DocConfig docConfig, User user);
+
+  /**
+   * Stores uploaded files and returns, docs of the files are created in the background.
+   *
+   * @param files uploaded files
+   * @param docConfig config of all docs
+   * @param user owner of the docs
+   * @return saved batch with ids of future docs, failed files have the error
+   */
+  IngestBatch acceptNewDocs(MultipartFile[] files, DocConfig docConfig, User user);
+
+  /**
+   * Finds upload accepted by acceptNewDocs.
+   *
+   * @param batchId id of the batch
+   * @param user owner of the batch
+   * @return found batch or DocNotFoundException
    */
-  List<Doc> processNewDocs(MultipartFile[] files, DocConfig docConfig, User user) throws IOException;
+  IngestBatch findIngestBatch(String batchId, User user);
+
+  /**
+   * Starts resumable upload of a large file, which is sent in chunks.
+   *
+   * @param nameOfFile original name of the file
+   * @param contentType content type of the file, may be null
+   * @param docConfig config of the doc
+   * @param user owner of the doc
+   * @return created session
+   */
+  UploadSession createUploadSession(
+      String nameOfFile, String contentType, DocConfig docConfig, User user);
+
+  /**
+   * Stores chunk of the upload, chunk sent again replaces the previous one.
+   *
+   * @param sessionId id of the session
+   * @param index number of the chunk, from 0
+   * @param content stream of the chunk
+   * @param sha256 expected SHA-256 of the chunk as hex string
+   * @param user owner of the session
+   * @return session with received chunks
+   * @throws IOException when the chunk couldn't be read
+   */
+  UploadSession storeUploadChunk(
+      String sessionId, int index, InputStream content, String sha256, User user)
+      throws IOException;
+
+  /**
+   * Finds upload session, e.g. to find out which chunks have to be sent again.
+   *
+   * @param sessionId id of the session
+   * @param user owner of the session
+   * @return found session or DocNotFoundException
+   */
+  UploadSession findUploadSession(String sessionId, User user);
+
+  /**
+   * Assembles chunks of the upload into a file and creates its doc, which is queued for OCR.
+   *
+   * @param sessionId id of the session
+   * @param sha256 expected SHA-256 of the whole file, may be null
+   * @param user owner of the session
+   * @return created doc
+   * @throws IOException when chunks couldn't be read
+   */
+  Doc finalizeUploadSession(String sessionId, String sha256, User user) throws IOException;
+
+  /**
+   * Cancels upload session, its chunks are deleted.
+   *
+   * @param sessionId id of the session
+   * @param user owner of the session
+   */
+  void abortUploadSession(String sessionId, User user);
 
   void deleteDocById(String id, User user);
 
@@ -79,4 +196,16 @@ public interface DocService {
 
   Page<Doc> findDocsUsingSearchParams(
           SearchDocParams searchDocParams, Integer page, Integer size, User user);
+
+  /**
+   * Same as findDocsUsingSearchParams, but returns only summaries of documents for listing.
+   *
+   * @param searchDocParams search params for documents
+   * @param page index of requested page
+   * @param size size of page
+   * @param user the one created request
+   * @return page of document summaries
+   */
+  Page<DocSummary> findDocSummariesUsingSearchParams(
+          SearchDocParams searchDocParams, Integer page, Integer size, User user);
 }
@@ -1,26 +1,32 @@
 package com.sulikdan.ERDMS.services;
 
 import com.sulikdan.ERDMS.entities.*;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
 import com.sulikdan.ERDMS.entities.users.User;
 import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
 import com.sulikdan.ERDMS.exceptions.InvalidAccessRightException;
 import com.sulikdan.ERDMS.repositories.DocRepository;
-import com.sulikdan.ERDMS.services.ocr.OCRService;
-import com.sulikdan.ERDMS.workers.OcrApiJobWorker;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import com.sulikdan.ERDMS.services.ingest.IngestBatchService;
+import com.sulikdan.ERDMS.services.ingest.IngestResult;
+import com.sulikdan.ERDMS.services.ingest.UploadSessionService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
 import lombok.extern.slf4j.Slf4j;
-import net.coobird.thumbnailator.Thumbnails;
-import org.apache.commons.io.FilenameUtils;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.TextIndexDefinition;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
 import java.time.LocalDateTime;
 import java.util.*;
@@ -39,12 +45,15 @@ import java.util.stream.StreamSupport;
 @Service
 public class DocServiceImpl implements DocService {
 
-  private TaskExecutor taskExecutor;
-
   // services
-  private final OCRService ocrService;
-  private final VirtualStorageService virtualStorageService;
+  private final OcrJobQueue ocrJobQueue;
+  private final OcrJobScheduler ocrJobScheduler;
   private final FileStorageService fileStorageService;
+  private final BlobStore blobStore;
+  private final BlobDedupService blobDedupService;
+  private final IngestBatchService ingestBatchService;
+  private final UploadSessionService uploadSessionService;
+  private final DocPreviewService docPreviewService;
 
   // repos
   private final DocRepository documentRepository;
@@ -52,15 +61,23 @@ public class DocServiceImpl implements DocService {
   private final Set<String> mapSortColumns;
 
   public DocServiceImpl(
-      TaskExecutor taskExecutor,
-      OCRService ocrService,
-      VirtualStorageService virtualStorageService,
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler,
       FileStorageService fileStorageService,
+      BlobStore blobStore,
+      BlobDedupService blobDedupService,
+      IngestBatchService ingestBatchService,
+      UploadSessionService uploadSessionService,
+      DocPreviewService docPreviewService,
       DocRepository documentRepository) {
-    this.taskExecutor = taskExecutor;
-    this.ocrService = ocrService;
-    this.virtualStorageService = virtualStorageService;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrJobScheduler = ocrJobScheduler;
     this.fileStorageService = fileStorageService;
+    this.blobStore = blobStore;
+    this.blobDedupService = blobDedupService;
+    this.ingestBatchService = ingestBatchService;
+    this.uploadSessionService = uploadSessionService;
+    this.docPreviewService = docPreviewService;
     this.documentRepository = documentRepository;
 
     String[] columnsChoices = {"id", "state", "language", "createddatetime", "updateddatetime"};
@@ -79,7 +96,7 @@ public class DocServiceImpl implements DocService {
     Doc foundDoc = optionalDocument.get();
 
     //  Check access rights!
-    if (!foundDoc.getIsShared() && !foundDoc.getOwner().getId().equals(user.getId())) {
+    if (!foundDoc.getIsShared() && !user.getId().equals(foundDoc.getOwnerId())) {
       log.warn(MessageFormat.format("Accessing doc with id={}, but no rights!", id));
       throw new DocNotFoundException("Doc mot found");
     }
@@ -95,47 +112,94 @@ public class DocServiceImpl implements DocService {
   }
 
   @Override
-  public List<Doc> processNewDocs(MultipartFile[] files, DocConfig docConfig, User user)
-      throws IOException {
-    List<Doc> uploadedDocs = new ArrayList<>();
-
-    for (MultipartFile file : files) {
-
-      log.info("Processing file: ");
-      ByteArrayOutputStream thumbnail = createThumbnail(file, 150);
-
-      Doc docToProcess =
-          Doc.builder()
-              .nameOfFile(file.getOriginalFilename())
-              .documentAsBytes(file.getBytes())
-              .documentPreview(thumbnail != null ? thumbnail.toByteArray() : null)
-              .docConfig(docConfig)
-              .asyncApiInfo(
-                  new AsyncApiInfo(
-                      docConfig.getScanImmediately()
-                          ? AsyncApiState.MANUAL_SENDING
-                          : AsyncApiState.WAITING_TO_SEND,
-                      null,
-                      null))
-              .owner(user)
-              .build();
-
-      uploadedDocs.add(docToProcess);
-      // TODO consider to send all files together not seperately && not atomic in mongoDB if send
-      // together
-      createNewDoc(docToProcess);
+  public Resource loadDocFile(Doc doc) {
+    if (doc.getDocumentBlobId() == null) {
+      log.warn(MessageFormat.format("Document with id={0} has no file stored!", doc.getId()));
+      throw new DocNotFoundException("File of the document not found!");
     }
+    return blobStore.loadBlob(doc.getDocumentBlobId());
+  }
+
+  @Override
+  public DocPreview findDocPreview(Doc doc, int size) {
+    return docPreviewService
+        .findPreview(doc, size)
+        .orElseThrow(() -> new DocNotFoundException("Preview of the document not found!"));
+  }
+
+  @Override
+  public Resource loadDocPreview(DocPreview preview) {
+    return docPreviewService.loadPreview(preview);
+  }
+
+  @Override
+  public IngestResult processNewDocs(MultipartFile[] files, DocConfig docConfig, User user) {
+    List<IngestFile> stagedFiles = ingestBatchService.stageFiles(files);
+
+    // docs are created right away, batch is saved only when they can't be
+    List<Doc> createdDocs = ingestBatchService.createDocsNow(stagedFiles, docConfig, user);
+
+    List<IngestFile> failedFiles =
+        stagedFiles.stream()
+            .filter(file -> file.getState() == IngestFileState.FAILED)
+            .collect(Collectors.toList());
+    return new IngestResult(createdDocs, failedFiles);
+  }
+
+  @Override
+  public IngestBatch acceptNewDocs(MultipartFile[] files, DocConfig docConfig, User user) {
+    return ingestBatchService.submit(ingestBatchService.stageFiles(files), docConfig, user);
+  }
+
+  @Override
+  public IngestBatch findIngestBatch(String batchId, User user) {
+    return ingestBatchService
+        .findBatch(batchId, user)
+        .orElseThrow(() -> new DocNotFoundException("Upload not found!"));
+  }
+
+  @Override
+  public UploadSession createUploadSession(
+      String nameOfFile, String contentType, DocConfig docConfig, User user) {
+    return uploadSessionService.createSession(nameOfFile, contentType, docConfig, user);
+  }
+
+  @Override
+  public UploadSession storeUploadChunk(
+      String sessionId, int index, InputStream content, String sha256, User user)
+      throws IOException {
+    return uploadSessionService.storeChunk(sessionId, index, content, sha256, user);
+  }
+
+  @Override
+  public UploadSession findUploadSession(String sessionId, User user) {
+    return uploadSessionService.findSession(sessionId, user);
+  }
+
+  @Override
+  public Doc finalizeUploadSession(String sessionId, String sha256, User user)
+      throws IOException {
+    String docId = uploadSessionService.finalizeSession(sessionId, sha256, user);
+    return findDocById(docId, user);
+  }
 
-    // TODO change returned DOCS to DTO
-    return uploadedDocs;
+  @Override
+  public void abortUploadSession(String sessionId, User user) {
+    uploadSessionService.abortSession(sessionId, user);
   }
 
   @Override
   public void deleteDocById(String id, User user) {
     final Optional<Doc> found = documentRepository.findById(id);
     if (found.isPresent()) {
-      if (found.get().getOwner().getId().equals(user.getId())) documentRepository.deleteById(id);
-      else throw new InvalidAccessRightException("You don't have rights to delete the document!");
+      if (user.getId().equals(found.get().getOwnerId())) {
+        documentRepository.deleteById(id);
+        // file may be shared with other docs, it's deleted when not used anymore
+        if (found.get().getDocumentBlobId() != null)
+          blobDedupService.release(
+              found.get().getDocumentSha256(), found.get().getDocumentBlobId());
+        docPreviewService.deletePreviews(found.get().getPreviews());
+      } else throw new InvalidAccessRightException("You don't have rights to delete the document!");
     } else {
       throw new DocNotFoundException("Document not found!");
     }
@@ -147,12 +211,8 @@ public class DocServiceImpl implements DocService {
     Doc saved = saveDoc(doc);
     //    documentRepository.save(document);
 
-    // Scan doc job
-    if (doc.getDocConfig().getScanImmediately()) {
-      virtualStorageService.addDoc(doc.getId());
-      taskExecutor.execute(
-          new OcrApiJobWorker(ocrService, this, documentRepository, virtualStorageService, doc));
-    }
+    // Scan doc job, documents without scanImmediately are scanned right away as well
+    scheduleOcrJob(doc.getId());
 
     return saved;
   }
@@ -165,6 +225,15 @@ public class DocServiceImpl implements DocService {
     return documentRepository.save(doc);
   }
 
+  @Override
+  public boolean saveOcrProgress(Doc doc, AsyncApiState expectedState, boolean pagesChanged) {
+    return documentRepository.updateOcrProgress(
+        doc.getId(),
+        expectedState,
+        doc.getAsyncApiInfo(),
+        pagesChanged ? doc.getDocPageList() : null);
+  }
+
   //  @Transactional
   @Override
   public void updateDoc(Doc doc, User user) {
@@ -172,15 +241,18 @@ public class DocServiceImpl implements DocService {
     Optional<Doc> foundDocOptional = documentRepository.findById(doc.getId());
     if (!foundDocOptional.isPresent()) {
       throw new DocNotFoundException("Requested document for update was not found!");
-    } else if (!foundDocOptional.get().getOwner().getId().equals(user.getId())) {
+    } else if (!user.getId().equals(foundDocOptional.get().getOwnerId())) {
       throw new InvalidAccessRightException("You don't have rights to update the document!");
     }
 
     Doc foundDoc = foundDocOptional.get();
     doc.setNameOfFile(foundDoc.getNameOfFile());
     doc.setOwner(foundDoc.getOwner());
-    doc.setDocumentAsBytes(foundDoc.getDocumentAsBytes());
-    doc.setDocumentPreview(foundDoc.getDocumentAsBytes());
+    doc.setOwnerId(foundDoc.getOwnerId());
+    doc.setDocumentBlobId(foundDoc.getDocumentBlobId());
+    doc.setDocumentSha256(foundDoc.getDocumentSha256());
+    doc.setDocumentSize(foundDoc.getDocumentSize());
+    doc.setPreviews(foundDoc.getPreviews());
     if (doc.getDocConfig() == null
         || doc.getDocConfig().getLang() == null
         || doc.getDocConfig().getLang().isEmpty()) {
@@ -190,6 +262,17 @@ public class DocServiceImpl implements DocService {
     //   1 TODO do other params + should check null values ?
 
     saveDoc(doc);
+
+    AsyncApiState state =
+        doc.getAsyncApiInfo() != null ? doc.getAsyncApiInfo().getAsyncApiState() : null;
+    if (state == AsyncApiState.WAITING_TO_SEND || state == AsyncApiState.MANUAL_SENDING) {
+      scheduleOcrJob(doc.getId());
+    }
+  }
+
+  private void scheduleOcrJob(String docId) {
+    ocrJobQueue.enqueue(docId);
+    ocrJobScheduler.schedule(docId, 0);
   }
 
   /**
@@ -235,6 +318,22 @@ public class DocServiceImpl implements DocService {
     return foundDocPages;
   }
 
+  @Override
+  public Page<DocSummary> findDocSummariesUsingSearchParams(
+      SearchDocParams searchDocParams, Integer page, Integer size, User user) {
+
+    searchDocParams.setPageIndex(page);
+    searchDocParams.setPageSize(size);
+
+    checkSortColumn(searchDocParams);
+
+    if (searchDocParams.getFullText() != null && !searchDocParams.getFullText().isEmpty()) {
+      return documentRepository.findDocSummariesByFullText(searchDocParams, user);
+    } else {
+      return documentRepository.findDocSummariesByMultipleArgs(searchDocParams, user);
+    }
+  }
+
   private void checkSortColumn(SearchDocParams searchDocParams) {
 
     searchDocParams.setColumnSortList(
@@ -256,26 +355,4 @@ public class DocServiceImpl implements DocService {
         throw new RuntimeException("Bad request - unsupported column.");
     }
   }
-
-  private ByteArrayOutputStream createThumbnail(MultipartFile orginalFile, Integer width)
-      throws IOException {
-
-    String extension = FilenameUtils.getExtension(orginalFile.getOriginalFilename());
-
-    String png = "png";
-    String jpg = "jpg";
-
-    if (extension == null || (!png.equalsIgnoreCase(extension) && !jpg.equalsIgnoreCase(extension)))
-      return null;
-
-    log.warn("Content type" + orginalFile);
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-    BufferedImage originalImage = ImageIO.read(orginalFile.getInputStream());
-
-    Thumbnails.of(originalImage)
-        .size(200, 200)
-        .outputFormat(extension)
-        .toOutputStream(outputStream);
-    return outputStream;
-  }
 }
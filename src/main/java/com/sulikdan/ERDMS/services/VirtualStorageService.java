@@ -19,18 +19,4 @@ public interface VirtualStorageService {
   void addDoc(Doc doc);
 
   void addDocs(List<Doc> docList);
-
-//  ConcurrentHashMap methods
-  void addDoc(String documentId);
-
-  boolean isDocUsed(String documentId);
-
-  void deleteDoc(String documentId);
-
-// Error ConcurrentHashMap
-  void addOrIncreaseFailedDoc(String documentId);
-
-  int docFailedTimes(String documentId);
-
-  void deleteFailedDoc(String documentId);
 }
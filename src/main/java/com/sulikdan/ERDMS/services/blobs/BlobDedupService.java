@@ -0,0 +1,235 @@
+package com.sulikdan.ERDMS.services.blobs;
+
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.blobs.BlobRef;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Class BlobDedupService keeps files in the BlobStore content-addressed. Every content(SHA-256) is
+ * stored once, docs with the same file share its blob, references are counted in collection
+ * blob_refs. Blobs without references are removed by garbage collector after grace period, so are
+ * blobs, which were stored, but never referenced by anything(e.g. crash between storing and saving).
+ */
+@Slf4j
+@Service
+public class BlobDedupService {
+
+  private final MongoTemplate mongoTemplate;
+  private final BlobStore blobStore;
+  private final StorageProperties.Dedup dedupProperties;
+
+  /** Stats of stored blobs, refreshed by garbage collector. */
+  private volatile long storedBlobs;
+
+  private volatile long references;
+  private volatile long storedBytes;
+  private volatile long referencedBytes;
+
+  public BlobDedupService(
+      MongoTemplate mongoTemplate,
+      BlobStore blobStore,
+      StorageProperties storageProperties,
+      MeterRegistry meterRegistry) {
+    this.mongoTemplate = mongoTemplate;
+    this.blobStore = blobStore;
+    this.dedupProperties = storageProperties.getDedup();
+
+    Gauge.builder("blobs.dedup.ratio", this, BlobDedupService::getDedupRatio)
+        .description("Referenced files per stored blob")
+        .register(meterRegistry);
+    Gauge.builder("blobs.dedup.saved.bytes", this, BlobDedupService::getSavedBytes)
+        .description("Bytes not stored thanks to deduplication")
+        .register(meterRegistry);
+    Gauge.builder("blobs.stored.bytes", this, service -> service.storedBytes)
+        .description("Bytes of stored content-addressed blobs")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Adds reference of a doc to the content. When the content is already stored, the new blob is
+   * deleted and the stored one is used instead.
+   *
+   * @param sha256 of the content
+   * @param blobId of the content just stored
+   * @param size of the content
+   * @return id of the blob, which the doc should reference
+   */
+  public String acquire(String sha256, String blobId, long size) {
+    if (!dedupProperties.isEnabled()) return blobId;
+
+    BlobRef blobRef;
+    try {
+      blobRef = incrementRef(sha256, blobId, size);
+    } catch (DuplicateKeyException e) {
+      // same content was stored by another upload at the same time
+      blobRef = incrementRef(sha256, blobId, size);
+    }
+
+    if (!blobId.equals(blobRef.getBlobId())) {
+      log.info("Content " + sha256 + " is already stored as blob " + blobRef.getBlobId() + ".");
+      blobStore.deleteBlob(blobId);
+    }
+    return blobRef.getBlobId();
+  }
+
+  /**
+   * Removes reference of a doc. Blobs, which were stored before they were counted, are deleted
+   * right away.
+   *
+   * @param sha256 of the content, may be null
+   * @param blobId referenced by the doc
+   */
+  public void release(String sha256, String blobId) {
+    BlobRef blobRef = null;
+    if (sha256 != null) {
+      blobRef =
+          mongoTemplate.findAndModify(
+              Query.query(
+                  Criteria.where("_id").is(sha256).and("blobId").is(blobId).and("refCount").gt(0)),
+              new Update().inc("refCount", -1).set("releasedAt", new Date()),
+              BlobRef.class);
+    }
+    if (blobRef == null) blobStore.deleteBlob(blobId);
+  }
+
+  /**
+   * Deletes blobs without references, which were released before grace period, and blobs stored
+   * before grace period, which nothing refers to.
+   *
+   * @return number of deleted blobs
+   */
+  @Scheduled(fixedDelayString = "${storage.dedup.gc-interval-millis:600000}")
+  public int collectGarbage() {
+    Date graceStart = new Date(System.currentTimeMillis() - dedupProperties.getGcGraceMillis());
+    Query unreferenced =
+        Query.query(Criteria.where("refCount").lte(0).and("releasedAt").lt(graceStart));
+
+    int deleted = 0;
+    BlobRef blobRef;
+    // reference is removed first, so the blob can't be acquired while it's being deleted
+    while ((blobRef = mongoTemplate.findAndRemove(unreferenced, BlobRef.class)) != null) {
+      try {
+        blobStore.deleteBlob(blobRef.getBlobId());
+        deleted++;
+      } catch (RuntimeException e) {
+        log.error("Unable to delete unreferenced blob " + blobRef.getBlobId() + ": " + e.getMessage());
+      }
+    }
+    if (deleted > 0) log.info("Deleted " + deleted + " unreferenced blobs.");
+
+    int orphans = deleteOrphanBlobs(graceStart);
+    if (orphans > 0) log.info("Deleted " + orphans + " orphan blobs.");
+
+    refreshStats();
+    return deleted + orphans;
+  }
+
+  /** @return referenced files per stored blob, 1 when nothing is shared */
+  public double getDedupRatio() {
+    return storedBlobs > 0 ? (double) references / storedBlobs : 1;
+  }
+
+  public long getSavedBytes() {
+    return referencedBytes - storedBytes;
+  }
+
+  private BlobRef incrementRef(String sha256, String blobId, long size) {
+    return mongoTemplate.findAndModify(
+        Query.query(Criteria.where("_id").is(sha256)),
+        new Update()
+            .inc("refCount", 1)
+            .unset("releasedAt")
+            .setOnInsert("blobId", blobId)
+            .setOnInsert("size", size)
+            .setOnInsert("createdAt", new Date()),
+        FindAndModifyOptions.options().upsert(true).returnNew(true),
+        BlobRef.class);
+  }
+
+  /** Blobs, which are not counted in blob_refs and aren't referenced by any doc, batch or upload. */
+  private int deleteOrphanBlobs(Date storedBefore) {
+    // chunks are kept in a map, so they are collected upfront, sessions are few
+    Set<String> chunkBlobIds = new HashSet<>();
+    Query sessions = new Query();
+    sessions.fields().include("chunks");
+    for (UploadSession session : mongoTemplate.find(sessions, UploadSession.class))
+      if (session.getChunks() != null)
+        session.getChunks().values().forEach(chunk -> chunkBlobIds.add(chunk.getBlobId()));
+
+    int deleted = 0;
+    for (String blobId : blobStore.findBlobIdsStoredBefore(storedBefore)) {
+      if (chunkBlobIds.contains(blobId) || isReferenced(blobId)) continue;
+      try {
+        blobStore.deleteBlob(blobId);
+        deleted++;
+      } catch (RuntimeException e) {
+        log.error("Unable to delete orphan blob " + blobId + ": " + e.getMessage());
+      }
+    }
+    return deleted;
+  }
+
+  private boolean isReferenced(String blobId) {
+    return mongoTemplate.exists(Query.query(Criteria.where("blobId").is(blobId)), BlobRef.class)
+        || mongoTemplate.exists(
+            Query.query(
+                new Criteria()
+                    .orOperator(
+                        Criteria.where("documentBlobId").is(blobId),
+                        Criteria.where("previews.blobId").is(blobId),
+                        Criteria.where("asyncApiInfo.ocrBlobId").is(blobId),
+                        Criteria.where("asyncApiInfo.pageParts.blobId").is(blobId))),
+            Doc.class)
+        || mongoTemplate.exists(
+            Query.query(Criteria.where("files.blobId").is(blobId)), IngestBatch.class);
+  }
+
+  private void refreshStats() {
+    Aggregation aggregation =
+        Aggregation.newAggregation(
+            Aggregation.match(Criteria.where("refCount").gt(0)),
+            Aggregation.project("refCount", "size")
+                .and(ArithmeticOperators.Multiply.valueOf("refCount").multiplyBy("size"))
+                .as("referencedSize"),
+            Aggregation.group()
+                .count()
+                .as("blobs")
+                .sum("refCount")
+                .as("references")
+                .sum("size")
+                .as("storedBytes")
+                .sum("referencedSize")
+                .as("referencedBytes"));
+
+    Document stats =
+        mongoTemplate.aggregate(aggregation, BlobRef.class, Document.class).getUniqueMappedResult();
+    storedBlobs = stats != null ? toLong(stats.get("blobs")) : 0;
+    references = stats != null ? toLong(stats.get("references")) : 0;
+    storedBytes = stats != null ? toLong(stats.get("storedBytes")) : 0;
+    referencedBytes = stats != null ? toLong(stats.get("referencedBytes")) : 0;
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+}
@@ -0,0 +1,48 @@
+package com.sulikdan.ERDMS.services.blobs;
+
+import org.springframework.core.io.Resource;
+
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * Class BlobStore is service layer interface for storing binary content of documents (original
+ * files) outside of the documents collection. Docs keep only the returned blob id.
+ *
+ * @see GridFsBlobStore
+ */
+public interface BlobStore {
+
+  /**
+   * Streams provided content into the store. The stream is read till the end, but it's not closed.
+   *
+   * @param content stream with binary data to be stored
+   * @param fileName original name of the file
+   * @param contentType content type of the file, may be null
+   * @return id of the stored blob
+   */
+  String storeBlob(InputStream content, String fileName, String contentType);
+
+  /**
+   * Loads stored blob. The content is streamed from the store on read, nothing is loaded upfront.
+   *
+   * @param blobId id of the blob returned by storeBlob
+   * @return resource to read the blob from
+   */
+  Resource loadBlob(String blobId);
+
+  /**
+   * Deletes the blob, if it exists.
+   *
+   * @param blobId id of the blob returned by storeBlob
+   */
+  void deleteBlob(String blobId);
+
+  /**
+   * Finds blobs stored before the given time. Ids are streamed from the store while iterating.
+   *
+   * @param storedBefore only blobs stored before this time are returned
+   * @return ids of the found blobs
+   */
+  Iterable<String> findBlobIdsStoredBefore(Date storedBefore);
+}
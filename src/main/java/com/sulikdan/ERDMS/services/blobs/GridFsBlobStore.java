@@ -0,0 +1,111 @@
+package com.sulikdan.ERDMS.services.blobs;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * Class GridFsBlobStore is implementation of BlobStore using MongoDB GridFS. Files are split into
+ * chunks by GridFS, so they are not limited by the 16 MB document size and are streamed both ways.
+ *
+ * @see BlobStore
+ */
+@Slf4j
+@Service
+public class GridFsBlobStore implements BlobStore {
+
+  private final GridFsTemplate gridFsTemplate;
+
+  public GridFsBlobStore(GridFsTemplate gridFsTemplate) {
+    this.gridFsTemplate = gridFsTemplate;
+  }
+
+  @Override
+  public String storeBlob(InputStream content, String fileName, String contentType) {
+    ObjectId blobId = gridFsTemplate.store(content, fileName, contentType);
+    log.debug("Stored blob " + blobId + " for file " + fileName);
+    return blobId.toHexString();
+  }
+
+  @Override
+  public Resource loadBlob(String blobId) {
+    GridFSFile file = gridFsTemplate.findOne(byId(blobId));
+    if (file == null) {
+      log.warn("Blob with id=" + blobId + " not found!");
+      throw new DocNotFoundException("File of the document not found!");
+    }
+    return new GridFsBlobResource(gridFsTemplate, file);
+  }
+
+  @Override
+  public void deleteBlob(String blobId) {
+    gridFsTemplate.delete(byId(blobId));
+  }
+
+  @Override
+  public Iterable<String> findBlobIdsStoredBefore(Date storedBefore) {
+    return gridFsTemplate
+        .find(Query.query(Criteria.where("uploadDate").lt(storedBefore)))
+        .map(file -> file.getObjectId().toHexString());
+  }
+
+  private static Query byId(String blobId) {
+    return Query.query(Criteria.where("_id").is(new ObjectId(blobId)));
+  }
+
+  /**
+   * Resource of a stored file, which opens new download stream on every read. So it can be read
+   * more times(e.g. regions of Range request) and nothing is opened, when it's not read at all.
+   */
+  private static class GridFsBlobResource extends AbstractResource {
+
+    private final GridFsTemplate gridFsTemplate;
+    private final GridFSFile file;
+
+    GridFsBlobResource(GridFsTemplate gridFsTemplate, GridFSFile file) {
+      this.gridFsTemplate = gridFsTemplate;
+      this.file = file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return gridFsTemplate.getResource(file).getInputStream();
+    }
+
+    @Override
+    public boolean exists() {
+      return true;
+    }
+
+    @Override
+    public long contentLength() {
+      return file.getLength();
+    }
+
+    @Override
+    public long lastModified() {
+      return file.getUploadDate().getTime();
+    }
+
+    @Override
+    public String getFilename() {
+      return file.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+      return "GridFS blob [" + file.getObjectId().toHexString() + "]";
+    }
+  }
+}
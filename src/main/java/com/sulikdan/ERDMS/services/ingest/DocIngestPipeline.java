@@ -0,0 +1,113 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Class DocIngestPipeline is used for storing uploaded files in a single pass over their stream.
+ * While the file is written into the BlobStore, its SHA-256 digest and size are computed and, if
+ * requested, the bytes are teed into a staged copy used later for the thumbnail.
+ *
+ * <p>Only fixed size buffers are used, the staged copy keeps at most STAGING_MEMORY_THRESHOLD
+ * bytes on heap and spills the rest into a temporary file. Heap used per upload therefore doesn't
+ * grow with the file size.
+ */
+@Slf4j
+@Component
+public class DocIngestPipeline {
+
+  static final int STAGING_MEMORY_THRESHOLD = 1024 * 1024;
+  private static final String STAGING_PREFIX = "erdms-ingest-";
+  private static final String STAGING_SUFFIX = ".tmp";
+
+  private final BlobStore blobStore;
+  private final BlobDedupService blobDedupService;
+
+  public DocIngestPipeline(BlobStore blobStore, BlobDedupService blobDedupService) {
+    this.blobStore = blobStore;
+    this.blobDedupService = blobDedupService;
+  }
+
+  /**
+   * Streams content into the BlobStore.
+   *
+   * @param content stream of the uploaded file, it's read till the end, but not closed
+   * @param fileName original name of the file
+   * @param contentType content type of the file, may be null
+   * @param stageCopy if a copy of the file has to be kept for further processing
+   * @return info about the stored file, caller has to close its staged copy and release the blob
+   *     in BlobDedupService, when it's not used by a doc
+   * @throws IOException when staging of the copy failed
+   */
+  public IngestedFile ingest(
+      InputStream content, String fileName, String contentType, boolean stageCopy)
+      throws IOException {
+
+    MessageDigest digest = newSha256Digest();
+    CountingInputStream countingStream =
+        new CountingInputStream(new DigestInputStream(content, digest));
+
+    InputStream source = countingStream;
+    DeferredFileOutputStream stagedStream = null;
+    if (stageCopy) {
+      stagedStream =
+          new DeferredFileOutputStream(
+              STAGING_MEMORY_THRESHOLD, STAGING_PREFIX, STAGING_SUFFIX, null);
+      source = new TeeInputStream(countingStream, stagedStream);
+    }
+
+    StagedCopy stagedCopy = stagedStream != null ? new StagedCopy(stagedStream) : null;
+    String blobId;
+    try {
+      blobId = blobStore.storeBlob(source, fileName, contentType);
+    } catch (RuntimeException e) {
+      if (stagedCopy != null) {
+        stagedStream.close();
+        stagedCopy.close();
+      }
+      throw e;
+    }
+    if (stagedStream != null) stagedStream.close();
+
+    String sha256 = toHex(digest.digest());
+    // content is known only after it's stored, duplicate is replaced by the stored blob
+    try {
+      blobId = blobDedupService.acquire(sha256, blobId, countingStream.getByteCount());
+    } catch (RuntimeException e) {
+      if (stagedCopy != null) stagedCopy.close();
+      throw e;
+    }
+    log.debug(
+        "Ingested file " + fileName + " as blob " + blobId + ", size: "
+            + countingStream.getByteCount() + ", sha256: " + sha256);
+
+    return new IngestedFile(blobId, sha256, countingStream.getByteCount(), stagedCopy);
+  }
+
+  static MessageDigest newSha256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported by JVM!", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,386 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class IngestBatchService turns uploaded files into docs. Files are first staged - streamed into
+ * the BlobStore, then docs are created for them and queued for OCR.
+ *
+ * <p>Uploads accepted asynchronously are saved as IngestBatch once their files are staged and docs
+ * are created in the background by own bounded executor. Batches not completed in time(e.g. node
+ * was restarted, or executor was full) are taken again by recovery sweep. Creating docs is
+ * idempotent, ids of docs are assigned when files are staged.
+ */
+@Slf4j
+@Service
+public class IngestBatchService {
+
+  private final DocIngestPipeline docIngestPipeline;
+  private final BlobDedupService blobDedupService;
+  private final DocPreviewService docPreviewService;
+  private final OcrJobQueue ocrJobQueue;
+  private final OcrJobScheduler ocrJobScheduler;
+  private final MongoTemplate mongoTemplate;
+  private final StorageProperties.Ingest ingestProperties;
+  private final Executor executor;
+
+  @Autowired
+  public IngestBatchService(
+      DocIngestPipeline docIngestPipeline,
+      BlobDedupService blobDedupService,
+      DocPreviewService docPreviewService,
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler,
+      MongoTemplate mongoTemplate,
+      StorageProperties storageProperties) {
+    this(
+        docIngestPipeline,
+        blobDedupService,
+        docPreviewService,
+        ocrJobQueue,
+        ocrJobScheduler,
+        mongoTemplate,
+        storageProperties,
+        createExecutor(storageProperties.getIngest()));
+  }
+
+  IngestBatchService(
+      DocIngestPipeline docIngestPipeline,
+      BlobDedupService blobDedupService,
+      DocPreviewService docPreviewService,
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler,
+      MongoTemplate mongoTemplate,
+      StorageProperties storageProperties,
+      Executor executor) {
+    this.docIngestPipeline = docIngestPipeline;
+    this.blobDedupService = blobDedupService;
+    this.docPreviewService = docPreviewService;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrJobScheduler = ocrJobScheduler;
+    this.mongoTemplate = mongoTemplate;
+    this.ingestProperties = storageProperties.getIngest();
+    this.executor = executor;
+
+    mongoTemplate
+        .indexOps(IngestBatch.class)
+        .ensureIndex(
+            new Index()
+                .on("createdAt", Sort.Direction.ASC)
+                .expire(ingestProperties.getTtlMillis(), TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Streams uploaded files into the BlobStore. Failure of a file doesn't stop the others.
+   *
+   * @param files uploaded files
+   * @return staged files with assigned ids of docs, or failed ones with the error
+   */
+  public List<IngestFile> stageFiles(MultipartFile[] files) {
+    List<IngestFile> stagedFiles = new ArrayList<>();
+
+    for (MultipartFile file : files) {
+      log.info("Staging file: " + file.getOriginalFilename());
+      IngestFile stagedFile =
+          IngestFile.builder()
+              .docId(new ObjectId().toString())
+              .nameOfFile(file.getOriginalFilename())
+              .build();
+
+      // single pass over uploaded stream: store + digest
+      try (InputStream fileStream = file.getInputStream()) {
+        IngestedFile ingestedFile =
+            docIngestPipeline.ingest(
+                fileStream, file.getOriginalFilename(), file.getContentType(), false);
+        stagedFile.setBlobId(ingestedFile.getBlobId());
+        stagedFile.setSha256(ingestedFile.getSha256());
+        stagedFile.setSize(ingestedFile.getSize());
+        stagedFile.setState(IngestFileState.STAGED);
+      } catch (IOException | RuntimeException e) {
+        log.warn("Unable to stage file " + file.getOriginalFilename() + ": " + e.getMessage());
+        stagedFile.setState(IngestFileState.FAILED);
+        stagedFile.setError("File couldn't be stored.");
+      }
+      stagedFiles.add(stagedFile);
+    }
+    return stagedFiles;
+  }
+
+  /**
+   * Saves staged files as a batch and creates their docs in the background.
+   *
+   * @param stagedFiles files already staged by stageFiles
+   * @param docConfig config of all docs of the upload
+   * @param user owner of the docs
+   * @return saved batch, its docs are not created yet
+   */
+  public IngestBatch submit(List<IngestFile> stagedFiles, DocConfig docConfig, User user) {
+    Date now = new Date();
+    IngestBatch batch =
+        IngestBatch.builder()
+            .id(new ObjectId().toString())
+            .ownerId(user.getId())
+            .docConfig(docConfig)
+            .files(stagedFiles)
+            .createdAt(now)
+            .claimedAt(now)
+            .build();
+
+    try {
+      mongoTemplate.insert(batch);
+    } catch (RuntimeException e) {
+      releaseStaged(stagedFiles);
+      throw e;
+    }
+
+    try {
+      // returned batch is left untouched, the task works on its own copy
+      executor.execute(
+          () -> processBatch(mongoTemplate.findById(batch.getId(), IngestBatch.class)));
+    } catch (RejectedExecutionException e) {
+      log.warn("Ingest queue is full, batch " + batch.getId() + " is left for recovery.");
+    }
+    return batch;
+  }
+
+  /**
+   * Creates docs of staged files of the batch and queues them for OCR. Docs are inserted by a
+   * single unordered bulk write and their jobs queued at once afterwards, so the upload costs the
+   * same round trips for any number of files. Files, which docs were rejected by the bulk write,
+   * are failed and their blobs released. Any other error is thrown with files left staged - docs
+   * may be written already, so the batch has to be taken again.
+   *
+   * @param batch with staged files, its files are updated
+   * @return created docs
+   */
+  public List<Doc> createDocs(IngestBatch batch) {
+    List<IngestFile> stagedFiles = new ArrayList<>();
+    List<Doc> docs = new ArrayList<>();
+    for (IngestFile file : batch.getFiles()) {
+      if (file.getState() != IngestFileState.STAGED) continue;
+      stagedFiles.add(file);
+      docs.add(toDoc(file, batch.getDocConfig(), batch.getOwnerId()));
+    }
+    if (docs.isEmpty()) return new ArrayList<>();
+
+    // index of doc in the bulk -> its error, unordered bulk writes all the others
+    Map<Integer, BulkWriteError> errors = new HashMap<>();
+    try {
+      mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Doc.class).insert(docs).execute();
+    } catch (BulkOperationException e) {
+      for (BulkWriteError error : e.getErrors()) errors.put(error.getIndex(), error);
+    }
+
+    List<Doc> createdDocs = new ArrayList<>();
+    List<String> queuedDocIds = new ArrayList<>();
+    for (int i = 0; i < docs.size(); i++) {
+      IngestFile file = stagedFiles.get(i);
+      BulkWriteError error = errors.get(i);
+
+      if (error == null) {
+        file.setState(IngestFileState.CREATED);
+        createdDocs.add(docs.get(i));
+        queuedDocIds.add(file.getDocId());
+      } else if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+        // batch was taken again, doc may be already processed by OCR and isn't overwritten,
+        // its job is queued only if it's missing
+        log.info("Doc " + file.getDocId() + " was already created.");
+        file.setState(IngestFileState.CREATED);
+        queuedDocIds.add(file.getDocId());
+      } else {
+        log.error("Unable to create doc " + file.getDocId() + ": " + error.getMessage());
+        failFile(file);
+      }
+    }
+
+    ocrJobQueue.enqueueAll(queuedDocIds);
+    for (String docId : queuedDocIds) ocrJobScheduler.schedule(docId, 0);
+    // previews are created in the background, upload doesn't wait for them
+    for (Doc doc : createdDocs) docPreviewService.schedulePreviews(doc);
+
+    return createdDocs;
+  }
+
+  /**
+   * Creates docs of staged files right away, batch isn't saved. When the docs can't be created(e.g.
+   * connection was lost during the insert), the batch is saved for the recovery sweep, which
+   * completes it, and the error is thrown.
+   *
+   * @param stagedFiles files already staged by stageFiles, they are updated
+   * @param docConfig config of all docs of the upload
+   * @param user owner of the docs
+   * @return created docs
+   */
+  public List<Doc> createDocsNow(List<IngestFile> stagedFiles, DocConfig docConfig, User user) {
+    IngestBatch batch =
+        IngestBatch.builder().ownerId(user.getId()).docConfig(docConfig).files(stagedFiles).build();
+    try {
+      return createDocs(batch);
+    } catch (RuntimeException e) {
+      leaveForRecovery(batch);
+      throw e;
+    }
+  }
+
+  /**
+   * Finds batch of the user.
+   *
+   * @param batchId id of the batch
+   * @param user owner of the batch
+   * @return found batch or empty, when it doesn't exist or belongs to someone else
+   */
+  public Optional<IngestBatch> findBatch(String batchId, User user) {
+    IngestBatch batch = mongoTemplate.findById(batchId, IngestBatch.class);
+    if (batch == null || !user.getId().equals(batch.getOwnerId())) return Optional.empty();
+    return Optional.of(batch);
+  }
+
+  /** Takes again batches, which were not completed in time. */
+  @Scheduled(fixedDelayString = "${storage.ingest.recovery-sweep-millis:60000}")
+  public void recoverBatches() {
+    Date now = new Date();
+    Query staleBatch =
+        Query.query(
+            Criteria.where("completedAt")
+                .is(null)
+                .and("claimedAt")
+                .lt(new Date(now.getTime() - ingestProperties.getRecoverAfterMillis())));
+
+    IngestBatch batch;
+    while ((batch =
+            mongoTemplate.findAndModify(
+                staleBatch,
+                new Update().set("claimedAt", now),
+                FindAndModifyOptions.options().returnNew(true),
+                IngestBatch.class))
+        != null) {
+      log.info("Recovering not completed batch " + batch.getId());
+      processBatch(batch);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdownNow();
+  }
+
+  private void processBatch(IngestBatch batch) {
+    try {
+      createDocs(batch);
+      mongoTemplate.updateFirst(
+          Query.query(Criteria.where("_id").is(batch.getId())),
+          new Update().set("files", batch.getFiles()).set("completedAt", new Date()),
+          IngestBatch.class);
+    } catch (RuntimeException e) {
+      // batch stays not completed, recovery takes it again
+      log.error("Unable to process batch " + batch.getId() + ": " + e.getMessage());
+    }
+  }
+
+  private void leaveForRecovery(IngestBatch batch) {
+    Date now = new Date();
+    batch.setId(new ObjectId().toString());
+    batch.setCreatedAt(now);
+    batch.setClaimedAt(now);
+    try {
+      mongoTemplate.insert(batch);
+      log.warn(
+          "Docs of upload couldn't be created, batch " + batch.getId() + " is left for recovery.");
+    } catch (RuntimeException e) {
+      log.error("Unable to save batch for recovery, staged files are left: " + e.getMessage());
+    }
+  }
+
+  private void failFile(IngestFile file) {
+    file.setState(IngestFileState.FAILED);
+    file.setError("Document couldn't be created.");
+    blobDedupService.release(file.getSha256(), file.getBlobId());
+  }
+
+  private void releaseStaged(List<IngestFile> files) {
+    for (IngestFile file : files) {
+      if (file.getState() == IngestFileState.STAGED)
+        blobDedupService.release(file.getSha256(), file.getBlobId());
+    }
+  }
+
+  private static Doc toDoc(IngestFile file, DocConfig docConfig, String ownerId) {
+    return Doc.builder()
+        .id(file.getDocId())
+        .nameOfFile(file.getNameOfFile())
+        .documentBlobId(file.getBlobId())
+        .documentSha256(file.getSha256())
+        .documentSize(file.getSize())
+        .docConfig(docConfig)
+        .asyncApiInfo(
+            new AsyncApiInfo(
+                docConfig.getScanImmediately()
+                    ? AsyncApiState.MANUAL_SENDING
+                    : AsyncApiState.WAITING_TO_SEND,
+                null,
+                null))
+        .ownerId(ownerId)
+        .build();
+  }
+
+  private static Executor createExecutor(StorageProperties.Ingest ingestProperties) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(
+        ingestProperties.getThreads(),
+        ingestProperties.getThreads(),
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(ingestProperties.getQueueCapacity()),
+        runnable -> {
+          Thread thread = new Thread(runnable, "DocIngest-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+}
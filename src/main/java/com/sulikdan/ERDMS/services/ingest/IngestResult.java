@@ -0,0 +1,19 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/** Class IngestResult is result of upload processed right away, docs are created per file. */
+@Getter
+@AllArgsConstructor
+public class IngestResult {
+
+  private final List<Doc> docs;
+
+  /** Files, which docs couldn't be created, with the error. */
+  private final List<IngestFile> failedFiles;
+}
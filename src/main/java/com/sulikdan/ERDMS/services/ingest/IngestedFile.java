@@ -0,0 +1,23 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Class IngestedFile is result of DocIngestPipeline, holding everything learned about the file
+ * during its single pass into the BlobStore.
+ */
+@Getter
+@AllArgsConstructor
+public class IngestedFile {
+
+  private final String blobId;
+
+  /** SHA-256 of the file content as lower-case hex string. */
+  private final String sha256;
+
+  private final long size;
+
+  /** Copy of the file for further processing (thumbnail), null if not requested. */
+  private final StagedCopy stagedCopy;
+}
@@ -0,0 +1,51 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Class StagedCopy is a copy of uploaded file made while it was streamed into the BlobStore. Small
+ * copies stay in memory, bigger ones are in a temporary file, which is deleted on close.
+ *
+ * @see DocIngestPipeline
+ */
+public class StagedCopy implements Closeable {
+
+  private final DeferredFileOutputStream stagedStream;
+
+  StagedCopy(DeferredFileOutputStream stagedStream) {
+    this.stagedStream = stagedStream;
+  }
+
+  /**
+   * Opens new stream to read the staged copy from the beginning.
+   *
+   * @return stream of the staged copy
+   * @throws IOException when temporary file cannot be read
+   */
+  public InputStream openStream() throws IOException {
+    if (stagedStream.isInMemory()) {
+      return new ByteArrayInputStream(stagedStream.getData());
+    }
+    return Files.newInputStream(stagedStream.getFile().toPath());
+  }
+
+  /** @return true, if the copy was spilled into a temporary file */
+  public boolean isOnDisk() {
+    return !stagedStream.isInMemory();
+  }
+
+  @Override
+  public void close() throws IOException {
+    File stagedFile = stagedStream.getFile();
+    if (stagedFile != null) {
+      Files.deleteIfExists(stagedFile.toPath());
+    }
+  }
+}
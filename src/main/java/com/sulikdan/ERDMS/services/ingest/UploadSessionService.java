@@ -0,0 +1,365 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.ingest.UploadChunk;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
+import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
+import com.sulikdan.ERDMS.exceptions.InvalidUploadChunkException;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Class UploadSessionService is used for resumable uploads of large files. File is sent in
+ * numbered chunks, every chunk is streamed into the BlobStore as its own blob and checked against
+ * its SHA-256. Failed chunk is just sent again. When finalized, chunks are streamed one after
+ * another through DocIngestPipeline into the file of the doc, so the whole file is never held in
+ * memory, and the doc is created by IngestBatchService like any other upload.
+ */
+@Slf4j
+@Service
+public class UploadSessionService {
+
+  private final DocIngestPipeline docIngestPipeline;
+  private final IngestBatchService ingestBatchService;
+  private final BlobStore blobStore;
+  private final BlobDedupService blobDedupService;
+  private final MongoTemplate mongoTemplate;
+  private final StorageProperties.Uploads uploadsProperties;
+
+  public UploadSessionService(
+      DocIngestPipeline docIngestPipeline,
+      IngestBatchService ingestBatchService,
+      BlobStore blobStore,
+      BlobDedupService blobDedupService,
+      MongoTemplate mongoTemplate,
+      StorageProperties storageProperties) {
+    this.docIngestPipeline = docIngestPipeline;
+    this.ingestBatchService = ingestBatchService;
+    this.blobStore = blobStore;
+    this.blobDedupService = blobDedupService;
+    this.mongoTemplate = mongoTemplate;
+    this.uploadsProperties = storageProperties.getUploads();
+  }
+
+  /**
+   * Starts upload of a file.
+   *
+   * @param nameOfFile original name of the file
+   * @param contentType content type of the file, may be null
+   * @param docConfig config of the doc
+   * @param user owner of the doc
+   * @return created session without chunks
+   */
+  public UploadSession createSession(
+      String nameOfFile, String contentType, DocConfig docConfig, User user) {
+    Date now = new Date();
+    UploadSession session =
+        UploadSession.builder()
+            .id(new ObjectId().toString())
+            .ownerId(user.getId())
+            .nameOfFile(nameOfFile)
+            .contentType(contentType)
+            .docConfig(docConfig)
+            .createdAt(now)
+            .updatedAt(now)
+            .build();
+    mongoTemplate.insert(session);
+    log.info("Started upload session " + session.getId() + " of file " + nameOfFile);
+    return session;
+  }
+
+  /**
+   * Streams chunk into the BlobStore. Chunk received again replaces the previous one.
+   *
+   * @param sessionId id of the session
+   * @param index number of the chunk, from 0
+   * @param content stream of the chunk, it's read till the end or the max size of chunk
+   * @param sha256 expected SHA-256 of the chunk as hex string
+   * @param user owner of the session
+   * @return session with the chunk
+   * @throws IOException when the chunk couldn't be read
+   */
+  public UploadSession storeChunk(
+      String sessionId, int index, InputStream content, String sha256, User user)
+      throws IOException {
+    if (index < 0 || index >= uploadsProperties.getMaxChunks())
+      throw new InvalidUploadChunkException(
+          "Number of chunk has to be from 0 to " + (uploadsProperties.getMaxChunks() - 1) + "!");
+    UploadSession session = findSession(sessionId, user);
+    if (isFinalizing(session))
+      throw new InvalidUploadChunkException("Upload is already finalized!");
+
+    // one byte over the limit is read to find out the chunk is too large
+    MessageDigest digest = DocIngestPipeline.newSha256Digest();
+    CountingInputStream countingStream =
+        new CountingInputStream(
+            new DigestInputStream(
+                new BoundedInputStream(content, uploadsProperties.getMaxChunkSize() + 1), digest));
+    String blobId =
+        blobStore.storeBlob(
+            countingStream, session.getNameOfFile() + ".part" + index, session.getContentType());
+
+    UploadChunk chunk =
+        UploadChunk.builder()
+            .index(index)
+            .size(countingStream.getByteCount())
+            .sha256(DocIngestPipeline.toHex(digest.digest()))
+            .blobId(blobId)
+            .build();
+
+    if (chunk.getSize() > uploadsProperties.getMaxChunkSize()) {
+      blobStore.deleteBlob(blobId);
+      throw new InvalidUploadChunkException(
+          "Chunk is larger than " + uploadsProperties.getMaxChunkSize() + " bytes!");
+    }
+    if (sha256 == null || !chunk.getSha256().equalsIgnoreCase(sha256.trim())) {
+      blobStore.deleteBlob(blobId);
+      throw new InvalidUploadChunkException("Checksum of chunk " + index + " doesn't match!");
+    }
+
+    String key = String.valueOf(index);
+    UploadSession previous =
+        mongoTemplate.findAndModify(
+            uploadingSessionQuery(sessionId),
+            new Update().set("chunks." + key, chunk).set("updatedAt", new Date()),
+            UploadSession.class);
+    if (previous == null) {
+      // session was finalized or removed meanwhile
+      blobStore.deleteBlob(blobId);
+      throw new InvalidUploadChunkException("Upload is already finalized!");
+    }
+
+    UploadChunk replaced = previous.getChunks().get(key);
+    if (replaced != null) deleteChunkBlob(replaced);
+
+    previous.getChunks().put(key, chunk);
+    return previous;
+  }
+
+  /**
+   * Finds session of the user.
+   *
+   * @param sessionId id of the session
+   * @param user owner of the session
+   * @return found session
+   * @throws DocNotFoundException when it doesn't exist or belongs to someone else
+   */
+  public UploadSession findSession(String sessionId, User user) {
+    UploadSession session = mongoTemplate.findById(sessionId, UploadSession.class);
+    if (session == null || !user.getId().equals(session.getOwnerId()))
+      throw new DocNotFoundException("Upload session not found!");
+    return session;
+  }
+
+  /**
+   * Assembles received chunks into the file and creates its doc, doc is queued for OCR. Session is
+   * removed then. When finalizing fails, session stays and can be finalized again. Finalizing is
+   * held only for finalize timeout, so session of crashed finalizing can be finalized again too.
+   * The doc has id of the session, so it's never created twice.
+   *
+   * @param sessionId id of the session
+   * @param sha256 expected SHA-256 of the whole file as hex string, not checked when null
+   * @param user owner of the session
+   * @return id of the created doc, it's the id of the session
+   * @throws IOException when chunks couldn't be read
+   */
+  public String finalizeSession(String sessionId, String sha256, User user) throws IOException {
+    findSession(sessionId, user);
+    // nothing else is accepted, while the file is being assembled
+    Date finalizedAt = new Date();
+    UploadSession session =
+        mongoTemplate.findAndModify(
+            uploadingSessionQuery(sessionId),
+            new Update().set("finalizedAt", finalizedAt).set("updatedAt", finalizedAt),
+            FindAndModifyOptions.options().returnNew(true),
+            UploadSession.class);
+    if (session == null) throw new InvalidUploadChunkException("Upload is already finalized!");
+
+    try {
+      String docId = createDoc(session, sha256);
+      removeSession(session);
+      return docId;
+    } catch (IOException | RuntimeException e) {
+      // finalizing taken over after the timeout isn't released
+      mongoTemplate.updateFirst(
+          Query.query(Criteria.where("_id").is(sessionId).and("finalizedAt").is(finalizedAt)),
+          new Update().unset("finalizedAt"),
+          UploadSession.class);
+      throw e;
+    }
+  }
+
+  /**
+   * Cancels upload, received chunks are deleted.
+   *
+   * @param sessionId id of the session
+   * @param user owner of the session
+   */
+  public void abortSession(String sessionId, User user) {
+    UploadSession session = findSession(sessionId, user);
+    if (isFinalizing(session))
+      throw new InvalidUploadChunkException("Upload is already finalized!");
+    removeSession(session);
+  }
+
+  /**
+   * Removes sessions without any chunk received for too long, with their chunks.
+   *
+   * @return number of removed sessions
+   */
+  @Scheduled(fixedDelayString = "${storage.uploads.cleanup-interval-millis:600000}")
+  public int removeExpiredSessions() {
+    Date expiredBefore =
+        new Date(System.currentTimeMillis() - uploadsProperties.getSessionTtlMillis());
+    Query expired = Query.query(Criteria.where("updatedAt").lt(expiredBefore));
+
+    int removed = 0;
+    UploadSession session;
+    // session is removed first, so no chunk can be added while they are being deleted
+    while ((session = mongoTemplate.findAndRemove(expired, UploadSession.class)) != null) {
+      for (UploadChunk chunk : session.getChunks().values()) deleteChunkBlob(chunk);
+      removed++;
+    }
+    if (removed > 0) log.info("Removed " + removed + " expired upload sessions.");
+    return removed;
+  }
+
+  private String createDoc(UploadSession session, String sha256) throws IOException {
+    List<UploadChunk> chunks = sortedChunks(session);
+
+    IngestedFile ingestedFile;
+    try (InputStream fileStream = new SequenceInputStream(new ChunkStreams(chunks))) {
+      ingestedFile =
+          docIngestPipeline.ingest(
+              fileStream, session.getNameOfFile(), session.getContentType(), false);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    if (sha256 != null && !ingestedFile.getSha256().equalsIgnoreCase(sha256.trim())) {
+      blobDedupService.release(ingestedFile.getSha256(), ingestedFile.getBlobId());
+      throw new InvalidUploadChunkException("Checksum of the file doesn't match!");
+    }
+
+    // id of the session is used for the doc, so finalizing again doesn't create another doc
+    IngestFile file =
+        IngestFile.builder()
+            .docId(session.getId())
+            .nameOfFile(session.getNameOfFile())
+            .state(IngestFileState.STAGED)
+            .blobId(ingestedFile.getBlobId())
+            .sha256(ingestedFile.getSha256())
+            .size(ingestedFile.getSize())
+            .build();
+    IngestBatch batch =
+        IngestBatch.builder()
+            .ownerId(session.getOwnerId())
+            .docConfig(session.getDocConfig())
+            .files(Collections.singletonList(file))
+            .build();
+
+    boolean created = !ingestBatchService.createDocs(batch).isEmpty();
+    if (file.getState() == IngestFileState.FAILED)
+      throw new IllegalStateException("Document of upload " + session.getId() + " not created!");
+    // doc exists already, blob acquired now isn't referenced by it
+    if (!created) blobDedupService.release(ingestedFile.getSha256(), ingestedFile.getBlobId());
+    return file.getDocId();
+  }
+
+  private List<UploadChunk> sortedChunks(UploadSession session) {
+    List<UploadChunk> chunks = new ArrayList<>();
+    for (int i = 0; i < session.getChunks().size(); i++) {
+      UploadChunk chunk = session.getChunks().get(String.valueOf(i));
+      if (chunk == null) throw new InvalidUploadChunkException("Chunk " + i + " is missing!");
+      chunks.add(chunk);
+    }
+    if (chunks.isEmpty()) throw new InvalidUploadChunkException("No chunks were uploaded!");
+    return chunks;
+  }
+
+  private void removeSession(UploadSession session) {
+    mongoTemplate.remove(
+        Query.query(Criteria.where("_id").is(session.getId())), UploadSession.class);
+    for (UploadChunk chunk : session.getChunks().values()) deleteChunkBlob(chunk);
+  }
+
+  private void deleteChunkBlob(UploadChunk chunk) {
+    try {
+      blobStore.deleteBlob(chunk.getBlobId());
+    } catch (RuntimeException e) {
+      log.error("Unable to delete chunk blob " + chunk.getBlobId() + ": " + e.getMessage());
+    }
+  }
+
+  private boolean isFinalizing(UploadSession session) {
+    return session.getFinalizedAt() != null
+        && session.getFinalizedAt().after(finalizeExpiredBefore());
+  }
+
+  /** Session isn't being finalized, or its finalizing timed out. */
+  private Query uploadingSessionQuery(String sessionId) {
+    return Query.query(
+        Criteria.where("_id")
+            .is(sessionId)
+            .orOperator(
+                Criteria.where("finalizedAt").is(null),
+                Criteria.where("finalizedAt").lte(finalizeExpiredBefore())));
+  }
+
+  private Date finalizeExpiredBefore() {
+    return new Date(System.currentTimeMillis() - uploadsProperties.getFinalizeTimeoutMillis());
+  }
+
+  /** Opens stream of a chunk only when the previous one is read, one chunk is open at a time. */
+  private class ChunkStreams implements Enumeration<InputStream> {
+
+    private final Iterator<UploadChunk> chunks;
+
+    ChunkStreams(List<UploadChunk> chunks) {
+      this.chunks = chunks.iterator();
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      return chunks.hasNext();
+    }
+
+    @Override
+    public InputStream nextElement() {
+      try {
+        return blobStore.loadBlob(chunks.next().getBlobId()).getInputStream();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
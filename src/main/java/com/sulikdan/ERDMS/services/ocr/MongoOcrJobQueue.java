@@ -0,0 +1,251 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.entities.ocr.OcrJobState;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class MongoOcrJobQueue is implementation of OcrJobQueue stored in collection ocr_jobs. Jobs are
+ * claimed atomically with findAndModify, claimed jobs are renewed by heartbeat of the node.
+ *
+ * @see OcrJobQueue
+ */
+@Slf4j
+@Service
+public class MongoOcrJobQueue implements OcrJobQueue {
+
+  private final MongoTemplate mongoTemplate;
+  private final OcrProperties.Jobs jobsProperties;
+
+  @Getter private final String nodeId;
+
+  /** Ids of jobs claimed by this node, their leases are renewed by heartbeat. */
+  private final Set<String> claimedJobIds = ConcurrentHashMap.newKeySet();
+
+  public MongoOcrJobQueue(MongoTemplate mongoTemplate, OcrProperties ocrProperties) {
+    this.mongoTemplate = mongoTemplate;
+    this.jobsProperties = ocrProperties.getJobs();
+    this.nodeId =
+        jobsProperties.getNodeId() != null && !jobsProperties.getNodeId().isEmpty()
+            ? jobsProperties.getNodeId()
+            : generateNodeId();
+
+    mongoTemplate
+        .indexOps(OcrJob.class)
+        .ensureIndex(
+            new Index().on("state", Sort.Direction.ASC).on("nextAttemptAt", Sort.Direction.ASC));
+    mongoTemplate
+        .indexOps(OcrJob.class)
+        .ensureIndex(
+            new Index().on("state", Sort.Direction.ASC).on("leaseExpiresAt", Sort.Direction.ASC));
+
+    log.info("OCR job queue running as node " + nodeId);
+  }
+
+  @Override
+  public void enqueue(String docId) {
+    Date now = new Date();
+    if (redrive(docId, 0)) return;
+
+    Update update =
+        new Update()
+            .setOnInsert("state", OcrJobState.QUEUED)
+            .setOnInsert("nextAttemptAt", now)
+            .setOnInsert("attempts", 0)
+            .setOnInsert("createdAt", now);
+
+    mongoTemplate.upsert(Query.query(Criteria.where("_id").is(docId)), update, OcrJob.class);
+  }
+
+  @Override
+  public void enqueueAll(List<String> docIds) {
+    if (docIds.isEmpty()) return;
+    Date now = new Date();
+
+    Update update =
+        new Update()
+            .setOnInsert("state", OcrJobState.QUEUED)
+            .setOnInsert("nextAttemptAt", now)
+            .setOnInsert("attempts", 0)
+            .setOnInsert("createdAt", now);
+
+    // single round trip for the whole upload
+    BulkOperations bulkOps =
+        mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, OcrJob.class);
+    for (String docId : docIds)
+      bulkOps.upsert(Query.query(Criteria.where("_id").is(docId)), update);
+    bulkOps.execute();
+  }
+
+  @Override
+  public Optional<OcrJob> claim(String docId) {
+    Query query =
+        Query.query(
+            Criteria.where("_id").is(docId).andOperator(claimableCriteria(new Date())));
+    return claim(query);
+  }
+
+  @Override
+  public Optional<OcrJob> claimNext() {
+    Query query =
+        Query.query(claimableCriteria(new Date())).with(Sort.by(Sort.Direction.ASC, "nextAttemptAt"));
+    return claim(query);
+  }
+
+  @Override
+  public boolean expedite(String docId) {
+    Query query = Query.query(Criteria.where("_id").is(docId).and("state").is(OcrJobState.QUEUED));
+    return mongoTemplate
+            .updateFirst(query, new Update().set("nextAttemptAt", new Date()), OcrJob.class)
+            .getMatchedCount()
+        > 0;
+  }
+
+  @Override
+  public void release(OcrJob job, long delayMillis, boolean failed) {
+    claimedJobIds.remove(job.getId());
+
+    Update update =
+        new Update()
+            .set("state", OcrJobState.QUEUED)
+            .set("nextAttemptAt", new Date(System.currentTimeMillis() + delayMillis))
+            .set("submittedAt", job.getSubmittedAt())
+            .set("pollCount", job.getPollCount())
+            .unset("leaseOwner")
+            .unset("leaseExpiresAt");
+    if (failed) update.inc("attempts", 1).set("lastError", job.getLastError());
+
+    mongoTemplate.updateFirst(ownedJobQuery(job.getId()), update, OcrJob.class);
+  }
+
+  @Override
+  public void deadLetter(OcrJob job) {
+    claimedJobIds.remove(job.getId());
+
+    Update update =
+        new Update()
+            .set("state", OcrJobState.DEAD_LETTER)
+            .inc("attempts", 1)
+            .set("lastError", job.getLastError())
+            .set("deadLetteredAt", new Date())
+            .unset("submittedAt")
+            .unset("leaseOwner")
+            .unset("leaseExpiresAt");
+
+    mongoTemplate.updateFirst(ownedJobQuery(job.getId()), update, OcrJob.class);
+    log.warn("OCR job " + job.getId() + " moved to dead letters: " + job.getLastError());
+  }
+
+  @Override
+  public List<OcrJob> findDeadLetters(int limit) {
+    Query query =
+        Query.query(Criteria.where("state").is(OcrJobState.DEAD_LETTER))
+            .with(Sort.by(Sort.Direction.ASC, "deadLetteredAt"))
+            .limit(limit);
+    return mongoTemplate.find(query, OcrJob.class);
+  }
+
+  @Override
+  public boolean redrive(String docId, long delayMillis) {
+    Query query =
+        Query.query(Criteria.where("_id").is(docId).and("state").is(OcrJobState.DEAD_LETTER));
+    Update update =
+        new Update()
+            .set("state", OcrJobState.QUEUED)
+            .set("nextAttemptAt", new Date(System.currentTimeMillis() + delayMillis))
+            .set("attempts", 0)
+            .set("pollCount", 0)
+            .unset("deadLetteredAt");
+
+    return mongoTemplate.updateFirst(query, update, OcrJob.class).getMatchedCount() > 0;
+  }
+
+  @Override
+  public void complete(OcrJob job) {
+    claimedJobIds.remove(job.getId());
+    mongoTemplate.remove(ownedJobQuery(job.getId()), OcrJob.class);
+  }
+
+  @Override
+  @Scheduled(fixedDelayString = "${ocr.jobs.heartbeat-millis:30000}")
+  public void renewLeases() {
+    if (claimedJobIds.isEmpty()) return;
+
+    Query query =
+        Query.query(
+            Criteria.where("_id")
+                .in(claimedJobIds)
+                .and("state")
+                .is(OcrJobState.RUNNING)
+                .and("leaseOwner")
+                .is(nodeId));
+
+    long renewed =
+        mongoTemplate
+            .updateMulti(query, new Update().set("leaseExpiresAt", leaseExpiration()), OcrJob.class)
+            .getModifiedCount();
+    log.debug("Renewed " + renewed + " OCR job leases of node " + nodeId);
+  }
+
+  private Optional<OcrJob> claim(Query query) {
+    Update update =
+        new Update()
+            .set("state", OcrJobState.RUNNING)
+            .set("leaseOwner", nodeId)
+            .set("leaseExpiresAt", leaseExpiration());
+
+    OcrJob claimed =
+        mongoTemplate.findAndModify(
+            query, update, FindAndModifyOptions.options().returnNew(true), OcrJob.class);
+
+    if (claimed != null) claimedJobIds.add(claimed.getId());
+    return Optional.ofNullable(claimed);
+  }
+
+  /** Due queued jobs and jobs with expired lease, e.g. of a crashed node. */
+  private Criteria claimableCriteria(Date now) {
+    return new Criteria()
+        .orOperator(
+            Criteria.where("state").is(OcrJobState.QUEUED).and("nextAttemptAt").lte(now),
+            Criteria.where("state").is(OcrJobState.RUNNING).and("leaseExpiresAt").lt(now));
+  }
+
+  private Query ownedJobQuery(String jobId) {
+    return Query.query(Criteria.where("_id").is(jobId).and("leaseOwner").is(nodeId));
+  }
+
+  private Date leaseExpiration() {
+    return new Date(System.currentTimeMillis() + jobsProperties.getLeaseMillis());
+  }
+
+  private static String generateNodeId() {
+    String host;
+    try {
+      host = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      host = "unknown";
+    }
+    return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+  }
+}
@@ -1,6 +1,7 @@
 package com.sulikdan.ERDMS.services.ocr;
 
 import com.sulikdan.ERDMS.entities.Doc;
+import reactor.core.publisher.Mono;
 
 /**
  * Created by Daniel Šulik on 22-Jul-20
@@ -13,6 +14,20 @@ import com.sulikdan.ERDMS.entities.Doc;
  */
 public interface OCRService {
 
+  /**
+   * Blocking variant of extractTextFromDocAsync.
+   *
+   * @param doc to be processed
+   * @return processed doc or null if OCR returned nothing
+   */
   Doc extractTextFromDoc(Doc doc);
 
+  /**
+   * Does next OCR step of the document, according to its current state. Nothing is blocked while
+   * waiting for OCR.
+   *
+   * @param doc to be processed, it's updated with the result of the step
+   * @return the same doc, or empty Mono if OCR returned nothing
+   */
+  Mono<Doc> extractTextFromDocAsync(Doc doc);
 }
@@ -7,8 +7,12 @@ import com.sulikdan.ERDMS.repositories.DocRepository;
 import com.sulikdan.ERDMS.services.statics.OcrRestApiSettings;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -24,75 +28,201 @@ public class OCRServiceTesseract extends OcrRestApiSettings implements OCRServic
 
   private final DocRepository documentRepository;
   private final RestApiOcr restApiOcr;
+  private final OcrBatchSubmitter ocrBatchSubmitter;
+  private final PdfTextLayerClassifier pdfTextLayerClassifier;
+  private final OcrPageFanOut ocrPageFanOut;
+  private final OcrResultCache ocrResultCache;
   private final ObjectMapper mapper = new ObjectMapper();
   private final String SPLIT_PATTERN = "/api/ocr";
 
   public OCRServiceTesseract(
-      DocRepository documentRepository, RestApiOcr restApiOcr, OcrProperties ocrProperties) {
+      DocRepository documentRepository,
+      RestApiOcr restApiOcr,
+      OcrBatchSubmitter ocrBatchSubmitter,
+      PdfTextLayerClassifier pdfTextLayerClassifier,
+      OcrPageFanOut ocrPageFanOut,
+      OcrResultCache ocrResultCache,
+      OcrProperties ocrProperties) {
     super(ocrProperties);
     this.documentRepository = documentRepository;
     this.restApiOcr = restApiOcr;
+    this.ocrBatchSubmitter = ocrBatchSubmitter;
+    this.pdfTextLayerClassifier = pdfTextLayerClassifier;
+    this.ocrPageFanOut = ocrPageFanOut;
+    this.ocrResultCache = ocrResultCache;
   }
 
   @Override
   public Doc extractTextFromDoc(Doc doc) {
-    try {
-      if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.WAITING_TO_SEND
-          || doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.MANUAL_SENDING) {
-        // TODO check what kind of file it is!
-        // TODO Or set DocumentType Before??
-        //        document.
-
-        AsyncApiInfo result = restApiOcr.postDocRequest(doc);
-        if (result == null) return null;
-
-        doc.setAsyncApiInfo(result);
-
-      } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.PROCESSING) {
-        // Checking document status
-        String statusUri =
-            extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocStatus());
-
-        AsyncApiInfo asyncApiInfo = restApiOcr.getDocStatus(statusUri);
-        if (asyncApiInfo == null) return null;
-
-        doc.setAsyncApiInfo(asyncApiInfo);
-
-      } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.SCANNED) {
-        //    Downloading scanned document
-        String resultUri =
-            extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocResult());
-
-        TessApiDoc resultDoc = restApiOcr.getDocResult(resultUri);
-        if (resultDoc == null) {
-          log.warn("Result doc was empty!!!");
-          return null;
-        }
-
-        doc.setDocPageList(
-            resultDoc.getPages().stream().map(DocPage::new).collect(Collectors.toList()));
-        doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.RESOURCE_TO_CLEAN);
-
-      } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.RESOURCE_TO_CLEAN) {
-        //        deleting resources
-        String resultUri =
-            extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocResult());
-
-        if (restApiOcr.deleteDoc(resultUri)) {
-          doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
-        }
-
-      } else {
-        throw new RuntimeException(
-            "OCRService tesseract unexpected error!\n This shouldnt happen..");
-      }
+    return extractTextFromDocAsync(doc).block();
+  }
+
+  @Override
+  public Mono<Doc> extractTextFromDocAsync(Doc doc) {
+    return processStep(doc)
+        .flatMap(
+            result -> {
+              if (result.getAsyncApiInfo().getAsyncApiState() != AsyncApiState.COMPLETED)
+                return Mono.just(result);
+              // same file uploaded again is completed from the cache
+              return Mono.fromRunnable(() -> ocrResultCache.store(result))
+                  .subscribeOn(Schedulers.boundedElastic())
+                  .onErrorResume(
+                      e -> {
+                        log.warn("OCR result of doc " + result.getId() + " wasn't cached: " + e.getMessage());
+                        return Mono.empty();
+                      })
+                  .thenReturn(result);
+            });
+  }
 
-    } catch (IOException e) {
-      log.error("Received IO exception:" + e.getMessage());
-      e.printStackTrace();
+  private Mono<Doc> processStep(Doc doc) {
+    if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.WAITING_TO_SEND
+        || doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.MANUAL_SENDING) {
+      if (ocrPageFanOut.hasParts(doc)) return ocrPageFanOut.advance(doc);
+
+      // cached result, text layer and pages of PDF are resolved locally, all of it is blocking
+      return Mono.fromCallable(() -> prepareForOcr(doc))
+          .subscribeOn(Schedulers.boundedElastic())
+          .flatMap(
+              sendToOcr -> {
+                if (!sendToOcr) return Mono.just(doc);
+                return ocrPageFanOut.hasParts(doc) ? ocrPageFanOut.advance(doc) : submitDoc(doc);
+              });
+
+    } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.PROCESSING) {
+      // pages are checked, downloaded and cleaned one by one
+      if (ocrPageFanOut.hasParts(doc)) return ocrPageFanOut.advance(doc);
+
+      // Checking document status
+      String statusUri = extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocStatus());
+
+      return restApiOcr
+          .getDocStatus(doc.getAsyncApiInfo().getOcrBackend(), statusUri)
+          .map(
+              asyncApiInfo -> {
+                doc.setAsyncApiInfo(keepLocalInfo(doc.getAsyncApiInfo(), asyncApiInfo));
+                return doc;
+              });
+
+    } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.SCANNED) {
+      //    Downloading scanned document
+      String resultUri = extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocResult());
+
+      return restApiOcr
+          .getDocResult(doc.getAsyncApiInfo().getOcrBackend(), resultUri)
+          .map(
+              resultDoc -> {
+                List<DocPage> scannedPages =
+                    resultDoc.getPages().stream().map(DocPage::new).collect(Collectors.toList());
+                if (doc.getAsyncApiInfo().getOcrBlobId() != null) {
+                  // only image-only pages were scanned, pages with text are already filled
+                  mergeScannedPages(doc, scannedPages);
+                } else {
+                  doc.setDocPageList(scannedPages);
+                }
+                doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.RESOURCE_TO_CLEAN);
+                return doc;
+              })
+          .switchIfEmpty(
+              Mono.defer(
+                  () -> {
+                    log.warn("Result doc was empty!!!");
+                    return Mono.empty();
+                  }));
+
+    } else if (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.RESOURCE_TO_CLEAN) {
+      //        deleting resources
+      String resultUri = extractUriFromWholeURL(doc.getAsyncApiInfo().getOcrApiDocResult());
+
+      return restApiOcr
+          .deleteDoc(doc.getAsyncApiInfo().getOcrBackend(), resultUri)
+          .flatMap(
+              deleted -> {
+                if (!deleted) return Mono.just(doc);
+                // deleting of the blob is blocking
+                return Mono.fromRunnable(() -> pdfTextLayerClassifier.cleanUp(doc))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .then(
+                        Mono.fromCallable(
+                            () -> {
+                              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+                              return doc;
+                            }));
+              });
+
+    } else {
+      return Mono.error(
+          new RuntimeException("OCRService tesseract unexpected error!\n This shouldnt happen.."));
+    }
+  }
+
+  /**
+   * Copies cached result of the same file, or fills pages with text layer and splits rest of
+   * multi-page PDF into pages. Blocking.
+   *
+   * @return false if the document doesn't need OCR anymore
+   */
+  private boolean prepareForOcr(Doc doc) {
+    Optional<List<DocPage>> cachedPages = ocrResultCache.find(doc);
+    if (cachedPages.isPresent()) {
+      doc.setDocPageList(cachedPages.get());
+      doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+      return false;
     }
 
-    return doc;
+    if (pdfTextLayerClassifier.isApplicable(doc) && !pdfTextLayerClassifier.prepareForOcr(doc))
+      return false;
+
+    if (ocrPageFanOut.isApplicable(doc)) {
+      try {
+        ocrPageFanOut.split(doc);
+      } catch (RuntimeException e) {
+        pdfTextLayerClassifier.cleanUp(doc);
+        throw e;
+      }
+    }
+    return true;
+  }
+
+  /** Sends the document to OCR together with other documents of same config. */
+  private Mono<Doc> submitDoc(Doc doc) {
+    return ocrBatchSubmitter
+        .submit(doc)
+        .map(
+            result -> {
+              doc.setAsyncApiInfo(keepLocalInfo(doc.getAsyncApiInfo(), result));
+              return doc;
+            })
+        .onErrorResume(
+            e ->
+                // document is classified again by the next attempt
+                Mono.fromRunnable(() -> pdfTextLayerClassifier.cleanUp(doc))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .then(Mono.error(e)));
+  }
+
+  /** Info received from OCR doesn't know, what part of the document was sent. */
+  private static AsyncApiInfo keepLocalInfo(AsyncApiInfo current, AsyncApiInfo received) {
+    if (received.getOcrBackend() == null) received.setOcrBackend(current.getOcrBackend());
+    received.setOcrBlobId(current.getOcrBlobId());
+    received.setOcrPageNumbers(current.getOcrPageNumbers());
+    received.setPageParts(current.getPageParts());
+    return received;
+  }
+
+  /** Places scanned pages to their positions in the original document. */
+  private static void mergeScannedPages(Doc doc, List<DocPage> scannedPages) {
+    List<Integer> pageNumbers = doc.getAsyncApiInfo().getOcrPageNumbers();
+    List<DocPage> pages = new ArrayList<>(doc.getDocPageList());
+    if (scannedPages.size() != pageNumbers.size())
+      log.warn(
+          "OCR returned " + scannedPages.size() + " pages of doc " + doc.getId() + ", but "
+              + pageNumbers.size() + " were sent.");
+    for (int i = 0; i < Math.min(scannedPages.size(), pageNumbers.size()); i++) {
+      pages.set(pageNumbers.get(i), scannedPages.get(i));
+    }
+    doc.setDocPageList(pages);
   }
 
   /**
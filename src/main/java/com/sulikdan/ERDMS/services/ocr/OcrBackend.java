@@ -0,0 +1,50 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class OcrBackend represents one OCR node and its state seen by OcrBackendRouter. State is
+ * changed only by the router, under its lock.
+ */
+@Getter
+public class OcrBackend {
+
+  /** Base url of the node, e.g. http://127.0.0.1:8086 */
+  private final String baseUrl;
+
+  /** Url of the OCR API on the node. */
+  private final String apiUri;
+
+  /** Requests sent to the node and not answered yet. */
+  int inFlight;
+
+  /** Documents accepted by the node and not deleted yet, with time they were accepted. */
+  final Map<String, Long> acceptedJobs = new HashMap<>();
+
+  int consecutiveFailures;
+
+  /** Node is not used for new documents till this time. */
+  long ejectedUntil;
+
+  OcrBackend(String baseUrl) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    this.apiUri = this.baseUrl + "/api/ocr";
+  }
+
+  /** @return requests in flight and documents being processed by the node */
+  int getOutstanding() {
+    return inFlight + acceptedJobs.size();
+  }
+
+  boolean isEjected(long now) {
+    return ejectedUntil > now;
+  }
+
+  @Override
+  public String toString() {
+    return "OcrBackend{" + "baseUrl='" + baseUrl + '\'' + ", inFlight=" + inFlight + ", jobs=" + acceptedJobs.size() + ", consecutiveFailures=" + consecutiveFailures + '}';
+  }
+}
@@ -0,0 +1,158 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Class OcrBackendRouter spreads documents across OCR nodes. New document goes to the healthy node
+ * with least outstanding work(requests in flight and accepted documents). Health is checked
+ * passively, node failing repeatedly is ejected for a while. Status, result and delete calls of a
+ * document always go to the node, that accepted it.
+ */
+@Slf4j
+@Component
+public class OcrBackendRouter {
+
+  private final OcrProperties.Routing routingProperties;
+  private final List<OcrBackend> backends;
+
+  /** Used to rotate between nodes with same outstanding work. */
+  private int nextIndex = 0;
+
+  public OcrBackendRouter(OcrProperties ocrProperties) {
+    this.routingProperties = ocrProperties.getRouting();
+
+    List<OcrBackend> configured = new ArrayList<>();
+    for (String baseUrl : ocrProperties.getBackends()) configured.add(new OcrBackend(baseUrl));
+    if (configured.isEmpty())
+      configured.add(
+          new OcrBackend("http://" + ocrProperties.getAddress() + ":" + ocrProperties.getPort()));
+    this.backends = Collections.unmodifiableList(configured);
+
+    log.info("OCR requests are routed to " + backends.size() + " backend(s).");
+  }
+
+  public List<OcrBackend> getBackends() {
+    return backends;
+  }
+
+  /**
+   * Calls OCR node chosen for a new document.
+   *
+   * @param request creating the call from the chosen node
+   * @return result of the call
+   */
+  public <T> Mono<T> callLeastLoaded(Function<OcrBackend, Mono<T>> request) {
+    return Mono.defer(
+        () -> {
+          OcrBackend backend = acquireLeastLoaded();
+          return track(backend, request.apply(backend));
+        });
+  }
+
+  /**
+   * Calls the node, that accepted the document.
+   *
+   * @param baseUrl of the node, null for documents sent before routing, the first node is used
+   * @param request creating the call from the node
+   * @return result of the call
+   */
+  public <T> Mono<T> callSticky(String baseUrl, Function<OcrBackend, Mono<T>> request) {
+    return Mono.defer(
+        () -> {
+          OcrBackend backend = find(baseUrl);
+          synchronized (this) {
+            backend.inFlight++;
+          }
+          return track(backend, request.apply(backend));
+        });
+  }
+
+  /**
+   * Counts the document as outstanding work of the node, till it's deleted from it.
+   *
+   * @param backend which accepted the document
+   * @param jobKey uri of document resources on the node
+   */
+  public synchronized void jobAccepted(OcrBackend backend, String jobKey) {
+    backend.acceptedJobs.put(jobKey, System.currentTimeMillis());
+  }
+
+  /**
+   * Removes the document from outstanding work of the node.
+   *
+   * @param backend which processed the document
+   * @param jobKey uri of document resources on the node
+   */
+  public synchronized void jobFinished(OcrBackend backend, String jobKey) {
+    backend.acceptedJobs.remove(jobKey);
+  }
+
+  /** @return the node by its base url, the first node when unknown */
+  public OcrBackend find(String baseUrl) {
+    if (baseUrl != null)
+      for (OcrBackend backend : backends) if (backend.getBaseUrl().equals(baseUrl)) return backend;
+
+    if (baseUrl != null) log.warn("Unknown OCR backend " + baseUrl + ", using " + backends.get(0));
+    return backends.get(0);
+  }
+
+  private synchronized OcrBackend acquireLeastLoaded() {
+    long now = System.currentTimeMillis();
+    OcrBackend chosen = null;
+    for (int i = 0; i < backends.size(); i++) {
+      OcrBackend backend = backends.get((nextIndex + i) % backends.size());
+      expireJobs(backend, now);
+      if (backend.isEjected(now)) continue;
+      if (chosen == null || backend.getOutstanding() < chosen.getOutstanding()) chosen = backend;
+    }
+    if (chosen == null) {
+      // all nodes are ejected, the one ejected first is tried
+      chosen = Collections.min(backends, (a, b) -> Long.compare(a.ejectedUntil, b.ejectedUntil));
+    }
+    nextIndex = (backends.indexOf(chosen) + 1) % backends.size();
+    chosen.inFlight++;
+    return chosen;
+  }
+
+  private <T> Mono<T> track(OcrBackend backend, Mono<T> call) {
+    return call.doOnSuccess(result -> recordSuccess(backend))
+        .doOnError(error -> recordFailure(backend, error))
+        .doFinally(signal -> requestFinished(backend));
+  }
+
+  private synchronized void requestFinished(OcrBackend backend) {
+    backend.inFlight--;
+  }
+
+  private synchronized void recordSuccess(OcrBackend backend) {
+    backend.consecutiveFailures = 0;
+    backend.ejectedUntil = 0;
+  }
+
+  private synchronized void recordFailure(OcrBackend backend, Throwable error) {
+    if (!OcrCircuitBreaker.isUnavailability(error)) return;
+
+    backend.consecutiveFailures++;
+    if (backend.consecutiveFailures >= routingProperties.getFailureThreshold()) {
+      backend.ejectedUntil = System.currentTimeMillis() + routingProperties.getEjectMillis();
+      log.warn("OCR backend " + backend.getBaseUrl() + " ejected after " + backend.consecutiveFailures + " failures.");
+    }
+  }
+
+  /** Documents, which were never deleted(e.g. failed ones), are not counted forever. */
+  private void expireJobs(OcrBackend backend, long now) {
+    Iterator<Map.Entry<String, Long>> iterator = backend.acceptedJobs.entrySet().iterator();
+    while (iterator.hasNext())
+      if (iterator.next().getValue() < now - routingProperties.getJobTtlMillis()) iterator.remove();
+  }
+}
@@ -0,0 +1,176 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class OcrBatchSubmitter groups documents being sent to OCR into batches, so many small documents
+ * (e.g. receipts) are sent in one request. Documents are grouped by type and DocConfig, a batch is
+ * sent when it's full(count or bytes) or when its linger time passes. Batch rejected by OCR as
+ * invalid is sent again one by one, so a single bad document doesn't fail the others.
+ */
+@Slf4j
+@Component
+public class OcrBatchSubmitter {
+
+  private final RestApiOcr restApiOcr;
+  private final OcrProperties.Batch batchProperties;
+  private final Scheduler scheduler;
+
+  /** Batches being filled, by key of type and DocConfig. */
+  private final Map<String, PendingBatch> pendingBatches = new HashMap<>();
+
+  @Autowired
+  public OcrBatchSubmitter(RestApiOcr restApiOcr, OcrProperties ocrProperties) {
+    this(restApiOcr, ocrProperties, Schedulers.parallel());
+  }
+
+  OcrBatchSubmitter(RestApiOcr restApiOcr, OcrProperties ocrProperties, Scheduler scheduler) {
+    this.restApiOcr = restApiOcr;
+    this.batchProperties = ocrProperties.getBatch();
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Sends the document to OCR as a part of a batch.
+   *
+   * @param doc to be sent
+   * @return info of the sent document, completed when its batch is sent
+   */
+  public Mono<AsyncApiInfo> submit(Doc doc) {
+    if (batchProperties.getMaxCount() <= 1) return restApiOcr.postDocRequest(doc);
+
+    return Mono.create(sink -> add(doc, sink));
+  }
+
+  /** Number of documents waiting in unsent batches. */
+  public synchronized int getPendingCount() {
+    return pendingBatches.values().stream().mapToInt(batch -> batch.docs.size()).sum();
+  }
+
+  private void add(Doc doc, MonoSink<AsyncApiInfo> sink) {
+    String key = batchKey(doc);
+    long size = doc.getDocumentSize() != null ? doc.getDocumentSize() : 0;
+    List<PendingBatch> toSend = new ArrayList<>(2);
+
+    synchronized (this) {
+      PendingBatch batch = pendingBatches.get(key);
+      if (batch != null && batch.bytes + size > batchProperties.getMaxBytes()) {
+        toSend.add(removeBatch(key, batch));
+        batch = null;
+      }
+      if (batch == null) {
+        PendingBatch newBatch = new PendingBatch();
+        newBatch.lingerTask =
+            scheduler.schedule(
+                () -> flush(key, newBatch), batchProperties.getLingerMillis(), TimeUnit.MILLISECONDS);
+        pendingBatches.put(key, newBatch);
+        batch = newBatch;
+      }
+
+      batch.docs.add(doc);
+      batch.sinks.add(sink);
+      batch.bytes += size;
+
+      if (batch.docs.size() >= batchProperties.getMaxCount()
+          || batch.bytes >= batchProperties.getMaxBytes()) {
+        toSend.add(removeBatch(key, batch));
+      } else {
+        PendingBatch pendingBatch = batch;
+        sink.onCancel(() -> cancel(key, pendingBatch, sink, size));
+      }
+    }
+
+    toSend.forEach(this::send);
+  }
+
+  private void flush(String key, PendingBatch batch) {
+    synchronized (this) {
+      // batch may be already sent because it was full
+      if (!pendingBatches.remove(key, batch)) return;
+    }
+    send(batch);
+  }
+
+  /** Cancelled document is dropped from the batch, unless the batch is already sent. */
+  private synchronized void cancel(
+      String key, PendingBatch batch, MonoSink<AsyncApiInfo> sink, long size) {
+    if (pendingBatches.get(key) != batch) return;
+    int index = batch.sinks.indexOf(sink);
+    if (index < 0) return;
+
+    batch.sinks.remove(index);
+    batch.docs.remove(index);
+    batch.bytes -= size;
+    if (batch.docs.isEmpty()) removeBatch(key, batch);
+  }
+
+  private PendingBatch removeBatch(String key, PendingBatch batch) {
+    pendingBatches.remove(key);
+    batch.lingerTask.dispose();
+    return batch;
+  }
+
+  private void send(PendingBatch batch) {
+    log.debug("Sending batch of " + batch.docs.size() + " documents to OCR.");
+    restApiOcr
+        .postDocsRequest(batch.docs)
+        .subscribe(
+            results -> {
+              // results are in the same order as sent documents
+              for (int i = 0; i < batch.sinks.size(); i++) batch.sinks.get(i).success(results.get(i));
+            },
+            error -> {
+              if (isClientError(error) && batch.docs.size() > 1) {
+                log.warn(
+                    "Batch rejected by OCR, sending its documents one by one: " + error.getMessage());
+                for (int i = 0; i < batch.docs.size(); i++)
+                  sendAlone(batch.docs.get(i), batch.sinks.get(i));
+              } else {
+                batch.sinks.forEach(sink -> sink.error(error));
+              }
+            });
+  }
+
+  /** Only the invalid document fails, others of the batch are accepted. */
+  private void sendAlone(Doc doc, MonoSink<AsyncApiInfo> sink) {
+    restApiOcr.postDocRequest(doc).subscribe(sink::success, sink::error);
+  }
+
+  private static boolean isClientError(Throwable error) {
+    return error instanceof WebClientResponseException
+        && ((WebClientResponseException) error).getStatusCode().is4xxClientError();
+  }
+
+  private static String batchKey(Doc doc) {
+    DocConfig docConfig = doc.getDocConfig();
+    return doc.getDocType()
+        + "|" + docConfig.getLang()
+        + "|" + docConfig.getHighQuality()
+        + "|" + docConfig.getMultiPage();
+  }
+
+  private static class PendingBatch {
+    private final List<Doc> docs = new ArrayList<>();
+    private final List<MonoSink<AsyncApiInfo>> sinks = new ArrayList<>();
+    private long bytes;
+    private Disposable lingerTask;
+  }
+}
@@ -0,0 +1,100 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrPagePart;
+import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
+import com.sulikdan.ERDMS.exceptions.InvalidAccessRightException;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+/**
+ * Class OcrCallbackService handles completion callbacks sent by OCR. Scanned document is moved
+ * straight to result download, instead of waiting for the next status poll. Polling still runs as
+ * fallback, when a callback is lost.
+ */
+@Slf4j
+@Service
+public class OcrCallbackService {
+
+  private final OcrCallbackSigner ocrCallbackSigner;
+  private final DocRepository documentRepository;
+  private final OcrJobQueue ocrJobQueue;
+  private final OcrJobScheduler ocrJobScheduler;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  public OcrCallbackService(
+      OcrCallbackSigner ocrCallbackSigner,
+      DocRepository documentRepository,
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler) {
+    this.ocrCallbackSigner = ocrCallbackSigner;
+    this.documentRepository = documentRepository;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrJobScheduler = ocrJobScheduler;
+  }
+
+  /**
+   * Verifies the callback and schedules download of the result.
+   *
+   * @param jobId id of the OCR job, it's the id of the doc or of its page part
+   * @param timestamp of the callback in millis since epoch
+   * @param signature HMAC signature of the callback
+   * @param body AsyncApiInfo of the document as json, only its state is used
+   * @return true if the document was moved to download, false if the callback was not needed(doc
+   *     is not processing anymore or OCR is not done)
+   */
+  public boolean handleCallback(String jobId, String timestamp, String signature, String body) {
+    if (!ocrCallbackSigner.verify(timestamp, jobId, body, signature)) {
+      log.warn("Rejected OCR callback of job " + jobId + " with invalid signature.");
+      throw new InvalidAccessRightException("Invalid signature of OCR callback!");
+    }
+
+    AsyncApiInfo received;
+    try {
+      received = mapper.readValue(body, AsyncApiInfo.class);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Invalid body of OCR callback!", e);
+    }
+
+    if (OcrPagePart.isPartId(jobId)) {
+      // pages are checked all at once by the next step of their doc
+      if (received.getAsyncApiState() != AsyncApiState.SCANNED) return false;
+      String docId = OcrPagePart.docIdOf(jobId);
+      ocrJobQueue.expedite(docId);
+      ocrJobScheduler.schedule(docId, 0);
+      log.info("OCR callback of page " + jobId + " received, doc " + docId + " is scheduled.");
+      return true;
+    }
+
+    Doc doc =
+        documentRepository
+            .findById(jobId)
+            .orElseThrow(() -> new DocNotFoundException("Doc of OCR job not found!"));
+
+    AsyncApiInfo asyncApiInfo = doc.getAsyncApiInfo();
+    if (asyncApiInfo.getAsyncApiState() != AsyncApiState.PROCESSING
+        || received.getAsyncApiState() != AsyncApiState.SCANNED) {
+      log.debug("OCR callback of job " + jobId + " ignored, doc is " + asyncApiInfo.getAsyncApiState());
+      return false;
+    }
+
+    // result link of the callback is not used, result is downloaded only from the link returned
+    // when the document was sent
+    asyncApiInfo.setAsyncApiState(AsyncApiState.SCANNED);
+
+    // worker polling the doc at the same time fails its compare-and-set and retries right away
+    if (!documentRepository.updateOcrProgress(jobId, AsyncApiState.PROCESSING, asyncApiInfo, null))
+      return false;
+
+    ocrJobQueue.expedite(jobId);
+    ocrJobScheduler.schedule(jobId, 0);
+    log.info("OCR callback received, doc " + jobId + " is scheduled for result download.");
+    return true;
+  }
+}
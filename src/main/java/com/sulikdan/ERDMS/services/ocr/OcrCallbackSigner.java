@@ -0,0 +1,82 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Class OcrCallbackSigner signs and verifies callbacks sent by OCR. Signature is HMAC-SHA256 of
+ * "timestamp.jobId.body" with the shared secret, sent as hex string. Timestamp is part of the
+ * signature, so old callbacks can't be replayed, and job id, so callback of one job can't be
+ * replayed against other job.
+ */
+@Component
+public class OcrCallbackSigner {
+
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final OcrProperties.Callback callbackProperties;
+
+  public OcrCallbackSigner(OcrProperties ocrProperties) {
+    this.callbackProperties = ocrProperties.getCallback();
+  }
+
+  /**
+   * Signs the callback, used by OCR side(and tests).
+   *
+   * @param timestamp of the callback in millis since epoch
+   * @param jobId id of the OCR job, the callback is sent for
+   * @param body of the callback
+   * @return signature as lower-case hex string
+   */
+  public String sign(String timestamp, String jobId, String body) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(
+          new SecretKeySpec(callbackProperties.getSecret().getBytes(StandardCharsets.UTF_8), ALGORITHM));
+      return toHex(mac.doFinal((timestamp + "." + jobId + "." + body).getBytes(StandardCharsets.UTF_8)));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to sign OCR callback.", e);
+    }
+  }
+
+  /**
+   * Verifies signature and age of the callback.
+   *
+   * @param timestamp of the callback in millis since epoch
+   * @param jobId id of the OCR job from url of the callback
+   * @param body of the callback
+   * @param signature received with the callback
+   * @return true if callbacks are enabled and the callback is valid
+   */
+  public boolean verify(String timestamp, String jobId, String body, String signature) {
+    if (!callbackProperties.isEnabled() || timestamp == null || signature == null) return false;
+
+    long sentAt;
+    try {
+      sentAt = Long.parseLong(timestamp);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (Math.abs(System.currentTimeMillis() - sentAt) > callbackProperties.getMaxClockSkewMillis())
+      return false;
+
+    // constant time comparison
+    return MessageDigest.isEqual(
+        sign(timestamp, jobId, body).getBytes(StandardCharsets.UTF_8),
+        signature.toLowerCase().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,187 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.exceptions.OcrUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class OcrCircuitBreaker protects OCR calls. After repeated failures the breaker opens and calls
+ * are rejected right away, after a while few probe calls are let through(half-open) and their
+ * result closes or opens the breaker again. Each operation has its own bulkhead, limiting its
+ * concurrent calls, so e.g. slow uploads can't take all connections from status checks. Calls
+ * failed by connection, timeout or server error end with OcrUnavailableException.
+ */
+@Slf4j
+@Component
+public class OcrCircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final OcrProperties.Breaker breakerProperties;
+  private final Map<OcrOperation, Semaphore> bulkheads = new EnumMap<>(OcrOperation.class);
+  private final Map<OcrOperation, Integer> bulkheadSizes = new EnumMap<>(OcrOperation.class);
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openUntil;
+  private int probesInFlight;
+
+  public OcrCircuitBreaker(OcrProperties ocrProperties) {
+    this.breakerProperties = ocrProperties.getBreaker();
+
+    bulkheadSizes.put(OcrOperation.POST, breakerProperties.getPostConcurrency());
+    bulkheadSizes.put(OcrOperation.STATUS, breakerProperties.getStatusConcurrency());
+    bulkheadSizes.put(OcrOperation.RESULT, breakerProperties.getResultConcurrency());
+    bulkheadSizes.put(OcrOperation.DELETE, breakerProperties.getDeleteConcurrency());
+    bulkheadSizes.forEach((operation, size) -> bulkheads.put(operation, new Semaphore(size)));
+  }
+
+  /**
+   * Runs the call, if breaker and bulkhead of the operation let it through.
+   *
+   * @param operation kind of the call
+   * @param call to OCR, subscribed only when permitted
+   * @return result of the call or OcrUnavailableException, when OCR can't be reached or fails
+   */
+  public <T> Mono<T> protect(OcrOperation operation, Mono<T> call) {
+    return Mono.defer(
+        () -> {
+          Boolean probe = acquirePermission();
+          if (probe == null)
+            return Mono.error(new OcrUnavailableException("OCR circuit breaker is open."));
+
+          Semaphore bulkhead = bulkheads.get(operation);
+          if (!bulkhead.tryAcquire()) {
+            if (probe) releaseProbe();
+            return Mono.error(
+                new OcrUnavailableException("Too many concurrent OCR " + operation + " calls."));
+          }
+
+          return call.doOnSuccess(result -> recordSuccess())
+              .doOnError(this::recordError)
+              .onErrorMap(
+                  OcrCircuitBreaker::isUnavailability,
+                  error ->
+                      new OcrUnavailableException("OCR is unavailable: " + error.getMessage(), error))
+              .doFinally(
+                  signal -> {
+                    bulkhead.release();
+                    if (probe) releaseProbe();
+                  });
+        });
+  }
+
+  /** @return true if calls can be made now, jobs are paused otherwise */
+  public synchronized boolean isCallPermitted() {
+    return state != State.OPEN || System.currentTimeMillis() >= openUntil;
+  }
+
+  /** @return how long to wait before OCR can be called again */
+  public synchronized long getRetryDelayMillis() {
+    return Math.max(breakerProperties.getMinRetryDelayMillis(), openUntil - System.currentTimeMillis());
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && System.currentTimeMillis() >= openUntil) return State.HALF_OPEN;
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /** @return free calls of each operation */
+  public Map<OcrOperation, Integer> getAvailableBulkheadPermits() {
+    Map<OcrOperation, Integer> permits = new EnumMap<>(OcrOperation.class);
+    bulkheads.forEach((operation, semaphore) -> permits.put(operation, semaphore.availablePermits()));
+    return permits;
+  }
+
+  /**
+   * Tells whether the error was caused by OCR being unavailable(breaker, bulkhead, connection,
+   * timeout or server error), not by the document itself. Errors of reading the document(e.g.
+   * corrupt PDF) are fault of the document.
+   *
+   * @param error of the OCR step
+   * @return true if the error isn't fault of the document
+   */
+  public static boolean isOutage(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof OcrUnavailableException) return true;
+      if (cause.getCause() == cause) break;
+    }
+    return false;
+  }
+
+  /**
+   * Tells whether the OCR call failed because OCR is unavailable(connection, timeout or server
+   * error). Client errors and invalid responses(e.g. json, decoding) mean OCR answered, so they
+   * are not counted. Used both for counting failures and for mapping them to outages.
+   *
+   * @param error of the OCR call
+   * @return true if OCR didn't answer or answered with server error
+   */
+  public static boolean isUnavailability(Throwable error) {
+    if (error instanceof WebClientResponseException)
+      return ((WebClientResponseException) error).getStatusCode().is5xxServerError();
+    return (error instanceof IOException && !(error instanceof JsonProcessingException))
+        || error instanceof TimeoutException
+        || error instanceof io.netty.handler.timeout.TimeoutException;
+  }
+
+  /** @return null if the call is not permitted, true if it's a half-open probe */
+  private synchronized Boolean acquirePermission() {
+    if (state == State.CLOSED) return false;
+
+    if (state == State.OPEN) {
+      if (System.currentTimeMillis() < openUntil) return null;
+      state = State.HALF_OPEN;
+      log.info("OCR circuit breaker is half-open, probing OCR.");
+    }
+    if (probesInFlight >= breakerProperties.getHalfOpenProbes()) return null;
+    probesInFlight++;
+    return true;
+  }
+
+  private synchronized void releaseProbe() {
+    probesInFlight--;
+  }
+
+  private synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    if (state != State.CLOSED) {
+      state = State.CLOSED;
+      log.info("OCR circuit breaker closed.");
+    }
+  }
+
+  private synchronized void recordError(Throwable error) {
+    // any answer, even client error or invalid one, means OCR is running
+    if (!isUnavailability(error)) {
+      recordSuccess();
+      return;
+    }
+
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= breakerProperties.getFailureThreshold()) {
+      if (state != State.OPEN)
+        log.warn("OCR circuit breaker opened after " + consecutiveFailures + " failures.");
+      state = State.OPEN;
+      openUntil = System.currentTimeMillis() + breakerProperties.getOpenMillis();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Class OcrCircuitBreakerHealthIndicator exposes state of OCR circuit breaker on actuator health
+ * as component "ocrCircuitBreaker". Breaker is reported as details under UP, open breaker only
+ * rejects OCR calls and must not take whole application out of service.
+ */
+@Component
+public class OcrCircuitBreakerHealthIndicator implements HealthIndicator {
+
+  private final OcrCircuitBreaker ocrCircuitBreaker;
+
+  public OcrCircuitBreakerHealthIndicator(OcrCircuitBreaker ocrCircuitBreaker) {
+    this.ocrCircuitBreaker = ocrCircuitBreaker;
+  }
+
+  @Override
+  public Health health() {
+    OcrCircuitBreaker.State state = ocrCircuitBreaker.getState();
+    return Health.up()
+        .withDetail("state", state)
+        .withDetail("consecutiveFailures", ocrCircuitBreaker.getConsecutiveFailures())
+        .withDetail("availableCalls", ocrCircuitBreaker.getAvailableBulkheadPermits())
+        .build();
+  }
+}
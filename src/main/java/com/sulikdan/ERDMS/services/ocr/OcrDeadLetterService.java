@@ -0,0 +1,76 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Class OcrDeadLetterService lists and re-drives OCR jobs, that failed too many times. Re-driven
+ * jobs are spread in time by configured rate, so OCR is not flooded after an outage.
+ */
+@Slf4j
+@Service
+public class OcrDeadLetterService {
+
+  private final OcrJobQueue ocrJobQueue;
+  private final DocRepository documentRepository;
+  private final OcrJobScheduler ocrJobScheduler;
+  private final OcrProperties.Jobs jobsProperties;
+
+  /** Due time of the last re-driven job, following ones are spread after it. */
+  private long lastRedriveAt = 0;
+
+  public OcrDeadLetterService(
+      OcrJobQueue ocrJobQueue,
+      DocRepository documentRepository,
+      OcrJobScheduler ocrJobScheduler,
+      OcrProperties ocrProperties) {
+    this.ocrJobQueue = ocrJobQueue;
+    this.documentRepository = documentRepository;
+    this.ocrJobScheduler = ocrJobScheduler;
+    this.jobsProperties = ocrProperties.getJobs();
+  }
+
+  /**
+   * @param limit max number of jobs
+   * @return dead-lettered jobs, the oldest first
+   */
+  public List<OcrJob> findDeadLetters(int limit) {
+    return ocrJobQueue.findDeadLetters(Math.min(limit, jobsProperties.getRedriveBatchSize()));
+  }
+
+  /**
+   * Queues dead-lettered jobs again, their documents are scanned from the beginning.
+   *
+   * @param limit max number of jobs, capped by redriveBatchSize
+   * @return number of re-driven jobs
+   */
+  public synchronized int redriveDeadLetters(int limit) {
+    long intervalMillis = Math.round(1000 / jobsProperties.getRedriveRatePerSecond());
+    long now = System.currentTimeMillis();
+    int redriven = 0;
+
+    for (OcrJob job : findDeadLetters(limit)) {
+      long dueAt = Math.max(now, lastRedriveAt + intervalMillis);
+
+      // doc which was changed meanwhile(e.g. sent to scan by user) is left as it is
+      documentRepository.updateOcrProgress(
+          job.getId(), AsyncApiState.FAILED, new AsyncApiInfo(), null);
+      if (ocrJobQueue.redrive(job.getId(), dueAt - now)) {
+        ocrJobScheduler.schedule(job.getId(), dueAt - now);
+        lastRedriveAt = dueAt;
+        redriven++;
+      }
+    }
+
+    log.info("Re-driven " + redriven + " dead-lettered OCR jobs.");
+    return redriven;
+  }
+}
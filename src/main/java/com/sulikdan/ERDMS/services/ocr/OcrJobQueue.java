@@ -0,0 +1,96 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Class OcrJobQueue is shared queue of OCR jobs. Jobs are claimed by worker nodes with a lease, so
+ * every job is processed by a single node at a time, even when more nodes are running.
+ */
+public interface OcrJobQueue {
+
+  /**
+   * Adds job for the document, if there is none yet. Dead-lettered job of the document is queued
+   * again.
+   *
+   * @param docId id of the document to be scanned
+   */
+  void enqueue(String docId);
+
+  /**
+   * Adds jobs for new documents at once. Unlike enqueue, jobs already in the queue, dead-lettered
+   * ones included, are left as they are.
+   *
+   * @param docIds ids of the documents to be scanned
+   */
+  void enqueueAll(List<String> docIds);
+
+  /**
+   * Claims the job of the document right away, if it's not claimed by anyone else.
+   *
+   * @param docId id of the document
+   * @return claimed job or empty, if the job is not available
+   */
+  Optional<OcrJob> claim(String docId);
+
+  /**
+   * Claims the oldest due job, or a job with an expired lease.
+   *
+   * @return claimed job or empty, if there is no job available
+   */
+  Optional<OcrJob> claimNext();
+
+  /**
+   * Makes queued job of the document due right away, e.g. when OCR reported it's done.
+   *
+   * @param docId id of the document
+   * @return true if there was queued job to expedite
+   */
+  boolean expedite(String docId);
+
+  /**
+   * Returns claimed job back to the queue. Polling progress of the job(submittedAt, pollCount) is
+   * saved with it.
+   *
+   * @param job claimed by this node
+   * @param delayMillis after which can be the job claimed again
+   * @param failed whether to count the attempt as failed, lastError of the job is saved then
+   */
+  void release(OcrJob job, long delayMillis, boolean failed);
+
+  /**
+   * Moves claimed job, that failed too many times, to dead letters. lastError of the job is saved.
+   *
+   * @param job claimed by this node
+   */
+  void deadLetter(OcrJob job);
+
+  /**
+   * Finds dead-lettered jobs, the oldest first.
+   *
+   * @param limit max number of jobs
+   * @return dead-lettered jobs
+   */
+  List<OcrJob> findDeadLetters(int limit);
+
+  /**
+   * Queues dead-lettered job again, with reset attempts.
+   *
+   * @param docId id of the document
+   * @param delayMillis after which can be the job claimed
+   * @return true if there was dead-lettered job of the document
+   */
+  boolean redrive(String docId, long delayMillis);
+
+  /**
+   * Removes finished job from the queue.
+   *
+   * @param job claimed by this node
+   */
+  void complete(OcrJob job);
+
+  /** Renews leases of all jobs claimed by this node. */
+  void renewLeases();
+}
@@ -0,0 +1,9 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+/** Enum OcrOperation lists calls made to OCR, each of them has its own bulkhead. */
+public enum OcrOperation {
+  POST,
+  STATUS,
+  RESULT,
+  DELETE
+}
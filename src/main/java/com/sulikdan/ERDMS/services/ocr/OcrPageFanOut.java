@@ -0,0 +1,318 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.entities.ocr.OcrPagePart;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Class OcrPageFanOut splits multi-page PDFs into single pages, which are sent to OCR in parallel
+ * across OCR nodes. Every page goes through OCR states on its own(OcrPagePart), failed page is
+ * retried without the rest. Scanned pages are put back to docPageList by their position, when the
+ * last one is done.
+ */
+@Slf4j
+@Component
+public class OcrPageFanOut {
+
+  /** PDFs are parsed in memory up to this size, rest is kept in temp files. */
+  private static final long MAX_MAIN_MEMORY_BYTES = 16 * 1024 * 1024;
+
+  private static final String API_PATH = "/api/ocr";
+
+  private final BlobStore blobStore;
+  private final RestApiOcr restApiOcr;
+  private final OcrBackendRouter ocrBackendRouter;
+  private final OcrProperties ocrProperties;
+  private final OcrProperties.FanOut fanOutProperties;
+
+  public OcrPageFanOut(
+      BlobStore blobStore,
+      RestApiOcr restApiOcr,
+      OcrBackendRouter ocrBackendRouter,
+      OcrProperties ocrProperties) {
+    this.blobStore = blobStore;
+    this.restApiOcr = restApiOcr;
+    this.ocrBackendRouter = ocrBackendRouter;
+    this.ocrProperties = ocrProperties;
+    this.fanOutProperties = ocrProperties.getFanOut();
+  }
+
+  /**
+   * Whether the document should be split into pages, before it's sent to OCR.
+   *
+   * @param doc waiting to be sent
+   * @return true for multi-page PDFs, which weren't split yet
+   */
+  public boolean isApplicable(Doc doc) {
+    return fanOutProperties.isEnabled()
+        && doc.getDocType() == DocType.PDF
+        && doc.getDocConfig() != null
+        && Boolean.TRUE.equals(doc.getDocConfig().getMultiPage())
+        && doc.getAsyncApiInfo().getPageParts() == null;
+  }
+
+  /**
+   * Whether the document is scanned page by page.
+   *
+   * @param doc being scanned
+   * @return true if the document has page parts
+   */
+  public boolean hasParts(Doc doc) {
+    List<OcrPagePart> pageParts = doc.getAsyncApiInfo().getPageParts();
+    return pageParts != null && !pageParts.isEmpty();
+  }
+
+  /**
+   * Stores every page to be scanned as single-page PDF and creates page part of it. Documents with
+   * less than minPages pages are left to be sent as a whole. Blocking, it reads the whole document.
+   *
+   * @param doc PDF waiting to be sent to OCR
+   */
+  public void split(Doc doc) {
+    AsyncApiInfo asyncApiInfo = doc.getAsyncApiInfo();
+    // only image-only pages are scanned, when the PDF has text layer on other pages
+    String sourceBlobId =
+        asyncApiInfo.getOcrBlobId() != null ? asyncApiInfo.getOcrBlobId() : doc.getDocumentBlobId();
+    List<OcrPagePart> pageParts = new ArrayList<>();
+
+    try (InputStream content = blobStore.loadBlob(sourceBlobId).getInputStream();
+        PDDocument pdf = PDDocument.load(content, MemoryUsageSetting.setupMixed(MAX_MAIN_MEMORY_BYTES))) {
+      if (pdf.getNumberOfPages() < fanOutProperties.getMinPages()) {
+        asyncApiInfo.setPageParts(pageParts);
+        return;
+      }
+
+      for (int i = 0; i < pdf.getNumberOfPages(); i++) {
+        int pageNumber =
+            asyncApiInfo.getOcrPageNumbers() != null ? asyncApiInfo.getOcrPageNumbers().get(i) : i;
+        pageParts.add(
+            new OcrPagePart(pageNumber, storePage(pdf, i, "page-" + pageNumber + "-" + doc.getNameOfFile())));
+      }
+      if (asyncApiInfo.getOcrPageNumbers() == null) {
+        List<DocPage> pages = new ArrayList<>(pdf.getNumberOfPages());
+        for (int i = 0; i < pdf.getNumberOfPages(); i++) pages.add(new DocPage(""));
+        doc.setDocPageList(pages);
+      }
+    } catch (IOException e) {
+      pageParts.forEach(part -> blobStore.deleteBlob(part.getBlobId()));
+      throw new UncheckedIOException("Unable to split PDF of doc " + doc.getId(), e);
+    }
+
+    if (asyncApiInfo.getOcrBlobId() != null) {
+      // pages were copied, PDF of image-only pages is not needed anymore
+      blobStore.deleteBlob(asyncApiInfo.getOcrBlobId());
+      asyncApiInfo.setOcrBlobId(null);
+    }
+    asyncApiInfo.setPageParts(pageParts);
+    log.info("Doc " + doc.getId() + " was split into " + pageParts.size() + " pages for OCR.");
+  }
+
+  /**
+   * Moves every unfinished page one or more OCR steps further, pages are processed concurrently.
+   * Document is PROCESSING while any page is sent, COMPLETED when all pages are downloaded and
+   * FAILED when any page ran out of attempts.
+   *
+   * @param doc with page parts
+   * @return the document with updated parts and state
+   */
+  public Mono<Doc> advance(Doc doc) {
+    List<OcrPagePart> unfinished =
+        doc.getAsyncApiInfo().getPageParts().stream()
+            .filter(part -> part.getAsyncApiInfo().getAsyncApiState() != AsyncApiState.COMPLETED)
+            .collect(Collectors.toList());
+
+    return Flux.fromIterable(unfinished)
+        .flatMap(part -> advancePart(doc, part), getConcurrency())
+        .then(Mono.fromCallable(() -> fanIn(doc)).subscribeOn(Schedulers.boundedElastic()));
+  }
+
+  /** Pages scanned at once by one document, all OCR slots may be used by it. */
+  private int getConcurrency() {
+    return Math.max(
+        1, ocrProperties.getExecutor().getConcurrencyPerBackend() * ocrBackendRouter.getBackends().size());
+  }
+
+  private Mono<Void> advancePart(Doc doc, OcrPagePart part) {
+    AsyncApiInfo asyncApiInfo = part.getAsyncApiInfo();
+    AsyncApiState state = asyncApiInfo.getAsyncApiState();
+    Mono<Boolean> step;
+
+    switch (state) {
+      case WAITING_TO_SEND:
+      case MANUAL_SENDING:
+        step =
+            restApiOcr
+                .postDocRequest(createPageDoc(doc, part))
+                .map(
+                    result -> {
+                      part.setAsyncApiInfo(result);
+                      return false;
+                    });
+        break;
+      case PROCESSING:
+        step =
+            restApiOcr
+                .getDocStatus(asyncApiInfo.getOcrBackend(), resourceUri(asyncApiInfo.getOcrApiDocStatus()))
+                .map(
+                    result -> {
+                      part.setAsyncApiInfo(result);
+                      return result.getAsyncApiState() == AsyncApiState.SCANNED;
+                    });
+        break;
+      case SCANNED:
+        step =
+            restApiOcr
+                .getDocResult(asyncApiInfo.getOcrBackend(), resourceUri(asyncApiInfo.getOcrApiDocResult()))
+                .map(
+                    resultDoc -> {
+                      part.setContent(String.join("\n", resultDoc.getPages()));
+                      asyncApiInfo.setAsyncApiState(AsyncApiState.RESOURCE_TO_CLEAN);
+                      return true;
+                    });
+        break;
+      case RESOURCE_TO_CLEAN:
+        step =
+            restApiOcr
+                .deleteDoc(asyncApiInfo.getOcrBackend(), resourceUri(asyncApiInfo.getOcrApiDocResult()))
+                .filter(deleted -> deleted)
+                .flatMap(
+                    deleted ->
+                        Mono.fromRunnable(() -> blobStore.deleteBlob(part.getBlobId()))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .then(
+                                Mono.fromCallable(
+                                    () -> {
+                                      asyncApiInfo.setAsyncApiState(AsyncApiState.COMPLETED);
+                                      return false;
+                                    })));
+        break;
+      default:
+        step = Mono.just(false);
+    }
+
+    return step.defaultIfEmpty(false)
+        .flatMap(next -> next ? advancePart(doc, part) : Mono.<Void>empty())
+        .onErrorResume(
+            e -> {
+              handlePartFailure(doc, part, state, e);
+              return Mono.empty();
+            });
+  }
+
+  private void handlePartFailure(Doc doc, OcrPagePart part, AsyncApiState state, Throwable e) {
+    if (OcrCircuitBreaker.isOutage(e)) {
+      // page is not blamed for unavailable OCR, it's tried again with next step of the document
+      log.warn("OCR unavailable for page " + part.getPageNumber() + " of doc " + doc.getId());
+      return;
+    }
+
+    log.error(
+        "OCR of page " + part.getPageNumber() + " of doc " + doc.getId() + " failed: " + e.getMessage());
+    part.setAttempts(part.getAttempts() + 1);
+    part.setLastError(e.getClass().getSimpleName() + ": " + e.getMessage());
+    if (e instanceof WebClientResponseException.NotFound
+        && (state == AsyncApiState.PROCESSING || state == AsyncApiState.SCANNED)) {
+      // OCR lost the page, it's sent again
+      part.setAsyncApiInfo(new AsyncApiInfo());
+    }
+  }
+
+  /** Updates state of the document by its pages, puts scanned pages together when all are done. */
+  private Doc fanIn(Doc doc) {
+    AsyncApiInfo asyncApiInfo = doc.getAsyncApiInfo();
+    List<OcrPagePart> pageParts = asyncApiInfo.getPageParts();
+
+    if (pageParts.stream().anyMatch(part -> part.getAttempts() >= fanOutProperties.getMaxPageAttempts())) {
+      log.error("Page of doc " + doc.getId() + " ran out of attempts, OCR of the doc failed.");
+      pageParts.stream()
+          .filter(part -> part.getAsyncApiInfo().getAsyncApiState() != AsyncApiState.COMPLETED)
+          .forEach(part -> blobStore.deleteBlob(part.getBlobId()));
+      asyncApiInfo.setAsyncApiState(AsyncApiState.FAILED);
+      return doc;
+    }
+
+    if (pageParts.stream()
+        .allMatch(part -> part.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.COMPLETED)) {
+      List<DocPage> pages = new ArrayList<>(doc.getDocPageList());
+      for (OcrPagePart part : pageParts) {
+        pages.set(part.getPageNumber(), new DocPage(part.getContent()));
+      }
+      doc.setDocPageList(pages);
+      asyncApiInfo.setAsyncApiState(AsyncApiState.COMPLETED);
+      log.info("All " + pageParts.size() + " pages of doc " + doc.getId() + " were scanned.");
+      return doc;
+    }
+
+    if (pageParts.stream().anyMatch(part -> !isWaitingToSend(part))) {
+      asyncApiInfo.setAsyncApiState(AsyncApiState.PROCESSING);
+    }
+    return doc;
+  }
+
+  private static boolean isWaitingToSend(OcrPagePart part) {
+    AsyncApiState state = part.getAsyncApiInfo().getAsyncApiState();
+    return state == AsyncApiState.WAITING_TO_SEND || state == AsyncApiState.MANUAL_SENDING;
+  }
+
+  /** Document sent to OCR in place of the page. */
+  private static Doc createPageDoc(Doc doc, OcrPagePart part) {
+    DocConfig docConfig = doc.getDocConfig();
+    return Doc.builder()
+        .id(OcrPagePart.partId(doc.getId(), part.getPageNumber()))
+        .nameOfFile("page-" + part.getPageNumber() + "-" + doc.getNameOfFile())
+        .documentBlobId(part.getBlobId())
+        .docType(DocType.PDF)
+        .docConfig(
+            DocConfig.builder()
+                .highQuality(docConfig.getHighQuality())
+                .multiPage(false)
+                .lang(docConfig.getLang())
+                .build())
+        .asyncApiInfo(new AsyncApiInfo())
+        .build();
+  }
+
+  private String storePage(PDDocument pdf, int pageIndex, String fileName) throws IOException {
+    File tempFile = File.createTempFile("ocr-page", ".pdf");
+    try {
+      try (PDDocument pagePdf = new PDDocument()) {
+        pagePdf.importPage(pdf.getPage(pageIndex));
+        pagePdf.save(tempFile);
+      }
+      try (InputStream content = new FileInputStream(tempFile)) {
+        return blobStore.storeBlob(content, fileName, "application/pdf");
+      }
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  /** Location of the resource without domain, links are full urls of the node. */
+  private static String resourceUri(String link) {
+    return link.split(API_PATH, 2)[1];
+  }
+}
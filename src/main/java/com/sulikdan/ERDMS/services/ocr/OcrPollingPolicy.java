@@ -0,0 +1,137 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Random;
+
+/**
+ * Class OcrPollingPolicy decides when to check status of a document being processed by OCR. First
+ * check is planned by estimated OCR time of the document(page count and quality), following checks
+ * back off exponentially with jitter. Estimated time per page is learned from jobs reported done by
+ * callback. Completion found by polling is not learned, it's found only after the document was
+ * done, so the estimate would only grow - a document still processing past the estimate raises it.
+ */
+@Slf4j
+@Component
+public class OcrPollingPolicy {
+
+  private final OcrProperties.Polling pollingProperties;
+  private final Random random;
+
+  /** Learned OCR time per page. */
+  private double millisPerPage;
+
+  private double highQualityMillisPerPage;
+
+  @Autowired
+  public OcrPollingPolicy(OcrProperties ocrProperties) {
+    this(ocrProperties, new Random());
+  }
+
+  OcrPollingPolicy(OcrProperties ocrProperties, Random random) {
+    this.pollingProperties = ocrProperties.getPolling();
+    this.random = random;
+    this.millisPerPage = pollingProperties.getMillisPerPage();
+    this.highQualityMillisPerPage = pollingProperties.getHighQualityMillisPerPage();
+  }
+
+  /**
+   * Delay of the first status check, after the document was sent to OCR.
+   *
+   * @param doc sent to OCR
+   * @return delay in millis
+   */
+  public long firstPollDelay(Doc doc) {
+    return withJitter(estimateDuration(doc));
+  }
+
+  /**
+   * Delay of next status check, when the document was still processing.
+   *
+   * @param doc being processed
+   * @param pollCount number of checks, that found document still processing
+   * @return delay in millis
+   */
+  public long nextPollDelay(Doc doc, int pollCount) {
+    double base = Math.max(pollingProperties.getMinDelayMillis(), estimateDuration(doc) / 2.0);
+    double delay = base * Math.pow(pollingProperties.getBackoffMultiplier(), pollCount - 1);
+    return withJitter(delay);
+  }
+
+  /**
+   * Learns from finished OCR of a document, reported by callback.
+   *
+   * @param doc scanned by OCR
+   * @param durationMillis from sending the document till OCR reported it scanned
+   */
+  public synchronized void recordCompletion(Doc doc, long durationMillis) {
+    learn(doc, (double) durationMillis / estimatePages(doc));
+  }
+
+  /**
+   * Learns from status check, that found the document still processing. OCR takes at least the
+   * elapsed time, so only estimate shorter than that is raised.
+   *
+   * @param doc being processed
+   * @param elapsedMillis from sending the document till the status check
+   */
+  public synchronized void recordStillProcessing(Doc doc, long elapsedMillis) {
+    double observedPerPage = (double) elapsedMillis / estimatePages(doc);
+    double perPage = isHighQuality(doc) ? highQualityMillisPerPage : millisPerPage;
+    if (observedPerPage > perPage) learn(doc, observedPerPage);
+  }
+
+  /** @return estimated OCR time of the document in millis */
+  public synchronized double estimateDuration(Doc doc) {
+    double perPage = isHighQuality(doc) ? highQualityMillisPerPage : millisPerPage;
+    return perPage * estimatePages(doc);
+  }
+
+  private void learn(Doc doc, double observedPerPage) {
+    double rate = pollingProperties.getLearningRate();
+
+    if (isHighQuality(doc)) {
+      highQualityMillisPerPage += rate * (observedPerPage - highQualityMillisPerPage);
+    } else {
+      millisPerPage += rate * (observedPerPage - millisPerPage);
+    }
+    log.debug("OCR time per page learned from doc " + doc.getId() + ": " + observedPerPage + "ms");
+  }
+
+  private int estimatePages(Doc doc) {
+    AsyncApiInfo asyncApiInfo = doc.getAsyncApiInfo();
+    // pages sent one by one are scanned in parallel
+    if (asyncApiInfo != null && asyncApiInfo.getPageParts() != null && !asyncApiInfo.getPageParts().isEmpty())
+      return 1;
+    // pages with text layer are not scanned
+    if (asyncApiInfo != null && asyncApiInfo.getOcrPageNumbers() != null)
+      return Math.max(1, asyncApiInfo.getOcrPageNumbers().size());
+    if (doc.getDocPageList() != null && !doc.getDocPageList().isEmpty())
+      return doc.getDocPageList().size();
+    if (doc.getDocType() == DocType.IMG
+        || doc.getDocConfig() == null
+        || !Boolean.TRUE.equals(doc.getDocConfig().getMultiPage())
+        || doc.getDocumentSize() == null) return 1;
+
+    return (int) Math.max(1, doc.getDocumentSize() / pollingProperties.getBytesPerPage());
+  }
+
+  private boolean isHighQuality(Doc doc) {
+    return doc.getDocConfig() != null && Boolean.TRUE.equals(doc.getDocConfig().getHighQuality());
+  }
+
+  private long withJitter(double delay) {
+    double jitter = pollingProperties.getJitter();
+    double jittered = delay * (1 - jitter + 2 * jitter * random.nextDouble());
+    return Math.round(
+        Math.min(
+            pollingProperties.getMaxDelayMillis(),
+            Math.max(pollingProperties.getMinDelayMillis(), jittered)));
+  }
+}
@@ -0,0 +1,154 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.ocr.OcrResultCacheEntry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Class OcrResultCache keeps scanned pages of files by SHA-256 of the file and OCR config(lang,
+ * highQuality, multiPage), so the same file uploaded again is completed without OCR. Results are
+ * stored in collection ocr_result_cache, most recently used ones are kept in memory as well.
+ * Blocking, DB is queried on memory miss.
+ */
+@Slf4j
+@Component
+public class OcrResultCache {
+
+  private final MongoTemplate mongoTemplate;
+  private final OcrProperties.ResultCache cacheProperties;
+
+  /** Least recently used entries are evicted, access order is kept by the map. */
+  private final Map<String, List<DocPage>> memoryEntries;
+
+  private final Counter hitCounter;
+  private final Counter missCounter;
+
+  public OcrResultCache(
+      MongoTemplate mongoTemplate, OcrProperties ocrProperties, MeterRegistry meterRegistry) {
+    this.mongoTemplate = mongoTemplate;
+    this.cacheProperties = ocrProperties.getResultCache();
+    this.memoryEntries =
+        new LinkedHashMap<String, List<DocPage>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, List<DocPage>> eldest) {
+            return size() > cacheProperties.getMemoryEntries();
+          }
+        };
+
+    this.hitCounter =
+        Counter.builder("ocr.cache.hits")
+            .description("Docs completed by cached OCR result")
+            .register(meterRegistry);
+    this.missCounter =
+        Counter.builder("ocr.cache.misses")
+            .description("Docs without cached OCR result, sent to OCR")
+            .register(meterRegistry);
+    Gauge.builder("ocr.cache.memory.size", this, OcrResultCache::getMemorySize)
+        .description("OCR results cached in memory")
+        .register(meterRegistry);
+
+    if (cacheProperties.isEnabled()) {
+      mongoTemplate
+          .indexOps(OcrResultCacheEntry.class)
+          .ensureIndex(
+              new Index()
+                  .on("createdAt", Sort.Direction.ASC)
+                  .expire(cacheProperties.getTtlMillis(), TimeUnit.MILLISECONDS));
+    }
+  }
+
+  /**
+   * Finds scanned pages of the same file scanned with the same config.
+   *
+   * @param doc waiting to be sent to OCR
+   * @return copy of cached pages, empty when there are none or the cache is disabled
+   */
+  public Optional<List<DocPage>> find(Doc doc) {
+    String key = cacheKey(doc);
+    if (key == null) return Optional.empty();
+
+    List<DocPage> pages;
+    synchronized (memoryEntries) {
+      pages = memoryEntries.get(key);
+    }
+    if (pages == null) {
+      OcrResultCacheEntry entry = mongoTemplate.findById(key, OcrResultCacheEntry.class);
+      if (entry != null && entry.getPages() != null) {
+        pages = entry.getPages();
+        putInMemory(key, pages);
+      }
+    }
+
+    if (pages == null) {
+      missCounter.increment();
+      return Optional.empty();
+    }
+    hitCounter.increment();
+    log.info("OCR result of doc " + doc.getId() + " found in cache.");
+    return Optional.of(copyOf(pages));
+  }
+
+  /**
+   * Stores scanned pages of the completed document.
+   *
+   * @param doc completed by OCR
+   */
+  public void store(Doc doc) {
+    String key = cacheKey(doc);
+    if (key == null || doc.getDocPageList() == null || doc.getDocPageList().isEmpty()) return;
+
+    synchronized (memoryEntries) {
+      // result was just taken from the cache
+      if (memoryEntries.containsKey(key)) return;
+    }
+    List<DocPage> pages = copyOf(doc.getDocPageList());
+    mongoTemplate.save(new OcrResultCacheEntry(key, pages, new Date()));
+    putInMemory(key, pages);
+  }
+
+  public int getMemorySize() {
+    synchronized (memoryEntries) {
+      return memoryEntries.size();
+    }
+  }
+
+  private void putInMemory(String key, List<DocPage> pages) {
+    synchronized (memoryEntries) {
+      memoryEntries.put(key, pages);
+    }
+  }
+
+  /** @return key of the file and its OCR config, null when the doc can't be cached */
+  private String cacheKey(Doc doc) {
+    DocConfig docConfig = doc.getDocConfig();
+    if (!cacheProperties.isEnabled() || doc.getDocumentSha256() == null || docConfig == null)
+      return null;
+
+    return doc.getDocumentSha256()
+        + "|" + docConfig.getLang()
+        + "|" + docConfig.getHighQuality()
+        + "|" + docConfig.getMultiPage();
+  }
+
+  private static List<DocPage> copyOf(List<DocPage> pages) {
+    return pages.stream().map(page -> new DocPage(page.getContent())).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,151 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class PdfTextLayerClassifier checks pages of PDFs for existing text layer, before they are sent
+ * to OCR. Text of born-digital pages is extracted locally, only image-only pages are left for OCR.
+ */
+@Slf4j
+@Component
+public class PdfTextLayerClassifier {
+
+  /** PDFs are parsed in memory up to this size, rest is kept in temp files. */
+  private static final long MAX_MAIN_MEMORY_BYTES = 16 * 1024 * 1024;
+
+  private final BlobStore blobStore;
+  private final OcrProperties.TextLayer textLayerProperties;
+
+  public PdfTextLayerClassifier(BlobStore blobStore, OcrProperties ocrProperties) {
+    this.blobStore = blobStore;
+    this.textLayerProperties = ocrProperties.getTextLayer();
+  }
+
+  /**
+   * Whether the document should be classified, before it's sent to OCR.
+   *
+   * @param doc waiting to be sent
+   * @return true for not yet classified PDFs
+   */
+  public boolean isApplicable(Doc doc) {
+    return textLayerProperties.isEnabled()
+        && doc.getDocType() == DocType.PDF
+        && doc.getAsyncApiInfo().getOcrPageNumbers() == null;
+  }
+
+  /**
+   * Fills pages of the document, that have text layer. When all pages have text, the document is
+   * COMPLETED. When only some of them have, the rest is stored as new PDF(ocrBlobId) and their
+   * positions are kept in ocrPageNumbers. Blocking, it reads the whole document.
+   *
+   * @param doc PDF waiting to be sent to OCR
+   * @return true if the document still has to be sent to OCR
+   */
+  public boolean prepareForOcr(Doc doc) {
+    try (InputStream content = blobStore.loadBlob(doc.getDocumentBlobId()).getInputStream();
+        PDDocument pdf = PDDocument.load(content, MemoryUsageSetting.setupMixed(MAX_MAIN_MEMORY_BYTES))) {
+      List<String> texts = extractPageTexts(pdf);
+
+      List<Integer> imagePages = new ArrayList<>();
+      for (int i = 0; i < texts.size(); i++) {
+        if (texts.get(i) == null) imagePages.add(i);
+      }
+
+      if (imagePages.size() == texts.size()) {
+        // scanned document, whole file goes to OCR
+        doc.getAsyncApiInfo().setOcrPageNumbers(imagePages);
+        return true;
+      }
+
+      List<DocPage> pages = new ArrayList<>(texts.size());
+      for (String text : texts) pages.add(new DocPage(text != null ? text : ""));
+      doc.setDocPageList(pages);
+
+      if (imagePages.isEmpty()) {
+        log.info("Doc " + doc.getId() + " has text layer on all pages, OCR is skipped.");
+        doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+        return false;
+      }
+
+      log.info(
+          "Doc " + doc.getId() + " has " + imagePages.size() + " of " + texts.size()
+              + " pages without text layer, only those are sent to OCR.");
+      AsyncApiInfo asyncApiInfo = doc.getAsyncApiInfo();
+      asyncApiInfo.setOcrBlobId(storeImagePages(pdf, imagePages, doc.getNameOfFile()));
+      asyncApiInfo.setOcrPageNumbers(imagePages);
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to read PDF of doc " + doc.getId(), e);
+    }
+  }
+
+  /**
+   * Deletes PDF of image-only pages created for OCR, if there is any.
+   *
+   * @param doc which pages were scanned
+   */
+  public void cleanUp(Doc doc) {
+    String ocrBlobId = doc.getAsyncApiInfo().getOcrBlobId();
+    if (ocrBlobId != null) {
+      blobStore.deleteBlob(ocrBlobId);
+      doc.getAsyncApiInfo().setOcrBlobId(null);
+    }
+  }
+
+  /** Text of each page, null when page has less than minCharsPerPage characters. */
+  private List<String> extractPageTexts(PDDocument pdf) throws IOException {
+    PDFTextStripper stripper = new PDFTextStripper();
+    List<String> texts = new ArrayList<>(pdf.getNumberOfPages());
+    for (int page = 1; page <= pdf.getNumberOfPages(); page++) {
+      stripper.setStartPage(page);
+      stripper.setEndPage(page);
+      String text = stripper.getText(pdf);
+      texts.add(countVisibleChars(text) >= textLayerProperties.getMinCharsPerPage() ? text : null);
+    }
+    return texts;
+  }
+
+  private static int countVisibleChars(String text) {
+    int count = 0;
+    for (int i = 0; i < text.length(); i++) {
+      if (!Character.isWhitespace(text.charAt(i))) count++;
+    }
+    return count;
+  }
+
+  private String storeImagePages(PDDocument pdf, List<Integer> pageIndexes, String fileName)
+      throws IOException {
+    File tempFile = File.createTempFile("ocr-pages", ".pdf");
+    try {
+      try (PDDocument imagePdf = new PDDocument()) {
+        for (Integer pageIndex : pageIndexes) imagePdf.importPage(pdf.getPage(pageIndex));
+        imagePdf.save(tempFile);
+      }
+      try (InputStream content = new FileInputStream(tempFile)) {
+        return blobStore.storeBlob(content, fileName, "application/pdf");
+      }
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+}
@@ -1,45 +1,56 @@
 package com.sulikdan.ERDMS.services.ocr;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.sulikdan.ERDMS.entities.AsyncApiInfo;
 import com.sulikdan.ERDMS.entities.Doc;
 import com.sulikdan.ERDMS.entities.TessApiDoc;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
 
 /**
  * Created by Daniel Šulik on 11-Aug-20
  *
- * <p>Class RestApiOcr is used for Communication with OCR
+ * <p>Class RestApiOcr is used for Communication with OCR. All calls are non-blocking, nothing is
+ * sent till the returned Mono is subscribed.
  */
 public interface RestApiOcr {
 
   /**
-   * Sends document for extraction
-   * @param doc
-   * @return
-   * @throws JsonProcessingException
+   * Sends document for extraction to the least loaded OCR node.
+   * @param doc to be sent
+   * @return info where to check the status of extraction, with the node that accepted it
+   */
+  Mono<AsyncApiInfo> postDocRequest(Doc doc);
+
+  /**
+   * Sends more documents for extraction in one request. All documents have to be of same type and
+   * have same DocConfig.
+   * @param docs to be sent
+   * @return info of each document, in the same order as docs
    */
-  AsyncApiInfo postDocRequest(Doc doc) throws JsonProcessingException;
+  Mono<List<AsyncApiInfo>> postDocsRequest(List<Doc> docs);
 
   /**
    * Gets actual status of the Document extraction.
-   * @param statusUri
-   * @return
-   * @throws JsonProcessingException
+   * @param backend base url of the OCR node, that accepted the document
+   * @param statusUri uri of status resource
+   * @return current status of the extraction
    */
-  AsyncApiInfo getDocStatus(String statusUri) throws JsonProcessingException;
+  Mono<AsyncApiInfo> getDocStatus(String backend, String statusUri);
 
   /**
    * Donwnload extracted part from the document.
-   * @param resultUri
-   * @return
-   * @throws JsonProcessingException
+   * @param backend base url of the OCR node, that accepted the document
+   * @param resultUri uri of result resource
+   * @return extracted document
    */
-  TessApiDoc getDocResult(String resultUri) throws JsonProcessingException;
+  Mono<TessApiDoc> getDocResult(String backend, String resultUri);
 
   /**
    * Deletes resources of already extracted documents.
-   * @param deleteUri
-   * @return
+   * @param backend base url of the OCR node, that accepted the document
+   * @param deleteUri uri of result resource
+   * @return true if resources were deleted or don't exist anymore
    */
-  boolean deleteDoc(String deleteUri);
+  Mono<Boolean> deleteDoc(String backend, String deleteUri);
 }
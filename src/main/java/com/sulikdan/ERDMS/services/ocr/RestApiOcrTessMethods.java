@@ -1,28 +1,30 @@
 package com.sulikdan.ERDMS.services.ocr;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
 import com.sulikdan.ERDMS.entities.*;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
 import com.sulikdan.ERDMS.services.statics.OcrRestApiSettings;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.MultipartBodyBuilder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Created by Daniel Šulik on 09-Aug-20
  *
- * <p>Class RestApiOcrMethods is implementation of RestApiOcr.
+ * <p>Class RestApiOcrMethods is implementation of RestApiOcr. All calls share one pooled
+ * WebClient(ocrWebClient), OCR node of each call is chosen by OcrBackendRouter.
  * @see com.sulikdan.ERDMS.services.ocr.RestApiOcr
  */
 @Slf4j
@@ -31,99 +33,161 @@ public class RestApiOcrTessMethods extends OcrRestApiSettings implements RestApi
 
   ObjectMapper mapper = new ObjectMapper();
 
-  public RestApiOcrTessMethods(OcrProperties ocrProperties) {
+  private final BlobStore blobStore;
+  private final WebClient ocrWebClient;
+  private final OcrBackendRouter ocrBackendRouter;
+  private final OcrCircuitBreaker ocrCircuitBreaker;
+
+  private static final String API_PATH = "/api/ocr";
+
+  public RestApiOcrTessMethods(
+      OcrProperties ocrProperties,
+      BlobStore blobStore,
+      WebClient ocrWebClient,
+      OcrBackendRouter ocrBackendRouter,
+      OcrCircuitBreaker ocrCircuitBreaker) {
     super(ocrProperties);
+    this.blobStore = blobStore;
+    this.ocrWebClient = ocrWebClient;
+    this.ocrBackendRouter = ocrBackendRouter;
+    this.ocrCircuitBreaker = ocrCircuitBreaker;
   }
 
   @Override
-  public AsyncApiInfo postDocRequest(Doc doc) throws JsonProcessingException {
-
-    log.warn("Current base uri: " + BASE_URI);
-
-    WebClient ocrClient = generateWebClient(BASE_URI);
-    ResponseEntity<JsonNode> jsonNode;
-    MultipartBodyBuilder bodyBuilder = new MultipartBodyBuilder();
-    bodyBuilder
-        .part("files", new ByteArrayResource(doc.getDocumentAsBytes()))
-        .header("Content-Disposition", "form-data; name=files; filename=" + doc.getNameOfFile());
-    addRequestTextParam(bodyBuilder, doc.getDocConfig());
-
-    if (doc.getDocType() == DocType.IMG) {
-      jsonNode = executePostRequest(ocrClient, IMG_DOC_CONTRL, bodyBuilder);
-    } else {
-      jsonNode = executePostRequest(ocrClient, PDF_DOC_CONTRL, bodyBuilder);
-    }
-    // Parse Response where to check and save it to document
-    //    AsyncDocInfo asyncDocInfoResult = null;
-    //    if (!jsonNode.hasBody())
-    if (jsonNode.getStatusCode().isError()) return null;
-
-    // parser + maybe it would be better to change approach expecting only 1 item?
-    AsyncApiInfo asyncApiInfoResult =
-        mapper
-            .readValue(jsonNode.getBody().toString(), new TypeReference<List<AsyncApiInfo>>() {})
-            .get(0);
-
-    log.info("Received data from OCR-API:\n" + asyncApiInfoResult.toString());
-    return asyncApiInfoResult;
+  public Mono<AsyncApiInfo> postDocRequest(Doc doc) {
+    return postDocsRequest(Collections.singletonList(doc)).map(result -> result.get(0));
   }
 
   @Override
-  public AsyncApiInfo getDocStatus(String statusUri) throws JsonProcessingException {
-
-    ResponseEntity<JsonNode> jsonNode = executeGetRequest(generateWebClient(BASE_URI), statusUri);
-
-    if (jsonNode.getStatusCode().isError()) return null;
-
-    AsyncApiInfo requestResult =
-        mapper.readValue(jsonNode.getBody().toString(), AsyncApiInfo.class);
-
-    log.info("GetStatus data from OCR-API:\n" + requestResult.toString());
-    return requestResult;
+  public Mono<List<AsyncApiInfo>> postDocsRequest(List<Doc> docs) {
+    String docController = docs.get(0).getDocType() == DocType.IMG ? IMG_DOC_CONTRL : PDF_DOC_CONTRL;
+
+    // looking up the blobs is blocking, so it's kept out of the event loop
+    return Mono.fromCallable(() -> createDocsRequestBody(docs))
+        .subscribeOn(Schedulers.boundedElastic())
+        .flatMap(
+            bodyBuilder ->
+                ocrCircuitBreaker.protect(
+                    OcrOperation.POST,
+                    ocrBackendRouter.callLeastLoaded(
+                        backend ->
+                            ocrWebClient
+                                .post()
+                                .uri(backend.getApiUri() + docController)
+                                .contentType(MediaType.MULTIPART_FORM_DATA)
+                                .body(BodyInserters.fromMultipartData(bodyBuilder.build()))
+                                .retrieve()
+                                .bodyToMono(JsonNode.class)
+                                .map(jsonNode -> parseAcceptedDocs(jsonNode, docs, backend)))));
   }
 
   @Override
-  public TessApiDoc getDocResult(String resultUri) throws JsonProcessingException {
-    ResponseEntity<JsonNode> jsonNode = executeGetRequest(generateWebClient(BASE_URI), resultUri);
-
-    if (jsonNode.getStatusCode().isError()) return null;
-
-    TessApiDoc requestResult = mapper.readValue(jsonNode.getBody().toString(), TessApiDoc.class);
+  public Mono<AsyncApiInfo> getDocStatus(String backend, String statusUri) {
+    return ocrCircuitBreaker.protect(
+        OcrOperation.STATUS,
+        ocrBackendRouter.callSticky(
+            backend,
+            ocrBackend ->
+                executeGetRequest(ocrBackend, statusUri)
+                    .map(
+                        jsonNode -> {
+                          AsyncApiInfo requestResult = mapper.convertValue(jsonNode, AsyncApiInfo.class);
+                          requestResult.setOcrBackend(ocrBackend.getBaseUrl());
+                          log.info("GetStatus data from OCR-API:\n" + requestResult.toString());
+                          return requestResult;
+                        })));
+  }
 
-    log.info("Get data from OCR-API:\n" + requestResult.toString());
-    return requestResult;
+  @Override
+  public Mono<TessApiDoc> getDocResult(String backend, String resultUri) {
+    return ocrCircuitBreaker.protect(
+        OcrOperation.RESULT,
+        ocrBackendRouter.callSticky(
+            backend,
+            ocrBackend ->
+                executeGetRequest(ocrBackend, resultUri)
+                    .map(
+                        jsonNode -> {
+                          TessApiDoc requestResult = mapper.convertValue(jsonNode, TessApiDoc.class);
+                          log.info("Get data from OCR-API:\n" + requestResult.toString());
+                          return requestResult;
+                        })));
   }
 
   @Override
-  public boolean deleteDoc(String deleteUri) {
-    ResponseEntity<JsonNode> jsonNode =
-        executeDeleteRequest(generateWebClient(BASE_URI), deleteUri);
-    return jsonNode.getStatusCode().is2xxSuccessful()
-        || jsonNode.getStatusCode().equals(HttpStatus.NOT_FOUND);
+  public Mono<Boolean> deleteDoc(String backend, String deleteUri) {
+    return ocrCircuitBreaker.protect(
+        OcrOperation.DELETE,
+        ocrBackendRouter.callSticky(
+            backend,
+            ocrBackend ->
+                ocrWebClient
+                    .delete()
+                    .uri(ocrBackend.getApiUri() + deleteUri)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .map(response -> response.getStatusCode().is2xxSuccessful())
+                    .onErrorResume(WebClientResponseException.NotFound.class, e -> Mono.just(true))
+                    .doOnNext(
+                        deleted -> {
+                          if (deleted) ocrBackendRouter.jobFinished(ocrBackend, deleteUri);
+                        })));
   }
 
-  private ResponseEntity<JsonNode> executePostRequest(
-      WebClient ocrClient, String reqUri, MultipartBodyBuilder bodyBuilder) {
-    return ocrClient
-        .post()
-        .uri(reqUri)
-        .contentType(MediaType.MULTIPART_FORM_DATA)
-        .body(BodyInserters.fromMultipartData(bodyBuilder.build()))
-        .retrieve()
-        .toEntity(JsonNode.class)
-        .block();
+  private List<AsyncApiInfo> parseAcceptedDocs(JsonNode jsonNode, List<Doc> docs, OcrBackend backend) {
+    List<AsyncApiInfo> asyncApiInfoResults =
+        mapper.convertValue(jsonNode, new TypeReference<List<AsyncApiInfo>>() {});
+    if (asyncApiInfoResults == null || asyncApiInfoResults.size() != docs.size())
+      throw new IllegalStateException(
+          "OCR-API returned info of "
+              + (asyncApiInfoResults == null ? 0 : asyncApiInfoResults.size())
+              + " documents, but " + docs.size() + " were sent.");
+
+    for (AsyncApiInfo asyncApiInfo : asyncApiInfoResults) {
+      // following calls of the document have to go to the same node
+      asyncApiInfo.setOcrBackend(backend.getBaseUrl());
+      ocrBackendRouter.jobAccepted(backend, resourceUri(asyncApiInfo.getOcrApiDocResult()));
+    }
+    log.info("Received data from OCR-API(" + backend.getBaseUrl() + "):\n" + asyncApiInfoResults);
+    return asyncApiInfoResults;
   }
 
-  private ResponseEntity<JsonNode> executeGetRequest(WebClient ocrClient, String reqUri) {
-    return ocrClient.get().uri(reqUri).retrieve().toEntity(JsonNode.class).block();
+  /** Same uri of resources as used for delete, links are full urls of the node. */
+  private static String resourceUri(String link) {
+    String[] parts = link == null ? new String[0] : link.split(API_PATH, 2);
+    return parts.length == 2 ? parts[1] : String.valueOf(link);
   }
 
-  private ResponseEntity<JsonNode> executeDeleteRequest(WebClient ocrClient, String delUri) {
-    return ocrClient.delete().uri(delUri).retrieve().toEntity(JsonNode.class).block();
+  private MultipartBodyBuilder createDocsRequestBody(List<Doc> docs) {
+    MultipartBodyBuilder bodyBuilder = new MultipartBodyBuilder();
+    // file parts are streamed from the BlobStore, while the request is being written
+    for (Doc doc : docs) {
+      // only image-only pages are sent, when the PDF has text layer on other pages
+      String blobId =
+          doc.getAsyncApiInfo().getOcrBlobId() != null
+              ? doc.getAsyncApiInfo().getOcrBlobId()
+              : doc.getDocumentBlobId();
+      bodyBuilder
+          .part("files", blobStore.loadBlob(blobId))
+          .header("Content-Disposition", "form-data; name=files; filename=" + doc.getNameOfFile());
+    }
+    addRequestTextParam(bodyBuilder, docs.get(0).getDocConfig());
+    if (ocrProperties.getCallback().isEnabled()) {
+      // OCR notifies us when it's done, job id is the id of the doc, one url per file
+      for (Doc doc : docs) {
+        bodyBuilder
+            .part(
+                "callbackUrl",
+                ocrProperties.getCallback().getBaseUrl() + "/ocr/callbacks/" + doc.getId(),
+                MediaType.TEXT_PLAIN)
+            .header("Content-Disposition", "form-data; name=callbackUrl");
+      }
+    }
+    return bodyBuilder;
   }
 
-  private WebClient generateWebClient(String baseUri) {
-    return WebClient.builder().baseUrl(baseUri).build();
+  private Mono<JsonNode> executeGetRequest(OcrBackend backend, String reqUri) {
+    return ocrWebClient.get().uri(backend.getApiUri() + reqUri).retrieve().bodyToMono(JsonNode.class);
   }
 
   private void addRequestTextParam(MultipartBodyBuilder builder, DocConfig docConfig) {
@@ -0,0 +1,386 @@
+package com.sulikdan.ERDMS.services.previews;
+
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Class DocPreviewService creates previews of documents in configured sizes and stores them in the
+ * BlobStore, separately from the doc. Listing of docs then carries only references and previews are
+ * served as binaries, which can be cached by clients.
+ *
+ * <p>Previews are created in the background by own bounded executor, so uploads don't wait for
+ * them. Images are decoded subsampled, close to the biggest preview size, and PDFs get preview of
+ * the first page rendered in that size. Memory used doesn't grow with resolution of the file.
+ *
+ * <p>Exposes metrics previews.queued and previews.rejected.
+ */
+@Slf4j
+@Service
+public class DocPreviewService {
+
+  /** Size of previews stored inline in docs, before they were moved to the BlobStore. */
+  static final int LEGACY_PREVIEW_SIZE = 200;
+
+  private static final String LEGACY_PREVIEW_FIELD = "documentPreview";
+
+  /** Images are decoded at least this times bigger than the biggest preview, for its quality. */
+  private static final int DECODE_SIZE_FACTOR = 2;
+
+  private final BlobStore blobStore;
+  private final DocRepository documentRepository;
+  private final MongoTemplate mongoTemplate;
+  private final StorageProperties.Previews previewsProperties;
+  private final Executor executor;
+
+  private final Counter rejectedCounter;
+
+  @Autowired
+  public DocPreviewService(
+      BlobStore blobStore,
+      DocRepository documentRepository,
+      MongoTemplate mongoTemplate,
+      StorageProperties storageProperties,
+      MeterRegistry meterRegistry) {
+    this(
+        blobStore,
+        documentRepository,
+        mongoTemplate,
+        storageProperties,
+        meterRegistry,
+        createExecutor(storageProperties.getPreviews()));
+  }
+
+  DocPreviewService(
+      BlobStore blobStore,
+      DocRepository documentRepository,
+      MongoTemplate mongoTemplate,
+      StorageProperties storageProperties,
+      MeterRegistry meterRegistry,
+      Executor executor) {
+    this.blobStore = blobStore;
+    this.documentRepository = documentRepository;
+    this.mongoTemplate = mongoTemplate;
+    this.previewsProperties = storageProperties.getPreviews();
+    this.executor = executor;
+
+    if (executor instanceof ThreadPoolExecutor) {
+      Gauge.builder("previews.queued", (ThreadPoolExecutor) executor, e -> e.getQueue().size())
+          .description("Docs waiting for previews")
+          .register(meterRegistry);
+    }
+    this.rejectedCounter =
+        Counter.builder("previews.rejected")
+            .description("Docs left without preview because preview queue was full")
+            .register(meterRegistry);
+  }
+
+  public static boolean isPreviewSupported(String extension) {
+    return "png".equalsIgnoreCase(extension)
+        || "jpg".equalsIgnoreCase(extension)
+        || "jpeg".equalsIgnoreCase(extension)
+        || "pdf".equalsIgnoreCase(extension);
+  }
+
+  /**
+   * Creates previews of the doc in the background and sets them to the doc. When the queue is full
+   * or creating fails, the doc stays without preview.
+   *
+   * @param doc already saved doc with stored file
+   */
+  public void schedulePreviews(Doc doc) {
+    if (!isPreviewSupported(FilenameUtils.getExtension(doc.getNameOfFile()))) return;
+
+    try {
+      executor.execute(
+          () -> createAndSetPreviews(doc.getId(), doc.getDocumentBlobId(), doc.getNameOfFile()));
+    } catch (RejectedExecutionException e) {
+      rejectedCounter.increment();
+      log.warn("Preview queue is full, doc " + doc.getId() + " is left without preview.");
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (executor instanceof ExecutorService) ((ExecutorService) executor).shutdownNow();
+  }
+
+  /**
+   * Creates previews of the image or first page of the PDF in all configured sizes. Smaller
+   * previews are scaled from the bigger ones, so the original is decoded and scaled only once.
+   *
+   * @param content stream of the file, not closed
+   * @param fileName of the original file
+   * @return stored previews, empty when the file can't be read
+   * @throws IOException when the file can't be decoded or preview encoded
+   */
+  public List<DocPreview> createPreviews(InputStream content, String fileName)
+      throws IOException {
+    List<Integer> sizes = new ArrayList<>(previewsProperties.getSizes());
+    sizes.sort(Comparator.reverseOrder());
+    if (sizes.isEmpty()) return Collections.emptyList();
+
+    String extension = FilenameUtils.getExtension(fileName);
+    int decodeSize = sizes.get(0) * DECODE_SIZE_FACTOR;
+    BufferedImage image =
+        "pdf".equalsIgnoreCase(extension)
+            ? renderFirstPage(content, decodeSize)
+            : readSubsampled(content, decodeSize);
+    if (image == null) {
+      log.warn("Unable to read file for preview of file " + fileName);
+      return Collections.emptyList();
+    }
+
+    String format = previewFormat(extension);
+
+    List<DocPreview> previews = new ArrayList<>();
+    try {
+      for (int size : sizes) {
+        // image smaller than the preview isn't enlarged
+        if (Math.max(image.getWidth(), image.getHeight()) > size) {
+          image = Thumbnails.of(image).size(size, size).asBufferedImage();
+        }
+        previews.add(storePreview(image, format, fileName, size));
+      }
+    } catch (IOException | RuntimeException e) {
+      previews.forEach(preview -> blobStore.deleteBlob(preview.getBlobId()));
+      throw e;
+    }
+    return previews;
+  }
+
+  /**
+   * Finds the smallest preview, which is at least of requested size. The biggest one is used when
+   * all are smaller.
+   *
+   * @param doc with previews
+   * @param size requested size in px
+   * @return preview or empty, when the doc has none
+   */
+  public Optional<DocPreview> findPreview(Doc doc, int size) {
+    if (doc.getPreviews() == null || doc.getPreviews().isEmpty()) return Optional.empty();
+
+    List<DocPreview> bySize =
+        doc.getPreviews().stream()
+            .sorted(Comparator.comparingInt(DocPreview::getSize))
+            .collect(Collectors.toList());
+    for (DocPreview preview : bySize) {
+      if (preview.getSize() >= size) return Optional.of(preview);
+    }
+    return Optional.of(bySize.get(bySize.size() - 1));
+  }
+
+  public Resource loadPreview(DocPreview preview) {
+    return blobStore.loadBlob(preview.getBlobId());
+  }
+
+  /**
+   * Deletes previews of the doc, failures are only logged.
+   *
+   * @param previews of a deleted doc, may be null
+   */
+  public void deletePreviews(List<DocPreview> previews) {
+    if (previews == null) return;
+
+    for (DocPreview preview : previews) {
+      try {
+        blobStore.deleteBlob(preview.getBlobId());
+      } catch (RuntimeException e) {
+        log.error("Unable to delete preview " + preview.getBlobId() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Moves previews stored inline in docs into the BlobStore. They are kept in their original size,
+   * as sources of the docs may be big to be scaled again at startup.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void migrateInlinePreviews() {
+    Query withInlinePreview = Query.query(Criteria.where(LEGACY_PREVIEW_FIELD).exists(true));
+    withInlinePreview.fields().include(LEGACY_PREVIEW_FIELD).include("nameOfFile");
+    withInlinePreview.limit(100);
+    String collection = mongoTemplate.getCollectionName(Doc.class);
+
+    int migrated = 0;
+    List<Document> docs;
+    while (!(docs = mongoTemplate.find(withInlinePreview, Document.class, collection)).isEmpty()) {
+      for (Document doc : docs) {
+        Update update = new Update().unset(LEGACY_PREVIEW_FIELD);
+        Object preview = doc.get(LEGACY_PREVIEW_FIELD);
+        if (preview instanceof Binary) {
+          String fileName = doc.getString("nameOfFile");
+          String format = previewFormat(FilenameUtils.getExtension(fileName));
+          String blobId =
+              blobStore.storeBlob(
+                  new ByteArrayInputStream(((Binary) preview).getData()),
+                  previewFileName(fileName, LEGACY_PREVIEW_SIZE, format),
+                  contentType(format));
+          update.set(
+              "previews",
+              Collections.singletonList(
+                  new DocPreview(LEGACY_PREVIEW_SIZE, blobId, contentType(format))));
+        }
+        mongoTemplate.updateFirst(
+            Query.query(Criteria.where("_id").is(doc.get("_id"))), update, collection);
+        migrated++;
+      }
+    }
+    if (migrated > 0) log.info("Moved " + migrated + " inline previews into the BlobStore.");
+  }
+
+  private void createAndSetPreviews(String docId, String blobId, String fileName) {
+    List<DocPreview> previews;
+    try (InputStream content = blobStore.loadBlob(blobId).getInputStream()) {
+      previews = createPreviews(content, fileName);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Unable to create previews of doc " + docId + ": " + e.getMessage());
+      return;
+    }
+    if (previews.isEmpty()) return;
+
+    if (!documentRepository.updatePreviews(docId, previews)) {
+      log.info("Doc " + docId + " was deleted while its previews were created.");
+      deletePreviews(previews);
+    }
+  }
+
+  /**
+   * Decodes the image subsampled, so its raster isn't much bigger than requested size. Readers
+   * decode subsampled images row by row, full resolution raster is never allocated.
+   *
+   * @param content stream of the image
+   * @param decodeSize minimal longer side of decoded image, when the image is bigger
+   * @return decoded image or null, when there is no reader of the format
+   */
+  static BufferedImage readSubsampled(InputStream content, int decodeSize)
+      throws IOException {
+    try (ImageInputStream imageStream = ImageIO.createImageInputStream(content)) {
+      Iterator<ImageReader> readers =
+          imageStream != null ? ImageIO.getImageReaders(imageStream) : null;
+      if (readers == null || !readers.hasNext()) return null;
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageStream, true, true);
+        int longerSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+        int subsampling = Math.max(1, longerSide / decodeSize);
+
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, readParam);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Renders the first page of the PDF, so its longer side has requested size. Document is buffered
+   * in temporary file, not on heap.
+   *
+   * @param content stream of the PDF
+   * @param decodeSize longer side of rendered page
+   * @return rendered page or null, when the PDF has no pages
+   */
+  private static BufferedImage renderFirstPage(InputStream content, int decodeSize)
+      throws IOException {
+    try (PDDocument pdf = PDDocument.load(content, MemoryUsageSetting.setupTempFileOnly())) {
+      if (pdf.getNumberOfPages() == 0) return null;
+
+      PDRectangle pageBox = pdf.getPage(0).getCropBox();
+      float scale = decodeSize / Math.max(pageBox.getWidth(), pageBox.getHeight());
+      return new PDFRenderer(pdf).renderImage(0, scale, ImageType.RGB);
+    }
+  }
+
+  private static Executor createExecutor(StorageProperties.Previews previewsProperties) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return new ThreadPoolExecutor(
+        previewsProperties.getThreads(),
+        previewsProperties.getThreads(),
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(previewsProperties.getQueueCapacity()),
+        runnable -> {
+          Thread thread = new Thread(runnable, "DocPreviews-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  private DocPreview storePreview(BufferedImage image, String format, String fileName, int size)
+      throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    if (!ImageIO.write(image, format, outputStream)) {
+      throw new IOException("No writer of preview format " + format);
+    }
+    String blobId =
+        blobStore.storeBlob(
+            new ByteArrayInputStream(outputStream.toByteArray()),
+            previewFileName(fileName, size, format),
+            contentType(format));
+    return new DocPreview(size, blobId, contentType(format));
+  }
+
+  private static String previewFormat(String extension) {
+    return "png".equalsIgnoreCase(extension) ? "png" : "jpg";
+  }
+
+  private static String contentType(String format) {
+    return "png".equals(format) ? "image/png" : "image/jpeg";
+  }
+
+  private static String previewFileName(String fileName, int size, String format) {
+    return FilenameUtils.getBaseName(fileName) + "_preview_" + size + "." + format;
+  }
+}
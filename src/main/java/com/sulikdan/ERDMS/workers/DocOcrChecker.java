@@ -1,103 +1,72 @@
 package com.sulikdan.ERDMS.workers;
 
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
 import com.sulikdan.ERDMS.entities.AsyncApiState;
-import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
 import com.sulikdan.ERDMS.repositories.DocRepository;
-import com.sulikdan.ERDMS.repositories.mongo.DocCustomRepository;
-import com.sulikdan.ERDMS.services.DocService;
-import com.sulikdan.ERDMS.services.VirtualStorageService;
-import com.sulikdan.ERDMS.services.ocr.OCRService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.BeanFactory;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Optional;
 
 /**
  * Created by Daniel Šulik on 25-Jul-20
  *
- * <p>Class DocOcrChecker is used for .....
+ * <p>Class DocOcrChecker is recovery pass of OCR scheduling. Jobs are normally run by
+ * OcrJobScheduler, this pass only adds jobs for unscanned documents, that have none(e.g. created
+ * before a crash) and claims jobs, that were left by other nodes or expired.
  */
 @Slf4j
 @Configuration
 @EnableScheduling
 public class DocOcrChecker {
 
-  private TaskExecutor taskExecutor;
+  private static final List<AsyncApiState> UNSCANNED_STATES =
+      Arrays.asList(
+          AsyncApiState.WAITING_TO_SEND,
+          AsyncApiState.MANUAL_SENDING,
+          AsyncApiState.PROCESSING,
+          AsyncApiState.SCANNED,
+          AsyncApiState.RESOURCE_TO_CLEAN);
 
-  private final BeanFactory beanFactory;
-
-  private final DocService docService;
-//  private final DocCustomRepository customRepository;
   private final DocRepository documentRepository;
-  private final VirtualStorageService virtualStorageService;
+  private final OcrJobQueue ocrJobQueue;
+  private final OcrJobScheduler ocrJobScheduler;
+  private final OcrProperties ocrProperties;
 
   public DocOcrChecker(
-      TaskExecutor taskExecutor,
-      BeanFactory beanFactory,
-      DocService docService,
-//      DocCustomRepository customRepository,
       DocRepository documentRepository,
-      VirtualStorageService virtualStorageService) {
-    this.taskExecutor = taskExecutor;
-    this.beanFactory      = beanFactory;
-    this.docService       = docService;
-//    this.customRepository = customRepository;
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler,
+      OcrProperties ocrProperties) {
     this.documentRepository = documentRepository;
-    this.virtualStorageService = virtualStorageService;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrJobScheduler = ocrJobScheduler;
+    this.ocrProperties = ocrProperties;
   }
 
-  // (120000/2), initialDelay = (120000/2))
-  // 2min -> 120000milis
-  @Scheduled(fixedDelay = 60000)
+  @Scheduled(fixedDelayString = "${ocr.jobs.recovery-sweep-millis:600000}")
   public void checkUnscannedDocs() {
     log.info("Started DocumentOcrChecker!");
 
-    List<Doc> cleaningDocs =
-        documentRepository.findDocumentsByAsyncApiInfoAsyncApiState(
-            AsyncApiState.RESOURCE_TO_CLEAN);
-
-    // find processed -> to download
-    List<Doc> scannedDocs =
-        documentRepository.findDocumentsByAsyncApiInfoAsyncApiState(AsyncApiState.SCANNED);
-
-    //    check status
-    List<Doc> processingDocs =
-        documentRepository.findDocumentsByAsyncApiInfoAsyncApiState(AsyncApiState.PROCESSING);
-
-    // find to_be_send -> to process not yet processed
-    List<Doc> waitingToSendDocs =
-        documentRepository.findDocumentsByAsyncApiInfoAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+    // jobs already in queue are kept as they are, dead letters too - they ran out of attempts
+    ocrJobQueue.enqueueAll(documentRepository.findDocIdsByAsyncApiStates(UNSCANNED_STATES));
 
-    List<Doc> documentsWork = new ArrayList<>(scannedDocs);
-    documentsWork.addAll(processingDocs);
-    documentsWork.addAll(waitingToSendDocs);
-    documentsWork.addAll(cleaningDocs);
+    int claimed = 0;
+    Optional<OcrJob> job;
+    while (claimed < ocrProperties.getJobs().getClaimBatchSize()
+        && ocrJobScheduler.hasCapacity()
+        && ocrJobScheduler.isOcrAvailable()
+        && (job = ocrJobQueue.claimNext()).isPresent()) {
+      ocrJobScheduler.dispatch(job.get());
+      claimed++;
+    }
 
-    // filtering documents already in process
-    documentsWork =
-        documentsWork.stream()
-            .filter(document -> !virtualStorageService.isDocUsed(document.getId()))
-            .collect(Collectors.toList());
-
-    // add docs to virtual storage
-    documentsWork.forEach(document -> virtualStorageService.addDoc(document.getId()));
-
-    documentsWork.forEach(
-        document1 ->
-            taskExecutor.execute(
-                new OcrApiJobWorker(
-                    beanFactory.getBean(OCRService.class), docService,
-                    documentRepository,
-                    virtualStorageService,
-                    document1)));
-
-    log.info("Done executing works.");
+    log.info("Done executing works, claimed " + claimed + " jobs.");
   }
-
 }
@@ -1,95 +1,233 @@
 package com.sulikdan.ERDMS.workers;
 
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
 import com.sulikdan.ERDMS.entities.AsyncApiState;
 import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
 import com.sulikdan.ERDMS.repositories.DocRepository;
 import com.sulikdan.ERDMS.services.DocService;
-import com.sulikdan.ERDMS.services.VirtualStorageService;
 import com.sulikdan.ERDMS.services.ocr.OCRService;
+import com.sulikdan.ERDMS.services.ocr.OcrCircuitBreaker;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.ocr.OcrPollingPolicy;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
 
 /**
  * Created by Daniel Šulik on 25-Jul-20
  *
- * <p>Class OcrApiJobWorker is used for .....
+ * <p>Class OcrApiJobWorker is used for processing claimed OCR job of a document. When the worker
+ * ends, the job is either completed or released back to the OcrJobQueue. Worker is a reactive
+ * pipeline, so it doesn't hold a thread while waiting for OCR.
  */
 @Slf4j
-@Async("threadPoolTaskExecutor")
-public class OcrApiJobWorker implements Runnable {
+public class OcrApiJobWorker {
 
   private OCRService ocrService;
   private DocService docService;
   private DocRepository documentRepository;
-  private VirtualStorageService virtualStorageService;
+  private OcrJobQueue ocrJobQueue;
+  private OcrJobScheduler ocrJobScheduler;
+  private OcrPollingPolicy ocrPollingPolicy;
+  private OcrProperties.Jobs jobsProperties;
+  private OcrJob job;
   private Doc doc;
 
+  /** State of the doc before the current OCR step. */
+  private AsyncApiState lastState;
+
   public OcrApiJobWorker(
       OCRService ocrService,
       DocService docService,
       DocRepository documentRepository,
-      VirtualStorageService virtualStorageService,
+      OcrJobQueue ocrJobQueue,
+      OcrJobScheduler ocrJobScheduler,
+      OcrPollingPolicy ocrPollingPolicy,
+      OcrProperties.Jobs jobsProperties,
+      OcrJob job,
       Doc doc) {
     this.ocrService = ocrService;
     this.docService = docService;
     this.documentRepository = documentRepository;
-    this.virtualStorageService = virtualStorageService;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrJobScheduler = ocrJobScheduler;
+    this.ocrPollingPolicy = ocrPollingPolicy;
+    this.jobsProperties = jobsProperties;
+    this.job = job;
     this.doc = doc;
   }
 
-  @Override
-  public void run() {
-
-    log.info("Running OcrApiJobWorker.");
-
-    AsyncApiState lastState = doc.getAsyncApiInfo().getAsyncApiState();
-    Doc returned = doc;
-
-    int whileCounter = 0;
-    // reapeat communication till there is change and its succesfull
-    do {
-      lastState = doc.getAsyncApiInfo().getAsyncApiState();
-
-      try {
-        returned = ocrService.extractTextFromDoc(doc);
-      } catch (Exception e) {
-        log.error(
-            MessageFormat.format(
-                "There was issue with OCR scanning document {0}.\n With error message: {1}.",
-                returned.getId(), e.getMessage()));
-        log.error(Arrays.toString(e.getStackTrace()));
+  /**
+   * Creates pipeline processing the job. OCR calls don't block any thread, DB updates are done on
+   * bounded elastic scheduler.
+   *
+   * @return Mono completed, when the job is completed or released back to the queue
+   */
+  public Mono<Void> process() {
+    return Mono.defer(
+        () -> {
+          log.info("Running OcrApiJobWorker.");
+          return processStep(0);
+        })
+        .onErrorResume(
+            e ->
+                Mono.<Void>fromRunnable(() -> handleFailure(e))
+                    .subscribeOn(Schedulers.boundedElastic()))
+        .doFinally(signal -> log.info("Finished OcrApiJobWorker."));
+  }
 
-        e.printStackTrace();
+  /** Does one OCR step and continues with next one, till there is change and its succesfull. */
+  private Mono<Void> processStep(int stepCounter) {
+    lastState = doc.getAsyncApiInfo().getAsyncApiState();
 
-        // remove from map containing docs in use
-        virtualStorageService.deleteDoc(returned.getId());
+    return ocrService
+        .extractTextFromDocAsync(doc)
+        .map(Optional::of)
+        .defaultIfEmpty(Optional.empty())
+        .publishOn(Schedulers.boundedElastic())
+        .flatMap(returned -> afterStep(returned.orElse(null), stepCounter));
+  }
 
-        if( virtualStorageService.docFailedTimes(returned.getId()) >= 3 ){
-          returned.getAsyncApiInfo().setAsyncApiState(AsyncApiState.FAILED);
-          docService.saveDoc(returned);
-          continue;
-        }
+  private Mono<Void> afterStep(Doc returned, int stepCounter) {
+    if (returned == null) {
+      // OCR returned nothing, checking it later
+      releaseJob(jobsProperties.getPollDelayMillis(), false);
+      return Mono.empty();
+    }
+
+    AsyncApiState newState = returned.getAsyncApiInfo().getAsyncApiState();
+    // pages are filled by scanning, by text layer of PDF before it's sent or when all its pages
+    // scanned one by one are done
+    boolean pagesChanged =
+        lastState == AsyncApiState.SCANNED
+            || lastState == AsyncApiState.WAITING_TO_SEND
+            || lastState == AsyncApiState.MANUAL_SENDING
+            || (lastState == AsyncApiState.PROCESSING && newState == AsyncApiState.COMPLETED);
+    if (!docService.saveOcrProgress(returned, lastState, pagesChanged)) {
+      log.warn(
+          MessageFormat.format(
+              "Doc {0} was changed by someone else while in state {1}, releasing job.",
+              returned.getId(), lastState));
+      releaseJob(0, false);
+      return Mono.empty();
+    }
+
+    if (newState == AsyncApiState.COMPLETED) {
+      ocrJobQueue.complete(job);
+      return Mono.empty();
+    }
+    if (newState == AsyncApiState.FAILED) {
+      // page of the document ran out of its attempts, it's not retried as a whole
+      job.setLastError("OCR of a page failed, see pages of the doc.");
+      ocrJobQueue.deadLetter(job);
+      return Mono.empty();
+    }
+    if (newState == AsyncApiState.PROCESSING) {
+      // OCR is working on the document, status is checked when it's expected to be done
+      if (lastState != AsyncApiState.PROCESSING) {
+        job.setSubmittedAt(new Date());
+        job.setPollCount(0);
+        releaseJob(ocrPollingPolicy.firstPollDelay(returned), false);
+      } else {
+        job.setPollCount(job.getPollCount() + 1);
+        if (job.getSubmittedAt() != null)
+          ocrPollingPolicy.recordStillProcessing(
+              returned, System.currentTimeMillis() - job.getSubmittedAt().getTime());
+        releaseJob(ocrPollingPolicy.nextPollDelay(returned, job.getPollCount()), false);
+      }
+      return Mono.empty();
+    }
+    if (job.getSubmittedAt() != null) {
+      // OCR finished, only time reported by callback is learned - polling finds it late
+      if (lastState != AsyncApiState.PROCESSING)
+        ocrPollingPolicy.recordCompletion(
+            returned, System.currentTimeMillis() - job.getSubmittedAt().getTime());
+      job.setSubmittedAt(null);
+    }
+    if (newState == lastState || stepCounter >= 10) {
+      releaseJob(jobsProperties.getPollDelayMillis(), false);
+      return Mono.empty();
+    }
+    // result is downloaded and cleaned right away
+    return processStep(stepCounter + 1);
+  }
 
-        virtualStorageService.addOrIncreaseFailedDoc(returned.getId());
+  private void handleFailure(Throwable e) {
+    if (OcrCircuitBreaker.isOutage(e)) {
+      // fault is on our side or OCR is down, document is not blamed for it
+      log.warn("OCR unavailable for doc " + doc.getId() + ", pausing job: " + e.getMessage());
+      releaseJob(ocrJobScheduler.getPauseMillis(), false);
+      return;
+    }
+
+    log.error(
+        MessageFormat.format(
+            "There was issue with OCR scanning document {0}.\n With error message: {1}.",
+            doc.getId(), e.getMessage()));
+    log.error(Arrays.toString(e.getStackTrace()));
+
+    job.setLastError(describeError(e));
+
+    // job must not stay claimed, heartbeat would keep it forever
+    if (job.getAttempts() + 1 >= jobsProperties.getMaxAttempts()) {
+      deadLetterWithFailedDoc();
+    } else {
+      releaseJob(retryDelayMillis(job.getAttempts()), true);
+    }
+  }
 
+  /**
+   * Job is moved to dead letters only with its doc marked FAILED, otherwise the doc would stay
+   * unscanned without a job. Doc changed meanwhile(e.g. by callback) is reloaded.
+   */
+  private void deadLetterWithFailedDoc() {
+    AsyncApiState expectedState = lastState;
+    for (int i = 0; i < 3; i++) {
+      if (expectedState == AsyncApiState.COMPLETED) {
+        ocrJobQueue.complete(job);
+        return;
+      }
+      doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.FAILED);
+      if (expectedState == AsyncApiState.FAILED
+          || docService.saveOcrProgress(doc, expectedState, false)) {
+        ocrJobQueue.deadLetter(job);
+        return;
       }
 
-      if (returned != null) docService.saveDoc(returned);
-      if (whileCounter++ >= 10) {
-        // TODO in case there is exception the doc is not deleted rom virtualStorage!!
-        log.error("Counter reached more than it should!");
-        break;
+      Optional<Doc> current = documentRepository.findById(doc.getId());
+      if (!current.isPresent()) {
+        // doc was deleted, there is nothing to scan
+        ocrJobQueue.complete(job);
+        return;
       }
+      doc = current.get();
+      expectedState = doc.getAsyncApiInfo().getAsyncApiState();
+    }
 
-    } while (returned != null
-        && returned.getAsyncApiInfo().getAsyncApiState() != lastState
-        && returned.getAsyncApiInfo().getAsyncApiState() != AsyncApiState.COMPLETED);
+    log.warn("Doc " + doc.getId() + " keeps changing, its failed job is tried again later.");
+    releaseJob(jobsProperties.getPollDelayMillis(), false);
+  }
 
-    virtualStorageService.deleteDoc(doc.getId());
+  /** Exponential backoff of failed attempts. */
+  private long retryDelayMillis(int attempts) {
+    long delay = jobsProperties.getRetryBaseDelayMillis() << Math.min(attempts, 20);
+    return Math.min(delay, jobsProperties.getRetryMaxDelayMillis());
+  }
+
+  private static String describeError(Throwable e) {
+    String description = e.getClass().getSimpleName() + ": " + e.getMessage();
+    return description.length() > 1000 ? description.substring(0, 1000) : description;
+  }
 
-    log.info("Finished OcrApiJobWorker.");
+  /** Returns the job to the queue and schedules it again on this node. */
+  private void releaseJob(long delayMillis, boolean failed) {
+    ocrJobQueue.release(job, delayMillis, failed);
+    ocrJobScheduler.schedule(job.getId(), delayMillis);
   }
 }
@@ -0,0 +1,104 @@
+package com.sulikdan.ERDMS.workers;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.services.ocr.OcrBackendRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Class OcrJobExecutor runs OCR workers with bounded concurrency. Workers are reactive pipelines,
+ * so running workers don't occupy threads, the limit only protects OCR from too many parallel
+ * jobs. The limit is per OCR backend, so it grows with the number of backends. Workers over the
+ * limit wait in a bounded queue. Jobs, which don't fit into the queue, are
+ * not lost, they stay in OcrJobQueue and are tried again later.
+ *
+ * <p>Exposes metrics ocr.executor.active, ocr.executor.queued and ocr.executor.rejected.
+ */
+@Slf4j
+@Component
+public class OcrJobExecutor {
+
+  private final int maxActive;
+  private final int queueCapacity;
+
+  private final Queue<OcrApiJobWorker> queuedWorkers = new ArrayDeque<>();
+  private int activeCount = 0;
+
+  private final Counter rejectedCounter;
+
+  public OcrJobExecutor(
+      OcrProperties ocrProperties, OcrBackendRouter ocrBackendRouter, MeterRegistry meterRegistry) {
+    OcrProperties.Executor executorProperties = ocrProperties.getExecutor();
+    this.maxActive =
+        Math.max(
+            1,
+            executorProperties.getConcurrencyPerBackend() * ocrBackendRouter.getBackends().size());
+    this.queueCapacity = executorProperties.getQueueCapacity();
+
+    Gauge.builder("ocr.executor.active", this, OcrJobExecutor::getActiveCount)
+        .description("OCR jobs being processed")
+        .register(meterRegistry);
+    Gauge.builder("ocr.executor.queued", this, OcrJobExecutor::getQueuedCount)
+        .description("OCR jobs waiting for a free worker")
+        .register(meterRegistry);
+    this.rejectedCounter =
+        Counter.builder("ocr.executor.rejected")
+            .description("OCR jobs left in DB because executor was full")
+            .register(meterRegistry);
+
+    log.info("OCR executor running with " + maxActive + " parallel jobs.");
+  }
+
+  /** @return true if there is space for another job */
+  public synchronized boolean hasCapacity() {
+    return activeCount < maxActive || queuedWorkers.size() < queueCapacity;
+  }
+
+  /**
+   * Starts worker, or queues it when all workers are busy.
+   *
+   * @param worker to be run
+   * @return false if worker was rejected
+   */
+  public synchronized boolean trySubmit(OcrApiJobWorker worker) {
+    if (activeCount < maxActive) {
+      activeCount++;
+      start(worker);
+      return true;
+    }
+    if (queuedWorkers.size() < queueCapacity) {
+      queuedWorkers.add(worker);
+      return true;
+    }
+
+    rejectedCounter.increment();
+    return false;
+  }
+
+  public synchronized int getActiveCount() {
+    return activeCount;
+  }
+
+  public synchronized int getQueuedCount() {
+    return queuedWorkers.size();
+  }
+
+  private void start(OcrApiJobWorker worker) {
+    worker.process().doFinally(signal -> workerFinished()).subscribe();
+  }
+
+  private synchronized void workerFinished() {
+    OcrApiJobWorker next = queuedWorkers.poll();
+    if (next != null) {
+      start(next);
+    } else {
+      activeCount--;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.sulikdan.ERDMS.workers;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.DocService;
+import com.sulikdan.ERDMS.services.ocr.OCRService;
+import com.sulikdan.ERDMS.services.ocr.OcrCircuitBreaker;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.ocr.OcrPollingPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class OcrJobScheduler runs OCR jobs of this node as soon as they are due. Every scheduled job
+ * waits in a delay queue till its own due time, then it's claimed in OcrJobQueue and handed to a
+ * worker. Jobs are scheduled on upload, when a document is sent to scan again and when a worker
+ * returns an unfinished job.
+ */
+@Slf4j
+@Component
+public class OcrJobScheduler {
+
+  private final OcrJobExecutor ocrJobExecutor;
+  private final BeanFactory beanFactory;
+  private final DocRepository documentRepository;
+  private final OcrJobQueue ocrJobQueue;
+  private final OcrPollingPolicy ocrPollingPolicy;
+  private final OcrCircuitBreaker ocrCircuitBreaker;
+  private final OcrProperties ocrProperties;
+
+  private final DelayQueue<ScheduledJob> delayQueue = new DelayQueue<>();
+
+  /** Due time of each scheduled doc, so a doc is not waiting in the queue more times. */
+  private final ConcurrentHashMap<String, Long> scheduledDueTimes = new ConcurrentHashMap<>();
+
+  private Thread dispatcherThread;
+
+  public OcrJobScheduler(
+      OcrJobExecutor ocrJobExecutor,
+      BeanFactory beanFactory,
+      DocRepository documentRepository,
+      OcrJobQueue ocrJobQueue,
+      OcrPollingPolicy ocrPollingPolicy,
+      OcrCircuitBreaker ocrCircuitBreaker,
+      OcrProperties ocrProperties) {
+    this.ocrJobExecutor = ocrJobExecutor;
+    this.beanFactory = beanFactory;
+    this.documentRepository = documentRepository;
+    this.ocrJobQueue = ocrJobQueue;
+    this.ocrPollingPolicy = ocrPollingPolicy;
+    this.ocrCircuitBreaker = ocrCircuitBreaker;
+    this.ocrProperties = ocrProperties;
+  }
+
+  @PostConstruct
+  public void start() {
+    dispatcherThread = new Thread(this::dispatchDueJobs, "OcrJobScheduler");
+    dispatcherThread.setDaemon(true);
+    dispatcherThread.start();
+  }
+
+  @PreDestroy
+  public void stop() {
+    dispatcherThread.interrupt();
+  }
+
+  /**
+   * Schedules job of the document to be claimed after the delay. When the doc is already scheduled
+   * sooner, nothing changes.
+   *
+   * @param docId id of the document, its job has to be in OcrJobQueue
+   * @param delayMillis after which is the job claimed
+   */
+  public void schedule(String docId, long delayMillis) {
+    long dueAt = System.currentTimeMillis() + delayMillis;
+
+    Long previousDueAt = scheduledDueTimes.putIfAbsent(docId, dueAt);
+    if (previousDueAt == null) {
+      delayQueue.offer(new ScheduledJob(docId, dueAt));
+    } else if (dueAt < previousDueAt && scheduledDueTimes.replace(docId, previousDueAt, dueAt)) {
+      // the later one is skipped when taken from the queue
+      delayQueue.offer(new ScheduledJob(docId, dueAt));
+    }
+  }
+
+  /**
+   * Hands already claimed job to a worker.
+   *
+   * @param job claimed by this node
+   */
+  public void dispatch(OcrJob job) {
+    Optional<Doc> doc = documentRepository.findById(job.getId());
+    if (!doc.isPresent()) {
+      log.info("Doc of OCR job " + job.getId() + " doesn't exist anymore, removing job.");
+      ocrJobQueue.complete(job);
+      return;
+    }
+    AsyncApiState state = doc.get().getAsyncApiInfo().getAsyncApiState();
+    if (state == AsyncApiState.COMPLETED || state == AsyncApiState.FAILED) {
+      ocrJobQueue.complete(job);
+      return;
+    }
+
+    boolean submitted =
+        ocrJobExecutor.trySubmit(
+            new OcrApiJobWorker(
+                beanFactory.getBean(OCRService.class),
+                beanFactory.getBean(DocService.class),
+                documentRepository,
+                ocrJobQueue,
+                this,
+                ocrPollingPolicy,
+                ocrProperties.getJobs(),
+                job,
+                doc.get()));
+    if (!submitted) {
+      log.warn("OCR executor is full, leaving job " + job.getId() + " in DB.");
+      long delay = ocrProperties.getExecutor().getSpillRetryMillis();
+      ocrJobQueue.release(job, delay, false);
+      schedule(job.getId(), delay);
+    }
+  }
+
+  /** @return true if executor can take another job */
+  public boolean hasCapacity() {
+    return ocrJobExecutor.hasCapacity();
+  }
+
+  /** @return false while OCR circuit breaker is open, jobs are paused meanwhile */
+  public boolean isOcrAvailable() {
+    return ocrCircuitBreaker.isCallPermitted();
+  }
+
+  /** @return delay of jobs paused because OCR is unavailable */
+  public long getPauseMillis() {
+    return ocrCircuitBreaker.getRetryDelayMillis();
+  }
+
+  /** Number of jobs waiting for their due time. */
+  public int getScheduledCount() {
+    return scheduledDueTimes.size();
+  }
+
+  private void dispatchDueJobs() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        ScheduledJob scheduledJob = delayQueue.take();
+        if (!scheduledDueTimes.remove(scheduledJob.docId, scheduledJob.dueAt)) continue;
+
+        if (!ocrCircuitBreaker.isCallPermitted()) {
+          // OCR is down, job waits till the breaker lets calls through
+          schedule(scheduledJob.docId, ocrCircuitBreaker.getRetryDelayMillis());
+          continue;
+        }
+        if (!ocrJobExecutor.hasCapacity()) {
+          // job stays queued in DB till there is free worker
+          schedule(scheduledJob.docId, ocrProperties.getExecutor().getSpillRetryMillis());
+          continue;
+        }
+
+        // job may be claimed by other node or postponed meanwhile, recovery sweep finds it later
+        ocrJobQueue.claim(scheduledJob.docId).ifPresent(this::dispatch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        log.error("Dispatching of OCR job failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private static class ScheduledJob implements Delayed {
+
+    private final String docId;
+    private final long dueAt;
+
+    ScheduledJob(String docId, long dueAt) {
+      this.docId = docId;
+      this.dueAt = dueAt;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+  }
+}
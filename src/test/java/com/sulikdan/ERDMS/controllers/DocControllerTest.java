@@ -9,9 +9,20 @@ import com.sulikdan.ERDMS.dto.DocDto;
 import com.sulikdan.ERDMS.dto.DocDtoConverter;
 import com.sulikdan.ERDMS.entities.AsyncApiInfo;
 import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.ingest.UploadChunk;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
 import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
+import com.sulikdan.ERDMS.exceptions.InvalidUploadChunkException;
 import com.sulikdan.ERDMS.services.DocService;
+import com.sulikdan.ERDMS.services.ingest.IngestResult;
 import com.sulikdan.ERDMS.services.users.UserService;
 import org.junit.Assert;
 import org.junit.jupiter.api.BeforeEach;
@@ -22,9 +33,11 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.modelmapper.ModelMapper;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.hateoas.Link;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -33,7 +46,9 @@ import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -42,6 +57,8 @@ import static org.mockito.Mockito.*;
 import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 /**
@@ -163,17 +180,22 @@ class DocControllerTest {
     // Given
     DocDtoConverter tmpDocDtoConverter = new DocDtoConverter();
 
-    List<Doc> docList = new ArrayList<>();
-    Doc doc = setUpDocument();
-    docList.add(doc);
-    docList.add(doc);
+    DocSummary docSummary = new DocSummary();
+    docSummary.setId("999xyz999");
+    docSummary.setNameOfFile("tmp.png");
+    docSummary.setAsyncApiInfo(new AsyncApiInfo());
+    docSummary.setIsShared(false);
+
+    List<DocSummary> docSummaryList = new ArrayList<>();
+    docSummaryList.add(docSummary);
+    docSummaryList.add(docSummary);
 
-    DocDto docDto = tmpDocDtoConverter.convertToDto(doc);
+    DocDto docDto = tmpDocDtoConverter.convertToDto(docSummary);
     List<DocDto> docDtoList = new ArrayList<>();
     docDtoList.add(docDto);
     docDtoList.add(docDto);
 
-    Page<Doc> pagedDocs = new PageImpl<>(docList);
+    Page<DocSummary> pagedDocs = new PageImpl<>(docSummaryList);
     Page<DocDto> pagedDocsDto = new PageImpl<>(docDtoList);
 
     //  loadConnectedUser()
@@ -184,9 +206,9 @@ class DocControllerTest {
     when(userService.loadUserByUserName(user.getUsername()))
             .thenReturn(java.util.Optional.ofNullable(user));
 
-    when(docService.findDocsUsingSearchParams(any(),anyInt(),anyInt(),any())).thenReturn(pagedDocs);
+    when(docService.findDocSummariesUsingSearchParams(any(),anyInt(),anyInt(),any())).thenReturn(pagedDocs);
 
-    when(docDtoConverter.convertToDto(any())).thenReturn(docDto);
+    when(docDtoConverter.convertToDto(any(DocSummary.class))).thenReturn(docDto);
 
     // when
     MvcResult mvcResult =
@@ -196,8 +218,9 @@ class DocControllerTest {
     // then
     Assert.assertEquals(mapper.writeValueAsString(pagedDocsDto),mvcResult.getResponse().getContentAsString());
     verify(userService).loadUserByUserName(anyString());
-    verify(docService).findDocsUsingSearchParams(any(),anyInt(),anyInt(),any());
-    verify(docDtoConverter,atLeastOnce()).convertToDto(any());
+    verify(docService).findDocSummariesUsingSearchParams(any(),anyInt(),anyInt(),any());
+    verify(docService, never()).findDocsUsingSearchParams(any(),anyInt(),anyInt(),any());
+    verify(docDtoConverter,atLeastOnce()).convertToDto(any(DocSummary.class));
   }
 
   @Disabled
@@ -246,7 +269,8 @@ class DocControllerTest {
     final String docId = "99xaa";
     final Doc doc = setUpDocument();
 
-    doc.setDocumentAsBytes(new byte[] { 1, 2, 3, 127});
+    final byte[] fileBytes = new byte[] { 1, 2, 3, 127};
+    doc.setDocumentBlobId("blob1");
 
     // Load user ...
     when(securityContext.getAuthentication()).thenReturn(authentication);
@@ -256,6 +280,7 @@ class DocControllerTest {
     when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
 
     when(docService.findDocById(docId, user)).thenReturn(doc);
+    when(docService.loadDocFile(doc)).thenReturn(new ByteArrayResource(fileBytes));
 
     // when
     MvcResult mvcResult =
@@ -269,12 +294,233 @@ class DocControllerTest {
 
     // then
     Assert.assertNotNull(mvcResult);
-    Assert.assertEquals(doc.getDocumentAsBytes()[0], mvcResult.getResponse().getContentAsByteArray()[0]);
-    Assert.assertEquals(doc.getDocumentAsBytes()[1], mvcResult.getResponse().getContentAsByteArray()[1]);
-    Assert.assertEquals(doc.getDocumentAsBytes()[2], mvcResult.getResponse().getContentAsByteArray()[2]);
-    Assert.assertEquals(doc.getDocumentAsBytes()[3], mvcResult.getResponse().getContentAsByteArray()[3]);
+    Assert.assertEquals(fileBytes[0], mvcResult.getResponse().getContentAsByteArray()[0]);
+    Assert.assertEquals(fileBytes[1], mvcResult.getResponse().getContentAsByteArray()[1]);
+    Assert.assertEquals(fileBytes[2], mvcResult.getResponse().getContentAsByteArray()[2]);
+    Assert.assertEquals(fileBytes[3], mvcResult.getResponse().getContentAsByteArray()[3]);
     verify(userService).loadUserByUserName(anyString());
     verify(docService).findDocById(any(), any());
+    verify(docService).loadDocFile(doc);
+  }
+
+  @Test
+  void getDocFileRange() throws Exception {
+    // Given
+    final String docId = "99xaa";
+    final Doc doc = setUpDocument();
+    doc.setDocumentBlobId("blob1");
+    doc.setDocumentSha256("abc123");
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.findDocById(docId, user)).thenReturn(doc);
+    when(docService.loadDocFile(doc)).thenReturn(new ByteArrayResource(new byte[] {1, 2, 3, 127}));
+
+    // when
+    MvcResult mvcResult =
+        this.mockMvc
+            .perform(get("/documents/{docId}/file", docId).header("Range", "bytes=1-2"))
+            .andExpect(status().isPartialContent())
+            .andExpect(header().string("Content-Range", "bytes 1-2/4"))
+            .andExpect(header().string("ETag", "\"abc123\""))
+            .andReturn();
+
+    // then
+    Assert.assertArrayEquals(new byte[] {2, 3}, mvcResult.getResponse().getContentAsByteArray());
+  }
+
+  @Test
+  void getDocFileNotModified() throws Exception {
+    // Given
+    final String docId = "99xaa";
+    final Doc doc = setUpDocument();
+    doc.setDocumentBlobId("blob1");
+    doc.setDocumentSha256("abc123");
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.findDocById(docId, user)).thenReturn(doc);
+
+    // when
+    this.mockMvc
+        .perform(get("/documents/{docId}/file", docId).header("If-None-Match", "\"abc123\""))
+        .andExpect(status().isNotModified());
+
+    // then
+    verify(docService, never()).loadDocFile(any());
+  }
+
+  @Test
+  void getDocPreview() throws Exception {
+    // Given
+    final String docId = "99xaa";
+    final Doc doc = setUpDocument();
+    final DocPreview preview = new DocPreview(150, "preview150", "image/png");
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.findDocById(docId, user)).thenReturn(doc);
+    when(docService.findDocPreview(doc, 100)).thenReturn(preview);
+    when(docService.loadDocPreview(preview)).thenReturn(new ByteArrayResource(new byte[] {1, 2}));
+
+    // when
+    this.mockMvc
+        .perform(get("/documents/{docId}/preview", docId).param("size", "100"))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType("image/png"))
+        .andExpect(header().string("ETag", "\"preview150\""))
+        .andExpect(header().string("Cache-Control", "max-age=31536000, private"));
+  }
+
+  @Test
+  void uploadDocsAsync() throws Exception {
+    // Given
+    final IngestFile file =
+        new IngestFile("doc1", "tmp.png", IngestFileState.STAGED, null, "blob1", "sha", 4);
+    final IngestBatch batch =
+        IngestBatch.builder().id("batch1").ownerId(user.getId()).files(Arrays.asList(file)).build();
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.acceptNewDocs(any(), any(DocConfig.class), eq(user))).thenReturn(batch);
+
+    // when
+    this.mockMvc
+        .perform(
+            multipart("/documents/")
+                .file(new MockMultipartFile("files", "tmp.png", "image/png", new byte[] {1}))
+                .param("async", "true"))
+        .andExpect(status().isAccepted())
+        .andExpect(header().string("Location", BASE_PATH + "/documents/uploads/batch1"))
+        .andExpect(jsonPath("$.id", is("batch1")))
+        .andExpect(jsonPath("$.completed", is(false)))
+        .andExpect(jsonPath("$.files[0].docId", is("doc1")))
+        .andExpect(jsonPath("$.files[0].blobId").doesNotExist());
+
+    verify(docService, never()).processNewDocs(any(), any(DocConfig.class), any(User.class));
+  }
+
+  @Test
+  void uploadDocsReportsFailedFiles() throws Exception {
+    // Given
+    final Doc doc = setUpDocument();
+    final IngestFile failedFile =
+        new IngestFile(
+            "doc2",
+            "my scan.png",
+            IngestFileState.FAILED,
+            "File couldn't be stored.",
+            null,
+            null,
+            0);
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.processNewDocs(any(), any(DocConfig.class), eq(user)))
+        .thenReturn(new IngestResult(Arrays.asList(doc), Arrays.asList(failedFile)));
+    when(docDtoConverter.convertToDto(any(Doc.class))).thenReturn(new DocDto());
+
+    // when
+    this.mockMvc
+        .perform(
+            multipart("/documents/")
+                .file(new MockMultipartFile("files", "tmp.png", "image/png", new byte[] {1}))
+                .file(new MockMultipartFile("files", "my scan.png", "image/png", new byte[] {2})))
+        .andExpect(status().isOk())
+        .andExpect(header().string(DocController.FAILED_FILES_HEADER, "my%20scan.png"))
+        .andExpect(jsonPath("$.length()", is(1)));
+  }
+
+  @Test
+  void putUploadChunk() throws Exception {
+    // Given
+    final UploadChunk chunk = new UploadChunk(0, 3, "abc123", "blob1");
+    final UploadSession session =
+        UploadSession.builder().id("session1").ownerId(user.getId()).nameOfFile("book.pdf").build();
+    session.getChunks().put("0", chunk);
+
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.storeUploadChunk(
+            eq("session1"), eq(0), any(InputStream.class), eq("abc123"), eq(user)))
+        .thenReturn(session);
+
+    // when
+    this.mockMvc
+        .perform(
+            put("/documents/upload-sessions/{sessionId}/chunks/{index}", "session1", 0)
+                .header(DocController.CHUNK_SHA256_HEADER, "abc123")
+                .contentType("application/octet-stream")
+                .content(new byte[] {1, 2, 3}))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.id", is("session1")))
+        .andExpect(jsonPath("$.chunks[0].index", is(0)))
+        .andExpect(jsonPath("$.chunks[0].sha256", is("abc123")))
+        .andExpect(jsonPath("$.chunks[0].blobId").doesNotExist());
+  }
+
+  @Test
+  void putUploadChunkWithWrongChecksum() throws Exception {
+    // Given
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.storeUploadChunk(
+            eq("session1"), eq(0), any(InputStream.class), eq("abc123"), eq(user)))
+        .thenThrow(new InvalidUploadChunkException("Checksum of chunk 0 doesn't match!"));
+
+    // when
+    this.mockMvc
+        .perform(
+            put("/documents/upload-sessions/{sessionId}/chunks/{index}", "session1", 0)
+                .header(DocController.CHUNK_SHA256_HEADER, "abc123")
+                .content(new byte[] {1, 2, 3}))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void getUploadNotFound() throws Exception {
+    // Given
+    when(securityContext.getAuthentication()).thenReturn(authentication);
+    SecurityContextHolder.setContext(securityContext);
+    when(SecurityContextHolder.getContext().getAuthentication().getName())
+        .thenReturn(user.getUsername());
+    when(userService.loadUserByUserName(anyString())).thenReturn(Optional.of(user));
+
+    when(docService.findIngestBatch("batch1", user))
+        .thenThrow(new DocNotFoundException("Upload not found!"));
+
+    // when
+    this.mockMvc
+        .perform(get("/documents/uploads/{batchId}", "batch1"))
+        .andExpect(status().isNotFound());
   }
 
   @Test
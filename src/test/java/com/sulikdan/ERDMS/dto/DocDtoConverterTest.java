@@ -81,4 +81,36 @@ class DocDtoConverterTest {
     Assert.assertEquals(toBeConverted.getDocConfig(),converted.getDocConfig());
     Assert.assertEquals(toBeConverted.getAsyncApiInfo().getAsyncApiState(),converted.getDocState());
   }
+
+  @Test
+  public void docSummaryConvertedToDocDto() {
+    AsyncApiInfo apiInfo = new AsyncApiInfo();
+    apiInfo.setAsyncApiState(AsyncApiState.COMPLETED);
+
+    DocSummary toBeConverted = new DocSummary();
+    toBeConverted.setId("aaa111aaa");
+    toBeConverted.setNameOfFile("scan.png");
+    toBeConverted.setDocConfig(new DocConfig(false, false, "eng", false));
+    toBeConverted.setDocType(DocType.IMG);
+    toBeConverted.setTags(Arrays.asList(new Tag("Forest"), new Tag("Sun")));
+    toBeConverted.setCreateDateTime(LocalDateTime.now());
+    toBeConverted.setIsShared(true);
+    toBeConverted.setAsyncApiInfo(apiInfo);
+    toBeConverted.setPreviews(Arrays.asList(new DocPreview(64, "preview1", "image/png")));
+
+    // tested method
+    DocDto converted = docDtoConverter.convertToDto(toBeConverted);
+
+    Assert.assertNotNull(converted);
+    Assert.assertEquals(toBeConverted.getId(),converted.getId());
+    Assert.assertEquals(toBeConverted.getNameOfFile(),converted.getNameOfFile());
+    Assert.assertEquals(toBeConverted.getDocType(),converted.getDocType());
+    Assert.assertEquals(toBeConverted.getTags(),converted.getTags());
+    Assert.assertEquals(toBeConverted.getIsShared(),converted.getIsShared());
+    Assert.assertEquals(toBeConverted.getDocConfig(),converted.getDocConfig());
+    Assert.assertEquals(AsyncApiState.COMPLETED,converted.getDocState());
+    // previews aren't sent inline, URLs are added by controller
+    Assert.assertNull(converted.getPreviewUrls());
+    Assert.assertNull(converted.getDocPageList());
+  }
 }
@@ -0,0 +1,132 @@
+package com.sulikdan.ERDMS.repositories;
+
+import com.sulikdan.ERDMS.entities.*;
+import com.sulikdan.ERDMS.entities.users.User;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.domain.Page;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Class DocListingBenchmarkIT compares listing of documents before (whole Doc entities) and after
+ * (DocSummary projection) on embedded MongoDB. It prints bytes transferred and latency per page of
+ * 20 documents.
+ */
+@ActiveProfiles("test")
+@ExtendWith(SpringExtension.class)
+@DataMongoTest
+public class DocListingBenchmarkIT {
+
+  private static final int DOCS_COUNT = 200;
+  private static final int PAGE_SIZE = 20;
+  private static final int PAGES_PER_DOC = 10;
+  private static final int ROUNDS = 50;
+
+  @Autowired private DocRepository documentRepository;
+  @Autowired private UserRepository userRepository;
+  @Autowired private MongoTemplate mongoTemplate;
+
+  private User user;
+
+  private SearchDocParams searchDocParams;
+
+  @BeforeEach
+  void setUp() {
+    user = User.builder().id("1234").email("bench@IdontKnow.com").username("bench").build();
+    userRepository.save(user);
+
+    documentRepository.deleteAll();
+
+    char[] pageText = new char[3000];
+    Arrays.fill(pageText, 'x');
+    List<DocPreview> previews =
+        Arrays.asList(
+            new DocPreview(64, new ObjectId().toString(), "image/png"),
+            new DocPreview(150, new ObjectId().toString(), "image/png"),
+            new DocPreview(400, new ObjectId().toString(), "image/png"));
+
+    List<Doc> docs = new ArrayList<>();
+    for (int i = 0; i < DOCS_COUNT; i++) {
+      List<DocPage> pages = new ArrayList<>();
+      for (int page = 0; page < PAGES_PER_DOC; page++) pages.add(new DocPage(new String(pageText)));
+
+      docs.add(
+          Doc.builder()
+              .nameOfFile("Scan" + i + ".png")
+              .docPageList(pages)
+              .previews(previews)
+              .docConfig(new DocConfig(false, false, "eng", false))
+              .asyncApiInfo(new AsyncApiInfo(AsyncApiState.COMPLETED, "", ""))
+              .tags(Arrays.asList(new Tag("invoice"), new Tag("2020")))
+              .owner(user)
+              .build());
+    }
+    documentRepository.saveAll(docs);
+
+    searchDocParams = new SearchDocParams();
+    searchDocParams.setPageIndex(0);
+    searchDocParams.setPageSize(PAGE_SIZE);
+  }
+
+  @Test
+  void listingPageOfTwenty() {
+    String collection = mongoTemplate.getCollectionName(Doc.class);
+
+    long bytesBefore =
+        bsonSize(mongoTemplate.find(new Query().limit(PAGE_SIZE), Document.class, collection));
+    long bytesAfter =
+        bsonSize(
+            mongoTemplate.find(
+                DocSummary.withProjection(new Query().limit(PAGE_SIZE)),
+                Document.class,
+                collection));
+
+    double millisBefore =
+        measureMillis(() -> documentRepository.findDocsByMultipleArgs(searchDocParams, user));
+    double millisAfter =
+        measureMillis(
+            () -> documentRepository.findDocSummariesByMultipleArgs(searchDocParams, user));
+
+    System.out.println("Listing page of " + PAGE_SIZE + " docs | bytes | avg ms");
+    System.out.println("  before (Doc)        | " + bytesBefore + " | " + millisBefore);
+    System.out.println("  after  (DocSummary) | " + bytesAfter + " | " + millisAfter);
+
+    Assert.assertEquals(
+        PAGE_SIZE,
+        documentRepository.findDocSummariesByMultipleArgs(searchDocParams, user).getContent().size());
+    Assert.assertTrue(bytesAfter * 2 < bytesBefore);
+  }
+
+  private static long bsonSize(List<Document> documents) {
+    long size = 0;
+    for (Document document : documents) {
+      size += new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().remaining();
+    }
+    return size;
+  }
+
+  private static double measureMillis(Supplier<Page<?>> listing) {
+    // warm-up
+    for (int i = 0; i < 5; i++) listing.get();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) listing.get();
+    return (System.nanoTime() - start) / 1_000_000.0 / ROUNDS;
+  }
+}
@@ -1,5 +1,7 @@
 package com.sulikdan.ERDMS.repositories;
 
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
 import com.sulikdan.ERDMS.entities.Doc;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
 import com.sulikdan.ERDMS.entities.users.User;
@@ -11,6 +13,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.data.domain.Page;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
@@ -99,6 +102,14 @@ public class DocRepositoryIT {
     Assert.assertEquals(docList.get(0).getId(), docRetrieved.getId());
   }
 
+  @Test
+  void findDocumentByIdKeepsOwnerUnresolved() {
+    Doc docRetrieved = documentRepository.findById("11xyz11").get();
+
+    Assert.assertEquals(user.getId(), docRetrieved.getOwnerId());
+    Assert.assertTrue(docRetrieved.getOwner() instanceof LazyLoadingProxy);
+  }
+
   @Test
   void findDocsByMultipleArgsUsingIds() {
     List<String> ids = new ArrayList<>();
@@ -139,6 +150,43 @@ public class DocRepositoryIT {
     Assert.assertEquals(docList.get(0).getId(), docsList.get(1).getId());
   }
 
+  @Test
+  void updateOcrProgressOnlyFromExpectedState() {
+    AsyncApiInfo processing = new AsyncApiInfo(AsyncApiState.PROCESSING, "status", "result");
+
+    Assert.assertTrue(
+        documentRepository.updateOcrProgress(
+            "11xyz11", AsyncApiState.WAITING_TO_SEND, processing, null));
+    // second worker still expects the old state
+    Assert.assertFalse(
+        documentRepository.updateOcrProgress(
+            "11xyz11",
+            AsyncApiState.WAITING_TO_SEND,
+            new AsyncApiInfo(AsyncApiState.FAILED, "", ""),
+            null));
+
+    Doc docRetrieved = documentRepository.findById("11xyz11").get();
+    Assert.assertEquals(AsyncApiState.PROCESSING, docRetrieved.getAsyncApiInfo().getAsyncApiState());
+    Assert.assertEquals("status", docRetrieved.getAsyncApiInfo().getOcrApiDocStatus());
+    Assert.assertEquals(docList.get(0).getNameOfFile(), docRetrieved.getNameOfFile());
+  }
+
+  @Test
+  void findDocIdsByAsyncApiStates() {
+    documentRepository.save(docList.get(1));
+    documentRepository.updateOcrProgress(
+        docList.get(1).getId(),
+        AsyncApiState.WAITING_TO_SEND,
+        new AsyncApiInfo(AsyncApiState.COMPLETED, "", ""),
+        null);
+
+    List<String> ids =
+        documentRepository.findDocIdsByAsyncApiStates(
+            Arrays.asList(AsyncApiState.WAITING_TO_SEND, AsyncApiState.PROCESSING));
+
+    Assert.assertEquals(Collections.singletonList(docList.get(0).getId()), ids);
+  }
+
   @Test
   void saveDocument() {
     documentRepository.save(docList.get(1));
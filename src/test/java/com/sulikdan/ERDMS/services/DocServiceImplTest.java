@@ -2,12 +2,19 @@ package com.sulikdan.ERDMS.services;
 
 import com.sulikdan.ERDMS.entities.Doc;
 import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.entities.DocSummary;
 import com.sulikdan.ERDMS.entities.SearchDocParams;
 import com.sulikdan.ERDMS.entities.users.User;
 import com.sulikdan.ERDMS.repositories.DocRepository;
 import com.sulikdan.ERDMS.repositories.mongo.DocCustomRepository;
-import com.sulikdan.ERDMS.services.ocr.OCRService;
-import com.sulikdan.ERDMS.workers.OcrApiJobWorker;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import com.sulikdan.ERDMS.services.ingest.IngestBatchService;
+import com.sulikdan.ERDMS.services.ingest.UploadSessionService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
 import org.junit.Assert;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -15,7 +22,8 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -41,14 +49,22 @@ class DocServiceImplTest {
 
   @Mock DocCustomRepository customRepository;
 
-  @Mock TaskExecutor taskExecutor;
+  @Mock OcrJobQueue ocrJobQueue;
 
-  @Mock OCRService ocrService;
-
-  @Mock VirtualStorageService virtualStorageService;
+  @Mock OcrJobScheduler ocrJobScheduler;
 
   @Mock FileStorageService storageService;
 
+  @Mock BlobStore blobStore;
+
+  @Mock BlobDedupService blobDedupService;
+
+  @Mock IngestBatchService ingestBatchService;
+
+  @Mock UploadSessionService uploadSessionService;
+
+  @Mock DocPreviewService docPreviewService;
+
   MongoTemplate mongoTemplate;
 
   DocService docService;
@@ -67,10 +83,14 @@ class DocServiceImplTest {
 
     docService =
         new DocServiceImpl(
-            taskExecutor,
-            ocrService,
-            virtualStorageService,
+            ocrJobQueue,
+            ocrJobScheduler,
             storageService,
+            blobStore,
+            blobDedupService,
+            ingestBatchService,
+            uploadSessionService,
+            docPreviewService,
             documentRepository);
   }
 
@@ -121,6 +141,28 @@ class DocServiceImplTest {
 
   }
 
+  @Test
+  void loadDocFile() {
+    Doc doc = Doc.builder().id("abcd").documentBlobId("blob1").owner(user).build();
+    Resource file = new ByteArrayResource(new byte[] {1, 2, 3});
+
+    when(blobStore.loadBlob("blob1")).thenReturn(file);
+
+    Resource loaded = docService.loadDocFile(doc);
+
+    Assert.assertSame(file, loaded);
+    verify(blobStore).loadBlob("blob1");
+    verify(documentRepository, never()).findById(anyString());
+  }
+
+  @Test
+  void loadDocFileWithoutBlob() {
+    Doc doc = Doc.builder().id("abcd").owner(user).build();
+
+    Assertions.assertThrows(RuntimeException.class, () -> docService.loadDocFile(doc));
+    verify(blobStore, never()).loadBlob(anyString());
+  }
+
   @Test
   void createNewDoc() {
     // given
@@ -129,19 +171,16 @@ class DocServiceImplTest {
     Doc doc = new Doc();
     doc.setOwner(user);
     doc.setDocConfig(new DocConfig());
-    doc.getDocConfig().setScanImmediately(true);
 
     when(documentRepository.save(any(Doc.class))).thenReturn(doc);
-    doNothing().when(virtualStorageService).addDoc(anyString());
-    doNothing().when(taskExecutor).execute(any(OcrApiJobWorker.class));
 
     // when
     docService.createNewDoc(doc);
 
     // then
     verify(documentRepository).save(any(Doc.class));
-    verify(virtualStorageService).addDoc(anyString());
-    verify(taskExecutor).execute(any(OcrApiJobWorker.class));
+    verify(ocrJobQueue).enqueue(doc.getId());
+    verify(ocrJobScheduler).schedule(doc.getId(), 0);
   }
 
   @Test
@@ -202,6 +241,8 @@ class DocServiceImplTest {
     Doc doc = new Doc();
     doc.setDocConfig(new DocConfig());
     doc.setOwner(user);
+    doc.setDocumentBlobId("blob1");
+    doc.setPreviews(Collections.singletonList(new DocPreview(64, "preview1", "image/png")));
     Optional<Doc> optionalDoc = Optional.of(doc);
 
     when(documentRepository.findById(anyString())).thenReturn(optionalDoc);
@@ -213,6 +254,8 @@ class DocServiceImplTest {
     // then
     verify(documentRepository).findById(anyString());
     verify(documentRepository).deleteById(anyString());
+    verify(blobDedupService).release(null, "blob1");
+    verify(docPreviewService).deletePreviews(doc.getPreviews());
   }
 
   @Test
@@ -241,4 +284,37 @@ class DocServiceImplTest {
     verify(documentRepository, times(1)).findDocsByMultipleArgs(docParams, user);
     verify(documentRepository, never()).findAll();
   }
+
+  @Test
+  void findDocSummariesUsingSearchParams() {
+    SearchDocParams docParams = new SearchDocParams();
+
+    DocSummary summary = new DocSummary();
+    summary.setId("abcd");
+    Page<DocSummary> pagedSummaries = new PageImpl<>(Collections.singletonList(summary));
+
+    when(documentRepository.findDocSummariesByMultipleArgs(docParams, user))
+        .thenReturn(pagedSummaries);
+
+    Page<DocSummary> found = docService.findDocSummariesUsingSearchParams(docParams, 0, 20, user);
+
+    Assert.assertEquals(1, found.getContent().size());
+    verify(documentRepository).findDocSummariesByMultipleArgs(docParams, user);
+    verify(documentRepository, never()).findDocsByMultipleArgs(any(), any());
+    verify(documentRepository, never()).findDocSummariesByFullText(any(), any());
+  }
+
+  @Test
+  void findDocSummariesUsingFullText() {
+    SearchDocParams docParams = new SearchDocParams();
+    docParams.setFullText("invoice");
+
+    when(documentRepository.findDocSummariesByFullText(docParams, user))
+        .thenReturn(new PageImpl<>(Collections.emptyList()));
+
+    docService.findDocSummariesUsingSearchParams(docParams, 0, 20, user);
+
+    verify(documentRepository).findDocSummariesByFullText(docParams, user);
+    verify(documentRepository, never()).findDocSummariesByMultipleArgs(any(), any());
+  }
 }
@@ -0,0 +1,127 @@
+package com.sulikdan.ERDMS.services.blobs;
+
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.entities.blobs.BlobRef;
+import com.sulikdan.ERDMS.entities.ingest.UploadChunk;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class BlobDedupServiceIT is IT(Integration Test) for BlobDedupService, counting references of
+ * shared blobs in MongoDB.
+ */
+@ActiveProfiles("test")
+@ExtendWith(SpringExtension.class)
+@DataMongoTest
+public class BlobDedupServiceIT {
+
+  private static final String SHA = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  @Autowired private MongoTemplate mongoTemplate;
+
+  private BlobStore blobStore;
+  private StorageProperties storageProperties;
+  private BlobDedupService blobDedupService;
+
+  @BeforeEach
+  void setUp() {
+    mongoTemplate.dropCollection(BlobRef.class);
+    mongoTemplate.dropCollection(Doc.class);
+    mongoTemplate.dropCollection(UploadSession.class);
+    blobStore = mock(BlobStore.class);
+    storageProperties = new StorageProperties();
+    storageProperties.getDedup().setGcGraceMillis(0);
+    blobDedupService =
+        new BlobDedupService(mongoTemplate, blobStore, storageProperties, new SimpleMeterRegistry());
+  }
+
+  @Test
+  void sameContentIsStoredOnce() {
+    Assert.assertEquals("blob1", blobDedupService.acquire(SHA, "blob1", 100));
+    Assert.assertEquals("blob1", blobDedupService.acquire(SHA, "blob2", 100));
+
+    verify(blobStore).deleteBlob("blob2");
+    verify(blobStore, never()).deleteBlob("blob1");
+    Assert.assertEquals(2, mongoTemplate.findById(SHA, BlobRef.class).getRefCount());
+
+    blobDedupService.collectGarbage();
+    Assert.assertEquals(2.0, blobDedupService.getDedupRatio(), 0.001);
+    Assert.assertEquals(100, blobDedupService.getSavedBytes());
+  }
+
+  @Test
+  void blobIsDeletedByGarbageCollectorWhenNotReferenced() throws InterruptedException {
+    blobDedupService.acquire(SHA, "blob1", 100);
+    blobDedupService.acquire(SHA, "blob2", 100);
+
+    blobDedupService.release(SHA, "blob1");
+    Assert.assertEquals(0, blobDedupService.collectGarbage());
+
+    blobDedupService.release(SHA, "blob1");
+    Thread.sleep(5);
+    Assert.assertEquals(1, blobDedupService.collectGarbage());
+
+    verify(blobStore).deleteBlob("blob1");
+    Assert.assertNull(mongoTemplate.findById(SHA, BlobRef.class));
+  }
+
+  @Test
+  void releasedContentIsReusedBeforeCollected() {
+    storageProperties.getDedup().setGcGraceMillis(60000);
+    blobDedupService.acquire(SHA, "blob1", 100);
+    blobDedupService.release(SHA, "blob1");
+
+    Assert.assertEquals("blob1", blobDedupService.acquire(SHA, "blob2", 100));
+    Assert.assertEquals(0, blobDedupService.collectGarbage());
+    verify(blobStore, never()).deleteBlob("blob1");
+  }
+
+  @Test
+  void orphanBlobsAreDeletedByGarbageCollector() {
+    blobDedupService.acquire(SHA, "countedBlob", 100);
+    Doc doc = new Doc();
+    doc.setDocumentBlobId("docBlob");
+    doc.setPreviews(Collections.singletonList(new DocPreview(64, "previewBlob", "image/png")));
+    mongoTemplate.insert(doc);
+    UploadSession session = UploadSession.builder().id("session1").build();
+    session.getChunks().put("0", UploadChunk.builder().index(0).blobId("chunkBlob").build());
+    mongoTemplate.insert(session);
+    when(blobStore.findBlobIdsStoredBefore(any(Date.class)))
+        .thenReturn(
+            Arrays.asList("countedBlob", "docBlob", "previewBlob", "chunkBlob", "orphanBlob"));
+
+    Assert.assertEquals(1, blobDedupService.collectGarbage());
+
+    verify(blobStore).deleteBlob("orphanBlob");
+    verify(blobStore, times(1)).deleteBlob(anyString());
+  }
+
+  @Test
+  void blobStoredBeforeCountingIsDeletedRightAway() {
+    blobDedupService.release(SHA, "legacyBlob");
+    blobDedupService.release(null, "migratedBlob");
+
+    verify(blobStore).deleteBlob("legacyBlob");
+    verify(blobStore).deleteBlob("migratedBlob");
+    verify(blobStore, times(2)).deleteBlob(anyString());
+  }
+}
@@ -0,0 +1,95 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import org.junit.Assert;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class DocIngestPipelineHeapBenchmarkIT measures heap allocated by DocIngestPipeline per upload
+ * of 4 MB and 128 MB files, with and without staged copy. Heap per upload must not grow with the
+ * size of the file. Measured numbers depend on JIT and GC, so it's not part of unit tests.
+ */
+public class DocIngestPipelineHeapBenchmarkIT {
+
+  private static final long MB = 1024 * 1024;
+
+  private DocIngestPipeline docIngestPipeline;
+
+  @BeforeEach
+  void setUp() {
+    BlobStore blobStore = mock(BlobStore.class);
+    BlobDedupService blobDedupService = mock(BlobDedupService.class);
+
+    // behaves as GridFS - drains the stream using fixed size buffer
+    when(blobStore.storeBlob(any(InputStream.class), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              InputStream content = invocation.getArgument(0);
+              byte[] buffer = new byte[8192];
+              while (content.read(buffer) != -1) {}
+              return "blob1";
+            });
+    when(blobDedupService.acquire(anyString(), anyString(), anyLong()))
+        .thenAnswer(invocation -> invocation.getArgument(1));
+
+    docIngestPipeline = new DocIngestPipeline(blobStore, blobDedupService);
+  }
+
+  @Test
+  void heapPerUploadDoesNotGrowWithFileSize() throws IOException {
+    com.sun.management.ThreadMXBean threadBean = allocationMeasuringBean();
+
+    // warm-up, so class loading & JIT are not measured
+    measureAllocatedBytes(threadBean, 4 * MB, true);
+
+    long smallNoCopy = measureAllocatedBytes(threadBean, 4 * MB, false);
+    long bigNoCopy = measureAllocatedBytes(threadBean, 128 * MB, false);
+    long smallWithCopy = measureAllocatedBytes(threadBean, 4 * MB, true);
+    long bigWithCopy = measureAllocatedBytes(threadBean, 128 * MB, true);
+
+    System.out.println("Allocated bytes per upload | 4 MB | 128 MB");
+    System.out.println("  without copy | " + smallNoCopy + " | " + bigNoCopy);
+    System.out.println("  with copy    | " + smallWithCopy + " | " + bigWithCopy);
+
+    // 32x bigger file may not cost more than 1 MB of additional heap
+    Assert.assertTrue(bigNoCopy < smallNoCopy + MB);
+    Assert.assertTrue(bigWithCopy < smallWithCopy + MB);
+    Assert.assertTrue(bigWithCopy < 4 * MB);
+  }
+
+  private long measureAllocatedBytes(
+      com.sun.management.ThreadMXBean threadBean, long fileSize, boolean stageCopy)
+      throws IOException {
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+
+    IngestedFile ingested =
+        docIngestPipeline.ingest(new GeneratedInputStream(fileSize), "scan.png", null, stageCopy);
+
+    long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+    if (ingested.getStagedCopy() != null) ingested.getStagedCopy().close();
+    return allocated;
+  }
+
+  private static com.sun.management.ThreadMXBean allocationMeasuringBean() {
+    Assumptions.assumeTrue(
+        ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assumptions.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+    return threadBean;
+  }
+}
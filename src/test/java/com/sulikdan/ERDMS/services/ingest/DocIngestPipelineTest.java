@@ -0,0 +1,106 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class DocIngestPipelineTest is used for JUnit tests of DocIngestPipeline. Heap allocated per
+ * upload is measured by DocIngestPipelineHeapBenchmarkIT.
+ */
+class DocIngestPipelineTest {
+
+  private static final long MB = 1024 * 1024;
+
+  @Mock BlobStore blobStore;
+
+  @Mock BlobDedupService blobDedupService;
+
+  DocIngestPipeline docIngestPipeline;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    // behaves as GridFS - drains the stream using fixed size buffer
+    when(blobStore.storeBlob(any(InputStream.class), anyString(), any()))
+        .thenAnswer(
+            invocation -> {
+              InputStream content = invocation.getArgument(0);
+              byte[] buffer = new byte[8192];
+              while (content.read(buffer) != -1) {}
+              return "blob1";
+            });
+
+    when(blobDedupService.acquire(anyString(), anyString(), anyLong()))
+        .thenAnswer(invocation -> invocation.getArgument(1));
+
+    docIngestPipeline = new DocIngestPipeline(blobStore, blobDedupService);
+  }
+
+  @Test
+  void ingestComputesDigestAndSize() throws IOException {
+    byte[] content = "abc".getBytes(StandardCharsets.UTF_8);
+
+    IngestedFile ingested =
+        docIngestPipeline.ingest(new ByteArrayInputStream(content), "a.txt", null, false);
+
+    Assert.assertEquals("blob1", ingested.getBlobId());
+    Assert.assertEquals(3, ingested.getSize());
+    Assert.assertEquals(
+        "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", ingested.getSha256());
+    Assert.assertNull(ingested.getStagedCopy());
+    verify(blobStore, times(1)).storeBlob(any(InputStream.class), anyString(), any());
+  }
+
+  @Test
+  void ingestUsesAlreadyStoredContent() throws IOException {
+    when(blobDedupService.acquire(anyString(), eq("blob1"), anyLong())).thenReturn("storedBlob");
+
+    IngestedFile ingested =
+        docIngestPipeline.ingest(
+            new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)), "a.txt", null, false);
+
+    Assert.assertEquals("storedBlob", ingested.getBlobId());
+    verify(blobDedupService)
+        .acquire("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", "blob1", 3);
+  }
+
+  @Test
+  void ingestStagesCopyOfSameContent() throws IOException {
+    long size = 3 * MB;
+
+    IngestedFile ingested =
+        docIngestPipeline.ingest(new GeneratedInputStream(size), "scan.png", "image/png", true);
+
+    try (StagedCopy stagedCopy = ingested.getStagedCopy()) {
+      Assert.assertNotNull(stagedCopy);
+      Assert.assertTrue("Big copy has to be spilled to disk!", stagedCopy.isOnDisk());
+
+      long copiedBytes = 0;
+      try (InputStream copy = stagedCopy.openStream()) {
+        int read;
+        while ((read = copy.read()) != -1) {
+          Assert.assertEquals(GeneratedInputStream.byteAt(copiedBytes), read);
+          copiedBytes++;
+        }
+      }
+      Assert.assertEquals(size, copiedBytes);
+    }
+  }
+}
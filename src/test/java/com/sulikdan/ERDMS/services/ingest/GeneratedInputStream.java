@@ -0,0 +1,33 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import java.io.InputStream;
+
+/** Stream generating content on the fly, so the test itself doesn't hold the file on heap. */
+class GeneratedInputStream extends InputStream {
+
+  private final long size;
+  private long position;
+
+  GeneratedInputStream(long size) {
+    this.size = size;
+  }
+
+  static int byteAt(long position) {
+    return (int) (position % 251);
+  }
+
+  @Override
+  public int read() {
+    return position < size ? byteAt(position++) : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) {
+    if (position >= size) return -1;
+    int toRead = (int) Math.min(length, size - position);
+    for (int i = 0; i < toRead; i++) {
+      buffer[offset + i] = (byte) byteAt(position++);
+    }
+    return toRead;
+  }
+}
@@ -0,0 +1,324 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class IngestBatchServiceTest is used for JUnit tests of IngestBatchService. Batches are processed
+ * right in the calling thread.
+ */
+class IngestBatchServiceTest {
+
+  @Mock DocIngestPipeline docIngestPipeline;
+
+  @Mock BlobDedupService blobDedupService;
+
+  @Mock DocPreviewService docPreviewService;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock OcrJobScheduler ocrJobScheduler;
+
+  @Mock MongoTemplate mongoTemplate;
+
+  @Mock IndexOperations indexOperations;
+
+  @Mock BulkOperations bulkOperations;
+
+  User user = User.builder().id("1234").username("tester").build();
+
+  DocConfig docConfig = new DocConfig(false, false, "eng", false);
+
+  IngestBatchService ingestBatchService;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    when(mongoTemplate.indexOps(IngestBatch.class)).thenReturn(indexOperations);
+    when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Doc.class))
+        .thenReturn(bulkOperations);
+    when(bulkOperations.insert(anyList())).thenReturn(bulkOperations);
+    when(docIngestPipeline.ingest(any(InputStream.class), anyString(), any(), anyBoolean()))
+        .thenAnswer(
+            invocation ->
+                new IngestedFile("blob-" + invocation.getArgument(1), "sha", 4, null));
+
+    ingestBatchService =
+        new IngestBatchService(
+            docIngestPipeline,
+            blobDedupService,
+            docPreviewService,
+            ocrJobQueue,
+            ocrJobScheduler,
+            mongoTemplate,
+            new StorageProperties(),
+            Runnable::run);
+  }
+
+  @Test
+  void failedFileDoesNotStopOthers() throws IOException {
+    when(docIngestPipeline.ingest(any(InputStream.class), eq("broken.png"), any(), anyBoolean()))
+        .thenThrow(new RuntimeException("GridFS is down"));
+
+    List<IngestFile> stagedFiles =
+        ingestBatchService.stageFiles(
+            new MultipartFile[] {createFile("broken.png"), createFile("scan.png")});
+
+    Assert.assertEquals(IngestFileState.FAILED, stagedFiles.get(0).getState());
+    Assert.assertNotNull(stagedFiles.get(0).getError());
+    Assert.assertEquals(IngestFileState.STAGED, stagedFiles.get(1).getState());
+    Assert.assertEquals("blob-scan.png", stagedFiles.get(1).getBlobId());
+    Assert.assertNotNull(stagedFiles.get(1).getDocId());
+  }
+
+  @Test
+  void submittedBatchIsSavedAndProcessed() {
+    List<IngestFile> stagedFiles =
+        ingestBatchService.stageFiles(new MultipartFile[] {createFile("scan.png")});
+    when(mongoTemplate.findById(anyString(), eq(IngestBatch.class)))
+        .thenAnswer(invocation -> copyOf(invocation.getArgument(0), stagedFiles));
+
+    IngestBatch batch = ingestBatchService.submit(stagedFiles, docConfig, user);
+
+    verify(mongoTemplate).insert(batch);
+    // returned batch isn't changed by processing
+    Assert.assertEquals(IngestFileState.STAGED, batch.getFiles().get(0).getState());
+    Assert.assertNull(batch.getCompletedAt());
+
+    ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+    verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(IngestBatch.class));
+    Document setFields = update.getValue().getUpdateObject().get("$set", Document.class);
+    Assert.assertNotNull(setFields.get("completedAt"));
+    verify(bulkOperations).execute();
+    verify(ocrJobQueue).enqueueAll(Arrays.asList(stagedFiles.get(0).getDocId()));
+  }
+
+  @Test
+  void docsAreCreatedForStagedFiles() {
+    IngestBatch batch =
+        createBatch(
+            stagedFile("doc1", "scan.png"), failedFile("doc2"), stagedFile("doc3", "b.jpg"));
+
+    List<Doc> docs = ingestBatchService.createDocs(batch);
+
+    Assert.assertEquals(2, docs.size());
+    Assert.assertEquals("doc1", docs.get(0).getId());
+    Assert.assertEquals("1234", docs.get(0).getOwnerId());
+    Assert.assertEquals("blob-doc1", docs.get(0).getDocumentBlobId());
+    Assert.assertEquals(
+        AsyncApiState.WAITING_TO_SEND, docs.get(0).getAsyncApiInfo().getAsyncApiState());
+    Assert.assertEquals(IngestFileState.CREATED, batch.getFiles().get(0).getState());
+    Assert.assertEquals(IngestFileState.FAILED, batch.getFiles().get(1).getState());
+
+    // single bulk for docs and for their jobs
+    ArgumentCaptor<List<Doc>> insertedDocs = ArgumentCaptor.forClass(List.class);
+    verify(bulkOperations).insert(insertedDocs.capture());
+    Assert.assertEquals(2, insertedDocs.getValue().size());
+    verify(bulkOperations, times(1)).execute();
+    verify(ocrJobQueue).enqueueAll(Arrays.asList("doc1", "doc3"));
+    verify(ocrJobQueue, never()).enqueue(anyString());
+    verify(ocrJobScheduler).schedule("doc3", 0);
+    verify(docPreviewService, times(2)).schedulePreviews(any(Doc.class));
+  }
+
+  @Test
+  void failuresAreReportedPerFile() {
+    when(bulkOperations.execute())
+        .thenThrow(
+            new BulkOperationException(
+                "bulk failed",
+                new MongoBulkWriteException(
+                    BulkWriteResult.unacknowledged(),
+                    Arrays.asList(
+                        new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0),
+                        new BulkWriteError(2, "bad value", new BsonDocument(), 2)),
+                    null,
+                    new ServerAddress())));
+    IngestBatch batch =
+        createBatch(
+            stagedFile("doc1", "scan.png"),
+            stagedFile("doc2", "a.png"),
+            stagedFile("doc3", "b.png"));
+
+    List<Doc> docs = ingestBatchService.createDocs(batch);
+
+    Assert.assertEquals(1, docs.size());
+    Assert.assertEquals("doc2", docs.get(0).getId());
+    // already created doc isn't overwritten, only its missing job is queued
+    Assert.assertEquals(IngestFileState.CREATED, batch.getFiles().get(0).getState());
+    Assert.assertEquals(IngestFileState.CREATED, batch.getFiles().get(1).getState());
+    Assert.assertEquals(IngestFileState.FAILED, batch.getFiles().get(2).getState());
+    Assert.assertNotNull(batch.getFiles().get(2).getError());
+    verify(ocrJobQueue).enqueueAll(Arrays.asList("doc1", "doc2"));
+    verify(docPreviewService, times(1)).schedulePreviews(any(Doc.class));
+    verify(blobDedupService).release("sha", "blob-doc3");
+    verify(blobDedupService, never()).release("sha", "blob-doc1");
+  }
+
+  @Test
+  void filesStayStagedWhenInsertOutcomeIsUnknown() {
+    when(bulkOperations.execute()).thenThrow(new RuntimeException("Connection lost"));
+    IngestBatch batch = createBatch(stagedFile("doc1", "scan.png"), stagedFile("doc2", "a.png"));
+
+    try {
+      ingestBatchService.createDocs(batch);
+      Assert.fail("Unknown failure of the insert was swallowed!");
+    } catch (RuntimeException e) {
+      // expected
+    }
+
+    // docs may be written already, their blobs are kept
+    Assert.assertEquals(IngestFileState.STAGED, batch.getFiles().get(0).getState());
+    Assert.assertEquals(IngestFileState.STAGED, batch.getFiles().get(1).getState());
+    verify(blobDedupService, never()).release(anyString(), anyString());
+    verify(ocrJobQueue, never()).enqueueAll(anyList());
+  }
+
+  @Test
+  void batchIsNotCompletedWhenInsertOutcomeIsUnknown() {
+    when(bulkOperations.execute()).thenThrow(new RuntimeException("Connection lost"));
+    List<IngestFile> stagedFiles =
+        ingestBatchService.stageFiles(new MultipartFile[] {createFile("scan.png")});
+    when(mongoTemplate.findById(anyString(), eq(IngestBatch.class)))
+        .thenAnswer(invocation -> copyOf(invocation.getArgument(0), stagedFiles));
+
+    ingestBatchService.submit(stagedFiles, docConfig, user);
+
+    // left for recovery sweep
+    verify(mongoTemplate, never())
+        .updateFirst(any(Query.class), any(Update.class), eq(IngestBatch.class));
+  }
+
+  @Test
+  void uploadCreatedRightAwayIsLeftForRecoveryOnUnknownFailure() {
+    when(bulkOperations.execute()).thenThrow(new RuntimeException("Connection lost"));
+    List<IngestFile> stagedFiles =
+        new ArrayList<>(Arrays.asList(stagedFile("doc1", "scan.png")));
+
+    try {
+      ingestBatchService.createDocsNow(stagedFiles, docConfig, user);
+      Assert.fail("Unknown failure of the insert was swallowed!");
+    } catch (RuntimeException e) {
+      // expected
+    }
+
+    ArgumentCaptor<IngestBatch> savedBatch = ArgumentCaptor.forClass(IngestBatch.class);
+    verify(mongoTemplate).insert(savedBatch.capture());
+    Assert.assertNotNull(savedBatch.getValue().getId());
+    Assert.assertNull(savedBatch.getValue().getCompletedAt());
+    Assert.assertEquals(IngestFileState.STAGED, savedBatch.getValue().getFiles().get(0).getState());
+    verify(blobDedupService, never()).release(anyString(), anyString());
+  }
+
+  @Test
+  void staleBatchIsRecovered() {
+    IngestBatch batch = createBatch(stagedFile("doc1", "scan.png"));
+    when(mongoTemplate.findAndModify(
+            any(Query.class),
+            any(Update.class),
+            any(FindAndModifyOptions.class),
+            eq(IngestBatch.class)))
+        .thenReturn(batch)
+        .thenReturn(null);
+
+    ingestBatchService.recoverBatches();
+
+    verify(bulkOperations).execute();
+    verify(mongoTemplate).updateFirst(any(Query.class), any(Update.class), eq(IngestBatch.class));
+  }
+
+  @Test
+  void batchOfOtherUserIsNotFound() {
+    IngestBatch batch = createBatch(stagedFile("doc1", "scan.png"));
+    batch.setOwnerId("other");
+    when(mongoTemplate.findById("batch1", IngestBatch.class)).thenReturn(batch);
+
+    Assert.assertEquals(Optional.empty(), ingestBatchService.findBatch("batch1", user));
+  }
+
+  private IngestBatch createBatch(IngestFile... files) {
+    return IngestBatch.builder()
+        .id("batch1")
+        .ownerId(user.getId())
+        .docConfig(docConfig)
+        .files(new ArrayList<>(Arrays.asList(files)))
+        .build();
+  }
+
+  private IngestBatch copyOf(String batchId, List<IngestFile> files) {
+    IngestBatch copy = createBatch();
+    copy.setId(batchId);
+    for (IngestFile file : files) {
+      copy.getFiles()
+          .add(
+              new IngestFile(
+                  file.getDocId(),
+                  file.getNameOfFile(),
+                  file.getState(),
+                  file.getError(),
+                  file.getBlobId(),
+                  file.getSha256(),
+                  file.getSize()));
+    }
+    return copy;
+  }
+
+  private static IngestFile stagedFile(String docId, String nameOfFile) {
+    return new IngestFile(
+        docId, nameOfFile, IngestFileState.STAGED, null, "blob-" + docId, "sha", 4);
+  }
+
+  private static IngestFile failedFile(String docId) {
+    return new IngestFile(
+        docId, "broken.png", IngestFileState.FAILED, "File couldn't be stored.", null, null, 0);
+  }
+
+  private static MockMultipartFile createFile(String name) {
+    return new MockMultipartFile("files", name, "image/png", new byte[] {1, 2, 3, 4});
+  }
+}
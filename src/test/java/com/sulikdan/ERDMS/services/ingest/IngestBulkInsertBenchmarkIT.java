@@ -0,0 +1,179 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.blobs.BlobRef;
+import com.sulikdan.ERDMS.entities.ingest.IngestBatch;
+import com.sulikdan.ERDMS.entities.ingest.IngestFile;
+import com.sulikdan.ERDMS.entities.ingest.IngestFileState;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.GridFsBlobStore;
+import com.sulikdan.ERDMS.services.ocr.MongoOcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Class IngestBulkInsertBenchmarkIT compares creating docs of an upload of 100 small images before
+ * (insert and OCR job per file) and after (single unordered bulk for docs and for jobs) on embedded
+ * MongoDB. It prints commands sent to MongoDB (round trips) and latency per upload.
+ */
+@ActiveProfiles("test")
+@ExtendWith(SpringExtension.class)
+@DataMongoTest
+public class IngestBulkInsertBenchmarkIT {
+
+  private static final int FILES_COUNT = 100;
+  private static final int IMAGE_SIZE = 32;
+
+  /** Counts commands sent to MongoDB, every command is a round trip. */
+  private static final AtomicInteger commandCount = new AtomicInteger();
+
+  @TestConfiguration
+  static class CommandCountingConfig {
+
+    @Bean
+    MongoClientSettingsBuilderCustomizer commandCounter() {
+      return settings ->
+          settings.addCommandListener(
+              new CommandListener() {
+                @Override
+                public void commandStarted(CommandStartedEvent event) {
+                  commandCount.incrementAndGet();
+                }
+              });
+    }
+  }
+
+  @Autowired private MongoTemplate mongoTemplate;
+  @Autowired private GridFsTemplate gridFsTemplate;
+
+  private MongoOcrJobQueue ocrJobQueue;
+  private IngestBatchService ingestBatchService;
+
+  private final DocConfig docConfig = new DocConfig(false, false, "eng", false);
+
+  @BeforeEach
+  void setUp() {
+    mongoTemplate.dropCollection(Doc.class);
+    mongoTemplate.dropCollection(OcrJob.class);
+    mongoTemplate.dropCollection(BlobRef.class);
+
+    StorageProperties storageProperties = new StorageProperties();
+    BlobDedupService blobDedupService =
+        new BlobDedupService(
+            mongoTemplate,
+            new GridFsBlobStore(gridFsTemplate),
+            storageProperties,
+            new SimpleMeterRegistry());
+    ocrJobQueue = new MongoOcrJobQueue(mongoTemplate, new OcrProperties());
+
+    ingestBatchService =
+        new IngestBatchService(
+            new DocIngestPipeline(new GridFsBlobStore(gridFsTemplate), blobDedupService),
+            blobDedupService,
+            mock(DocPreviewService.class),
+            ocrJobQueue,
+            mock(OcrJobScheduler.class),
+            mongoTemplate,
+            storageProperties,
+            Runnable::run);
+  }
+
+  @Test
+  void uploadOfHundredImages() throws IOException {
+    IngestBatch batchBefore = createBatch(stageImages());
+    IngestBatch batchAfter = createBatch(stageImages());
+
+    commandCount.set(0);
+    long start = System.nanoTime();
+    for (IngestFile file : batchBefore.getFiles()) {
+      mongoTemplate.insert(toDoc(file, batchBefore.getOwnerId()));
+      ocrJobQueue.enqueue(file.getDocId());
+    }
+    double millisBefore = (System.nanoTime() - start) / 1_000_000.0;
+    int commandsBefore = commandCount.get();
+
+    commandCount.set(0);
+    start = System.nanoTime();
+    List<Doc> createdDocs = ingestBatchService.createDocs(batchAfter);
+    double millisAfter = (System.nanoTime() - start) / 1_000_000.0;
+    int commandsAfter = commandCount.get();
+
+    System.out.println("Creating docs of " + FILES_COUNT + " images | round trips | ms");
+    System.out.println("  before (per file)  | " + commandsBefore + " | " + millisBefore);
+    System.out.println("  after  (bulk)      | " + commandsAfter + " | " + millisAfter);
+
+    Assert.assertEquals(FILES_COUNT, createdDocs.size());
+    Assert.assertEquals(2 * FILES_COUNT, mongoTemplate.count(new Query(), Doc.class));
+    Assert.assertEquals(2 * FILES_COUNT, mongoTemplate.count(new Query(), OcrJob.class));
+    Assert.assertTrue(commandsAfter * 10 < commandsBefore);
+  }
+
+  private List<IngestFile> stageImages() throws IOException {
+    MultipartFile[] files = new MultipartFile[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      files[i] = new MockMultipartFile("files", "Scan" + i + ".png", "image/png", createImage(i));
+    }
+    List<IngestFile> stagedFiles = ingestBatchService.stageFiles(files);
+    for (IngestFile file : stagedFiles) Assert.assertEquals(IngestFileState.STAGED, file.getState());
+    return stagedFiles;
+  }
+
+  private IngestBatch createBatch(List<IngestFile> files) {
+    return IngestBatch.builder().ownerId("1234").docConfig(docConfig).files(files).build();
+  }
+
+  private Doc toDoc(IngestFile file, String ownerId) {
+    return Doc.builder()
+        .id(file.getDocId())
+        .nameOfFile(file.getNameOfFile())
+        .documentBlobId(file.getBlobId())
+        .documentSha256(file.getSha256())
+        .documentSize(file.getSize())
+        .docConfig(docConfig)
+        .asyncApiInfo(new AsyncApiInfo(AsyncApiState.WAITING_TO_SEND, null, null))
+        .ownerId(ownerId)
+        .build();
+  }
+
+  private static byte[] createImage(int seed) throws IOException {
+    BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(seed % IMAGE_SIZE, seed / IMAGE_SIZE, 0xFFFFFF);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", output);
+    return output.toByteArray();
+  }
+}
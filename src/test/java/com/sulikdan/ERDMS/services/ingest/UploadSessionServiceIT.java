@@ -0,0 +1,222 @@
+package com.sulikdan.ERDMS.services.ingest;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.blobs.BlobRef;
+import com.sulikdan.ERDMS.entities.ingest.UploadSession;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.entities.users.User;
+import com.sulikdan.ERDMS.exceptions.DocNotFoundException;
+import com.sulikdan.ERDMS.exceptions.InvalidUploadChunkException;
+import com.sulikdan.ERDMS.services.blobs.BlobDedupService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import com.sulikdan.ERDMS.services.blobs.GridFsBlobStore;
+import com.sulikdan.ERDMS.services.ocr.MongoOcrJobQueue;
+import com.sulikdan.ERDMS.services.previews.DocPreviewService;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Class UploadSessionServiceIT is IT(Integration Test) for UploadSessionService, uploading files in
+ * chunks into GridFS.
+ */
+@ActiveProfiles("test")
+@ExtendWith(SpringExtension.class)
+@DataMongoTest
+public class UploadSessionServiceIT {
+
+  @Autowired private MongoTemplate mongoTemplate;
+  @Autowired private GridFsTemplate gridFsTemplate;
+
+  private BlobStore blobStore;
+  private StorageProperties storageProperties;
+  private UploadSessionService uploadSessionService;
+
+  private final User user = User.builder().id("1234").username("tester").build();
+  private final DocConfig docConfig = new DocConfig(false, false, "eng", false);
+
+  @BeforeEach
+  void setUp() {
+    mongoTemplate.dropCollection(Doc.class);
+    mongoTemplate.dropCollection(OcrJob.class);
+    mongoTemplate.dropCollection(BlobRef.class);
+    mongoTemplate.dropCollection(UploadSession.class);
+    gridFsTemplate.delete(new Query());
+
+    blobStore = new GridFsBlobStore(gridFsTemplate);
+    storageProperties = new StorageProperties();
+    BlobDedupService blobDedupService =
+        new BlobDedupService(mongoTemplate, blobStore, storageProperties, new SimpleMeterRegistry());
+    DocIngestPipeline docIngestPipeline = new DocIngestPipeline(blobStore, blobDedupService);
+    IngestBatchService ingestBatchService =
+        new IngestBatchService(
+            docIngestPipeline,
+            blobDedupService,
+            mock(DocPreviewService.class),
+            new MongoOcrJobQueue(mongoTemplate, new OcrProperties()),
+            mock(OcrJobScheduler.class),
+            mongoTemplate,
+            storageProperties,
+            Runnable::run);
+
+    uploadSessionService =
+        new UploadSessionService(
+            docIngestPipeline,
+            ingestBatchService,
+            blobStore,
+            blobDedupService,
+            mongoTemplate,
+            storageProperties);
+  }
+
+  @Test
+  void chunksAreAssembledIntoDoc() throws IOException {
+    UploadSession session =
+        uploadSessionService.createSession("book.pdf", "application/pdf", docConfig, user);
+
+    // out of order, broken chunk is sent again
+    storeChunk(session, 1, "second ");
+    try {
+      uploadSessionService.storeChunk(
+          session.getId(), 0, stream("broken"), sha256("first "), user);
+      Assert.fail("Chunk with wrong checksum was accepted!");
+    } catch (InvalidUploadChunkException e) {
+      // expected
+    }
+    storeChunk(session, 0, "first ");
+    storeChunk(session, 2, "third");
+    storeChunk(session, 2, "third");
+
+    String docId =
+        uploadSessionService.finalizeSession(
+            session.getId(), sha256("first second third"), user);
+
+    Doc doc = mongoTemplate.findById(docId, Doc.class);
+    Assert.assertNotNull(doc);
+    Assert.assertEquals("book.pdf", doc.getNameOfFile());
+    Assert.assertEquals(18, doc.getDocumentSize().longValue());
+    try (InputStream file = blobStore.loadBlob(doc.getDocumentBlobId()).getInputStream()) {
+      Assert.assertEquals("first second third", IOUtils.toString(file, "UTF-8"));
+    }
+    Assert.assertNotNull(mongoTemplate.findById(docId, OcrJob.class));
+
+    // only the assembled file is left
+    Assert.assertNull(mongoTemplate.findById(session.getId(), UploadSession.class));
+    Assert.assertEquals(1, gridFsTemplate.find(new Query()).into(new ArrayList<>()).size());
+  }
+
+  @Test
+  void uploadWithMissingChunkIsNotFinalized() throws IOException {
+    UploadSession session =
+        uploadSessionService.createSession("book.pdf", "application/pdf", docConfig, user);
+    storeChunk(session, 0, "first ");
+    storeChunk(session, 2, "third");
+
+    try {
+      uploadSessionService.finalizeSession(session.getId(), null, user);
+      Assert.fail("Upload with missing chunk was finalized!");
+    } catch (InvalidUploadChunkException e) {
+      Assert.assertEquals("Chunk 1 is missing!", e.getMessage());
+    }
+
+    // upload continues
+    storeChunk(session, 1, "second ");
+    String docId = uploadSessionService.finalizeSession(session.getId(), null, user);
+    Assert.assertNotNull(mongoTemplate.findById(docId, Doc.class));
+  }
+
+  @Test
+  void stuckFinalizingIsTakenOverAfterTimeout() throws IOException {
+    UploadSession session =
+        uploadSessionService.createSession("book.pdf", "application/pdf", docConfig, user);
+    storeChunk(session, 0, "first");
+    // finalizing, which never finished
+    mongoTemplate.updateFirst(
+        Query.query(Criteria.where("_id").is(session.getId())),
+        new Update().set("finalizedAt", new Date()),
+        UploadSession.class);
+
+    try {
+      uploadSessionService.finalizeSession(session.getId(), null, user);
+      Assert.fail("Upload being finalized was finalized again!");
+    } catch (InvalidUploadChunkException e) {
+      // expected
+    }
+
+    storageProperties.getUploads().setFinalizeTimeoutMillis(-1);
+    String docId = uploadSessionService.finalizeSession(session.getId(), null, user);
+    Assert.assertNotNull(mongoTemplate.findById(docId, Doc.class));
+  }
+
+  @Test
+  void tooLargeChunkIsRejected() throws IOException {
+    storageProperties.getUploads().setMaxChunkSize(4);
+    UploadSession session =
+        uploadSessionService.createSession("book.pdf", "application/pdf", docConfig, user);
+
+    try {
+      storeChunk(session, 0, "first ");
+      Assert.fail("Too large chunk was accepted!");
+    } catch (InvalidUploadChunkException e) {
+      // expected
+    }
+    Assert.assertTrue(
+        uploadSessionService.findSession(session.getId(), user).getChunks().isEmpty());
+    Assert.assertEquals(0, gridFsTemplate.find(new Query()).into(new ArrayList<>()).size());
+  }
+
+  @Test
+  void expiredSessionIsRemovedWithChunks() throws IOException {
+    UploadSession session =
+        uploadSessionService.createSession("book.pdf", "application/pdf", docConfig, user);
+    storeChunk(session, 0, "first ");
+
+    storageProperties.getUploads().setSessionTtlMillis(-1);
+    Assert.assertEquals(1, uploadSessionService.removeExpiredSessions());
+
+    Assert.assertEquals(0, gridFsTemplate.find(new Query()).into(new ArrayList<>()).size());
+    try {
+      uploadSessionService.findSession(session.getId(), user);
+      Assert.fail("Expired session was found!");
+    } catch (DocNotFoundException e) {
+      // expected
+    }
+  }
+
+  private void storeChunk(UploadSession session, int index, String content) throws IOException {
+    uploadSessionService.storeChunk(
+        session.getId(), index, stream(content), sha256(content), user);
+  }
+
+  private static InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes());
+  }
+
+  private static String sha256(String content) {
+    return DocIngestPipeline.toHex(DocIngestPipeline.newSha256Digest().digest(content.getBytes()));
+  }
+}
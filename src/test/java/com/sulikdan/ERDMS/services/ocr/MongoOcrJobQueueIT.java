@@ -0,0 +1,156 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.entities.ocr.OcrJobState;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Class MongoOcrJobQueueIT is IT(Integration Test) for MongoOcrJobQueue, simulating two worker
+ * nodes sharing one queue.
+ */
+@ActiveProfiles("test")
+@ExtendWith(SpringExtension.class)
+@DataMongoTest
+public class MongoOcrJobQueueIT {
+
+  @Autowired private MongoTemplate mongoTemplate;
+
+  private MongoOcrJobQueue nodeA;
+  private MongoOcrJobQueue nodeB;
+
+  private MongoOcrJobQueue createNode(String nodeId, long leaseMillis) {
+    OcrProperties ocrProperties = new OcrProperties();
+    ocrProperties.getJobs().setNodeId(nodeId);
+    ocrProperties.getJobs().setLeaseMillis(leaseMillis);
+    return new MongoOcrJobQueue(mongoTemplate, ocrProperties);
+  }
+
+  @BeforeEach
+  void setUp() {
+    mongoTemplate.dropCollection(OcrJob.class);
+    nodeA = createNode("nodeA", 60000);
+    nodeB = createNode("nodeB", 60000);
+  }
+
+  @Test
+  void jobIsClaimedBySingleNode() {
+    nodeA.enqueue("doc1");
+    nodeB.enqueue("doc1");
+
+    Optional<OcrJob> claimedByA = nodeA.claimNext();
+    Optional<OcrJob> claimedByB = nodeB.claimNext();
+
+    Assert.assertTrue(claimedByA.isPresent());
+    Assert.assertEquals("nodeA", claimedByA.get().getLeaseOwner());
+    Assert.assertEquals(OcrJobState.RUNNING, claimedByA.get().getState());
+    Assert.assertFalse(claimedByB.isPresent());
+    Assert.assertEquals(1, mongoTemplate.count(new Query(), OcrJob.class));
+  }
+
+  @Test
+  void expiredLeaseIsClaimedByAnotherNode() throws InterruptedException {
+    MongoOcrJobQueue crashingNode = createNode("crashingNode", 50);
+    crashingNode.enqueue("doc1");
+    Assert.assertTrue(crashingNode.claimNext().isPresent());
+
+    Thread.sleep(100);
+
+    Optional<OcrJob> reclaimed = nodeB.claimNext();
+    Assert.assertTrue(reclaimed.isPresent());
+    Assert.assertEquals("nodeB", reclaimed.get().getLeaseOwner());
+  }
+
+  @Test
+  void heartbeatKeepsLease() throws InterruptedException {
+    MongoOcrJobQueue shortLeaseNode = createNode("shortLeaseNode", 300);
+    shortLeaseNode.enqueue("doc1");
+    Assert.assertTrue(shortLeaseNode.claimNext().isPresent());
+
+    Thread.sleep(200);
+    shortLeaseNode.renewLeases();
+    Thread.sleep(200);
+
+    Assert.assertFalse(nodeB.claimNext().isPresent());
+  }
+
+  @Test
+  void releasedJobCountsAttemptsAndWaitsForDelay() {
+    nodeA.enqueue("doc1");
+    OcrJob job = nodeA.claimNext().get();
+
+    nodeA.release(job, 60000, true);
+
+    Assert.assertFalse(nodeB.claimNext().isPresent());
+    OcrJob stored = mongoTemplate.findById("doc1", OcrJob.class);
+    Assert.assertEquals(OcrJobState.QUEUED, stored.getState());
+    Assert.assertEquals(1, stored.getAttempts());
+    Assert.assertNull(stored.getLeaseOwner());
+  }
+
+  @Test
+  void expeditedJobIsDueRightAway() {
+    nodeA.enqueue("doc1");
+    nodeA.release(nodeA.claimNext().get(), 60000, false);
+
+    Assert.assertTrue(nodeB.expedite("doc1"));
+
+    Assert.assertTrue(nodeB.claim("doc1").isPresent());
+    // running job is not expedited
+    Assert.assertFalse(nodeA.expedite("doc1"));
+  }
+
+  @Test
+  void deadLetteredJobIsKeptTillRedriven() {
+    nodeA.enqueue("doc1");
+    OcrJob job = nodeA.claimNext().get();
+    job.setLastError("IllegalStateException: Invalid response");
+
+    nodeA.deadLetter(job);
+
+    Assert.assertFalse(nodeB.claimNext().isPresent());
+    List<OcrJob> deadLetters = nodeB.findDeadLetters(10);
+    Assert.assertEquals(1, deadLetters.size());
+    Assert.assertEquals("IllegalStateException: Invalid response", deadLetters.get(0).getLastError());
+
+    Assert.assertTrue(nodeB.redrive("doc1", 0));
+    OcrJob redriven = nodeB.claimNext().get();
+    Assert.assertEquals(0, redriven.getAttempts());
+    Assert.assertTrue(nodeB.findDeadLetters(10).isEmpty());
+  }
+
+  @Test
+  void enqueueRevivesDeadLetteredJob() {
+    nodeA.enqueue("doc1");
+    nodeA.deadLetter(nodeA.claimNext().get());
+
+    nodeA.enqueue("doc1");
+
+    Assert.assertTrue(nodeB.claim("doc1").isPresent());
+  }
+
+  @Test
+  void completedJobIsRemoved() {
+    nodeA.enqueue("doc1");
+    OcrJob job = nodeA.claim("doc1").get();
+
+    // only the lease owner can complete the job
+    nodeB.complete(job);
+    Assert.assertNotNull(mongoTemplate.findById("doc1", OcrJob.class));
+
+    nodeA.complete(job);
+    Assert.assertNull(mongoTemplate.findById("doc1", OcrJob.class));
+  }
+}
@@ -11,18 +11,28 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import reactor.core.publisher.Mono;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class OCRServiceTesseractTest {
 
   @Mock DocRepository documentRepository;
   @Mock RestApiOcr restApiOcr;
+  @Mock OcrBatchSubmitter ocrBatchSubmitter;
+  @Mock PdfTextLayerClassifier pdfTextLayerClassifier;
+  @Mock OcrPageFanOut ocrPageFanOut;
+  @Mock OcrResultCache ocrResultCache;
   @Mock OcrProperties ocrProperties;
 
   ObjectMapper mapper = new ObjectMapper();
@@ -42,7 +52,15 @@ class OCRServiceTesseractTest {
     doc.getAsyncApiInfo().setOcrApiDocStatus("localhost:8080/api/ocr/documents/blablbalba");
     doc.getAsyncApiInfo().setOcrApiDocResult("localhost:8080/api/ocr/documents/blablbalba");
 
-    ocrServiceTesseract = new OCRServiceTesseract(documentRepository, restApiOcr, ocrProperties);
+    ocrServiceTesseract =
+        new OCRServiceTesseract(
+            documentRepository,
+            restApiOcr,
+            ocrBatchSubmitter,
+            pdfTextLayerClassifier,
+            ocrPageFanOut,
+            ocrResultCache,
+            ocrProperties);
   }
 
   @Test
@@ -53,7 +71,7 @@ class OCRServiceTesseractTest {
     AsyncApiInfo toBeResult = new AsyncApiInfo();
     toBeResult.setAsyncApiState(AsyncApiState.PROCESSING);
 
-    when(restApiOcr.postDocRequest(any(Doc.class))).thenReturn(toBeResult);
+    when(ocrBatchSubmitter.submit(any(Doc.class))).thenReturn(Mono.just(toBeResult));
 
 
     //when
@@ -66,6 +84,107 @@ class OCRServiceTesseractTest {
   }
 
 
+  @Test
+  void extractTextFromDocCached() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+
+    when(ocrResultCache.find(doc))
+        .thenReturn(Optional.of(Arrays.asList(new DocPage("cached 0"), new DocPage("cached 1"))));
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    Assert.assertEquals(AsyncApiState.COMPLETED, result.getAsyncApiInfo().getAsyncApiState());
+    Assert.assertEquals(2, result.getDocPageList().size());
+    verify(ocrBatchSubmitter, never()).submit(any(Doc.class));
+    verify(pdfTextLayerClassifier, never()).prepareForOcr(any(Doc.class));
+  }
+
+
+  @Test
+  void extractTextFromDocCompletedIsCached() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.RESOURCE_TO_CLEAN);
+
+    when(restApiOcr.deleteDoc(any(), anyString())).thenReturn(Mono.just(true));
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    verify(ocrResultCache).store(result);
+  }
+
+
+  @Test
+  void extractTextFromDocWithTextLayer() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+
+    when(pdfTextLayerClassifier.isApplicable(doc)).thenReturn(true);
+    when(pdfTextLayerClassifier.prepareForOcr(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+              return false;
+            });
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    Assert.assertEquals(AsyncApiState.COMPLETED, result.getAsyncApiInfo().getAsyncApiState());
+    verify(ocrBatchSubmitter, never()).submit(any(Doc.class));
+  }
+
+
+  @Test
+  void extractTextFromDocSendingKeepsImagePages() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+    doc.getAsyncApiInfo().setOcrBlobId("imagePages");
+    doc.getAsyncApiInfo().setOcrPageNumbers(Arrays.asList(1, 3));
+
+    AsyncApiInfo toBeResult = new AsyncApiInfo();
+    toBeResult.setAsyncApiState(AsyncApiState.PROCESSING);
+
+    when(ocrBatchSubmitter.submit(any(Doc.class))).thenReturn(Mono.just(toBeResult));
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    Assert.assertEquals("imagePages", result.getAsyncApiInfo().getOcrBlobId());
+    Assert.assertEquals(Arrays.asList(1, 3), result.getAsyncApiInfo().getOcrPageNumbers());
+  }
+
+
+  @Test
+  void extractTextFromDocSplitIntoPages() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+
+    when(ocrPageFanOut.isApplicable(doc)).thenReturn(true);
+    when(ocrPageFanOut.hasParts(doc)).thenReturn(false, true);
+    when(ocrPageFanOut.advance(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+              return Mono.just(doc);
+            });
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    Assert.assertEquals(AsyncApiState.PROCESSING, result.getAsyncApiInfo().getAsyncApiState());
+    verify(ocrPageFanOut).split(doc);
+    verify(ocrBatchSubmitter, never()).submit(any(Doc.class));
+  }
+
+
   @Test
   void extractTextFromDocProcessing() throws JsonProcessingException {
     //Given
@@ -74,7 +193,7 @@ class OCRServiceTesseractTest {
     AsyncApiInfo toBeResult = new AsyncApiInfo();
     toBeResult.setAsyncApiState(AsyncApiState.SCANNED);
 
-    when(restApiOcr.getDocStatus(anyString())).thenReturn(toBeResult);
+    when(restApiOcr.getDocStatus(any(), anyString())).thenReturn(Mono.just(toBeResult));
 
 
     //when
@@ -98,7 +217,7 @@ class OCRServiceTesseractTest {
     TessApiDoc tessApiDoc = new TessApiDoc();
     tessApiDoc.setPages(new ArrayList<>());
 
-    when(restApiOcr.getDocResult(anyString())).thenReturn(tessApiDoc);
+    when(restApiOcr.getDocResult(any(), anyString())).thenReturn(Mono.just(tessApiDoc));
 
 
     //when
@@ -111,6 +230,47 @@ class OCRServiceTesseractTest {
   }
 
 
+  @Test
+  void extractTextFromDocScannedMergesPages() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.SCANNED);
+    doc.getAsyncApiInfo().setOcrBlobId("imagePages");
+    doc.getAsyncApiInfo().setOcrPageNumbers(Arrays.asList(1, 3));
+    doc.setDocPageList(
+        Arrays.asList(
+            new DocPage("text 0"), new DocPage(""), new DocPage("text 2"), new DocPage("")));
+
+    TessApiDoc tessApiDoc = new TessApiDoc();
+    tessApiDoc.setPages(Arrays.asList("scanned 1", "scanned 3"));
+
+    when(restApiOcr.getDocResult(any(), anyString())).thenReturn(Mono.just(tessApiDoc));
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDoc(doc);
+
+    //then
+    Assert.assertEquals(
+        Arrays.asList("text 0", "scanned 1", "text 2", "scanned 3"),
+        result.getDocPageList().stream().map(DocPage::getContent).collect(Collectors.toList()));
+  }
+
+
+  @Test
+  void extractTextFromDocAsyncWithoutResult() {
+    //Given
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.SCANNED);
+
+    when(restApiOcr.getDocResult(any(), anyString())).thenReturn(Mono.empty());
+
+    //when
+    Doc result = ocrServiceTesseract.extractTextFromDocAsync(doc).block();
+
+    //then
+    Assert.assertNull(result);
+    Assert.assertEquals(AsyncApiState.SCANNED, doc.getAsyncApiInfo().getAsyncApiState());
+  }
+
+
   @Test
   void extractTextFromDocResourceToManualSending() throws JsonProcessingException {
     //Given
@@ -119,7 +279,7 @@ class OCRServiceTesseractTest {
     AsyncApiInfo toBeResult = new AsyncApiInfo();
     toBeResult.setAsyncApiState(AsyncApiState.COMPLETED);
 
-    when(restApiOcr.deleteDoc(anyString())).thenReturn(true);
+    when(restApiOcr.deleteDoc(any(), anyString())).thenReturn(Mono.just(true));
 
 
     //when
@@ -128,6 +288,7 @@ class OCRServiceTesseractTest {
     //then
     Assert.assertNotNull(result);
     Assert.assertEquals(toBeResult.getAsyncApiState(), result.getAsyncApiInfo().getAsyncApiState());
+    verify(pdfTextLayerClassifier).cleanUp(doc);
 
   }
 
@@ -0,0 +1,112 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Class OcrBackendRouterTest is used for JUnit tests of OcrBackendRouter. */
+class OcrBackendRouterTest {
+
+  OcrProperties ocrProperties;
+
+  OcrBackendRouter ocrBackendRouter;
+
+  @BeforeEach
+  void setUp() {
+    ocrProperties = new OcrProperties();
+    ocrProperties.setBackends(
+        Arrays.asList("http://ocr1:8086", "http://ocr2:8086/", "http://ocr3:8086"));
+    ocrProperties.getRouting().setFailureThreshold(2);
+
+    ocrBackendRouter = new OcrBackendRouter(ocrProperties);
+  }
+
+  private String callLeastLoadedAndHold() {
+    String[] chosen = new String[1];
+    ocrBackendRouter
+        .callLeastLoaded(
+            backend -> {
+              chosen[0] = backend.getBaseUrl();
+              return Mono.never();
+            })
+        .subscribe();
+    return chosen[0];
+  }
+
+  private void failOn(String baseUrl, Throwable error) {
+    ocrBackendRouter
+        .callSticky(baseUrl, backend -> Mono.error(error))
+        .onErrorResume(e -> Mono.empty())
+        .block();
+  }
+
+  @Test
+  void newDocsGoToLeastLoadedBackend() {
+    Set<String> chosen = new HashSet<>();
+    for (int i = 0; i < 3; i++) chosen.add(callLeastLoadedAndHold());
+
+    Assertions.assertEquals(3, chosen.size());
+  }
+
+  @Test
+  void acceptedJobsCountAsOutstandingWork() {
+    OcrBackend first = ocrBackendRouter.find("http://ocr1:8086");
+    OcrBackend second = ocrBackendRouter.find("http://ocr2:8086");
+    ocrBackendRouter.jobAccepted(first, "/documents/1");
+    ocrBackendRouter.jobAccepted(second, "/documents/2");
+
+    Assertions.assertEquals("http://ocr3:8086", callLeastLoadedAndHold());
+
+    ocrBackendRouter.jobFinished(first, "/documents/1");
+    Assertions.assertEquals("http://ocr1:8086", callLeastLoadedAndHold());
+  }
+
+  @Test
+  void failingBackendIsEjected() {
+    failOn("http://ocr1:8086", new IOException("Connection refused"));
+    failOn("http://ocr1:8086", new IOException("Connection refused"));
+
+    for (int i = 0; i < 6; i++) Assertions.assertNotEquals("http://ocr1:8086", callLeastLoadedAndHold());
+  }
+
+  @Test
+  void clientErrorsDontEjectBackend() {
+    for (int i = 0; i < 3; i++)
+      failOn(
+          "http://ocr1:8086",
+          WebClientResponseException.create(HttpStatus.NOT_FOUND.value(), "Not Found", null, null, null));
+
+    Assertions.assertFalse(ocrBackendRouter.find("http://ocr1:8086").isEjected(System.currentTimeMillis()));
+  }
+
+  @Test
+  void stickyCallGoesToAcceptingBackend() {
+    String called =
+        ocrBackendRouter
+            .callSticky("http://ocr2:8086", backend -> Mono.just(backend.getBaseUrl()))
+            .block();
+
+    Assertions.assertEquals("http://ocr2:8086", called);
+  }
+
+  @Test
+  void singleBackendIsCreatedFromAddressAndPort() {
+    OcrProperties properties = new OcrProperties();
+    properties.setAddress("127.0.0.1");
+    properties.setPort("8086");
+
+    OcrBackendRouter router = new OcrBackendRouter(properties);
+
+    Assertions.assertEquals(1, router.getBackends().size());
+    Assertions.assertEquals("http://127.0.0.1:8086/api/ocr", router.getBackends().get(0).getApiUri());
+  }
+}
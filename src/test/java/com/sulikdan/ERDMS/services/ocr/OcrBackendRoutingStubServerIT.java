@@ -0,0 +1,252 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.DocService;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import com.sulikdan.ERDMS.workers.OcrApiJobWorker;
+import com.sulikdan.ERDMS.workers.OcrJobExecutor;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class OcrBackendRoutingStubServerIT sends documents to local stubs of OCR nodes, every node
+ * accepts one document at a time. Documents are sent by OCR workers run by OcrJobExecutor, so its
+ * concurrency has to grow with the number of nodes. Throughput is measured on wall clock, so it's
+ * not part of unit tests.
+ */
+public class OcrBackendRoutingStubServerIT {
+
+  private static final int DOCS_COUNT = 12;
+  private static final long ACCEPT_TIME_MILLIS = 100;
+
+  @Mock BlobStore blobStore;
+
+  @Mock OCRService ocrService;
+
+  @Mock DocService docService;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  private OcrProperties ocrProperties;
+  private OcrBackendRouter ocrBackendRouter;
+
+  private final List<HttpServer> servers = new ArrayList<>();
+  private final List<AtomicInteger> requestCounts = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(blobStore.loadBlob(anyString())).thenReturn(new ByteArrayResource(new byte[1024]));
+    when(docService.saveOcrProgress(any(Doc.class), any(AsyncApiState.class), anyBoolean()))
+        .thenReturn(true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    servers.forEach(server -> server.stop(0));
+  }
+
+  /** Starts stub OCR node, handling requests one by one. */
+  private String startBackend() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newSingleThreadExecutor());
+    AtomicInteger requestCount = new AtomicInteger();
+    String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    server.createContext(
+        "/api/ocr/documents",
+        exchange -> {
+          int requestNumber = requestCount.incrementAndGet();
+          StreamUtils.copyToByteArray(exchange.getRequestBody());
+          String links =
+              "\"currentStatusLink\":\"" + baseUrl + "/api/ocr/documents/status/" + requestNumber
+                  + "\",\"resultLink\":\"" + baseUrl + "/api/ocr/documents/result/" + requestNumber + "\"";
+          if ("POST".equals(exchange.getRequestMethod())) {
+            sleep(ACCEPT_TIME_MILLIS);
+            respond(exchange, "[{\"documentProcessStatus\":\"PROCESSING\"," + links + "}]");
+          } else {
+            respond(exchange, "{\"documentProcessStatus\":\"SCANNED\"," + links + "}");
+          }
+        });
+    server.start();
+
+    servers.add(server);
+    requestCounts.add(requestCount);
+    return baseUrl;
+  }
+
+  private RestApiOcr createRestApiOcr(int backendsCount) throws IOException {
+    ocrProperties = new OcrProperties();
+    List<String> backends = new ArrayList<>();
+    for (int i = 0; i < backendsCount; i++) backends.add(startBackend());
+    ocrProperties.setBackends(backends);
+    ocrBackendRouter = new OcrBackendRouter(ocrProperties);
+
+    return new RestApiOcrTessMethods(
+        ocrProperties,
+        blobStore,
+        WebClient.create(),
+        ocrBackendRouter,
+        new OcrCircuitBreaker(ocrProperties));
+  }
+
+  private Doc createDoc(int i) {
+    return Doc.builder()
+        .id("doc" + i)
+        .nameOfFile("receipt" + i + ".png")
+        .documentBlobId("blob" + i)
+        .docType(DocType.IMG)
+        .docConfig(new DocConfig(false, false, "eng", false))
+        .asyncApiInfo(new AsyncApiInfo())
+        .build();
+  }
+
+  private long sendDocs(RestApiOcr restApiOcr, List<AsyncApiInfo> accepted) {
+    long start = System.currentTimeMillis();
+    Flux.range(0, DOCS_COUNT)
+        .flatMap(i -> restApiOcr.postDocRequest(createDoc(i)))
+        .doOnNext(accepted::add)
+        .blockLast(Duration.ofSeconds(30));
+    return System.currentTimeMillis() - start;
+  }
+
+  /** Sends every doc by its own OCR worker, till the doc is PROCESSING and its job released. */
+  private long sendDocsByWorkers(RestApiOcr restApiOcr, List<AsyncApiInfo> accepted)
+      throws InterruptedException {
+    ocrProperties.getExecutor().setConcurrencyPerBackend(1);
+    OcrJobExecutor ocrJobExecutor =
+        new OcrJobExecutor(ocrProperties, ocrBackendRouter, new SimpleMeterRegistry());
+
+    reset(ocrService, ocrJobQueue);
+    when(ocrService.extractTextFromDocAsync(any(Doc.class)))
+        .thenAnswer(
+            invocation -> {
+              Doc doc = invocation.getArgument(0);
+              return restApiOcr
+                  .postDocRequest(doc)
+                  .map(
+                      asyncApiInfo -> {
+                        accepted.add(asyncApiInfo);
+                        doc.setAsyncApiInfo(asyncApiInfo);
+                        return doc;
+                      });
+            });
+    CountDownLatch released = new CountDownLatch(DOCS_COUNT);
+    doAnswer(invocation -> {
+          released.countDown();
+          return null;
+        })
+        .when(ocrJobQueue)
+        .release(any(OcrJob.class), anyLong(), anyBoolean());
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < DOCS_COUNT; i++) {
+      Doc doc = createDoc(i);
+      Assertions.assertTrue(
+          ocrJobExecutor.trySubmit(
+              new OcrApiJobWorker(
+                  ocrService,
+                  docService,
+                  mock(DocRepository.class),
+                  ocrJobQueue,
+                  mock(OcrJobScheduler.class),
+                  mock(OcrPollingPolicy.class),
+                  ocrProperties.getJobs(),
+                  OcrJob.builder().id(doc.getId()).build(),
+                  doc)));
+    }
+    Assertions.assertTrue(released.await(30, TimeUnit.SECONDS));
+    return System.currentTimeMillis() - start;
+  }
+
+  @Test
+  void throughputGrowsWithBackends() throws IOException, InterruptedException {
+    long singleBackendMillis = sendDocsByWorkers(createRestApiOcr(1), new ArrayList<>());
+    servers.forEach(server -> server.stop(0));
+    servers.clear();
+    requestCounts.clear();
+
+    List<AsyncApiInfo> accepted = Collections.synchronizedList(new ArrayList<>());
+    long threeBackendsMillis = sendDocsByWorkers(createRestApiOcr(3), accepted);
+
+    Assertions.assertEquals(DOCS_COUNT, accepted.size());
+    Assertions.assertTrue(threeBackendsMillis < singleBackendMillis * 0.6);
+    requestCounts.forEach(count -> Assertions.assertTrue(count.get() >= DOCS_COUNT / 3 - 1));
+  }
+
+  @Test
+  void statusIsCheckedOnAcceptingBackend() throws IOException {
+    RestApiOcr restApiOcr = createRestApiOcr(3);
+    List<AsyncApiInfo> accepted = new ArrayList<>();
+    sendDocs(restApiOcr, accepted);
+    int[] countsBefore = requestCounts.stream().mapToInt(AtomicInteger::get).toArray();
+
+    AsyncApiInfo asyncApiInfo = accepted.get(0);
+    String statusUri = asyncApiInfo.getOcrApiDocStatus().split("/api/ocr")[1];
+    AsyncApiInfo status =
+        restApiOcr.getDocStatus(asyncApiInfo.getOcrBackend(), statusUri).block(Duration.ofSeconds(5));
+
+    int backendIndex = -1;
+    for (int i = 0; i < servers.size(); i++)
+      if (asyncApiInfo.getOcrBackend().endsWith(":" + servers.get(i).getAddress().getPort()))
+        backendIndex = i;
+    Assertions.assertEquals(countsBefore[backendIndex] + 1, requestCounts.get(backendIndex).get());
+    Assertions.assertEquals(asyncApiInfo.getOcrBackend(), status.getOcrBackend());
+  }
+
+  private static void respond(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream outputStream = exchange.getResponseBody()) {
+      outputStream.write(bytes);
+    }
+    exchange.close();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
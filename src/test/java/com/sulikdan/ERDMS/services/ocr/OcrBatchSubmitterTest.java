@@ -0,0 +1,178 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/** Class OcrBatchSubmitterTest is used for JUnit tests of OcrBatchSubmitter. */
+class OcrBatchSubmitterTest {
+
+  @Mock RestApiOcr restApiOcr;
+
+  OcrProperties ocrProperties;
+
+  OcrBatchSubmitter ocrBatchSubmitter;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    ocrProperties = new OcrProperties();
+    ocrProperties.getBatch().setMaxCount(3);
+    ocrProperties.getBatch().setMaxBytes(1000);
+    ocrProperties.getBatch().setLingerMillis(50);
+
+    // every doc gets status link with its own name
+    when(restApiOcr.postDocsRequest(anyList()))
+        .thenAnswer(
+            invocation -> {
+              List<Doc> docs = invocation.getArgument(0);
+              return Mono.just(
+                  docs.stream()
+                      .map(doc -> new AsyncApiInfo(AsyncApiState.PROCESSING, doc.getNameOfFile(), ""))
+                      .collect(Collectors.toList()));
+            });
+
+    ocrBatchSubmitter = new OcrBatchSubmitter(restApiOcr, ocrProperties, Schedulers.single());
+  }
+
+  private Doc createDoc(String name, String lang, long size) {
+    return Doc.builder()
+        .nameOfFile(name)
+        .docType(DocType.IMG)
+        .documentSize(size)
+        .docConfig(new DocConfig(false, false, lang, false))
+        .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<List<Doc>> captureBatches(int count) {
+    ArgumentCaptor<List<Doc>> captor = ArgumentCaptor.forClass(List.class);
+    verify(restApiOcr, times(count)).postDocsRequest(captor.capture());
+    return captor.getAllValues();
+  }
+
+  @Test
+  void fullBatchIsSentInOneRequest() {
+    Mono<AsyncApiInfo> first = ocrBatchSubmitter.submit(createDoc("a.png", "eng", 10));
+    Mono<AsyncApiInfo> second = ocrBatchSubmitter.submit(createDoc("b.png", "eng", 10));
+    Mono<AsyncApiInfo> third = ocrBatchSubmitter.submit(createDoc("c.png", "eng", 10));
+
+    List<AsyncApiInfo> results =
+        Mono.zip(first, second, third)
+            .map(tuple -> Arrays.asList(tuple.getT1(), tuple.getT2(), tuple.getT3()))
+            .block(Duration.ofSeconds(5));
+
+    Assertions.assertEquals(1, captureBatches(1).size());
+    // each doc gets its own info back
+    Assertions.assertEquals("a.png", results.get(0).getOcrApiDocStatus());
+    Assertions.assertEquals("b.png", results.get(1).getOcrApiDocStatus());
+    Assertions.assertEquals("c.png", results.get(2).getOcrApiDocStatus());
+  }
+
+  @Test
+  void differentConfigsAreNotMixed() {
+    Mono<AsyncApiInfo> english = ocrBatchSubmitter.submit(createDoc("a.png", "eng", 10));
+    Mono<AsyncApiInfo> czech = ocrBatchSubmitter.submit(createDoc("b.png", "ces", 10));
+
+    Mono.when(english, czech).block(Duration.ofSeconds(5));
+
+    List<List<Doc>> batches = captureBatches(2);
+    Assertions.assertEquals(1, batches.get(0).size());
+    Assertions.assertEquals(1, batches.get(1).size());
+  }
+
+  @Test
+  void batchIsLimitedByBytes() {
+    Mono<AsyncApiInfo> first = ocrBatchSubmitter.submit(createDoc("a.png", "eng", 600));
+    Mono<AsyncApiInfo> second = ocrBatchSubmitter.submit(createDoc("b.png", "eng", 600));
+
+    Mono.when(first, second).block(Duration.ofSeconds(5));
+
+    captureBatches(2);
+    Assertions.assertEquals(0, ocrBatchSubmitter.getPendingCount());
+  }
+
+  @Test
+  void failedRequestFailsAllDocsOfBatch() {
+    when(restApiOcr.postDocsRequest(anyList()))
+        .thenReturn(Mono.error(new IllegalStateException("OCR is down")));
+
+    Mono<AsyncApiInfo> first = ocrBatchSubmitter.submit(createDoc("a.png", "eng", 10));
+    Mono<AsyncApiInfo> second = ocrBatchSubmitter.submit(createDoc("b.png", "eng", 10));
+
+    Assertions.assertThrows(
+        IllegalStateException.class, () -> Mono.when(first, second).block(Duration.ofSeconds(5)));
+  }
+
+  @Test
+  void rejectedBatchIsSentAgainOneByOne() {
+    Doc invalid = createDoc("invalid.png", "eng", 10);
+    Doc valid = createDoc("b.png", "eng", 10);
+    when(restApiOcr.postDocsRequest(anyList()))
+        .thenReturn(
+            Mono.error(
+                WebClientResponseException.create(400, "Bad Request", null, null, null)));
+    when(restApiOcr.postDocRequest(invalid))
+        .thenReturn(
+            Mono.error(
+                WebClientResponseException.create(400, "Bad Request", null, null, null)));
+    when(restApiOcr.postDocRequest(valid))
+        .thenReturn(Mono.just(new AsyncApiInfo(AsyncApiState.PROCESSING, "b.png", "")));
+
+    Mono<AsyncApiInfo> first = ocrBatchSubmitter.submit(invalid).cache();
+    Mono<AsyncApiInfo> second = ocrBatchSubmitter.submit(valid).cache();
+    // both are subscribed right away, so they are in the same batch
+    first.subscribe(info -> {}, error -> {});
+    second.subscribe(info -> {}, error -> {});
+
+    Assertions.assertThrows(
+        WebClientResponseException.class, () -> first.block(Duration.ofSeconds(5)));
+    Assertions.assertEquals("b.png", second.block(Duration.ofSeconds(5)).getOcrApiDocStatus());
+    Assertions.assertEquals(2, captureBatches(1).get(0).size());
+  }
+
+  @Test
+  void cancelledDocIsDroppedFromBatch() {
+    ocrBatchSubmitter.submit(createDoc("a.png", "eng", 10)).subscribe().dispose();
+    Mono<AsyncApiInfo> second = ocrBatchSubmitter.submit(createDoc("b.png", "eng", 10));
+
+    Assertions.assertEquals("b.png", second.block(Duration.ofSeconds(5)).getOcrApiDocStatus());
+
+    List<List<Doc>> batches = captureBatches(1);
+    Assertions.assertEquals(1, batches.get(0).size());
+    Assertions.assertEquals("b.png", batches.get(0).get(0).getNameOfFile());
+  }
+
+  @Test
+  void disabledBatchingSendsDocsAlone() {
+    ocrProperties.getBatch().setMaxCount(1);
+    Doc doc = createDoc("a.png", "eng", 10);
+    when(restApiOcr.postDocRequest(doc)).thenReturn(Mono.just(new AsyncApiInfo()));
+
+    ocrBatchSubmitter.submit(doc).block(Duration.ofSeconds(5));
+
+    verify(restApiOcr).postDocRequest(doc);
+    verify(restApiOcr, never()).postDocsRequest(anyList());
+  }
+}
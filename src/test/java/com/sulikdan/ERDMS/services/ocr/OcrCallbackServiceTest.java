@@ -0,0 +1,142 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.exceptions.InvalidAccessRightException;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/** Class OcrCallbackServiceTest is used for JUnit tests of OcrCallbackService. */
+class OcrCallbackServiceTest {
+
+  private static final String BODY =
+      "{\"documentProcessStatus\":\"SCANNED\",\"resultLink\":\"http://attacker/result/1\"}";
+
+  @Mock DocRepository documentRepository;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock OcrJobScheduler ocrJobScheduler;
+
+  OcrCallbackSigner ocrCallbackSigner;
+
+  OcrCallbackService ocrCallbackService;
+
+  Doc doc;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    OcrProperties ocrProperties = new OcrProperties();
+    ocrProperties.getCallback().setSecret("secret");
+    ocrProperties.getCallback().setBaseUrl("http://127.0.0.1:8085/api");
+    ocrCallbackSigner = new OcrCallbackSigner(ocrProperties);
+
+    ocrCallbackService =
+        new OcrCallbackService(ocrCallbackSigner, documentRepository, ocrJobQueue, ocrJobScheduler);
+
+    doc =
+        Doc.builder()
+            .id("doc1")
+            .asyncApiInfo(
+                new AsyncApiInfo(
+                    AsyncApiState.PROCESSING, "", "http://ocr/api/ocr/documents/result/1"))
+            .build();
+    when(documentRepository.findById("doc1")).thenReturn(Optional.of(doc));
+    when(documentRepository.updateOcrProgress(
+            eq("doc1"), eq(AsyncApiState.PROCESSING), any(AsyncApiInfo.class), any()))
+        .thenReturn(true);
+  }
+
+  @Test
+  void validCallbackSchedulesDownload() {
+    String timestamp = String.valueOf(System.currentTimeMillis());
+
+    boolean scheduled =
+        ocrCallbackService.handleCallback(
+            "doc1", timestamp, ocrCallbackSigner.sign(timestamp, "doc1", BODY), BODY);
+
+    Assertions.assertTrue(scheduled);
+    Assertions.assertEquals(AsyncApiState.SCANNED, doc.getAsyncApiInfo().getAsyncApiState());
+    // result link stored when the doc was sent is kept
+    Assertions.assertEquals(
+        "http://ocr/api/ocr/documents/result/1", doc.getAsyncApiInfo().getOcrApiDocResult());
+    verify(ocrJobQueue).expedite("doc1");
+    verify(ocrJobScheduler).schedule("doc1", 0);
+  }
+
+  @Test
+  void callbackOfPageSchedulesItsDoc() {
+    String timestamp = String.valueOf(System.currentTimeMillis());
+
+    boolean scheduled =
+        ocrCallbackService.handleCallback(
+            "doc1_p3", timestamp, ocrCallbackSigner.sign(timestamp, "doc1_p3", BODY), BODY);
+
+    Assertions.assertTrue(scheduled);
+    verify(ocrJobQueue).expedite("doc1");
+    verify(ocrJobScheduler).schedule("doc1", 0);
+  }
+
+  @Test
+  void invalidSignatureIsRejected() {
+    String timestamp = String.valueOf(System.currentTimeMillis());
+
+    Assertions.assertThrows(
+        InvalidAccessRightException.class,
+        () -> ocrCallbackService.handleCallback("doc1", timestamp, "00ff", BODY));
+    verify(ocrJobScheduler, never()).schedule(anyString(), anyLong());
+  }
+
+  @Test
+  void callbackSignedForOtherJobIsRejected() {
+    String timestamp = String.valueOf(System.currentTimeMillis());
+
+    Assertions.assertThrows(
+        InvalidAccessRightException.class,
+        () ->
+            ocrCallbackService.handleCallback(
+                "doc1", timestamp, ocrCallbackSigner.sign(timestamp, "doc2", BODY), BODY));
+    verify(documentRepository, never()).updateOcrProgress(anyString(), any(), any(), any());
+  }
+
+  @Test
+  void oldCallbackIsRejected() {
+    String timestamp = String.valueOf(System.currentTimeMillis() - 3600000);
+
+    Assertions.assertThrows(
+        InvalidAccessRightException.class,
+        () ->
+            ocrCallbackService.handleCallback(
+                "doc1", timestamp, ocrCallbackSigner.sign(timestamp, "doc1", BODY), BODY));
+  }
+
+  @Test
+  void callbackOfAlreadyScannedDocIsIgnored() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+    String timestamp = String.valueOf(System.currentTimeMillis());
+
+    boolean scheduled =
+        ocrCallbackService.handleCallback(
+            "doc1", timestamp, ocrCallbackSigner.sign(timestamp, "doc1", BODY), BODY);
+
+    Assertions.assertFalse(scheduled);
+    verify(documentRepository, never()).updateOcrProgress(anyString(), any(), any(), any());
+    verify(ocrJobScheduler, never()).schedule(anyString(), anyLong());
+  }
+}
@@ -0,0 +1,277 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.controllers.OcrCallbackController;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * Class OcrCallbackStubServerTest runs a document against local stub of OCR API, once finished OCR
+ * is found by status polling and once reported by signed callback without any status request.
+ */
+class OcrCallbackStubServerTest {
+
+  private static final long OCR_TIME_MILLIS = 250;
+
+  @Mock BlobStore blobStore;
+
+  @Mock DocRepository documentRepository;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock OcrResultCache ocrResultCache;
+
+  @Mock OcrJobScheduler ocrJobScheduler;
+
+  private HttpServer server;
+  private ScheduledExecutorService ocrSimulation;
+  private OcrProperties ocrProperties;
+  private OcrCallbackSigner ocrCallbackSigner;
+  private OCRServiceTesseract ocrService;
+
+  private volatile boolean finished;
+
+  /** Status requests received by stub OCR. */
+  private final AtomicInteger statusRequests = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    when(blobStore.loadBlob(anyString())).thenReturn(new ByteArrayResource(new byte[1024]));
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/api/ocr/documents", this::handleOcrRequest);
+    server.start();
+    ocrSimulation = Executors.newSingleThreadScheduledExecutor();
+
+    ocrProperties = new OcrProperties();
+    ocrProperties.setAddress("127.0.0.1");
+    ocrProperties.setPort(String.valueOf(server.getAddress().getPort()));
+    ocrProperties.getPolling().setMinDelayMillis(50);
+    ocrProperties.getPolling().setMillisPerPage(100);
+    ocrProperties.getPolling().setJitter(0);
+    ocrProperties.getCallback().setSecret("secret");
+    ocrCallbackSigner = new OcrCallbackSigner(ocrProperties);
+
+    RestApiOcr restApiOcr =
+        new RestApiOcrTessMethods(
+            ocrProperties,
+            blobStore,
+            WebClient.create(),
+            new OcrBackendRouter(ocrProperties),
+            new OcrCircuitBreaker(ocrProperties));
+    ocrService =
+        new OCRServiceTesseract(
+            documentRepository,
+            restApiOcr,
+            new OcrBatchSubmitter(restApiOcr, ocrProperties),
+            new PdfTextLayerClassifier(blobStore, ocrProperties),
+            new OcrPageFanOut(blobStore, restApiOcr, new OcrBackendRouter(ocrProperties), ocrProperties),
+            ocrResultCache,
+            ocrProperties);
+  }
+
+  @AfterEach
+  void tearDown() {
+    ocrSimulation.shutdownNow();
+    server.stop(0);
+  }
+
+  private Doc createDoc() {
+    return Doc.builder()
+        .id("doc1")
+        .nameOfFile("receipt.png")
+        .documentBlobId("blob1")
+        .docType(DocType.IMG)
+        .docConfig(new DocConfig(false, false, "eng", false))
+        .asyncApiInfo(new AsyncApiInfo())
+        .build();
+  }
+
+  @Test
+  void pollingFindsScannedDoc() {
+    Doc doc = createDoc();
+    OcrPollingPolicy ocrPollingPolicy = new OcrPollingPolicy(ocrProperties);
+
+    ocrService.extractTextFromDoc(doc);
+    Assertions.assertEquals(AsyncApiState.PROCESSING, doc.getAsyncApiInfo().getAsyncApiState());
+
+    int pollCount = 0;
+    long delay = ocrPollingPolicy.firstPollDelay(doc);
+    while (doc.getAsyncApiInfo().getAsyncApiState() == AsyncApiState.PROCESSING) {
+      sleep(delay);
+      ocrService.extractTextFromDoc(doc);
+      delay = ocrPollingPolicy.nextPollDelay(doc, ++pollCount);
+    }
+    Assertions.assertEquals(AsyncApiState.SCANNED, doc.getAsyncApiInfo().getAsyncApiState());
+
+    Assertions.assertTrue(pollCount > 0);
+    Assertions.assertEquals(pollCount, statusRequests.get());
+
+    ocrService.extractTextFromDoc(doc);
+
+    Assertions.assertEquals(AsyncApiState.RESOURCE_TO_CLEAN, doc.getAsyncApiInfo().getAsyncApiState());
+    Assertions.assertEquals("scanned text", doc.getDocPageList().get(0).getContent());
+  }
+
+  @Test
+  void callbackMovesDocToDownload() throws Exception {
+    ocrProperties.getCallback().setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/archive");
+    // polling would find the doc much later
+    ocrProperties.getPolling().setMillisPerPage(60000);
+
+    Doc doc = createDoc();
+    when(documentRepository.findById("doc1")).thenReturn(Optional.of(doc));
+    when(documentRepository.updateOcrProgress(
+            eq("doc1"), eq(AsyncApiState.PROCESSING), any(AsyncApiInfo.class), any()))
+        .thenReturn(true);
+    CompletableFuture<Long> scheduledAt = new CompletableFuture<>();
+    doAnswer(invocation -> scheduledAt.complete(System.currentTimeMillis()))
+        .when(ocrJobScheduler)
+        .schedule("doc1", 0);
+
+    OcrCallbackService ocrCallbackService =
+        new OcrCallbackService(ocrCallbackSigner, documentRepository, ocrJobQueue, ocrJobScheduler);
+    server.createContext(
+        "/archive/ocr/callbacks/",
+        exchange -> {
+          String jobId = exchange.getRequestURI().getPath().replace("/archive/ocr/callbacks/", "");
+          boolean scheduled =
+              ocrCallbackService.handleCallback(
+                  jobId,
+                  exchange.getRequestHeaders().getFirst(OcrCallbackController.TIMESTAMP_HEADER),
+                  exchange.getRequestHeaders().getFirst(OcrCallbackController.SIGNATURE_HEADER),
+                  readBody(exchange));
+          respond(exchange, scheduled ? 202 : 200, "");
+        });
+
+    ocrService.extractTextFromDoc(doc);
+    Assertions.assertEquals(AsyncApiState.PROCESSING, doc.getAsyncApiInfo().getAsyncApiState());
+
+    scheduledAt.get(5, TimeUnit.SECONDS);
+    Assertions.assertEquals(AsyncApiState.SCANNED, doc.getAsyncApiInfo().getAsyncApiState());
+
+    ocrService.extractTextFromDoc(doc);
+
+    Assertions.assertEquals(AsyncApiState.RESOURCE_TO_CLEAN, doc.getAsyncApiInfo().getAsyncApiState());
+    Assertions.assertEquals("scanned text", doc.getDocPageList().get(0).getContent());
+    // scanned doc was reported by OCR, it wasn't polled for
+    Assertions.assertEquals(0, statusRequests.get());
+  }
+
+  /** Stub of the OCR API: accepts a doc, finishes it after OCR_TIME_MILLIS, returns result. */
+  private void handleOcrRequest(HttpExchange exchange) throws IOException {
+    String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/ocr/documents";
+    String links =
+        "\"currentStatusLink\":\"" + baseUrl + "/status/1\",\"resultLink\":\"" + baseUrl + "/result/1\"";
+    String path = exchange.getRequestURI().getPath();
+
+    if ("POST".equals(exchange.getRequestMethod())) {
+      String callbackUrl = readMultipartPart(readBody(exchange), "callbackUrl");
+      ocrSimulation.schedule(() -> finishOcr(callbackUrl, links), OCR_TIME_MILLIS, TimeUnit.MILLISECONDS);
+      respond(exchange, 200, "[{\"documentProcessStatus\":\"PROCESSING\"," + links + "}]");
+    } else if ("DELETE".equals(exchange.getRequestMethod())) {
+      respond(exchange, 200, "");
+    } else if (path.endsWith("/status/1")) {
+      statusRequests.incrementAndGet();
+      String state = finished ? "SCANNED" : "PROCESSING";
+      respond(exchange, 200, "{\"documentProcessStatus\":\"" + state + "\"," + links + "}");
+    } else {
+      respond(exchange, 200, "{\"origName\":\"receipt.png\",\"pages\":[\"scanned text\"]}");
+    }
+  }
+
+  private void finishOcr(String callbackUrl, String links) {
+    finished = true;
+    if (callbackUrl == null) return;
+
+    try {
+      String body = "{\"documentProcessStatus\":\"SCANNED\"," + links + "}";
+      String timestamp = String.valueOf(System.currentTimeMillis());
+      String jobId = callbackUrl.substring(callbackUrl.lastIndexOf('/') + 1);
+      HttpURLConnection connection = (HttpURLConnection) new URL(callbackUrl).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty(OcrCallbackController.TIMESTAMP_HEADER, timestamp);
+      connection.setRequestProperty(
+          OcrCallbackController.SIGNATURE_HEADER, ocrCallbackSigner.sign(timestamp, jobId, body));
+      try (OutputStream outputStream = connection.getOutputStream()) {
+        outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+      connection.getResponseCode();
+      connection.disconnect();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String readMultipartPart(String body, String name) {
+    int nameIndex = body.indexOf("name=" + name);
+    if (nameIndex < 0) return null;
+    int start = body.indexOf("\r\n\r\n", nameIndex) + 4;
+    return body.substring(start, body.indexOf("\r\n", start));
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    return new String(
+        StreamUtils.copyToByteArray(exchange.getRequestBody()), StandardCharsets.ISO_8859_1);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      try (OutputStream outputStream = exchange.getResponseBody()) {
+        outputStream.write(bytes);
+      }
+    }
+    exchange.close();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.exceptions.OcrUnavailableException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+
+/** Class OcrCircuitBreakerTest is used for JUnit tests of OcrCircuitBreaker and its health. */
+class OcrCircuitBreakerTest {
+
+  OcrProperties ocrProperties;
+
+  OcrCircuitBreaker ocrCircuitBreaker;
+
+  @BeforeEach
+  void setUp() {
+    ocrProperties = new OcrProperties();
+    ocrProperties.getBreaker().setFailureThreshold(2);
+    ocrProperties.getBreaker().setOpenMillis(100);
+    ocrProperties.getBreaker().setStatusConcurrency(1);
+
+    ocrCircuitBreaker = new OcrCircuitBreaker(ocrProperties);
+  }
+
+  private void fail(OcrOperation operation) {
+    ocrCircuitBreaker
+        .protect(operation, Mono.error(new ConnectException("Connection refused")))
+        .onErrorResume(e -> Mono.empty())
+        .block();
+  }
+
+  @Test
+  void breakerOpensAfterFailuresAndRejectsCalls() {
+    fail(OcrOperation.POST);
+    fail(OcrOperation.STATUS);
+
+    Assertions.assertEquals(OcrCircuitBreaker.State.OPEN, ocrCircuitBreaker.getState());
+    Assertions.assertFalse(ocrCircuitBreaker.isCallPermitted());
+    Assertions.assertThrows(
+        OcrUnavailableException.class,
+        () -> ocrCircuitBreaker.protect(OcrOperation.POST, Mono.just("called")).block());
+  }
+
+  @Test
+  void successfulProbeClosesBreaker() throws InterruptedException {
+    fail(OcrOperation.POST);
+    fail(OcrOperation.POST);
+
+    Thread.sleep(150);
+    Assertions.assertEquals(OcrCircuitBreaker.State.HALF_OPEN, ocrCircuitBreaker.getState());
+
+    Assertions.assertEquals(
+        "called", ocrCircuitBreaker.protect(OcrOperation.POST, Mono.just("called")).block());
+    Assertions.assertEquals(OcrCircuitBreaker.State.CLOSED, ocrCircuitBreaker.getState());
+  }
+
+  @Test
+  void failedProbeOpensBreakerAgain() throws InterruptedException {
+    fail(OcrOperation.POST);
+    fail(OcrOperation.POST);
+
+    Thread.sleep(150);
+    fail(OcrOperation.POST);
+
+    Assertions.assertEquals(OcrCircuitBreaker.State.OPEN, ocrCircuitBreaker.getState());
+  }
+
+  @Test
+  void clientErrorsDontOpenBreaker() {
+    for (int i = 0; i < 3; i++)
+      ocrCircuitBreaker
+          .protect(
+              OcrOperation.DELETE,
+              Mono.error(
+                  WebClientResponseException.create(
+                      HttpStatus.NOT_FOUND.value(), "Not Found", null, null, null)))
+          .onErrorResume(e -> Mono.empty())
+          .block();
+
+    Assertions.assertEquals(OcrCircuitBreaker.State.CLOSED, ocrCircuitBreaker.getState());
+  }
+
+  @Test
+  void invalidResponsesDontOpenBreaker() {
+    for (int i = 0; i < 3; i++)
+      ocrCircuitBreaker
+          .protect(OcrOperation.POST, Mono.error(new IllegalStateException("Invalid response")))
+          .onErrorResume(e -> Mono.empty())
+          .block();
+
+    Assertions.assertEquals(OcrCircuitBreaker.State.CLOSED, ocrCircuitBreaker.getState());
+    Assertions.assertFalse(OcrCircuitBreaker.isUnavailability(new IllegalStateException("Invalid response")));
+  }
+
+  @Test
+  void bulkheadLimitsConcurrentCallsOfOperation() {
+    ocrCircuitBreaker.protect(OcrOperation.STATUS, Mono.never()).subscribe();
+
+    Assertions.assertThrows(
+        OcrUnavailableException.class,
+        () -> ocrCircuitBreaker.protect(OcrOperation.STATUS, Mono.just("called")).block());
+    // other operations are not affected
+    Assertions.assertEquals(
+        "called", ocrCircuitBreaker.protect(OcrOperation.RESULT, Mono.just("called")).block());
+  }
+
+  @Test
+  void outageIsNotFaultOfDocument() {
+    Assertions.assertTrue(OcrCircuitBreaker.isOutage(new OcrUnavailableException("open")));
+    Assertions.assertFalse(OcrCircuitBreaker.isOutage(new IllegalStateException("Invalid response")));
+    // corrupt PDF is fault of the document
+    Assertions.assertFalse(
+        OcrCircuitBreaker.isOutage(new UncheckedIOException("Unable to read PDF", new IOException())));
+  }
+
+  @Test
+  void failedCallsAreOutages() {
+    Throwable refused =
+        Assertions.assertThrows(
+            OcrUnavailableException.class,
+            () ->
+                ocrCircuitBreaker
+                    .protect(OcrOperation.POST, Mono.error(new ConnectException("Connection refused")))
+                    .block());
+    Throwable unavailable =
+        Assertions.assertThrows(
+            OcrUnavailableException.class,
+            () ->
+                ocrCircuitBreaker
+                    .protect(
+                        OcrOperation.STATUS,
+                        Mono.error(
+                            WebClientResponseException.create(
+                                HttpStatus.SERVICE_UNAVAILABLE.value(),
+                                "Service Unavailable",
+                                null,
+                                null,
+                                null)))
+                    .block());
+
+    Assertions.assertTrue(OcrCircuitBreaker.isOutage(refused));
+    Assertions.assertTrue(OcrCircuitBreaker.isOutage(unavailable));
+    // client error is passed as it is, on a breaker not opened by previous failures
+    ocrCircuitBreaker = new OcrCircuitBreaker(ocrProperties);
+    Assertions.assertThrows(
+        WebClientResponseException.NotFound.class,
+        () ->
+            ocrCircuitBreaker
+                .protect(
+                    OcrOperation.DELETE,
+                    Mono.error(
+                        WebClientResponseException.create(
+                            HttpStatus.NOT_FOUND.value(), "Not Found", null, null, null)))
+                .block());
+  }
+
+  @Test
+  void openBreakerIsReportedOnHealth() {
+    OcrCircuitBreakerHealthIndicator healthIndicator =
+        new OcrCircuitBreakerHealthIndicator(ocrCircuitBreaker);
+    Assertions.assertEquals(Status.UP, healthIndicator.health().getStatus());
+
+    fail(OcrOperation.POST);
+    fail(OcrOperation.POST);
+
+    // application stays in service, only state of breaker is reported
+    Assertions.assertEquals(Status.UP, healthIndicator.health().getStatus());
+    Assertions.assertEquals("OPEN", healthIndicator.health().getDetails().get("state").toString());
+  }
+}
@@ -0,0 +1,89 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.entities.ocr.OcrJobState;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.workers.OcrJobScheduler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/** Class OcrDeadLetterServiceTest is used for JUnit tests of OcrDeadLetterService. */
+class OcrDeadLetterServiceTest {
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock DocRepository documentRepository;
+
+  @Mock OcrJobScheduler ocrJobScheduler;
+
+  OcrProperties ocrProperties;
+
+  OcrDeadLetterService ocrDeadLetterService;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    ocrProperties = new OcrProperties();
+    ocrProperties.getJobs().setRedriveRatePerSecond(10);
+    ocrProperties.getJobs().setRedriveBatchSize(2);
+
+    List<OcrJob> deadLetters =
+        Arrays.asList(
+            OcrJob.builder().id("doc1").state(OcrJobState.DEAD_LETTER).build(),
+            OcrJob.builder().id("doc2").state(OcrJobState.DEAD_LETTER).build());
+    when(ocrJobQueue.findDeadLetters(anyInt())).thenReturn(deadLetters);
+    when(ocrJobQueue.redrive(anyString(), anyLong())).thenReturn(true);
+
+    ocrDeadLetterService =
+        new OcrDeadLetterService(ocrJobQueue, documentRepository, ocrJobScheduler, ocrProperties);
+  }
+
+  @Test
+  void redrivenJobsAreSpreadByRate() {
+    int redriven = ocrDeadLetterService.redriveDeadLetters(100);
+
+    Assertions.assertEquals(2, redriven);
+    // limit is capped by batch size
+    verify(ocrJobQueue).findDeadLetters(2);
+
+    ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+    verify(ocrJobScheduler, times(2)).schedule(anyString(), delays.capture());
+    long spread = delays.getAllValues().get(1) - delays.getAllValues().get(0);
+    Assertions.assertTrue(spread >= 90 && spread <= 100);
+  }
+
+  @Test
+  void redrivenDocsAreScannedFromBeginning() {
+    ocrDeadLetterService.redriveDeadLetters(100);
+
+    ArgumentCaptor<AsyncApiInfo> asyncApiInfo = ArgumentCaptor.forClass(AsyncApiInfo.class);
+    verify(documentRepository)
+        .updateOcrProgress(eq("doc1"), eq(AsyncApiState.FAILED), asyncApiInfo.capture(), any());
+    Assertions.assertEquals(AsyncApiState.WAITING_TO_SEND, asyncApiInfo.getValue().getAsyncApiState());
+  }
+
+  @Test
+  void jobsNotDeadLetteredAnymoreAreSkipped() {
+    when(ocrJobQueue.redrive(eq("doc1"), anyLong())).thenReturn(false);
+
+    Assertions.assertEquals(1, ocrDeadLetterService.redriveDeadLetters(100));
+    verify(ocrJobScheduler, never()).schedule(eq("doc1"), anyLong());
+  }
+}
@@ -0,0 +1,181 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.entities.TessApiDoc;
+import com.sulikdan.ERDMS.entities.ocr.OcrPagePart;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class OcrPageFanOutTest is used for JUnit tests of scanning documents page by page.
+ */
+class OcrPageFanOutTest {
+
+  @Mock BlobStore blobStore;
+
+  @Mock RestApiOcr restApiOcr;
+
+  OcrProperties ocrProperties = new OcrProperties();
+
+  OcrPageFanOut ocrPageFanOut;
+
+  Doc doc;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+    ocrProperties.setBackends(Arrays.asList("http://ocr1", "http://ocr2"));
+    ocrPageFanOut =
+        new OcrPageFanOut(blobStore, restApiOcr, new OcrBackendRouter(ocrProperties), ocrProperties);
+
+    doc =
+        Doc.builder()
+            .id("doc1")
+            .nameOfFile("scan.pdf")
+            .docType(DocType.PDF)
+            .docConfig(DocConfig.builder().multiPage(true).build())
+            .asyncApiInfo(new AsyncApiInfo())
+            .docPageList(
+                new ArrayList<>(
+                    Arrays.asList(new DocPage(""), new DocPage("text 1"), new DocPage(""), new DocPage(""))))
+            .build();
+    doc.getAsyncApiInfo()
+        .setPageParts(
+            Arrays.asList(
+                new OcrPagePart(0, "page0"), new OcrPagePart(2, "page2"), new OcrPagePart(3, "page3")));
+  }
+
+  @Test
+  void pagesAreSentOneByOne() {
+    when(restApiOcr.postDocRequest(any(Doc.class)))
+        .thenAnswer(invocation -> Mono.just(processingInfo(invocation.getArgument(0))));
+
+    Doc result = ocrPageFanOut.advance(doc).block(Duration.ofSeconds(5));
+
+    Assertions.assertEquals(AsyncApiState.PROCESSING, result.getAsyncApiInfo().getAsyncApiState());
+    ArgumentCaptor<Doc> sent = ArgumentCaptor.forClass(Doc.class);
+    verify(restApiOcr, times(3)).postDocRequest(sent.capture());
+    Assertions.assertEquals(
+        Arrays.asList("doc1_p0", "doc1_p2", "doc1_p3"),
+        sent.getAllValues().stream().map(Doc::getId).sorted().collect(Collectors.toList()));
+    Assertions.assertEquals("page2", findSent(sent.getAllValues(), "doc1_p2").getDocumentBlobId());
+    Assertions.assertFalse(findSent(sent.getAllValues(), "doc1_p2").getDocConfig().getMultiPage());
+  }
+
+  @Test
+  void scannedPagesArePutTogetherInOrder() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    for (OcrPagePart part : doc.getAsyncApiInfo().getPageParts()) {
+      part.setAsyncApiInfo(processingInfo(page(part.getPageNumber())));
+    }
+    when(restApiOcr.getDocStatus(eq("http://ocr1"), anyString()))
+        .thenAnswer(
+            invocation -> {
+              String uri = invocation.getArgument(1);
+              AsyncApiInfo scanned = processingInfo(page(Integer.parseInt(uri.substring(uri.length() - 1))));
+              scanned.setAsyncApiState(AsyncApiState.SCANNED);
+              return Mono.just(scanned);
+            });
+    when(restApiOcr.getDocResult(eq("http://ocr1"), anyString()))
+        .thenAnswer(
+            invocation -> {
+              String uri = invocation.getArgument(1);
+              TessApiDoc tessApiDoc = new TessApiDoc();
+              tessApiDoc.setPages(
+                  Collections.singletonList("scanned " + uri.substring(uri.length() - 1)));
+              return Mono.just(tessApiDoc);
+            });
+    when(restApiOcr.deleteDoc(eq("http://ocr1"), anyString())).thenReturn(Mono.just(true));
+
+    Doc result = ocrPageFanOut.advance(doc).block(Duration.ofSeconds(5));
+
+    Assertions.assertEquals(AsyncApiState.COMPLETED, result.getAsyncApiInfo().getAsyncApiState());
+    Assertions.assertEquals(
+        Arrays.asList("scanned 0", "text 1", "scanned 2", "scanned 3"),
+        result.getDocPageList().stream().map(DocPage::getContent).collect(Collectors.toList()));
+    verify(blobStore).deleteBlob("page0");
+    verify(blobStore).deleteBlob("page2");
+    verify(blobStore).deleteBlob("page3");
+  }
+
+  @Test
+  void failedPageIsRetriedAlone() {
+    when(restApiOcr.postDocRequest(any(Doc.class)))
+        .thenAnswer(
+            invocation -> {
+              Doc page = invocation.getArgument(0);
+              if (page.getId().equals("doc1_p2"))
+                return Mono.error(new IllegalStateException("Broken page"));
+              return Mono.just(processingInfo(page));
+            });
+
+    Doc result = ocrPageFanOut.advance(doc).block(Duration.ofSeconds(5));
+
+    OcrPagePart failed = result.getAsyncApiInfo().getPageParts().get(1);
+    Assertions.assertEquals(AsyncApiState.PROCESSING, result.getAsyncApiInfo().getAsyncApiState());
+    Assertions.assertEquals(AsyncApiState.WAITING_TO_SEND, failed.getAsyncApiInfo().getAsyncApiState());
+    Assertions.assertEquals(1, failed.getAttempts());
+
+    // only the failed page is sent again, the others are still processing on their backends
+    when(restApiOcr.getDocStatus(anyString(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              String uri = invocation.getArgument(1);
+              return Mono.just(processingInfo(page(Integer.parseInt(uri.substring(uri.length() - 1)))));
+            });
+    clearInvocations(restApiOcr);
+    ocrPageFanOut.advance(doc).block(Duration.ofSeconds(5));
+    verify(restApiOcr, times(1)).postDocRequest(any(Doc.class));
+  }
+
+  @Test
+  void pageOutOfAttemptsFailsDoc() {
+    ocrProperties.getFanOut().setMaxPageAttempts(1);
+    when(restApiOcr.postDocRequest(any(Doc.class)))
+        .thenReturn(Mono.error(new IllegalStateException("Broken page")));
+
+    Doc result = ocrPageFanOut.advance(doc).block(Duration.ofSeconds(5));
+
+    Assertions.assertEquals(AsyncApiState.FAILED, result.getAsyncApiInfo().getAsyncApiState());
+    verify(blobStore).deleteBlob("page0");
+  }
+
+  private static Doc findSent(List<Doc> sent, String id) {
+    return sent.stream().filter(page -> page.getId().equals(id)).findFirst().orElse(null);
+  }
+
+  private static Doc page(int pageNumber) {
+    return Doc.builder().id(OcrPagePart.partId("doc1", pageNumber)).build();
+  }
+
+  private static AsyncApiInfo processingInfo(Doc page) {
+    String link = "http://ocr1/api/ocr/documents/" + page.getId();
+    AsyncApiInfo asyncApiInfo = new AsyncApiInfo(AsyncApiState.PROCESSING, link, link);
+    asyncApiInfo.setOcrBackend("http://ocr1");
+    return asyncApiInfo;
+  }
+}
@@ -0,0 +1,96 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+/**
+ * Class OcrPollingPolicyTest is used for JUnit tests of OcrPollingPolicy estimates and backoff.
+ */
+class OcrPollingPolicyTest {
+
+  OcrProperties ocrProperties;
+
+  OcrPollingPolicy ocrPollingPolicy;
+
+  @BeforeEach
+  void setUp() {
+    ocrProperties = new OcrProperties();
+    // without jitter
+    ocrProperties.getPolling().setJitter(0);
+
+    ocrPollingPolicy = new OcrPollingPolicy(ocrProperties, new Random(42));
+  }
+
+  private Doc createDoc(DocType docType, boolean highQuality, long size) {
+    return Doc.builder()
+        .docType(docType)
+        .docConfig(new DocConfig(highQuality, true, "eng", false))
+        .documentSize(size)
+        .build();
+  }
+
+  @Test
+  void firstPollDelayDependsOnPagesAndQuality() {
+    long image = ocrPollingPolicy.firstPollDelay(createDoc(DocType.IMG, false, 1000000));
+    long imageHighQuality = ocrPollingPolicy.firstPollDelay(createDoc(DocType.IMG, true, 1000000));
+    long pdf = ocrPollingPolicy.firstPollDelay(createDoc(DocType.PDF, false, 1000000));
+
+    Assertions.assertEquals(4000, image);
+    Assertions.assertEquals(10000, imageHighQuality);
+    Assertions.assertEquals(5 * 4000, pdf);
+  }
+
+  @Test
+  void nextPollDelayBacksOffTillMax() {
+    Doc doc = createDoc(DocType.IMG, false, 1000);
+
+    Assertions.assertEquals(2000, ocrPollingPolicy.nextPollDelay(doc, 1));
+    Assertions.assertEquals(4000, ocrPollingPolicy.nextPollDelay(doc, 2));
+    Assertions.assertEquals(8000, ocrPollingPolicy.nextPollDelay(doc, 3));
+    Assertions.assertEquals(
+        ocrProperties.getPolling().getMaxDelayMillis(), ocrPollingPolicy.nextPollDelay(doc, 30));
+  }
+
+  @Test
+  void estimateLearnsFromFinishedJobs() {
+    Doc doc = createDoc(DocType.IMG, false, 1000);
+
+    for (int i = 0; i < 50; i++) ocrPollingPolicy.recordCompletion(doc, 20000);
+
+    Assertions.assertEquals(20000, ocrPollingPolicy.estimateDuration(doc), 100);
+    // high quality estimate is learned separately
+    Assertions.assertEquals(
+        10000, ocrPollingPolicy.estimateDuration(createDoc(DocType.IMG, true, 1000)), 0.1);
+  }
+
+  @Test
+  void stillProcessingDocOnlyRaisesEstimate() {
+    Doc doc = createDoc(DocType.IMG, false, 1000);
+
+    // found processing sooner than estimated, nothing is known
+    ocrPollingPolicy.recordStillProcessing(doc, 1000);
+    Assertions.assertEquals(4000, ocrPollingPolicy.estimateDuration(doc), 0.1);
+
+    for (int i = 0; i < 50; i++) ocrPollingPolicy.recordStillProcessing(doc, 20000);
+    Assertions.assertEquals(20000, ocrPollingPolicy.estimateDuration(doc), 100);
+  }
+
+  @Test
+  void jitterSpreadsDelays() {
+    ocrProperties.getPolling().setJitter(0.2);
+    Doc doc = createDoc(DocType.IMG, true, 1000);
+
+    long first = ocrPollingPolicy.firstPollDelay(doc);
+    long second = ocrPollingPolicy.firstPollDelay(doc);
+
+    Assertions.assertNotEquals(first, second);
+    Assertions.assertTrue(first >= 8000 && first <= 12000);
+  }
+}
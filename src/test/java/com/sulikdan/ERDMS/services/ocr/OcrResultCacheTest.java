@@ -0,0 +1,113 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocConfig;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.ocr.OcrResultCacheEntry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class OcrResultCacheTest is used for JUnit tests of OcrResultCache.
+ */
+class OcrResultCacheTest {
+
+  @Mock MongoTemplate mongoTemplate;
+
+  @Mock IndexOperations indexOperations;
+
+  OcrProperties ocrProperties = new OcrProperties();
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  OcrResultCache ocrResultCache;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+    when(mongoTemplate.indexOps(OcrResultCacheEntry.class)).thenReturn(indexOperations);
+    ocrProperties.getResultCache().setMemoryEntries(1);
+
+    ocrResultCache = new OcrResultCache(mongoTemplate, ocrProperties, meterRegistry);
+  }
+
+  @Test
+  void missIsCounted() {
+    Assertions.assertFalse(ocrResultCache.find(createDoc("aaa", "eng")).isPresent());
+
+    Assertions.assertEquals(1, meterRegistry.counter("ocr.cache.misses").count());
+    Assertions.assertEquals(0, meterRegistry.counter("ocr.cache.hits").count());
+  }
+
+  @Test
+  void resultIsLoadedFromDbAndKeptInMemory() {
+    when(mongoTemplate.findById("aaa|eng|false|false", OcrResultCacheEntry.class))
+        .thenReturn(
+            new OcrResultCacheEntry(
+                "aaa|eng|false|false", Collections.singletonList(new DocPage("cached")), new Date()));
+
+    Assertions.assertEquals(
+        "cached", ocrResultCache.find(createDoc("aaa", "eng")).get().get(0).getContent());
+    Assertions.assertTrue(ocrResultCache.find(createDoc("aaa", "eng")).isPresent());
+
+    verify(mongoTemplate, times(1)).findById(anyString(), eq(OcrResultCacheEntry.class));
+    Assertions.assertEquals(2, meterRegistry.counter("ocr.cache.hits").count());
+  }
+
+  @Test
+  void differentConfigIsNotHit() {
+    Doc scanned = createDoc("aaa", "eng");
+    scanned.setDocPageList(Collections.singletonList(new DocPage("english")));
+    ocrResultCache.store(scanned);
+
+    Assertions.assertFalse(ocrResultCache.find(createDoc("aaa", "slk")).isPresent());
+    Assertions.assertTrue(ocrResultCache.find(createDoc("aaa", "eng")).isPresent());
+  }
+
+  @Test
+  void leastRecentlyUsedIsEvictedFromMemory() {
+    Doc first = createDoc("aaa", "eng");
+    first.setDocPageList(Collections.singletonList(new DocPage("first")));
+    Doc second = createDoc("bbb", "eng");
+    second.setDocPageList(Collections.singletonList(new DocPage("second")));
+
+    ocrResultCache.store(first);
+    ocrResultCache.store(second);
+
+    Assertions.assertEquals(1, ocrResultCache.getMemorySize());
+    verify(mongoTemplate, times(2)).save(any(OcrResultCacheEntry.class));
+    // evicted one is loaded from DB
+    Assertions.assertFalse(ocrResultCache.find(first).isPresent());
+    verify(mongoTemplate).findById("aaa|eng|false|false", OcrResultCacheEntry.class);
+  }
+
+  @Test
+  void disabledCacheIsNotUsed() {
+    ocrProperties.getResultCache().setEnabled(false);
+
+    Assertions.assertFalse(ocrResultCache.find(createDoc("aaa", "eng")).isPresent());
+    verify(mongoTemplate, never()).findById(anyString(), eq(OcrResultCacheEntry.class));
+  }
+
+  private static Doc createDoc(String sha256, String lang) {
+    Doc doc = new Doc();
+    doc.setDocumentSha256(sha256);
+    doc.setDocConfig(DocConfig.builder().lang(lang).build());
+    return doc;
+  }
+}
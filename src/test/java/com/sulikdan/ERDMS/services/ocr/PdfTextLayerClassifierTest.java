@@ -0,0 +1,134 @@
+package com.sulikdan.ERDMS.services.ocr;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPage;
+import com.sulikdan.ERDMS.entities.DocType;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PdfTextLayerClassifierTest {
+
+  private static final String TEXT = "Invoice number 2020-0042, total amount 120 EUR";
+
+  @Mock BlobStore blobStore;
+
+  OcrProperties ocrProperties = new OcrProperties();
+  PdfTextLayerClassifier classifier;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+    classifier = new PdfTextLayerClassifier(blobStore, ocrProperties);
+  }
+
+  @Test
+  void allPagesWithText() throws IOException {
+    Doc doc = createDoc(createPdf(TEXT, TEXT));
+
+    assertFalse(classifier.prepareForOcr(doc));
+
+    assertEquals(AsyncApiState.COMPLETED, doc.getAsyncApiInfo().getAsyncApiState());
+    assertEquals(2, doc.getDocPageList().size());
+    assertTrue(doc.getDocPageList().get(1).getContent().contains("Invoice number"));
+    verify(blobStore, never()).storeBlob(any(InputStream.class), anyString(), anyString());
+  }
+
+  @Test
+  void scannedPagesOnly() throws IOException {
+    Doc doc = createDoc(createPdf(null, null));
+
+    assertTrue(classifier.prepareForOcr(doc));
+
+    assertEquals(AsyncApiState.WAITING_TO_SEND, doc.getAsyncApiInfo().getAsyncApiState());
+    assertNull(doc.getAsyncApiInfo().getOcrBlobId());
+    assertEquals(Arrays.asList(0, 1), doc.getAsyncApiInfo().getOcrPageNumbers());
+    assertFalse(classifier.isApplicable(doc));
+  }
+
+  @Test
+  void mixedPages() throws IOException {
+    Doc doc = createDoc(createPdf(TEXT, null, TEXT, null));
+    when(blobStore.storeBlob(any(InputStream.class), anyString(), eq("application/pdf")))
+        .thenReturn("imagePages");
+
+    assertTrue(classifier.prepareForOcr(doc));
+
+    assertEquals(AsyncApiState.WAITING_TO_SEND, doc.getAsyncApiInfo().getAsyncApiState());
+    assertEquals("imagePages", doc.getAsyncApiInfo().getOcrBlobId());
+    assertEquals(Arrays.asList(1, 3), doc.getAsyncApiInfo().getOcrPageNumbers());
+    assertEquals(4, doc.getDocPageList().size());
+    assertEquals("", doc.getDocPageList().get(1).getContent());
+    assertTrue(doc.getDocPageList().get(2).getContent().contains("Invoice number"));
+
+    verify(blobStore).storeBlob(any(InputStream.class), anyString(), eq("application/pdf"));
+
+    classifier.cleanUp(doc);
+    verify(blobStore).deleteBlob("imagePages");
+    assertNull(doc.getAsyncApiInfo().getOcrBlobId());
+  }
+
+  @Test
+  void notApplicableWhenDisabled() throws IOException {
+    Doc doc = createDoc(createPdf(TEXT));
+    assertTrue(classifier.isApplicable(doc));
+
+    ocrProperties.getTextLayer().setEnabled(false);
+
+    assertFalse(classifier.isApplicable(doc));
+  }
+
+  private Doc createDoc(byte[] pdf) {
+    when(blobStore.loadBlob("blob1")).thenReturn(new ByteArrayResource(pdf));
+    Doc doc = new Doc();
+    doc.setDocumentBlobId("blob1");
+    doc.setNameOfFile("invoice.pdf");
+    doc.setDocType(DocType.PDF);
+    doc.setAsyncApiInfo(new AsyncApiInfo());
+    return doc;
+  }
+
+  /** One page per text, null creates page without text layer. */
+  private static byte[] createPdf(String... pageTexts) throws IOException {
+    try (PDDocument pdf = new PDDocument()) {
+      for (String pageText : pageTexts) {
+        PDPage page = new PDPage();
+        pdf.addPage(page);
+        if (pageText == null) continue;
+        try (PDPageContentStream stream = new PDPageContentStream(pdf, page)) {
+          stream.beginText();
+          stream.setFont(PDType1Font.HELVETICA, 12);
+          stream.newLineAtOffset(50, 700);
+          stream.showText(pageText);
+          stream.endText();
+        }
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      pdf.save(out);
+      return out.toByteArray();
+    }
+  }
+}
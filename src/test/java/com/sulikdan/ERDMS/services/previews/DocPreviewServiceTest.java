@@ -0,0 +1,216 @@
+package com.sulikdan.ERDMS.services.previews;
+
+import com.sulikdan.ERDMS.configurations.properties.StorageProperties;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.DocPreview;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.blobs.BlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class DocPreviewServiceTest is used for JUnit tests of DocPreviewService. Previews are created
+ * right in the calling thread.
+ */
+class DocPreviewServiceTest {
+
+  @Mock BlobStore blobStore;
+
+  @Mock DocRepository documentRepository;
+
+  @Mock MongoTemplate mongoTemplate;
+
+  StorageProperties storageProperties = new StorageProperties();
+
+  SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  List<BufferedImage> storedImages = new ArrayList<>();
+
+  DocPreviewService docPreviewService;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    when(blobStore.storeBlob(any(InputStream.class), anyString(), anyString()))
+        .thenAnswer(
+            invocation -> {
+              storedImages.add(ImageIO.read((InputStream) invocation.getArgument(0)));
+              return "preview" + storedImages.size();
+            });
+
+    docPreviewService = createService(Runnable::run);
+  }
+
+  @Test
+  void previewsAreCreatedInAllSizes() throws IOException {
+    List<DocPreview> previews =
+        docPreviewService.createPreviews(createPng(800, 600), "scan.png");
+
+    Assert.assertEquals(3, previews.size());
+    Assert.assertEquals(400, previews.get(0).getSize());
+    Assert.assertEquals(150, previews.get(1).getSize());
+    Assert.assertEquals(64, previews.get(2).getSize());
+    Assert.assertEquals("image/png", previews.get(0).getContentType());
+    Assert.assertEquals(400, storedImages.get(0).getWidth());
+    Assert.assertEquals(150, storedImages.get(1).getWidth());
+    Assert.assertEquals(64, storedImages.get(2).getWidth());
+    verify(blobStore).storeBlob(any(InputStream.class), eq("scan_preview_64.png"), eq("image/png"));
+  }
+
+  @Test
+  void smallImageIsNotEnlarged() throws IOException {
+    docPreviewService.createPreviews(createPng(100, 50), "small.png");
+
+    Assert.assertEquals(100, storedImages.get(0).getWidth());
+    Assert.assertEquals(100, storedImages.get(1).getWidth());
+    Assert.assertEquals(64, storedImages.get(2).getWidth());
+  }
+
+  @Test
+  void bigImageIsDecodedSubsampled() throws IOException {
+    BufferedImage decoded = DocPreviewService.readSubsampled(createPng(4000, 3000), 800);
+
+    Assert.assertEquals(800, decoded.getWidth());
+    Assert.assertEquals(600, decoded.getHeight());
+  }
+
+  @Test
+  void firstPageOfPdfIsRendered() throws IOException {
+    List<DocPreview> previews =
+        docPreviewService.createPreviews(new ByteArrayInputStream(createPdf(2)), "scan.pdf");
+
+    Assert.assertEquals(3, previews.size());
+    Assert.assertEquals("image/jpeg", previews.get(0).getContentType());
+    // letter page is portrait
+    Assert.assertEquals(400, storedImages.get(0).getHeight());
+    verify(blobStore)
+        .storeBlob(any(InputStream.class), eq("scan_preview_400.jpg"), eq("image/jpeg"));
+  }
+
+  @Test
+  void unreadableImageHasNoPreview() throws IOException {
+    List<DocPreview> previews =
+        docPreviewService.createPreviews(
+            new ByteArrayInputStream(new byte[] {1, 2, 3}), "broken.png");
+
+    Assert.assertTrue(previews.isEmpty());
+    verify(blobStore, never()).storeBlob(any(InputStream.class), anyString(), anyString());
+  }
+
+  @Test
+  void scheduledPreviewsAreSetToDoc() throws IOException {
+    Doc doc = createDoc("scan.png");
+    when(blobStore.loadBlob("blob1")).thenReturn(new ByteArrayResource(pngBytes(800, 600)));
+    when(documentRepository.updatePreviews(eq(doc.getId()), anyList())).thenReturn(true);
+
+    docPreviewService.schedulePreviews(doc);
+
+    verify(documentRepository).updatePreviews(eq(doc.getId()), anyList());
+    verify(blobStore, never()).deleteBlob(anyString());
+  }
+
+  @Test
+  void previewsOfDeletedDocAreDeleted() throws IOException {
+    Doc doc = createDoc("scan.png");
+    when(blobStore.loadBlob("blob1")).thenReturn(new ByteArrayResource(pngBytes(800, 600)));
+    when(documentRepository.updatePreviews(eq(doc.getId()), anyList())).thenReturn(false);
+
+    docPreviewService.schedulePreviews(doc);
+
+    verify(blobStore, times(3)).deleteBlob(anyString());
+  }
+
+  @Test
+  void unsupportedFileIsNotScheduled() {
+    docPreviewService.schedulePreviews(createDoc("scan.tiff"));
+
+    verify(blobStore, never()).loadBlob(anyString());
+  }
+
+  @Test
+  void docOverQueueIsLeftWithoutPreview() {
+    docPreviewService =
+        createService(
+            task -> {
+              throw new RejectedExecutionException();
+            });
+
+    docPreviewService.schedulePreviews(createDoc("scan.png"));
+
+    Assert.assertEquals(1, meterRegistry.counter("previews.rejected").count(), 0);
+    verify(blobStore, never()).loadBlob(anyString());
+  }
+
+  @Test
+  void smallestBiggerPreviewIsFound() {
+    Doc doc = new Doc();
+    doc.setPreviews(
+        Arrays.asList(
+            new DocPreview(400, "p400", "image/png"),
+            new DocPreview(64, "p64", "image/png"),
+            new DocPreview(150, "p150", "image/png")));
+
+    Assert.assertEquals("p64", docPreviewService.findPreview(doc, 10).get().getBlobId());
+    Assert.assertEquals("p150", docPreviewService.findPreview(doc, 100).get().getBlobId());
+    Assert.assertEquals("p400", docPreviewService.findPreview(doc, 1000).get().getBlobId());
+    Assert.assertFalse(docPreviewService.findPreview(new Doc(), 100).isPresent());
+  }
+
+  private DocPreviewService createService(Executor executor) {
+    return new DocPreviewService(
+        blobStore, documentRepository, mongoTemplate, storageProperties, meterRegistry, executor);
+  }
+
+  private static Doc createDoc(String nameOfFile) {
+    Doc doc = new Doc();
+    doc.setNameOfFile(nameOfFile);
+    doc.setDocumentBlobId("blob1");
+    return doc;
+  }
+
+  private static InputStream createPng(int width, int height) throws IOException {
+    return new ByteArrayInputStream(pngBytes(width, height));
+  }
+
+  private static byte[] pngBytes(int width, int height) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private static byte[] createPdf(int pages) throws IOException {
+    try (PDDocument pdf = new PDDocument()) {
+      for (int i = 0; i < pages; i++) pdf.addPage(new PDPage());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      pdf.save(out);
+      return out.toByteArray();
+    }
+  }
+}
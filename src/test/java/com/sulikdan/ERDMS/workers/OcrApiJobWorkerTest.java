@@ -0,0 +1,333 @@
+package com.sulikdan.ERDMS.workers;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.exceptions.OcrUnavailableException;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.DocService;
+import com.sulikdan.ERDMS.services.ocr.OCRService;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.ocr.OcrPollingPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class OcrApiJobWorkerTest is used for JUnit tests of OcrApiJobWorker pipeline.
+ */
+class OcrApiJobWorkerTest {
+
+  @Mock OCRService ocrService;
+
+  @Mock DocService docService;
+
+  @Mock DocRepository documentRepository;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock OcrJobScheduler ocrJobScheduler;
+
+  @Mock OcrPollingPolicy ocrPollingPolicy;
+
+  OcrProperties ocrProperties = new OcrProperties();
+
+  Doc doc;
+
+  OcrJob job;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    doc =
+        Doc.builder()
+            .id("doc1")
+            .asyncApiInfo(new AsyncApiInfo(AsyncApiState.RESOURCE_TO_CLEAN, "", ""))
+            .build();
+    job = OcrJob.builder().id("doc1").build();
+
+    when(docService.saveOcrProgress(any(Doc.class), any(AsyncApiState.class), anyBoolean()))
+        .thenReturn(true);
+  }
+
+  private OcrApiJobWorker createWorker() {
+    return new OcrApiJobWorker(
+        ocrService,
+        docService,
+        documentRepository,
+        ocrJobQueue,
+        ocrJobScheduler,
+        ocrPollingPolicy,
+        ocrProperties.getJobs(),
+        job,
+        doc);
+  }
+
+  @Test
+  void completedJobIsRemoved() {
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+              return Mono.just(doc).delayElement(Duration.ofMillis(10));
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(docService).saveOcrProgress(doc, AsyncApiState.RESOURCE_TO_CLEAN, false);
+    verify(ocrJobQueue).complete(job);
+    verify(ocrJobQueue, never()).release(any(OcrJob.class), anyLong(), anyBoolean());
+  }
+
+  @Test
+  void docWithFailedPageIsDeadLettered() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.FAILED);
+              return Mono.just(doc);
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue).deadLetter(job);
+    verify(ocrJobQueue, never()).release(any(OcrJob.class), anyLong(), anyBoolean());
+  }
+
+  @Test
+  void pagesOfDocScannedByPagesAreSaved() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.COMPLETED);
+              return Mono.just(doc);
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(docService).saveOcrProgress(doc, AsyncApiState.PROCESSING, true);
+    verify(ocrJobQueue).complete(job);
+  }
+
+  @Test
+  void unchangedStateReleasesJobForLater() {
+    when(ocrService.extractTextFromDocAsync(doc)).thenReturn(Mono.just(doc));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    long pollDelay = ocrProperties.getJobs().getPollDelayMillis();
+    verify(ocrJobQueue).release(job, pollDelay, false);
+    verify(ocrJobScheduler).schedule("doc1", pollDelay);
+  }
+
+  @Test
+  void sentDocIsCheckedAfterEstimatedTime() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.WAITING_TO_SEND);
+    when(ocrPollingPolicy.firstPollDelay(doc)).thenReturn(12000L);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+              return Mono.just(doc);
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrService, times(1)).extractTextFromDocAsync(doc);
+    verify(ocrJobQueue).release(job, 12000L, false);
+    Assertions.assertNotNull(job.getSubmittedAt());
+  }
+
+  @Test
+  void stillProcessingDocBacksOff() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    job.setPollCount(2);
+    when(ocrPollingPolicy.nextPollDelay(doc, 3)).thenReturn(40000L);
+    when(ocrService.extractTextFromDocAsync(doc)).thenReturn(Mono.just(doc));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue).release(job, 40000L, false);
+    Assertions.assertEquals(3, job.getPollCount());
+  }
+
+  @Test
+  void stillProcessingDocRaisesEstimate() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    job.setSubmittedAt(new Date(System.currentTimeMillis() - 30000));
+    when(ocrService.extractTextFromDocAsync(doc)).thenReturn(Mono.just(doc));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrPollingPolicy)
+        .recordStillProcessing(eq(doc), longThat(elapsed -> elapsed >= 30000));
+  }
+
+  @Test
+  void scannedDocIsDownloadedRightAwayWithoutLearningPolledTime() {
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.PROCESSING);
+    job.setSubmittedAt(new Date(System.currentTimeMillis() - 30000));
+    AsyncApiState[] nextStates = {
+      AsyncApiState.SCANNED, AsyncApiState.RESOURCE_TO_CLEAN, AsyncApiState.COMPLETED
+    };
+    int[] step = {0};
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(nextStates[step[0]++]);
+              return Mono.just(doc);
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    // polling found the doc done some time after it was scanned
+    verify(ocrPollingPolicy, never()).recordCompletion(any(Doc.class), anyLong());
+    verify(ocrJobQueue).complete(job);
+    Assertions.assertNull(job.getSubmittedAt());
+  }
+
+  @Test
+  void timeOfDocScannedByCallbackIsLearned() {
+    // callback moved the doc to SCANNED
+    doc.getAsyncApiInfo().setAsyncApiState(AsyncApiState.SCANNED);
+    job.setSubmittedAt(new Date(System.currentTimeMillis() - 30000));
+    AsyncApiState[] nextStates = {AsyncApiState.RESOURCE_TO_CLEAN, AsyncApiState.COMPLETED};
+    int[] step = {0};
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenAnswer(
+            invocation -> {
+              doc.getAsyncApiInfo().setAsyncApiState(nextStates[step[0]++]);
+              return Mono.just(doc);
+            });
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrPollingPolicy).recordCompletion(eq(doc), longThat(duration -> duration >= 30000));
+    verify(ocrJobQueue).complete(job);
+  }
+
+  @Test
+  void failedOcrCallIsCountedAsFailedAttempt() {
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new IllegalStateException("Invalid response")));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue).release(eq(job), anyLong(), eq(true));
+    verify(ocrJobQueue, never()).complete(any(OcrJob.class));
+  }
+
+  @Test
+  void unreadableDocIsCountedAsFailedAttempt() {
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(
+            Mono.error(new UncheckedIOException("Unable to read PDF of doc doc1", new IOException())));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue).release(eq(job), anyLong(), eq(true));
+    verify(ocrJobScheduler, never()).getPauseMillis();
+  }
+
+  @Test
+  void unavailableOcrPausesJobWithoutFailedAttempt() {
+    when(ocrJobScheduler.getPauseMillis()).thenReturn(30000L);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new OcrUnavailableException("OCR circuit breaker is open.")));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue).release(job, 30000L, false);
+    verify(ocrJobScheduler).schedule(job.getId(), 30000L);
+  }
+
+  @Test
+  void failedAttemptsBackOffExponentially() {
+    job.setAttempts(1);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new IllegalStateException("Invalid response")));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    long expectedDelay = ocrProperties.getJobs().getRetryBaseDelayMillis() * 2;
+    verify(ocrJobQueue).release(job, expectedDelay, true);
+    Assertions.assertEquals("IllegalStateException: Invalid response", job.getLastError());
+  }
+
+  @Test
+  void lastFailedAttemptMovesJobToDeadLetters() {
+    job.setAttempts(ocrProperties.getJobs().getMaxAttempts() - 1);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new IllegalStateException("Invalid response")));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    Assertions.assertEquals(AsyncApiState.FAILED, doc.getAsyncApiInfo().getAsyncApiState());
+    verify(ocrJobQueue).deadLetter(job);
+    verify(ocrJobQueue, never()).complete(any(OcrJob.class));
+  }
+
+  @Test
+  void docChangedMeanwhileIsReloadedBeforeDeadLetter() {
+    job.setAttempts(ocrProperties.getJobs().getMaxAttempts() - 1);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new IllegalStateException("Invalid response")));
+    // callback moved the doc to SCANNED meanwhile
+    when(docService.saveOcrProgress(doc, AsyncApiState.RESOURCE_TO_CLEAN, false)).thenReturn(false);
+    Doc current =
+        Doc.builder()
+            .id("doc1")
+            .asyncApiInfo(new AsyncApiInfo(AsyncApiState.SCANNED, "", ""))
+            .build();
+    when(documentRepository.findById("doc1")).thenReturn(Optional.of(current));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(docService).saveOcrProgress(current, AsyncApiState.SCANNED, false);
+    Assertions.assertEquals(AsyncApiState.FAILED, current.getAsyncApiInfo().getAsyncApiState());
+    verify(ocrJobQueue).deadLetter(job);
+  }
+
+  @Test
+  void jobIsNotDeadLetteredWhenDocCanNotBeFailed() {
+    job.setAttempts(ocrProperties.getJobs().getMaxAttempts() - 1);
+    when(ocrService.extractTextFromDocAsync(doc))
+        .thenReturn(Mono.error(new IllegalStateException("Invalid response")));
+    when(docService.saveOcrProgress(any(Doc.class), any(AsyncApiState.class), anyBoolean()))
+        .thenReturn(false);
+    when(documentRepository.findById("doc1"))
+        .thenAnswer(
+            invocation ->
+                Optional.of(
+                    Doc.builder()
+                        .id("doc1")
+                        .asyncApiInfo(new AsyncApiInfo(AsyncApiState.PROCESSING, "", ""))
+                        .build()));
+
+    createWorker().process().block(Duration.ofSeconds(5));
+
+    verify(ocrJobQueue, never()).deadLetter(any(OcrJob.class));
+    verify(ocrJobQueue).release(job, ocrProperties.getJobs().getPollDelayMillis(), false);
+  }
+}
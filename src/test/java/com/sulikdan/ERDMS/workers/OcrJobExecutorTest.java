@@ -0,0 +1,89 @@
+package com.sulikdan.ERDMS.workers;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.services.ocr.OcrBackendRouter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.Arrays;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Class OcrJobExecutorTest is used for JUnit tests of OcrJobExecutor backpressure and metrics.
+ */
+class OcrJobExecutorTest {
+
+  MeterRegistry meterRegistry;
+
+  OcrJobExecutor ocrJobExecutor;
+
+  @BeforeEach
+  void setUp() {
+    OcrProperties ocrProperties = new OcrProperties();
+    ocrProperties.getExecutor().setConcurrencyPerBackend(1);
+    ocrProperties.getExecutor().setQueueCapacity(1);
+
+    meterRegistry = new SimpleMeterRegistry();
+    ocrJobExecutor =
+        new OcrJobExecutor(ocrProperties, new OcrBackendRouter(ocrProperties), meterRegistry);
+  }
+
+  private OcrApiJobWorker worker(MonoProcessor<Void> result) {
+    OcrApiJobWorker worker = mock(OcrApiJobWorker.class);
+    when(worker.process()).thenReturn(result);
+    return worker;
+  }
+
+  @Test
+  void fullExecutorRejectsWorkers() {
+    Assertions.assertTrue(ocrJobExecutor.trySubmit(worker(MonoProcessor.create())));
+    Assertions.assertTrue(ocrJobExecutor.trySubmit(worker(MonoProcessor.create())));
+
+    Assertions.assertFalse(ocrJobExecutor.hasCapacity());
+    Assertions.assertFalse(ocrJobExecutor.trySubmit(worker(MonoProcessor.create())));
+
+    Assertions.assertEquals(1.0, meterRegistry.get("ocr.executor.active").gauge().value());
+    Assertions.assertEquals(1.0, meterRegistry.get("ocr.executor.queued").gauge().value());
+    Assertions.assertEquals(1.0, meterRegistry.get("ocr.executor.rejected").counter().count());
+  }
+
+  @Test
+  void concurrencyGrowsWithBackends() {
+    OcrProperties ocrProperties = new OcrProperties();
+    ocrProperties.getExecutor().setConcurrencyPerBackend(2);
+    ocrProperties.getExecutor().setQueueCapacity(0);
+    ocrProperties.setBackends(
+        Arrays.asList("http://ocr1:5000", "http://ocr2:5000", "http://ocr3:5000"));
+    ocrJobExecutor =
+        new OcrJobExecutor(
+            ocrProperties, new OcrBackendRouter(ocrProperties), new SimpleMeterRegistry());
+
+    for (int i = 0; i < 6; i++)
+      Assertions.assertTrue(ocrJobExecutor.trySubmit(worker(MonoProcessor.create())));
+
+    Assertions.assertFalse(ocrJobExecutor.trySubmit(worker(MonoProcessor.create())));
+    Assertions.assertEquals(6, ocrJobExecutor.getActiveCount());
+  }
+
+  @Test
+  void queuedWorkerStartsWhenRunningFinishes() {
+    MonoProcessor<Void> first = MonoProcessor.create();
+    MonoProcessor<Void> second = MonoProcessor.create();
+    ocrJobExecutor.trySubmit(worker(first));
+    ocrJobExecutor.trySubmit(worker(second));
+
+    first.onComplete();
+    Assertions.assertEquals(1, ocrJobExecutor.getActiveCount());
+    Assertions.assertEquals(0, ocrJobExecutor.getQueuedCount());
+
+    second.onComplete();
+    Assertions.assertEquals(0, ocrJobExecutor.getActiveCount());
+    Assertions.assertTrue(ocrJobExecutor.hasCapacity());
+  }
+}
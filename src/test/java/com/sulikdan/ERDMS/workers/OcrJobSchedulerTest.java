@@ -0,0 +1,149 @@
+package com.sulikdan.ERDMS.workers;
+
+import com.sulikdan.ERDMS.configurations.properties.OcrProperties;
+import com.sulikdan.ERDMS.entities.AsyncApiInfo;
+import com.sulikdan.ERDMS.entities.AsyncApiState;
+import com.sulikdan.ERDMS.entities.Doc;
+import com.sulikdan.ERDMS.entities.ocr.OcrJob;
+import com.sulikdan.ERDMS.repositories.DocRepository;
+import com.sulikdan.ERDMS.services.ocr.OcrCircuitBreaker;
+import com.sulikdan.ERDMS.services.ocr.OcrJobQueue;
+import com.sulikdan.ERDMS.services.ocr.OcrPollingPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.BeanFactory;
+
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class OcrJobSchedulerTest is used for JUnit tests of OcrJobScheduler dispatching of due jobs.
+ */
+class OcrJobSchedulerTest {
+
+  @Mock OcrJobExecutor ocrJobExecutor;
+
+  @Mock BeanFactory beanFactory;
+
+  @Mock DocRepository documentRepository;
+
+  @Mock OcrJobQueue ocrJobQueue;
+
+  @Mock OcrCircuitBreaker ocrCircuitBreaker;
+
+  OcrJobScheduler ocrJobScheduler;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    ocrJobScheduler =
+        new OcrJobScheduler(
+            ocrJobExecutor,
+            beanFactory,
+            documentRepository,
+            ocrJobQueue,
+            new OcrPollingPolicy(new OcrProperties()),
+            ocrCircuitBreaker,
+            new OcrProperties());
+    when(ocrJobExecutor.hasCapacity()).thenReturn(true);
+    when(ocrCircuitBreaker.isCallPermitted()).thenReturn(true);
+    when(ocrJobExecutor.trySubmit(any())).thenReturn(true);
+    ocrJobScheduler.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    ocrJobScheduler.stop();
+  }
+
+  private void mockJob(String docId, AsyncApiState state) {
+    Doc doc = Doc.builder().id(docId).asyncApiInfo(new AsyncApiInfo(state, "", "")).build();
+    when(ocrJobQueue.claim(docId)).thenReturn(Optional.of(OcrJob.builder().id(docId).build()));
+    when(documentRepository.findById(docId)).thenReturn(Optional.of(doc));
+  }
+
+  @Test
+  void scheduledJobIsDispatchedRightAway() {
+    mockJob("doc1", AsyncApiState.WAITING_TO_SEND);
+
+    ocrJobScheduler.schedule("doc1", 0);
+
+    verify(ocrJobExecutor, timeout(1000)).trySubmit(any(OcrApiJobWorker.class));
+  }
+
+  @Test
+  void delayedJobWaitsForItsDueTime() throws InterruptedException {
+    mockJob("doc1", AsyncApiState.PROCESSING);
+
+    ocrJobScheduler.schedule("doc1", 500);
+
+    Thread.sleep(200);
+    verify(ocrJobQueue, never()).claim("doc1");
+    verify(ocrJobExecutor, timeout(1000)).trySubmit(any(OcrApiJobWorker.class));
+  }
+
+  @Test
+  void docScheduledTwiceIsDispatchedOnce() throws InterruptedException {
+    mockJob("doc1", AsyncApiState.WAITING_TO_SEND);
+
+    ocrJobScheduler.schedule("doc1", 300);
+    ocrJobScheduler.schedule("doc1", 0);
+
+    Thread.sleep(600);
+    verify(ocrJobQueue, times(1)).claim("doc1");
+  }
+
+  @Test
+  void rejectedJobIsLeftInQueue() {
+    mockJob("doc1", AsyncApiState.WAITING_TO_SEND);
+    when(ocrJobExecutor.trySubmit(any())).thenReturn(false);
+
+    ocrJobScheduler.schedule("doc1", 0);
+
+    verify(ocrJobQueue, timeout(1000)).release(any(OcrJob.class), eq(5000L), eq(false));
+    verify(ocrJobQueue, never()).complete(any(OcrJob.class));
+  }
+
+  @Test
+  void jobIsNotClaimedWhenExecutorIsFull() throws InterruptedException {
+    mockJob("doc1", AsyncApiState.WAITING_TO_SEND);
+    when(ocrJobExecutor.hasCapacity()).thenReturn(false);
+
+    ocrJobScheduler.schedule("doc1", 0);
+
+    Thread.sleep(200);
+    verify(ocrJobQueue, never()).claim("doc1");
+    Assertions.assertEquals(1, ocrJobScheduler.getScheduledCount());
+  }
+
+  @Test
+  void jobsArePausedWhileBreakerIsOpen() throws InterruptedException {
+    mockJob("doc1", AsyncApiState.PROCESSING);
+    when(ocrCircuitBreaker.isCallPermitted()).thenReturn(false);
+    when(ocrCircuitBreaker.getRetryDelayMillis()).thenReturn(30000L);
+
+    ocrJobScheduler.schedule("doc1", 0);
+
+    Thread.sleep(200);
+    verify(ocrJobQueue, never()).claim("doc1");
+    Assertions.assertEquals(1, ocrJobScheduler.getScheduledCount());
+  }
+
+  @Test
+  void jobOfCompletedDocIsRemoved() {
+    mockJob("doc1", AsyncApiState.COMPLETED);
+
+    ocrJobScheduler.schedule("doc1", 0);
+
+    verify(ocrJobQueue, timeout(1000)).complete(any(OcrJob.class));
+    verify(ocrJobExecutor, never()).trySubmit(any());
+  }
+}